@@ -1,15 +1,29 @@
 package simpledb.common;
 
+import simpledb.index.BTreeFile;
+import simpledb.index.BitmapIndex;
+import simpledb.index.HashFile;
+import simpledb.index.IndexFile;
+import simpledb.index.PositionIndex;
+import simpledb.index.TrigramIndex;
+import simpledb.storage.ColumnFile;
+import simpledb.storage.CompressedFile;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.LsmFile;
+import simpledb.storage.SlottedFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -27,6 +41,9 @@ public class Catalog {
     private final Map<String, Integer> name2id;
     private final Map<Integer, String> id2name;
     private final Map<Integer, String> pkey;
+    private final Map<Integer, IndexFile> id2index;
+    private final Map<Integer, List<IndexFile>> table2indexes;
+    private final Map<Integer, List<PositionIndex<?>>> table2positions;
 
     /**
      * Constructor.
@@ -38,6 +55,9 @@ public class Catalog {
         name2id = new ConcurrentHashMap<>();
         id2name = new ConcurrentHashMap<>();
         pkey = new ConcurrentHashMap<>();
+        id2index = new ConcurrentHashMap<>();
+        table2indexes = new ConcurrentHashMap<>();
+        table2positions = new ConcurrentHashMap<>();
 
     }
 
@@ -58,6 +78,12 @@ public class Catalog {
         if (name2id.containsKey(name)) {
             id2table.remove(name2id.get(name));
             id2tupledesc.remove(name2id.get(name));
+            List<IndexFile> indexes = table2indexes.remove(name2id.get(name));
+            if (indexes != null) {
+                for (IndexFile index : indexes)
+                    id2index.remove(index.getId());
+            }
+            table2positions.remove(name2id.get(name));
             name2id.remove(name);
         }
 
@@ -86,6 +112,57 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add an index on a table that is in the catalog. From now on, BufferPool
+     * keeps it up to date as tuples are inserted into and deleted from the
+     * table, and the optimizer may use it to answer predicates on the
+     * indexed field. Its pages can be looked up through
+     * {@link #getDatabaseFile} with the index's id.
+     *
+     * @param index the index to add; index.getTableId() must be in the
+     *              catalog
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     */
+    public void addIndex(IndexFile index) throws NoSuchElementException {
+        if (!id2table.containsKey(index.getTableId()))
+            throw new NoSuchElementException();
+        id2index.put(index.getId(), index);
+        table2indexes.computeIfAbsent(index.getTableId(), id -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * @return the indexes on the specified table (an empty list if there
+     *         are none)
+     */
+    public List<IndexFile> getIndexes(int tableid) {
+        List<IndexFile> indexes = table2indexes.get(tableid);
+        return indexes == null ? Collections.emptyList() : Collections.unmodifiableList(indexes);
+    }
+
+    /**
+     * Add a bitmap or trigram index on a table that is in the catalog. From
+     * now on, BufferPool adds the tuples inserted into the table to it, and
+     * the optimizer may use it to answer predicates on the indexed field.
+     *
+     * @param index the index to add; index.getTableId() must be in the
+     *              catalog
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     */
+    public void addPositionIndex(PositionIndex<?> index) throws NoSuchElementException {
+        if (!id2table.containsKey(index.getTableId()))
+            throw new NoSuchElementException();
+        table2positions.computeIfAbsent(index.getTableId(), id -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * @return the bitmap and trigram indexes on the specified table (an
+     *         empty list if there are none)
+     */
+    public List<PositionIndex<?>> getPositionIndexes(int tableid) {
+        List<PositionIndex<?>> indexes = table2positions.get(tableid);
+        return indexes == null ? Collections.emptyList() : Collections.unmodifiableList(indexes);
+    }
+
     /**
      * Return the id of the table with a specified name,
      *
@@ -114,13 +191,14 @@ public class Catalog {
 
     /**
      * Returns the DbFile that can be used to read the contents of the
-     * specified table.
+     * specified table (or index).
      *
      * @param tableid The id of the table, as specified by the DbFile.getId()
-     *                function passed to addTable
+     *                function passed to addTable (or addIndex)
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
-        return id2table.get(tableid);
+        DbFile file = id2table.get(tableid);
+        return file != null ? file : id2index.get(tableid);
     }
 
     public String getPrimaryKey(int tableid) {
@@ -139,15 +217,67 @@ public class Catalog {
      * Delete all tables from the catalog
      */
     public void clear() {
+        List<Object> files = new ArrayList<>(id2table.values());
+        files.addAll(id2index.values());
+        for (List<PositionIndex<?>> indexes : table2positions.values())
+            files.addAll(indexes);
+        for (Object file : files) {
+            if (file instanceof Closeable) {
+                try {
+                    ((Closeable) file).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
         id2table.clear();
         id2tupledesc.clear();
         name2id.clear();
         id2name.clear();
         pkey.clear();
+        id2index.clear();
+        table2indexes.clear();
+        table2positions.clear();
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * <p>
+     * Each line describes one table as
+     * <pre>
+     *     name (field type [pk] [index] [hash] [bitmap] [trigram] [bloom], ...) [option ...]
+     * </pre>
+     * where type is int or string. Fields annotated with index get a B+ tree
+     * index ({@link BTreeFile}), stored in name.field.idx next to the table,
+     * and fields annotated with hash get a hash index ({@link HashFile}) for
+     * point lookups, stored in name.field.hash. So does the primary key of
+     * a table stored in a {@link HeapFile}, annotated or not. Fields with few distinct values annotated with bitmap get a
+     * {@link BitmapIndex}, saved in name.field.bmp, and string fields
+     * searched with LIKE annotated with trigram get a {@link TrigramIndex},
+     * saved in name.field.tri. An index is built from the table if its file
+     * does not exist yet (or, for a bitmap or trigram index, is older than
+     * the table's file). Fields annotated with bloom get per-page
+     * Bloom filters, so that equality predicates and join probes on them
+     * skip the pages that do not hold the key (see {@link
+     * HeapFile#setBloomFields}).
+     * The optional table options are:
+     * <ul>
+     * <li> mmap -- read the table's pages through a memory mapping (for
+     * read-mostly tables that are scanned a lot)
+     * <li> slotted -- store the table in a {@link SlottedFile}, with
+     * variable-length records (for tables of short strings). The table's
+     * file must have been written in that format.
+     * <li> compressed -- store the table in a {@link CompressedFile}, whose
+     * pages are dictionary, run-length or frame-of-reference encoded (for
+     * scan-heavy tables of small ints and repetitive strings). The table's
+     * file must have been written in that format.
+     * <li> columnar -- store the table column by column in a {@link
+     * ColumnFile} (for wide tables that queries only read a few columns of).
+     * The column files must have been written with ColumnFile.convert.
+     * <li> lsm -- store the table in an {@link LsmFile}, sorted on its
+     * primary key, which it must have (for tables that take sustained high
+     * insert rates). The table can have no indexes or Bloom filters.
+     * </ul>
      *
      * @param catalogFile
      */
@@ -166,6 +296,11 @@ public class Catalog {
                 List<String> names = new ArrayList<>();
                 List<Type> types = new ArrayList<>();
                 String primaryKey = "";
+                List<Integer> indexed = new ArrayList<>();
+                List<Integer> hashed = new ArrayList<>();
+                List<Integer> bitmapped = new ArrayList<>();
+                List<Integer> trigrammed = new ArrayList<>();
+                List<Integer> bloomed = new ArrayList<>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -177,11 +312,45 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int k = 2; k < els2.length; k++) {
+                        if (els2[k].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[k].trim().equals("index"))
+                            indexed.add(names.size() - 1);
+                        else if (els2[k].trim().equals("hash"))
+                            hashed.add(names.size() - 1);
+                        else if (els2[k].trim().equals("bitmap"))
+                            bitmapped.add(names.size() - 1);
+                        else if (els2[k].trim().equals("trigram"))
+                            trigrammed.add(names.size() - 1);
+                        else if (els2[k].trim().equals("bloom"))
+                            bloomed.add(names.size() - 1);
+                        else {
+                            System.out.println("Unknown annotation " + els2[k]);
+                            System.exit(0);
+                        }
+                    }
+                }
+                boolean memoryMapped = false;
+                boolean slotted = false;
+                boolean compressed = false;
+                boolean columnar = false;
+                boolean lsm = false;
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                if (!options.isEmpty()) {
+                    for (String option : options.split("\\s+")) {
+                        if (option.equalsIgnoreCase("mmap"))
+                            memoryMapped = true;
+                        else if (option.equalsIgnoreCase("slotted"))
+                            slotted = true;
+                        else if (option.equalsIgnoreCase("compressed"))
+                            compressed = true;
+                        else if (option.equalsIgnoreCase("columnar"))
+                            columnar = true;
+                        else if (option.equalsIgnoreCase("lsm"))
+                            lsm = true;
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown table option " + option);
                             System.exit(0);
                         }
                     }
@@ -189,11 +358,69 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                File tabFile = new File(baseFolder + "/" + name + ".dat");
+                DbFile tabHf;
+                if (lsm) {
+                    if (!names.contains(primaryKey)) {
+                        System.out.println("LSM tables need a primary key: " + name);
+                        System.exit(0);
+                    }
+                    if (!indexed.isEmpty() || !hashed.isEmpty() || !bitmapped.isEmpty()
+                            || !trigrammed.isEmpty() || !bloomed.isEmpty()) {
+                        System.out.println("LSM tables cannot have indexes: " + name);
+                        System.exit(0);
+                    }
+                    tabHf = new LsmFile(tabFile, t, names.indexOf(primaryKey));
+                } else if (columnar)
+                    tabHf = new ColumnFile(tabFile, t);
+                else if (compressed)
+                    tabHf = new CompressedFile(tabFile, t, memoryMapped);
+                else if (slotted)
+                    tabHf = new SlottedFile(tabFile, t, memoryMapped);
+                else
+                    tabHf = new HeapFile(tabFile, t, memoryMapped);
+                if (!bloomed.isEmpty()) {
+                    if (!(tabHf instanceof HeapFile)) {
+                        System.out.println("Bloom filters need a heap file: " + name);
+                        System.exit(0);
+                    }
+                    int[] bloomFields = new int[bloomed.size()];
+                    for (int k = 0; k < bloomFields.length; k++)
+                        bloomFields[k] = bloomed.get(k);
+                    ((HeapFile) tabHf).setBloomFields(bloomFields);
+                }
+                // point lookups by primary key go through a hash index
+                int keyField = names.indexOf(primaryKey);
+                if (keyField >= 0 && tabHf instanceof HeapFile && !hashed.contains(keyField))
+                    hashed.add(keyField);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (int field : indexed) {
+                    File idxFile = new File(baseFolder + "/" + name + "." + namesAr[field] + ".idx");
+                    addIndex(openIndex(tabHf, field, idxFile, false));
+                    System.out.println("Added index on " + name + "." + namesAr[field]);
+                }
+                for (int field : hashed) {
+                    File idxFile = new File(baseFolder + "/" + name + "." + namesAr[field] + ".hash");
+                    addIndex(openIndex(tabHf, field, idxFile, true));
+                    System.out.println("Added hash index on " + name + "." + namesAr[field]);
+                }
+                for (int field : bitmapped) {
+                    File bmpFile = new File(baseFolder + "/" + name + "." + namesAr[field] + ".bmp");
+                    addPositionIndex(openPositionIndex(tabHf, field, bmpFile, false));
+                    System.out.println("Added bitmap index on " + name + "." + namesAr[field]);
+                }
+                for (int field : trigrammed) {
+                    if (typeAr[field] != Type.STRING_TYPE) {
+                        System.out.println("Trigram index on a non-string field " + namesAr[field]);
+                        System.exit(0);
+                    }
+                    File triFile = new File(baseFolder + "/" + name + "." + namesAr[field] + ".tri");
+                    addPositionIndex(openPositionIndex(tabHf, field, triFile, true));
+                    System.out.println("Added trigram index on " + name + "." + namesAr[field]);
+                }
             }
-        } catch (IOException e) {
+        } catch (IOException | DbException | TransactionAbortedException e) {
             e.printStackTrace();
             System.exit(0);
         } catch (IndexOutOfBoundsException e) {
@@ -201,5 +428,46 @@ public class Catalog {
             System.exit(0);
         }
     }
-}
 
+    /**
+     * Open the B+ tree (or hash) index on the specified field of a table,
+     * building it from the table if its file does not exist yet.
+     */
+    private static IndexFile openIndex(DbFile table, int field, File idxFile, boolean hash)
+            throws IOException, DbException, TransactionAbortedException {
+        if (idxFile.length() > 0)
+            return hash ? new HashFile(idxFile, table, field) : new BTreeFile(idxFile, table, field);
+        TransactionId tid = new TransactionId();
+        try {
+            if (hash)
+                return HashFile.create(tid, table, field, idxFile);
+            return BTreeFile.create(tid, table, field, idxFile);
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * Open the bitmap (or trigram) index on the specified field of a table,
+     * building it from the table if its file is missing, out of date or
+     * unreadable.
+     */
+    private static PositionIndex<?> openPositionIndex(DbFile table, int field, File f, boolean trigram)
+            throws IOException, DbException, TransactionAbortedException {
+        if (PositionIndex.isUpToDate(f, table)) {
+            try {
+                return trigram ? TrigramIndex.open(f, table, field) : BitmapIndex.open(f, table, field);
+            } catch (IOException e) {
+                Debug.log("Catalog: rebuilding %s: %s", f, e);
+            }
+        }
+        TransactionId tid = new TransactionId();
+        try {
+            if (trigram)
+                return TrigramIndex.create(tid, table, field, f);
+            return BitmapIndex.create(tid, table, field, f);
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+}
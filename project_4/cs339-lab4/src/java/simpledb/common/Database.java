@@ -66,6 +66,12 @@ public class Database {
      */
     public static BufferPool resetBufferPool(int pages) {
         java.lang.reflect.Field bufferPoolF = null;
+        try {
+            // the pages the old pool has not written yet must not be lost
+            _instance.get()._bufferpool.disableWriteBehind();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
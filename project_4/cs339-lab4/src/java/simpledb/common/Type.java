@@ -7,6 +7,8 @@ import simpledb.storage.StringField;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 /**
@@ -30,6 +32,24 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                return new IntField(buf.getInt());
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", buf.position());
+            }
+        }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) throws ParseException {
+            try {
+                return new IntField(buf.getInt(offset));
+            } catch (IndexOutOfBoundsException e) {
+                throw new ParseException("couldn't parse", offset);
+            }
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -48,6 +68,34 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                int start = buf.position();
+                int strLen = buf.getInt();
+                byte[] bs = new byte[strLen];
+                buf.get(bs);
+                buf.position(start + getLen());
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new ParseException("couldn't parse", buf.position());
+            }
+        }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) throws ParseException {
+            try {
+                int strLen = buf.getInt(offset);
+                if (strLen < 0 || strLen > STRING_LEN)
+                    throw new ParseException("couldn't parse", offset);
+                byte[] bs = new byte[strLen];
+                buf.get(offset + 4, bs);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (IndexOutOfBoundsException e) {
+                throw new ParseException("couldn't parse", offset);
+            }
+        }
     };
 
     public static final int STRING_LEN = 128;
@@ -66,4 +114,30 @@ public enum Type implements Serializable {
      */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+    /**
+     * Like {@link #parse(DataInputStream)}, but reads from the current
+     * position of a buffer and advances it past the field (getLen() bytes).
+     *
+     * @param buf The buffer to read from
+     * @return a Field object of the same type as this object that has contents
+     *         read from the buffer.
+     * @throws ParseException if the buffer does not hold a field of this type
+     *                        at its position.
+     */
+    public abstract Field parse(ByteBuffer buf) throws ParseException;
+
+    /**
+     * Like {@link #parse(ByteBuffer)}, but reads the field at an absolute
+     * offset and leaves the buffer's position alone, so that any number of
+     * threads can decode fields out of the same buffer.
+     *
+     * @param buf    The buffer to read from
+     * @param offset The offset of the field in the buffer
+     * @return a Field object of the same type as this object that has contents
+     *         read from the buffer.
+     * @throws ParseException if the buffer does not hold a field of this type
+     *                        at the offset.
+     */
+    public abstract Field parse(ByteBuffer buf, int offset) throws ParseException;
+
 }
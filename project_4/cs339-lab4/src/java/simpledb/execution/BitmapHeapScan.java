@@ -0,0 +1,242 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.index.Bitmap;
+import simpledb.index.PositionIndex;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * BitmapHeapScan returns the tuples of a table that satisfy a conjunction
+ * of predicates on fields with bitmap indexes (or, for LIKE predicates,
+ * trigram indexes). When opened, it looks up the positions that may
+ * satisfy each predicate in the index on its field and intersects them,
+ * without reading the table; then it fetches the tuples at the remaining
+ * positions, page by page in page order, reading the next pages ahead.
+ * <p>
+ * The positions the indexes return are only candidates: they may hold
+ * positions of tuples that were deleted or never committed (see {@link
+ * PositionIndex}), and a trigram index cannot tell whether the trigrams are
+ * in the right order. So every tuple fetched is checked against the
+ * predicates, and the positions found stale are removed from the indexes.
+ */
+public class BitmapHeapScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    // the number of the next matching pages read ahead at a time
+    private static final int READ_AHEAD = 16;
+
+    private boolean isOpen = false;
+    private final TransactionId tid;
+    private final int tableid;
+    private final List<Predicate> predicates;
+    private final transient List<PositionIndex<?>> indexes = new ArrayList<>(); // the index of each predicate
+    private final TupleDesc myTd;
+    private final String tableName;
+    private final String alias;
+    private transient HeapFile table;
+    private transient Bitmap matches;
+    private transient int curPage; // index of the current page among the matching pages
+    private transient int readAheadUpTo; // index of the last page read ahead
+    private transient int[] slots;
+    private transient int curSlot;
+    private transient boolean clean; // the current page holds only committed changes
+    private transient PageId pinned; // the current page, pinned until we move on
+    private transient Tuple next = null;
+
+    /**
+     * Creates a scan of the tuples of a table that satisfy all of the
+     * specified predicates.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan; it must be a HeapFile
+     * @param tableAlias the alias of the table; the returned tupleDesc has
+     *                   fields named tableAlias.fieldName, like SeqScan's
+     * @param predicates predicates on fields of the table (indexed as in its
+     *                   TupleDesc), each of which must be supported by a
+     *                   bitmap or trigram index on its field
+     * @throws IllegalArgumentException if no index supports a predicate
+     */
+    public BitmapHeapScan(TransactionId tid, int tableid, String tableAlias, List<Predicate> predicates) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.predicates = predicates;
+        this.alias = tableAlias;
+        this.tableName = Database.getCatalog().getTableName(tableid);
+        this.table = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        for (Predicate p : predicates) {
+            PositionIndex<?> index = null;
+            for (PositionIndex<?> b : Database.getCatalog().getPositionIndexes(tableid)) {
+                if (b.getKeyField() == p.getField() && b.supports(p.getOp(), p.getOperand())) {
+                    index = b;
+                    break;
+                }
+            }
+            if (index == null)
+                throw new IllegalArgumentException("no index on field " + p.getField() + " supports " + p);
+            indexes.add(index);
+        }
+        TupleDesc td = table.getTupleDesc();
+        String[] newNames = new String[td.numFields()];
+        Type[] newTypes = new Type[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            newNames[i] = tableAlias + "." + td.getFieldName(i);
+            newTypes[i] = td.getFieldType(i);
+        }
+        myTd = new TupleDesc(newTypes, newNames);
+    }
+
+    /**
+     * @return the table name of the table the operator scans
+     */
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return this.alias;
+    }
+
+    /**
+     * @return the predicates this scan answers
+     */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+
+        matches = null;
+        for (int i = 0; i < predicates.size(); i++) {
+            Predicate p = predicates.get(i);
+            Bitmap b = indexes.get(i).lookup(p.getOp(), p.getOperand());
+            matches = matches == null ? b : Bitmap.and(matches, b);
+        }
+        if (matches == null)
+            throw new DbException("bitmap scan without predicates");
+        curPage = -1;
+        readAheadUpTo = -1;
+        slots = new int[0];
+        curSlot = 0;
+        isOpen = true;
+    }
+
+    /**
+     * @return the TupleDesc of the table, with field names prefixed with the
+     *         tableAlias string from the constructor
+     */
+    public TupleDesc getTupleDesc() {
+        return myTd;
+    }
+
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (true) {
+            while (curSlot == slots.length) {
+                if (curPage + 1 >= matches.numPages())
+                    return null;
+                unpin();
+                curPage++;
+                readAhead();
+                PageId pid = new HeapPageId(tableid, matches.getPage(curPage));
+                Page p = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                pinned = pid;
+                clean = p.isDirty() == null;
+                slots = matches.getSlots(curPage);
+                curSlot = 0;
+            }
+            RecordId rid = new RecordId(new HeapPageId(tableid, matches.getPage(curPage)), slots[curSlot++]);
+            Tuple t = table.getTuple(tid, rid);
+            if (t != null && matchesAll(t))
+                return t;
+            if (clean) {
+                for (int i = 0; i < predicates.size(); i++) {
+                    PositionIndex<?> index = indexes.get(i);
+                    Predicate p = predicates.get(i);
+                    index.removeStale(rid, t == null ? null : t.getField(index.getKeyField()), p.getOp(), p.getOperand());
+                }
+            }
+        }
+    }
+
+    private void unpin() {
+        if (pinned != null) {
+            Database.getBufferPool().unpinPage(tid, pinned);
+            pinned = null;
+        }
+    }
+
+    private boolean matchesAll(Tuple t) {
+        for (Predicate p : predicates) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Once the scan is into the second half of the pages read ahead, ask
+     * for the next READ_AHEAD matching pages.
+     */
+    private void readAhead() {
+        if (readAheadUpTo - curPage > READ_AHEAD / 2)
+            return;
+        int first = Math.max(curPage + 1, readAheadUpTo + 1);
+        int last = Math.min(matches.numPages() - 1, first + READ_AHEAD - 1);
+        if (first > last)
+            return;
+        List<PageId> pids = new ArrayList<>(last - first + 1);
+        for (int i = first; i <= last; i++)
+            pids.add(new HeapPageId(tableid, matches.getPage(i)));
+        readAheadUpTo = first - 1 + Database.getBufferPool().prefetch(pids);
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (next == null)
+            next = fetchNext();
+        return next != null;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    public void close() {
+        unpin();
+        matches = null;
+        next = null;
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+}
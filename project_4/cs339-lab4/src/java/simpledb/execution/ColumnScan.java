@@ -0,0 +1,120 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.ColumnFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * ColumnScan is a scan of some of the columns of a table stored in a
+ * {@link ColumnFile}. Only the pages of the requested columns are read; the
+ * returned tuples hold just those columns, in the requested order.
+ */
+public class ColumnScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean isOpen = false;
+    private final TransactionId tid;
+    private final TupleDesc myTd;
+    private final int[] columns;
+    private transient DbFileIterator it;
+    private final String tableName;
+    private final String alias;
+
+    /**
+     * Creates a scan over the specified columns of a table as a part of the
+     * specified transaction.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan; must be stored in a ColumnFile
+     * @param tableAlias the alias of this table; the returned tupleDesc has
+     *                   fields named tableAlias.fieldName, like SeqScan's
+     * @param columns    the indexes of the columns to return
+     */
+    public ColumnScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
+        this.tid = tid;
+        this.alias = tableAlias;
+        this.columns = columns.clone();
+        this.tableName = Database.getCatalog().getTableName(tableid);
+        ColumnFile cf = (ColumnFile) Database.getCatalog().getDatabaseFile(tableid);
+        this.it = cf.iterator(tid, this.columns);
+        TupleDesc td = cf.getTupleDesc(this.columns);
+        String[] newNames = new String[td.numFields()];
+        Type[] newTypes = new Type[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            newNames[i] = tableAlias + "." + td.getFieldName(i);
+            newTypes[i] = td.getFieldType(i);
+        }
+        myTd = new TupleDesc(newTypes, newNames);
+    }
+
+    /**
+     * @return the table name of the table the operator scans
+     */
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return this.alias;
+    }
+
+    /**
+     * @return the indexes of the columns this operator scans
+     */
+    public int[] getColumns() {
+        return columns.clone();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+
+        it.open();
+        isOpen = true;
+    }
+
+    /**
+     * @return the TupleDesc of the scanned columns, with field names
+     *         prefixed with the tableAlias string from the constructor
+     */
+    public TupleDesc getTupleDesc() {
+        return myTd;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+
+        return it.next();
+    }
+
+    public void close() {
+        it.close();
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -53,6 +54,15 @@ public class HashEquiJoin extends Operator {
     final Map<Object, List<Tuple>> map = new HashMap<>();
     public final static int MAP_SIZE = 20000;
 
+    /**
+     * The most distinct keys a batch of child1 can have for child2 to be
+     * scanned only where, according to its Bloom filters, one of them may
+     * be. With more keys, few pages fail all of the lookups anyway.
+     */
+    public final static int MAX_PROBE_KEYS = 32;
+
+    private transient SeqScan probe = null; // the scan under child2, if it can be probed
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
@@ -71,7 +81,9 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
+        probe = SeqScan.probeTarget(child2, pred.getField2());
         loadMap();
+        restrictProbe();
         super.open();
     }
 
@@ -83,6 +95,32 @@ public class HashEquiJoin extends Operator {
         this.t2 = null;
         this.listIt = null;
         this.map.clear();
+        if (probe != null) {
+            try {
+                probe.setProbe(-1, null);
+            } catch (DbException | TransactionAbortedException e) {
+                // the scan is closed; it is not read again
+            }
+            probe = null;
+        }
+    }
+
+    /**
+     * Restrict child2 to the pages that may hold one of the keys of the
+     * batch in the map, if it can be probed and the batch has few keys.
+     */
+    private void restrictProbe() throws DbException, TransactionAbortedException {
+        if (probe == null)
+            return;
+        if (map.size() > MAX_PROBE_KEYS) {
+            probe.setProbe(-1, null);
+        } else {
+            List<Field> keys = new ArrayList<>();
+            for (Object key : map.keySet())
+                keys.add((Field) key);
+            probe.setProbe(pred.getField2(), keys);
+        }
+        child2.rewind();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -149,6 +187,7 @@ public class HashEquiJoin extends Operator {
         // child2 is done: advance child1
         child2.rewind();
         if (loadMap()) {
+            restrictProbe();
             return fetchNext();
         }
 
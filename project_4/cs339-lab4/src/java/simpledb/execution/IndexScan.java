@@ -0,0 +1,162 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.IndexFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexScan returns the tuples of a table whose indexed field satisfies a
+ * predicate, by looking them up in an index on the field instead of
+ * scanning the whole table.
+ * <p>
+ * A regular index scan fetches the table tuple each index entry points at.
+ * An index-only scan returns the entries themselves, which hold just the
+ * indexed field; the optimizer uses one when a query needs no other field
+ * of the table, so the table is not read at all.
+ */
+public class IndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean isOpen = false;
+    private final TransactionId tid;
+    private final IndexFile index;
+    private final Predicate.Op op;
+    private final Field operand;
+    private final boolean indexOnly;
+    private final TupleDesc myTd;
+    private transient DbFileIterator it;
+    private transient HeapFile table;
+    private transient Tuple next = null;
+    private final String tableName;
+    private final String alias;
+
+    /**
+     * Creates a scan of the tuples of the table an index is on whose indexed
+     * field satisfies {@code field op operand}.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param index      the index to look the tuples up in
+     * @param tableAlias the alias of the table; the returned tupleDesc has
+     *                   fields named tableAlias.fieldName, like SeqScan's
+     * @param op         the operator of the predicate; index.supports(op)
+     *                   must hold
+     * @param operand    the constant the indexed field is compared with
+     * @param indexOnly  if true, return the index entries (the indexed field
+     *                   only) rather than the table's tuples
+     */
+    public IndexScan(TransactionId tid, IndexFile index, String tableAlias, Predicate.Op op, Field operand,
+                     boolean indexOnly) {
+        if (!index.supports(op))
+            throw new IllegalArgumentException("index does not support " + op);
+        this.tid = tid;
+        this.index = index;
+        this.op = op;
+        this.operand = operand;
+        this.indexOnly = indexOnly;
+        this.alias = tableAlias;
+        this.tableName = Database.getCatalog().getTableName(index.getTableId());
+        this.table = (HeapFile) Database.getCatalog().getDatabaseFile(index.getTableId());
+        this.it = index.indexIterator(tid, op, operand);
+        TupleDesc td = indexOnly ? index.getTupleDesc() : table.getTupleDesc();
+        String[] newNames = new String[td.numFields()];
+        Type[] newTypes = new Type[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            newNames[i] = tableAlias + "." + td.getFieldName(i);
+            newTypes[i] = td.getFieldType(i);
+        }
+        myTd = new TupleDesc(newTypes, newNames);
+    }
+
+    /**
+     * @return the table name of the table the operator scans
+     */
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return this.alias;
+    }
+
+    /**
+     * @return true if this scan returns index entries instead of tuples of
+     *         the table
+     */
+    public boolean isIndexOnly() {
+        return indexOnly;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+
+        it.open();
+        isOpen = true;
+    }
+
+    /**
+     * @return the TupleDesc of the table (or, for an index-only scan, of the
+     *         indexed field), with field names prefixed with the tableAlias
+     *         string from the constructor
+     */
+    public TupleDesc getTupleDesc() {
+        return myTd;
+    }
+
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (it.hasNext()) {
+            Tuple entry = it.next();
+            if (indexOnly)
+                return entry;
+            Tuple t = table.getTuple(tid, entry.getRecordId());
+            // the index is updated along with the table, so the tuple is
+            // there unless this transaction is in the middle of changing it
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (next == null)
+            next = fetchNext();
+        return next != null;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    public void close() {
+        it.close();
+        next = null;
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -5,6 +5,7 @@ import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.Collections;
 import java.util.NoSuchElementException;
 
 /**
@@ -17,6 +18,7 @@ public class Join extends Operator {
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
     private Tuple t1 = null;
+    private transient SeqScan probe = null; // the scan under child2 to restrict to each t1's key, if any
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -65,6 +67,10 @@ public class Join extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
+        // for an equality join, an inner table with Bloom filters on the
+        // join field need only be scanned where the outer key may be
+        if (pred.getOperator() == Predicate.Op.EQUALS)
+            probe = SeqScan.probeTarget(child2, pred.getField2());
         super.open();
     }
 
@@ -72,6 +78,14 @@ public class Join extends Operator {
         super.close();
         child2.close();
         child1.close();
+        if (probe != null) {
+            try {
+                probe.setProbe(-1, null);
+            } catch (DbException | TransactionAbortedException e) {
+                // the scan is closed; it is not read again
+            }
+            probe = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -103,6 +117,10 @@ public class Join extends Operator {
             if (t1 == null) {
                 assert child1.hasNext();
                 t1 = child1.next();
+                if (probe != null) {
+                    probe.setProbe(pred.getField2(), Collections.singletonList(t1.getField(pred.getField1())));
+                    child2.rewind();
+                }
             }
 
             // loop around child2
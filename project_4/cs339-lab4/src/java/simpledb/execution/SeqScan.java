@@ -3,12 +3,19 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LsmFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -27,6 +34,10 @@ public class SeqScan implements OpIterator {
     //    private transient int tableid;
     private String tableName;
     private String alias;
+    private final List<Predicate> predicates;
+    private transient DbFile file;
+    private int probeField = -1;
+    private Collection<Field> probeKeys = null;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -42,7 +53,27 @@ public class SeqScan implements OpIterator {
      *                   tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, Collections.emptyList());
+    }
+
+    /**
+     * Creates a sequential scan over the specified table that may skip the
+     * pages on which no tuple satisfies the specified predicates (for heap
+     * files, by looking them up in the file's zone map and Bloom filters;
+     * for LSM files, by seeking to the keys predicates on the key select).
+     * The scan can still
+     * return tuples that do not satisfy them, so they must be applied by a
+     * Filter as well.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan.
+     * @param tableAlias the alias of this table (see above)
+     * @param predicates predicates on the fields of the table, indexed as in
+     *                   its TupleDesc
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, List<Predicate> predicates) {
         this.tid = tid;
+        this.predicates = predicates;
         reset(tableid, tableAlias);
     }
 
@@ -77,7 +108,8 @@ public class SeqScan implements OpIterator {
         this.isOpen = false;
         this.alias = tableAlias;
         this.tableName = Database.getCatalog().getTableName(tableid);
-        this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        this.file = Database.getCatalog().getDatabaseFile(tableid);
+        this.it = iterator();
         myTd = Database.getCatalog().getTupleDesc(tableid);
         String[] newNames = new String[myTd.numFields()];
         Type[] newTypes = new Type[myTd.numFields()];
@@ -91,6 +123,60 @@ public class SeqScan implements OpIterator {
         myTd = new TupleDesc(newTypes, newNames);
     }
 
+    private DbFileIterator iterator() {
+        if (file instanceof HeapFile && (!predicates.isEmpty() || probeKeys != null))
+            return ((HeapFile) file).iterator(tid, predicates, probeField, probeKeys);
+        if (file instanceof LsmFile && !predicates.isEmpty())
+            return ((LsmFile) file).iterator(tid, predicates);
+        return file.iterator(tid);
+    }
+
+    /**
+     * @return true if {@link #setProbe} can restrict this scan to the pages
+     *         that may hold given values of the specified field, i.e. the
+     *         table keeps Bloom filters of it
+     */
+    public boolean canProbe(int field) {
+        return file instanceof HeapFile && ((HeapFile) file).hasBloomFilter(field);
+    }
+
+    /**
+     * Restrict this scan to the pages that, according to the table's Bloom
+     * filters, may hold a tuple whose specified field is one of the keys
+     * (e.g., the keys the inner side of a join is probed with). Like the
+     * predicates, this only rules out pages, so other tuples can still be
+     * returned. If the scan is open, it starts over.
+     *
+     * @param field the field the keys are values of; canProbe(field) should
+     *              hold, or the keys are ignored
+     * @param keys  the keys, or null to scan all pages again
+     */
+    public void setProbe(int field, Collection<Field> keys)
+            throws DbException, TransactionAbortedException {
+        this.probeField = field;
+        this.probeKeys = keys;
+        DbFileIterator old = it;
+        it = iterator();
+        if (isOpen) {
+            old.close();
+            it.open();
+        }
+    }
+
+    /**
+     * @return the SeqScan the specified operator returns the tuples of, as
+     *         they are or through Filters, if it can be probed on the
+     *         specified field (which is then a field of that scan too), or
+     *         null
+     */
+    static SeqScan probeTarget(OpIterator op, int field) {
+        while (op instanceof Filter)
+            op = ((Filter) op).getChildren()[0];
+        if (op instanceof SeqScan && ((SeqScan) op).canProbe(field))
+            return (SeqScan) op;
+        return null;
+    }
+
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
@@ -0,0 +1,568 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.AbstractDbFileIterator;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BTreeFile is a B+ tree secondary index on one field of a HeapFile. It
+ * maps each key to the RecordIds of the tuples with that key, so that
+ * equality and range predicates on the field can be answered by reading a
+ * path from the root to a leaf and the leaves with matching entries,
+ * instead of the whole table.
+ * <p>
+ * Page 0 of the file is a meta page that records the root; all other pages
+ * are leaves or internal nodes (see {@link BTreePage}). Pages are read
+ * through the BufferPool and locked like table pages, except that the
+ * locks on the way down to a leaf are given up once the next page is
+ * locked (see {@link #findLeaf}): searches lock their leaves shared, inserts
+ * and deletes lock the pages on their path exclusively, and keep the locks
+ * on their leaf and on the pages a split changes. Full pages are split in
+ * half. Pages that become empty are not merged with
+ * their siblings (indexes on tables that shrink for good should be rebuilt
+ * with {@link #create}); scans just skip them.
+ *
+ * @see IndexFile
+ * @see simpledb.execution.IndexScan
+ */
+public class BTreeFile implements IndexFile, Closeable {
+
+    static final int META_PAGE = 0;
+
+    private final File f;
+    private final int indexid;
+    private final int tableid;
+    private final int keyField;
+    private final Type keyType;
+    private final TupleDesc td;
+    private FileChannel channel = null; // opened lazily, protected by this
+
+    /**
+     * Opens the index stored in the specified file, creating an empty index
+     * if the file does not exist (or is empty).
+     *
+     * @param f        the file that stores the index
+     * @param table    the table the index is on
+     * @param keyField the index of the indexed field of the table
+     */
+    public BTreeFile(File f, DbFile table, int keyField) throws IOException {
+        if (!(table instanceof HeapFile))
+            throw new IllegalArgumentException("B+ tree indexes can only index HeapFiles");
+        this.f = f;
+        this.indexid = f.getAbsoluteFile().hashCode();
+        this.tableid = table.getId();
+        this.keyField = keyField;
+        TupleDesc tableTd = table.getTupleDesc();
+        this.keyType = tableTd.getFieldType(keyField);
+        this.td = new TupleDesc(new Type[]{keyType}, new String[]{tableTd.getFieldName(keyField)});
+        if (f.length() == 0) {
+            writePageData(META_PAGE, BTreePage.createMetaPageData(1));
+            writePageData(1, BTreePage.createEmptyPageData());
+        }
+    }
+
+    /**
+     * Builds an index on the specified field of a table, from the tuples
+     * the table holds now, and opens it. The entries are sorted and written
+     * to full leaves, bottom up, without going through the BufferPool.
+     *
+     * @param tid      the transaction to scan the table as a part of
+     * @param table    the table to index
+     * @param keyField the index of the field to index
+     * @param f        the file to store the index in; any existing contents
+     *                 are lost
+     */
+    public static BTreeFile create(TransactionId tid, DbFile table, int keyField, File f)
+            throws IOException, DbException, TransactionAbortedException {
+        List<Entry> entries = new ArrayList<>();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            RecordId rid = t.getRecordId();
+            entries.add(new Entry(t.getField(keyField), rid.getPageId().getPageNumber(), rid.getTupleNumber()));
+        }
+        it.close();
+        entries.sort((a, b) -> BTreePage.compare(a.key, a.page, a.slot, b.key, b.page, b.slot));
+        write(entries, table.getTupleDesc().getFieldType(keyField), f);
+        return new BTreeFile(f, table, keyField);
+    }
+
+    /**
+     * An entry of the index, or (with a child) a separator of an internal
+     * node, while the index is built.
+     */
+    private static class Entry {
+        final Field key;
+        final int page;
+        final int slot;
+        final int child;
+
+        Entry(Field key, int page, int slot) {
+            this(key, page, slot, 0);
+        }
+
+        Entry(Field key, int page, int slot, int child) {
+            this.key = key;
+            this.page = page;
+            this.slot = slot;
+            this.child = child;
+        }
+    }
+
+    private static void write(List<Entry> entries, Type keyType, File f) throws IOException {
+        List<byte[]> pages = new ArrayList<>();
+        pages.add(null); // the meta page, once the root is known
+        // the first entry of each page of the level just written, with the
+        // page as child: the separators of the level above
+        List<Entry> level = new ArrayList<>();
+        int perLeaf = BTreePage.getMaxEntries(BTreePage.LEAF, keyType);
+        int numLeaves = Math.max(1, (entries.size() + perLeaf - 1) / perLeaf);
+        for (int l = 0; l < numLeaves; l++) {
+            int pgNo = pages.size();
+            BTreePage page = new BTreePage(new BTreePageId(0, pgNo), keyType, BTreePage.createEmptyPageData());
+            int from = l * perLeaf;
+            int to = Math.min(entries.size(), from + perLeaf);
+            for (int i = from; i < to; i++) {
+                Entry e = entries.get(i);
+                page.insertEntry(i - from, e.key, e.page, e.slot);
+            }
+            if (l + 1 < numLeaves)
+                page.setNext(pgNo + 1);
+            if (from < to)
+                level.add(new Entry(entries.get(from).key, entries.get(from).page, entries.get(from).slot, pgNo));
+            pages.add(page.getPageData());
+        }
+        int root = 1;
+        int perNode = BTreePage.getMaxEntries(BTreePage.INTERNAL, keyType) + 1; // children
+        while (level.size() > 1) {
+            List<Entry> above = new ArrayList<>();
+            for (int from = 0; from < level.size(); from += perNode) {
+                int to = Math.min(level.size(), from + perNode);
+                int pgNo = pages.size();
+                BTreePage page = new BTreePage(new BTreePageId(0, pgNo), keyType, BTreePage.createEmptyPageData());
+                page.initInternal(level.get(from).child);
+                for (int i = from + 1; i < to; i++) {
+                    Entry e = level.get(i);
+                    page.insertSeparator(i - from - 1, e.key, e.page, e.slot, e.child);
+                }
+                Entry first = level.get(from);
+                above.add(new Entry(first.key, first.page, first.slot, pgNo));
+                pages.add(page.getPageData());
+            }
+            level = above;
+            root = pages.size() - 1;
+        }
+        pages.set(META_PAGE, BTreePage.createMetaPageData(root));
+        try (OutputStream os = new FileOutputStream(f)) {
+            for (byte[] data : pages)
+                os.write(data);
+        }
+    }
+
+    /**
+     * Returns the File backing this index on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    public int getId() {
+        return indexid;
+    }
+
+    public int getTableId() {
+        return tableid;
+    }
+
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the type of the keys of this index
+     */
+    public Type getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * @return the TupleDesc of the entries of this index: the indexed field
+     *         only
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return the number of pages in this index
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            try {
+                channel = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            } catch (AccessDeniedException e) {
+                // read-only index; writes will fail when attempted
+                channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Close the underlying file. It is reopened by the next I/O.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pageSize = BufferPool.getPageSize();
+        long offset = (long) pid.getPageNumber() * pageSize;
+        try {
+            FileChannel c = channel();
+            ByteBuffer buf = ByteBuffer.allocate(pageSize);
+            while (buf.hasRemaining()) {
+                if (c.read(buf, offset + buf.position()) < 0)
+                    break;
+            }
+            if (buf.position() < pageSize)
+                throw new IllegalArgumentException("Read past end of index");
+            Debug.log(1, "BTreeFile.readPage: read page %d", pid.getPageNumber());
+            return new BTreePage((BTreePageId) pid, keyType, buf.array());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        writePageData(page.getId().getPageNumber(), page.getPageData());
+    }
+
+    private void writePageData(int pgNo, byte[] data) throws IOException {
+        long offset = (long) pgNo * BufferPool.getPageSize();
+        FileChannel c = channel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining())
+            c.write(buf, offset + buf.position());
+    }
+
+    private BTreePage getPage(TransactionId tid, int pgNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        return (BTreePage) Database.getBufferPool().getPage(tid, new BTreePageId(indexid, pgNo), perm);
+    }
+
+    /**
+     * Append an empty page to the index, and lock it exclusively.
+     */
+    private BTreePage newPage(TransactionId tid, Map<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        int pgNo;
+        // atomic, so that two inserters do not append the same page number
+        synchronized (this) {
+            pgNo = numPages();
+            writePageData(pgNo, BTreePage.createEmptyPageData());
+        }
+        BTreePage p = getPage(tid, pgNo, Permissions.READ_WRITE);
+        dirtypages.put(p.getId(), p);
+        return p;
+    }
+
+    private void unpin(TransactionId tid, BTreePage p) {
+        Database.getBufferPool().unpinPage(tid, p.getId());
+    }
+
+    /**
+     * Find the leaf the specified entry belongs in, locking the pages on the
+     * way down with the specified permissions. The lock on a page is given
+     * up again as soon as the lock on its child is granted, unless the
+     * transaction held it before or an insert may have to split the page:
+     * that is the case if the child is full (a split adds a separator to
+     * the parent), and for the meta page if the root is full. The descent
+     * never waits for a lock while it holds such a passing one; it lets go
+     * of them, waits, and starts over from the meta page. Only the leaf, and
+     * the pages in path, stay pinned.
+     *
+     * @param path if not null (inserts only), receives the pages above the
+     *             leaf that are still locked, the parent of the leaf first
+     */
+    private BTreePage findLeaf(TransactionId tid, Field key, int page, int slot, Permissions perm,
+                               Deque<BTreePage> path) throws DbException, TransactionAbortedException {
+        Deque<BTreePage> held = path != null ? path : new ArrayDeque<>();
+        Set<PageId> passing = new HashSet<>();
+        int pgNo = META_PAGE;
+        while (true) {
+            BTreePage p = lockForDescent(tid, pgNo, perm, held, passing);
+            if (p == null) {
+                pgNo = META_PAGE; // waited: the tree may have changed since
+                continue;
+            }
+            boolean full = p.getId().getPageNumber() == META_PAGE || p.getNumEntries() >= p.getMaxEntries();
+            if (path == null || !full)
+                release(tid, held, passing);
+            if (p.isLeaf())
+                return p;
+            held.push(p);
+            if (p.getId().getPageNumber() == META_PAGE)
+                pgNo = p.getRoot();
+            else
+                pgNo = key == null ? p.getChild(0) : p.getChild(p.findChild(key, page, slot));
+        }
+    }
+
+    /**
+     * Lock and pin the specified page for a descent, if the lock can be
+     * granted right away. Otherwise give up the pages the descent holds,
+     * wait until it can be granted, and return null.
+     *
+     * @param passing the pages whose locks the descent took; the page is
+     *                added if its lock is new
+     */
+    private BTreePage lockForDescent(TransactionId tid, int pgNo, Permissions perm, Deque<BTreePage> held,
+                                     Set<PageId> passing) throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        BTreePageId pid = new BTreePageId(indexid, pgNo);
+        boolean alreadyLocked = bp.holdsLock(tid, pid);
+        if (bp.getLockManager().tryAcquire(tid, pid, perm)) {
+            if (!alreadyLocked)
+                passing.add(pid);
+            return getPage(tid, pgNo, perm);
+        }
+        // waiting while holding locks on the way down is how a descent ends
+        // up in a deadlock with a transaction that split a page below them
+        release(tid, held, passing);
+        unpin(tid, getPage(tid, pgNo, perm));
+        if (!alreadyLocked)
+            bp.unsafeReleasePage(tid, pid);
+        return null;
+    }
+
+    /**
+     * Unpin the specified pages of a descent, and release the locks the
+     * descent took on them. Pages locked before the descent started may
+     * have been changed by the transaction, so their locks are kept.
+     */
+    private void release(TransactionId tid, Deque<BTreePage> held, Set<PageId> passing) {
+        while (!held.isEmpty()) {
+            BTreePage p = held.pop();
+            unpin(tid, p);
+            if (passing.remove(p.getId()))
+                Database.getBufferPool().unsafeReleasePage(tid, p.getId());
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Field key = t.getField(keyField);
+        RecordId rid = t.getRecordId();
+        int page = rid.getPageId().getPageNumber();
+        int slot = rid.getTupleNumber();
+
+        Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+        // the pages a split of the leaf reaches, locked exclusively on the
+        // way down: taking their locks only now would mean waiting for them
+        // while holding the leaf
+        Deque<BTreePage> path = new ArrayDeque<>();
+        BTreePage leaf = findLeaf(tid, key, page, slot, Permissions.READ_WRITE, path);
+        leaf.insertEntry(leaf.lowerBound(key, page, slot), key, page, slot);
+        dirtypages.put(leaf.getId(), leaf);
+        if (!leaf.isOverfull())
+            return new ArrayList<>(dirtypages.values());
+
+        BTreePage right = newPage(tid, dirtypages);
+        leaf.splitLeaf(right);
+        right.setNext(leaf.getNext());
+        leaf.setNext(right.getId().getPageNumber());
+        BTreePage left = leaf;
+        Field sepKey = right.getKey(0);
+        int sepPage = right.getRecordPage(0);
+        int sepSlot = right.getRecordSlot(0);
+
+        // insert separators up the tree until a node has room for one
+        while (true) {
+            BTreePage parent = path.pop();
+            if (parent.getId().getPageNumber() == META_PAGE) {
+                BTreePage root = newPage(tid, dirtypages);
+                root.initInternal(left.getId().getPageNumber());
+                root.insertSeparator(0, sepKey, sepPage, sepSlot, right.getId().getPageNumber());
+                parent.setRoot(root.getId().getPageNumber());
+                dirtypages.put(parent.getId(), parent);
+                break;
+            }
+            parent.insertSeparator(parent.findChild(sepKey, sepPage, sepSlot), sepKey, sepPage, sepSlot,
+                    right.getId().getPageNumber());
+            dirtypages.put(parent.getId(), parent);
+            if (!parent.isOverfull())
+                break;
+            BTreePage sibling = newPage(tid, dirtypages);
+            parent.splitInternal(sibling);
+            int last = parent.getNumEntries() - 1;
+            sepKey = parent.getKey(last);
+            sepPage = parent.getRecordPage(last);
+            sepSlot = parent.getRecordSlot(last);
+            parent.removeLast();
+            left = parent;
+            right = sibling;
+        }
+        for (BTreePage p : path)
+            unpin(tid, p);
+        return new ArrayList<>(dirtypages.values());
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        Field key = t.getField(keyField);
+        RecordId rid = t.getRecordId();
+        int page = rid.getPageId().getPageNumber();
+        int slot = rid.getTupleNumber();
+
+        BTreePage leaf = findLeaf(tid, key, page, slot, Permissions.READ_WRITE, null);
+        int i = leaf.lowerBound(key, page, slot);
+        if (i >= leaf.getNumEntries()
+                || BTreePage.compare(leaf.getKey(i), leaf.getRecordPage(i), leaf.getRecordSlot(i), key, page, slot) != 0)
+            throw new DbException("no index entry for tuple " + rid.getPageId().getPageNumber() + ":" + slot);
+        leaf.removeEntry(i);
+        List<Page> pages = new ArrayList<>();
+        pages.add(leaf);
+        return pages;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new BTreeFileIterator(this, tid, null, null);
+    }
+
+    public DbFileIterator indexIterator(TransactionId tid, Predicate.Op op, Field operand) {
+        if (!supports(op))
+            throw new UnsupportedOperationException("B+ tree indexes do not support " + op);
+        return new BTreeFileIterator(this, tid, op, operand);
+    }
+
+    /**
+     * Helper class that walks the leaves of a BTreeFile from the first entry
+     * that can match a predicate to the last.
+     */
+    private static class BTreeFileIterator extends AbstractDbFileIterator {
+
+        final BTreeFile bf;
+        final TransactionId tid;
+        final Predicate.Op op; // null to return all entries
+        final Field operand;
+
+        BTreePage leaf = null;
+        int index;
+
+        BTreeFileIterator(BTreeFile bf, TransactionId tid, Predicate.Op op, Field operand) {
+            this.bf = bf;
+            this.tid = tid;
+            this.op = op;
+            this.operand = operand;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            boolean fromStart = op == null || op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ;
+            if (fromStart) {
+                leaf = bf.findLeaf(tid, null, 0, 0, Permissions.READ_ONLY, null);
+                index = 0;
+            } else {
+                // the first entry with the operand as key, if any
+                leaf = bf.findLeaf(tid, operand, Integer.MIN_VALUE, Integer.MIN_VALUE, Permissions.READ_ONLY, null);
+                index = leaf.lowerBound(operand, Integer.MIN_VALUE, Integer.MIN_VALUE);
+            }
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (leaf != null) {
+                if (index >= leaf.getNumEntries()) {
+                    int next = leaf.getNext();
+                    bf.unpin(tid, leaf);
+                    leaf = next == 0 ? null : bf.getPage(tid, next, Permissions.READ_ONLY);
+                    index = 0;
+                    continue;
+                }
+                Field key = leaf.getKey(index);
+                int page = leaf.getRecordPage(index);
+                int slot = leaf.getRecordSlot(index);
+                index++;
+                if (op != null && !key.compare(op, operand)) {
+                    // entries are sorted: past the range of an upper bound
+                    // (or of equality) nothing matches any more
+                    if (op == Predicate.Op.GREATER_THAN)
+                        continue;
+                    bf.unpin(tid, leaf);
+                    leaf = null;
+                    return null;
+                }
+                Tuple t = new Tuple(bf.td);
+                t.setField(0, key);
+                t.setRecordId(new RecordId(new HeapPageId(bf.tableid, page), slot));
+                return t;
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (leaf != null)
+                bf.unpin(tid, leaf);
+            leaf = null;
+        }
+    }
+}
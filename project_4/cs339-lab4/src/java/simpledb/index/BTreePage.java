@@ -0,0 +1,436 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Each instance of BTreePage stores one page of a BTreeFile: the meta page
+ * (page 0, which records the root), a leaf or an internal node.
+ * <p>
+ * Leaves hold entries (key, RecordId) sorted by key, then by RecordId, so
+ * that every entry is unique even if keys are not; internal nodes hold
+ * separators of the same form between their children. The formats are:
+ * <pre>
+ *   meta:     kind (1 byte) | root (4 bytes)
+ *   leaf:     kind (1 byte) | n (2 bytes) | next leaf (4 bytes)
+ *             | n x (key | record page (4 bytes) | record slot (4 bytes))
+ *   internal: kind (1 byte) | n (2 bytes) | child 0 (4 bytes)
+ *             | n x (key | record page | record slot | child (4 bytes))
+ * </pre>
+ * where keys are serialized like the fields of a HeapPage. The entries of
+ * child i of an internal node are at least separator i - 1 and less than
+ * separator i. A next leaf of 0 marks the last leaf (page 0 is always the
+ * meta page), and an all-zero page is an empty leaf.
+ *
+ * @see BTreeFile
+ */
+public class BTreePage implements Page {
+
+    static final byte LEAF = 0;
+    static final byte META = 1;
+    static final byte INTERNAL = 2;
+
+    static final int HEADER_SIZE = 7;
+
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+
+    final BTreePageId pid;
+    final Type keyType;
+    private final int pageSize;
+    private byte kind;
+    private int root; // meta page only
+    private int next; // leaves only
+
+    // entries (leaves) or separators (internal nodes); one more than fits,
+    // so that a page can overflow by an entry until BTreeFile splits it
+    private int n = 0;
+    private Field[] keys;
+    private int[] recordPages;
+    private int[] recordSlots;
+    private int[] children; // internal nodes only; n + 1 of them
+
+    // the contents of the page as of the last setBeforeImage, or null if the
+    // page has not changed since. Captured on the first change.
+    private byte[] oldData = null;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a BTreePage from a set of bytes of data read from disk, in the
+     * format described above.
+     */
+    public BTreePage(BTreePageId id, byte[] data) throws IOException {
+        this(id, ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).getKeyType(), data);
+    }
+
+    /**
+     * Create a BTreePage of an index with the specified key type.
+     */
+    BTreePage(BTreePageId id, Type keyType, byte[] data) {
+        this.pid = id;
+        this.keyType = keyType;
+        this.pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        kind = buf.get();
+        if (kind == META) {
+            root = buf.getInt();
+            allocate(0);
+            return;
+        }
+        n = buf.getChar();
+        allocate(n);
+        if (kind == LEAF)
+            next = buf.getInt();
+        else
+            children[0] = buf.getInt();
+        try {
+            for (int i = 0; i < n; i++) {
+                keys[i] = keyType.parse(buf);
+                recordPages[i] = buf.getInt();
+                recordSlots[i] = buf.getInt();
+                if (kind == INTERNAL)
+                    children[i + 1] = buf.getInt();
+            }
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("corrupt index page " + id.getPageNumber(), e);
+        }
+    }
+
+    private void allocate(int size) {
+        int capacity = Math.max(size, getMaxEntries() + 1);
+        keys = new Field[capacity];
+        recordPages = new int[capacity];
+        recordSlots = new int[capacity];
+        children = new int[capacity + 1];
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty leaf.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /**
+     * @return the data of a meta page pointing at the specified root
+     */
+    static byte[] createMetaPageData(int root) {
+        byte[] data = createEmptyPageData();
+        ByteBuffer.wrap(data).put(META).putInt(root);
+        return data;
+    }
+
+    /**
+     * @return the number of entries a page of the specified kind can hold
+     */
+    static int getMaxEntries(byte kind, Type keyType) {
+        int entrySize = keyType.getLen() + 8 + (kind == INTERNAL ? 4 : 0);
+        return (BufferPool.getPageSize() - HEADER_SIZE) / entrySize;
+    }
+
+    int getMaxEntries() {
+        return kind == META ? 0 : getMaxEntries(kind, keyType);
+    }
+
+    /**
+     * Compare two entries by key, then by RecordId.
+     *
+     * @return a negative number, zero or a positive number if the first
+     *         entry is less than, equal to or greater than the second
+     */
+    static int compare(Field key1, int page1, int slot1, Field key2, int page2, int slot2) {
+        if (key1.compare(Predicate.Op.LESS_THAN, key2))
+            return -1;
+        if (key1.compare(Predicate.Op.GREATER_THAN, key2))
+            return 1;
+        if (page1 != page2)
+            return Integer.compare(page1, page2);
+        return Integer.compare(slot1, slot2);
+    }
+
+    private int compareTo(int i, Field key, int page, int slot) {
+        return compare(keys[i], recordPages[i], recordSlots[i], key, page, slot);
+    }
+
+    /**
+     * @return the index of the first entry that is not less than the
+     *         specified one (n if there is none)
+     */
+    int lowerBound(Field key, int page, int slot) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareTo(mid, key, page, slot) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the index of the child of this internal node the specified
+     *         entry belongs under (the number of separators not greater than
+     *         the entry)
+     */
+    int findChild(Field key, int page, int slot) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareTo(mid, key, page, slot) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    boolean isLeaf() {
+        return kind == LEAF;
+    }
+
+    int getNumEntries() {
+        return n;
+    }
+
+    Field getKey(int i) {
+        return keys[i];
+    }
+
+    int getRecordPage(int i) {
+        return recordPages[i];
+    }
+
+    int getRecordSlot(int i) {
+        return recordSlots[i];
+    }
+
+    int getChild(int i) {
+        return children[i];
+    }
+
+    int getNext() {
+        return next;
+    }
+
+    int getRoot() {
+        return root;
+    }
+
+    void setNext(int next) {
+        beforeChange();
+        this.next = next;
+    }
+
+    void setRoot(int root) {
+        beforeChange();
+        this.root = root;
+    }
+
+    /**
+     * Turn this (empty) page into an internal node with a single child.
+     */
+    void initInternal(int child) {
+        beforeChange();
+        kind = INTERNAL;
+        n = 0;
+        allocate(0);
+        children[0] = child;
+    }
+
+    /**
+     * Insert an entry at the specified index of a leaf. The page may
+     * overflow by one entry, and must then be split.
+     */
+    void insertEntry(int i, Field key, int page, int slot) {
+        beforeChange();
+        shift(i);
+        keys[i] = key;
+        recordPages[i] = page;
+        recordSlots[i] = slot;
+        n++;
+    }
+
+    /**
+     * Insert a separator at the specified index of an internal node, with
+     * the child to the right of it. The page may overflow by one separator,
+     * and must then be split.
+     */
+    void insertSeparator(int i, Field key, int page, int slot, int rightChild) {
+        beforeChange();
+        shift(i);
+        System.arraycopy(children, i + 1, children, i + 2, n - i);
+        keys[i] = key;
+        recordPages[i] = page;
+        recordSlots[i] = slot;
+        children[i + 1] = rightChild;
+        n++;
+    }
+
+    private void shift(int i) {
+        System.arraycopy(keys, i, keys, i + 1, n - i);
+        System.arraycopy(recordPages, i, recordPages, i + 1, n - i);
+        System.arraycopy(recordSlots, i, recordSlots, i + 1, n - i);
+    }
+
+    /**
+     * Remove the entry at the specified index of a leaf.
+     */
+    void removeEntry(int i) {
+        beforeChange();
+        System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+        System.arraycopy(recordPages, i + 1, recordPages, i, n - i - 1);
+        System.arraycopy(recordSlots, i + 1, recordSlots, i, n - i - 1);
+        n--;
+        keys[n] = null;
+    }
+
+    /**
+     * @return true if the page holds more entries than fit on disk
+     */
+    boolean isOverfull() {
+        return n > getMaxEntries();
+    }
+
+    /**
+     * Move the upper half of the entries of this leaf to an empty leaf to
+     * its right. The first entry of the right leaf separates the two.
+     */
+    void splitLeaf(BTreePage right) {
+        beforeChange();
+        right.beforeChange();
+        int keep = n / 2;
+        right.moveFrom(this, keep, n - keep, 0);
+        n = keep;
+    }
+
+    /**
+     * Move the upper half of the separators (and children) of this internal
+     * node to an empty page, made an internal node to its right. The middle
+     * separator is left behind as the last entry of this page, for the
+     * caller to move up to the parent (see {@link #removeLast}).
+     */
+    void splitInternal(BTreePage right) {
+        beforeChange();
+        int mid = n / 2;
+        right.initInternal(children[mid + 1]);
+        right.moveFrom(this, mid + 1, n - mid - 1, 1);
+        n = mid + 1;
+    }
+
+    /**
+     * Drop the last separator of an internal node, along with the child to
+     * its right, which {@link #splitInternal} moved to the new node.
+     */
+    void removeLast() {
+        beforeChange();
+        n--;
+        keys[n] = null;
+    }
+
+    private void moveFrom(BTreePage from, int start, int count, int childOffset) {
+        System.arraycopy(from.keys, start, keys, 0, count);
+        System.arraycopy(from.recordPages, start, recordPages, 0, count);
+        System.arraycopy(from.recordSlots, start, recordSlots, 0, count);
+        if (childOffset > 0)
+            System.arraycopy(from.children, start + childOffset, children, childOffset, count);
+        Arrays.fill(from.keys, start, start + count, null);
+        n = count;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public BTreePageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in the
+     * format described above.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(kind);
+            if (kind == META) {
+                dos.writeInt(root);
+            } else {
+                dos.writeChar(n);
+                dos.writeInt(kind == LEAF ? next : children[0]);
+                for (int i = 0; i < n; i++) {
+                    keys[i].serialize(dos);
+                    dos.writeInt(recordPages[i]);
+                    dos.writeInt(recordSlots[i]);
+                    if (kind == INTERNAL)
+                        dos.writeInt(children[i + 1]);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return Arrays.copyOf(baos.toByteArray(), pageSize);
+    }
+
+    /**
+     * Return a view of this page before it was modified
+     * -- used by recovery
+     */
+    public BTreePage getBeforeImage() {
+        byte[] oldDataRef;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
+        }
+        return new BTreePage(pid, keyType, oldDataRef != null ? oldDataRef : getPageData());
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    private void beforeChange() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = getPageData();
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.dirtier = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb.index;
+
+import simpledb.storage.PageId;
+
+import java.util.Objects;
+
+/**
+ * Unique identifier for BTreePage objects: a page of a BTreeFile.
+ */
+public class BTreePageId implements PageId {
+
+    private final int tableId;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific index.
+     *
+     * @param tableId The index that is being referenced
+     * @param pgNo    The page number in that index.
+     */
+    public BTreePageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+    }
+
+    /**
+     * @return the id of the index associated with this PageId
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the index associated with this PageId
+     */
+    public int getPageNumber() {
+        return pgNo;
+    }
+
+    public int hashCode() {
+        return Objects.hash(tableId, pgNo);
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof BTreePageId))
+            return false;
+        BTreePageId p = (BTreePageId) o;
+        return tableId == p.tableId && pgNo == p.pgNo;
+    }
+
+    public int[] serialize() {
+        return new int[]{tableId, pgNo};
+    }
+}
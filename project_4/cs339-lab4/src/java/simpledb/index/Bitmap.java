@@ -0,0 +1,407 @@
+package simpledb.index;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Bitmap is a compressed set of record positions (page number, slot) of a
+ * HeapFile, organized like a Roaring bitmap: the positions are grouped by
+ * page into containers kept sorted by page number, and each container holds
+ * the slots of its page either as a sorted array (2 bytes a slot) or as a
+ * bitmap (1 bit per slot up to the highest one), whichever is smaller. A
+ * sparse set thus costs little more than its positions, and a dense one
+ * about a bit per tuple.
+ * <p>
+ * {@link #and} and {@link #or} combine two bitmaps container by container,
+ * without expanding them, and iterating over a bitmap visits its pages in
+ * order, so that the tuples it selects can be fetched with one read per
+ * page. Slots must be less than 65536.
+ * <p>
+ * Bitmaps are not thread-safe; see {@link BitmapIndex}.
+ */
+public class Bitmap {
+
+    private int[] keys = new int[4]; // page numbers, ascending
+    private Container[] containers = new Container[4];
+    private int size = 0; // number of containers
+
+    /**
+     * The slots of one page.
+     */
+    private static final class Container {
+        char[] array; // sorted slots, or null if bits is used
+        long[] bits;
+        int card;
+
+        static Container ofArray(char[] array, int card) {
+            Container c = new Container();
+            c.array = array;
+            c.card = card;
+            return c;
+        }
+
+        static Container ofBits(long[] bits) {
+            Container c = new Container();
+            c.bits = bits;
+            for (long w : bits)
+                c.card += Long.bitCount(w);
+            return c;
+        }
+
+        boolean contains(int slot) {
+            if (bits != null)
+                return (slot >> 6) < bits.length && (bits[slot >> 6] & (1L << slot)) != 0;
+            return Arrays.binarySearch(array, 0, card, (char) slot) >= 0;
+        }
+
+        boolean add(int slot) {
+            if (bits != null) {
+                if ((slot >> 6) >= bits.length)
+                    bits = Arrays.copyOf(bits, (slot >> 6) + 1);
+                if ((bits[slot >> 6] & (1L << slot)) != 0)
+                    return false;
+                bits[slot >> 6] |= 1L << slot;
+                card++;
+                return true;
+            }
+            int i = Arrays.binarySearch(array, 0, card, (char) slot);
+            if (i >= 0)
+                return false;
+            i = -i - 1;
+            if (card == array.length)
+                array = Arrays.copyOf(array, Math.max(4, card * 2));
+            System.arraycopy(array, i, array, i + 1, card - i);
+            array[i] = (char) slot;
+            card++;
+            optimize();
+            return true;
+        }
+
+        boolean remove(int slot) {
+            if (!contains(slot))
+                return false;
+            if (bits != null) {
+                bits[slot >> 6] &= ~(1L << slot);
+                card--;
+            } else {
+                int i = Arrays.binarySearch(array, 0, card, (char) slot);
+                System.arraycopy(array, i + 1, array, i, card - i - 1);
+                card--;
+            }
+            optimize();
+            return true;
+        }
+
+        /**
+         * @return the slots, in ascending order
+         */
+        int[] slots() {
+            int[] slots = new int[card];
+            if (bits == null) {
+                for (int i = 0; i < card; i++)
+                    slots[i] = array[i];
+                return slots;
+            }
+            int n = 0;
+            for (int w = 0; w < bits.length; w++) {
+                for (long word = bits[w]; word != 0; word &= word - 1)
+                    slots[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            return slots;
+        }
+
+        /**
+         * Switch to whichever representation is smaller. A bitmap only goes
+         * back to an array once the array would be half its size, so that
+         * a container on the edge does not flip on every change.
+         */
+        void optimize() {
+            if (bits == null) {
+                if (card == 0)
+                    return;
+                int words = (array[card - 1] >> 6) + 1;
+                if (2 * card > 8 * words) {
+                    long[] b = new long[words];
+                    for (int i = 0; i < card; i++)
+                        b[array[i] >> 6] |= 1L << array[i];
+                    bits = b;
+                    array = null;
+                }
+            } else if (4 * card < 8 * bits.length) {
+                array = new char[Math.max(4, card)];
+                int[] slots = slots();
+                for (int i = 0; i < card; i++)
+                    array[i] = (char) slots[i];
+                bits = null;
+            }
+        }
+
+        static Container and(Container a, Container b) {
+            if (a.bits != null && b.bits != null) {
+                long[] r = new long[Math.min(a.bits.length, b.bits.length)];
+                for (int w = 0; w < r.length; w++)
+                    r[w] = a.bits[w] & b.bits[w];
+                Container c = ofBits(r);
+                c.optimize();
+                return c;
+            }
+            if (a.bits != null) {
+                Container t = a;
+                a = b;
+                b = t;
+            }
+            // a is an array: keep the slots of a that b has
+            char[] r = new char[a.card];
+            int n = 0;
+            for (int i = 0; i < a.card; i++) {
+                if (b.contains(a.array[i]))
+                    r[n++] = a.array[i];
+            }
+            return ofArray(r, n);
+        }
+
+        static Container or(Container a, Container b) {
+            if (a.bits == null && b.bits == null) {
+                char[] r = new char[a.card + b.card];
+                int i = 0, j = 0, n = 0;
+                while (i < a.card || j < b.card) {
+                    if (j == b.card || (i < a.card && a.array[i] < b.array[j]))
+                        r[n++] = a.array[i++];
+                    else if (i == a.card || b.array[j] < a.array[i])
+                        r[n++] = b.array[j++];
+                    else {
+                        r[n++] = a.array[i++];
+                        j++;
+                    }
+                }
+                Container c = ofArray(r, n);
+                c.optimize();
+                return c;
+            }
+            if (a.bits == null) {
+                Container t = a;
+                a = b;
+                b = t;
+            }
+            // a is a bitmap
+            long[] r = Arrays.copyOf(a.bits, b.bits != null ? Math.max(a.bits.length, b.bits.length) : a.bits.length);
+            if (b.bits != null) {
+                for (int w = 0; w < b.bits.length; w++)
+                    r[w] |= b.bits[w];
+            } else {
+                for (int i = 0; i < b.card; i++) {
+                    if ((b.array[i] >> 6) >= r.length)
+                        r = Arrays.copyOf(r, (b.array[i] >> 6) + 1);
+                    r[b.array[i] >> 6] |= 1L << b.array[i];
+                }
+            }
+            return ofBits(r);
+        }
+
+        Container copy() {
+            Container c = new Container();
+            c.array = array == null ? null : Arrays.copyOf(array, Math.max(card, 1));
+            c.bits = bits == null ? null : bits.clone();
+            c.card = card;
+            return c;
+        }
+    }
+
+    private int find(int page) {
+        return Arrays.binarySearch(keys, 0, size, page);
+    }
+
+    private void append(int page, Container c) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        keys[size] = page;
+        containers[size] = c;
+        size++;
+    }
+
+    /**
+     * Add the position (page, slot) to this set.
+     *
+     * @return false if it was already in the set
+     */
+    public boolean add(int page, int slot) {
+        if (slot < 0 || slot > Character.MAX_VALUE)
+            throw new IllegalArgumentException("slot " + slot + " out of range");
+        int i = find(page);
+        if (i >= 0)
+            return containers[i].add(slot);
+        i = -i - 1;
+        if (i == size) {
+            append(page, Container.ofArray(new char[4], 0));
+        } else {
+            append(0, null); // make room
+            System.arraycopy(keys, i, keys, i + 1, size - i - 1);
+            System.arraycopy(containers, i, containers, i + 1, size - i - 1);
+            keys[i] = page;
+            containers[i] = Container.ofArray(new char[4], 0);
+        }
+        return containers[i].add(slot);
+    }
+
+    /**
+     * Remove the position (page, slot) from this set.
+     *
+     * @return false if it was not in the set
+     */
+    public boolean remove(int page, int slot) {
+        int i = find(page);
+        if (i < 0 || !containers[i].remove(slot))
+            return false;
+        if (containers[i].card == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            size--;
+            containers[size] = null;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the position (page, slot) is in this set
+     */
+    public boolean contains(int page, int slot) {
+        int i = find(page);
+        return i >= 0 && containers[i].contains(slot);
+    }
+
+    /**
+     * @return the number of positions in this set
+     */
+    public int cardinality() {
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            n += containers[i].card;
+        return n;
+    }
+
+    /**
+     * @return the number of pages with positions in this set
+     */
+    public int numPages() {
+        return size;
+    }
+
+    /**
+     * @return the page number of the i-th page with positions in this set,
+     *         in ascending order
+     */
+    public int getPage(int i) {
+        return keys[i];
+    }
+
+    /**
+     * @return the slots of the i-th page with positions in this set, in
+     *         ascending order
+     */
+    public int[] getSlots(int i) {
+        return containers[i].slots();
+    }
+
+    /**
+     * @return a copy of this set, which changes to this set do not affect
+     */
+    public Bitmap copy() {
+        Bitmap b = new Bitmap();
+        for (int i = 0; i < size; i++)
+            b.append(keys[i], containers[i].copy());
+        return b;
+    }
+
+    /**
+     * @return the positions that are in both a and b
+     */
+    public static Bitmap and(Bitmap a, Bitmap b) {
+        Bitmap r = new Bitmap();
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j])
+                i++;
+            else if (b.keys[j] < a.keys[i])
+                j++;
+            else {
+                Container c = Container.and(a.containers[i], b.containers[j]);
+                if (c.card > 0)
+                    r.append(a.keys[i], c);
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return the positions that are in a or b (or both)
+     */
+    public static Bitmap or(Bitmap a, Bitmap b) {
+        Bitmap r = new Bitmap();
+        int i = 0, j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j]))
+                r.append(a.keys[i], a.containers[i++].copy());
+            else if (i == a.size || b.keys[j] < a.keys[i])
+                r.append(b.keys[j], b.containers[j++].copy());
+            else
+                r.append(a.keys[i], Container.or(a.containers[i++], b.containers[j++]));
+        }
+        return r;
+    }
+
+    /**
+     * Write this set to a stream: the number of pages, then per page its
+     * number, the kind of container (0 for an array, 1 for a bitmap), and
+     * the number of slots followed by the slots, or the number of words
+     * followed by the words.
+     */
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            Container c = containers[i];
+            dos.writeInt(keys[i]);
+            if (c.bits == null) {
+                dos.writeByte(0);
+                dos.writeChar(c.card);
+                for (int k = 0; k < c.card; k++)
+                    dos.writeChar(c.array[k]);
+            } else {
+                dos.writeByte(1);
+                dos.writeChar(c.bits.length);
+                for (long w : c.bits)
+                    dos.writeLong(w);
+            }
+        }
+    }
+
+    /**
+     * Read a set written by {@link #write}.
+     */
+    public static Bitmap read(DataInputStream dis) throws IOException {
+        Bitmap b = new Bitmap();
+        int n = dis.readInt();
+        for (int i = 0; i < n; i++) {
+            int page = dis.readInt();
+            byte kind = dis.readByte();
+            int len = dis.readChar();
+            if (kind == 0) {
+                char[] array = new char[Math.max(4, len)];
+                for (int k = 0; k < len; k++)
+                    array[k] = dis.readChar();
+                b.append(page, Container.ofArray(array, len));
+            } else {
+                long[] bits = new long[len];
+                for (int k = 0; k < len; k++)
+                    bits[k] = dis.readLong();
+                b.append(page, Container.ofBits(bits));
+            }
+        }
+        return b;
+    }
+}
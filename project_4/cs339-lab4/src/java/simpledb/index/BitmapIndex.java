@@ -0,0 +1,117 @@
+package simpledb.index;
+
+import simpledb.common.DbException;
+import simpledb.execution.Predicate;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BitmapIndex is an index on a field of a HeapFile with few distinct
+ * values (a status, a region, ...): for each value, it keeps a {@link
+ * Bitmap} of the positions of the tuples that have it. A predicate on the
+ * field selects the union of the bitmaps of the values that satisfy it,
+ * and predicates on several such fields are combined by intersecting their
+ * bitmaps, so that a conjunction is answered before any page of the table
+ * is read (see {@link simpledb.execution.BitmapHeapScan}).
+ * <p>
+ * The bitmaps are small enough to be kept in memory; see {@link
+ * PositionIndex} for how they are kept up to date and saved.
+ *
+ * @Threadsafe
+ */
+public class BitmapIndex extends PositionIndex<Field> {
+
+    private BitmapIndex(File f, DbFile table, int keyField) {
+        super(f, table, keyField);
+    }
+
+    /**
+     * Opens the index saved in the specified file.
+     *
+     * @param f        the file the index was saved to
+     * @param table    the table the index is on
+     * @param keyField the index of the indexed field of the table
+     */
+    public static BitmapIndex open(File f, DbFile table, int keyField) throws IOException {
+        BitmapIndex index = new BitmapIndex(f, table, keyField);
+        index.load();
+        return index;
+    }
+
+    /**
+     * Builds an index on the specified field of a table, from the tuples
+     * the table holds now, and saves it.
+     *
+     * @param tid      the transaction to scan the table as a part of
+     * @param table    the table to index
+     * @param keyField the index of the field to index
+     * @param f        the file to save the index to; any existing contents
+     *                 are lost
+     */
+    public static BitmapIndex create(TransactionId tid, DbFile table, int keyField, File f)
+            throws IOException, DbException, TransactionAbortedException {
+        BitmapIndex index = new BitmapIndex(f, table, keyField);
+        index.build(tid, table);
+        return index;
+    }
+
+    protected Collection<Field> keysOf(Field value) {
+        return Collections.singletonList(value);
+    }
+
+    protected Collection<Field> keysFor(Predicate.Op op, Field operand) {
+        if (op == Predicate.Op.EQUALS)
+            return Collections.singletonList(operand);
+        List<Field> values = new ArrayList<>();
+        for (Field value : bitmaps.keySet()) {
+            if (value.compare(op, operand))
+                values.add(value);
+        }
+        return values;
+    }
+
+    protected void writeKey(DataOutputStream dos, Field key) throws IOException {
+        key.serialize(dos);
+    }
+
+    protected Field readKey(DataInputStream dis) throws IOException {
+        try {
+            return keyType.parse(dis);
+        } catch (ParseException e) {
+            throw new IOException("corrupt bitmap index", e);
+        }
+    }
+
+    /**
+     * @return true: the values that satisfy any predicate can be listed
+     */
+    public boolean supports(Predicate.Op op, Field operand) {
+        return true;
+    }
+
+    /**
+     * @return the union of the bitmaps of the values that satisfy {@code
+     *         field op operand}
+     */
+    public synchronized Bitmap lookup(Predicate.Op op, Field operand) {
+        Bitmap result = new Bitmap();
+        for (Field value : keysFor(op, operand)) {
+            Bitmap b = bitmaps.get(value);
+            if (b != null)
+                result = result.numPages() == 0 ? b.copy() : Bitmap.or(result, b);
+        }
+        return result;
+    }
+}
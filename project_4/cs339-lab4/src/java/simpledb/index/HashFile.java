@@ -0,0 +1,638 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.AbstractDbFileIterator;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * HashFile is a linear hash index on one field of a HeapFile, for point
+ * lookups on a key (usually the table's primary key). A lookup reads the
+ * meta page, which stays in the BufferPool, and the one bucket the key
+ * hashes to; unless keys are heavily duplicated, that is a single page.
+ * Unlike {@link BTreeFile}, it cannot answer range predicates.
+ * <p>
+ * With n buckets, a key whose hash is h is in bucket h mod 2^i, where 2^i
+ * is the smallest power of two not less than n, or in bucket h mod
+ * 2^(i - 1) if that bucket does not exist yet. Whenever an insert has to
+ * chain an overflow page to a full bucket, the index grows by one bucket:
+ * bucket n - 2^(i - 1) is split, moving the entries whose hash says they
+ * now belong in bucket n there. Buckets are split in order whether or not
+ * they overflowed, so that the index grows one page at a time.
+ * <p>
+ * Transactions lock the pages of the buckets they read or change until they
+ * complete, but hold a shared lock on the meta page only while they look up
+ * the page of a bucket. Once they hold the lock on it they look again, in
+ * case the bucket was split in the meantime. An insert that overflows a
+ * bucket leaves its split pending, and the next insert does it before it
+ * adds its own entry. Each split runs in a short transaction of its own
+ * that commits as soon as the entries are moved, so that the new bucket
+ * does not depend on the inserter committing and the meta page is not
+ * locked for longer than the split takes. A split only takes locks that
+ * are free, so that it never waits while its inserter holds locks of its
+ * own; if the bucket to split is locked (e.g. by a transaction that is
+ * still inserting into it), the split stays pending until a later insert.
+ * <p>
+ * Page 0 of the file is a meta page that records the number of buckets
+ * (see {@link HashPage}). The primary pages of the buckets with the same
+ * number of significant bits are allocated together, when the first of
+ * them is created, and overflow pages are appended to the file as needed;
+ * the meta page records how many overflow pages precede each group, so
+ * that the page of a bucket can be computed. Pages are read through the
+ * BufferPool and locked like table pages. Overflow pages emptied by a split
+ * or by deletes stay in their bucket's chain and are reused; pages
+ * appended by a transaction that aborts are left unused.
+ *
+ * @see IndexFile
+ * @see simpledb.execution.IndexScan
+ */
+public class HashFile implements IndexFile, Closeable {
+
+    static final int META_PAGE = 0;
+
+    // the fraction of the bucket pages create fills
+    private static final double FILL_FACTOR = 0.75;
+
+    private final File f;
+    private final int indexid;
+    private final int tableid;
+    private final int keyField;
+    private final Type keyType;
+    private final TupleDesc td;
+    private FileChannel channel = null; // opened lazily, protected by this
+    // splits owed by inserts that overflowed a bucket
+    private final AtomicInteger pendingSplits = new AtomicInteger(0);
+
+    /**
+     * Opens the index stored in the specified file, creating an empty index
+     * if the file does not exist (or is empty).
+     *
+     * @param f        the file that stores the index
+     * @param table    the table the index is on
+     * @param keyField the index of the indexed field of the table
+     */
+    public HashFile(File f, DbFile table, int keyField) throws IOException {
+        if (!(table instanceof HeapFile))
+            throw new IllegalArgumentException("hash indexes can only index HeapFiles");
+        this.f = f;
+        this.indexid = f.getAbsoluteFile().hashCode();
+        this.tableid = table.getId();
+        this.keyField = keyField;
+        TupleDesc tableTd = table.getTupleDesc();
+        this.keyType = tableTd.getFieldType(keyField);
+        this.td = new TupleDesc(new Type[]{keyType}, new String[]{tableTd.getFieldName(keyField)});
+        if (f.length() == 0) {
+            writePageData(META_PAGE, HashPage.createMetaPageData(1, new int[HashPage.NUM_SPARES]));
+            writePageData(1, HashPage.createEmptyPageData());
+        }
+    }
+
+    /**
+     * Builds an index on the specified field of a table, from the tuples
+     * the table holds now, and opens it. The index gets enough buckets to
+     * fill their pages to FILL_FACTOR, and is written without going through
+     * the BufferPool.
+     *
+     * @param tid      the transaction to scan the table as a part of
+     * @param table    the table to index
+     * @param keyField the index of the field to index
+     * @param f        the file to store the index in; any existing contents
+     *                 are lost
+     */
+    public static HashFile create(TransactionId tid, DbFile table, int keyField, File f)
+            throws IOException, DbException, TransactionAbortedException {
+        List<Entry> entries = new ArrayList<>();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            RecordId rid = t.getRecordId();
+            entries.add(new Entry(t.getField(keyField), rid.getPageId().getPageNumber(), rid.getTupleNumber()));
+        }
+        it.close();
+        write(entries, table.getTupleDesc().getFieldType(keyField), f);
+        return new HashFile(f, table, keyField);
+    }
+
+    /**
+     * An entry of the index, while the index is built or a bucket split.
+     */
+    private static class Entry {
+        final Field key;
+        final int page;
+        final int slot;
+
+        Entry(Field key, int page, int slot) {
+            this.key = key;
+            this.page = page;
+            this.slot = slot;
+        }
+    }
+
+    private static void write(List<Entry> entries, Type keyType, File f) throws IOException {
+        int perPage = HashPage.getMaxEntries(keyType);
+        int numBuckets = Math.max(1, (int) Math.ceil(entries.size() / (perPage * FILL_FACTOR)));
+        // the primary pages of all buckets with as many bits as the last
+        // one, so no spares are needed
+        int reserved = numBuckets == 1 ? 1 : Integer.highestOneBit(numBuckets - 1) << 1;
+        List<HashPage> pages = new ArrayList<>();
+        pages.add(null); // the meta page
+        for (int b = 0; b < reserved; b++)
+            pages.add(new HashPage(new HashPageId(0, b + 1), keyType, HashPage.createEmptyPageData()));
+        for (Entry e : entries) {
+            HashPage p = pages.get(1 + bucket(hash(e.key), numBuckets));
+            while (p.isFull()) {
+                if (p.getOverflow() == 0) {
+                    HashPage o = new HashPage(new HashPageId(0, pages.size()), keyType,
+                            HashPage.createEmptyPageData());
+                    p.setOverflow(pages.size());
+                    pages.add(o);
+                }
+                p = pages.get(p.getOverflow());
+            }
+            p.addEntry(e.key, e.page, e.slot);
+        }
+        try (OutputStream os = new FileOutputStream(f)) {
+            os.write(HashPage.createMetaPageData(numBuckets, new int[HashPage.NUM_SPARES]));
+            for (int i = 1; i < pages.size(); i++)
+                os.write(pages.get(i).getPageData());
+        }
+    }
+
+    /**
+     * @return the hash of a key, with the bits of its hashCode mixed so
+     *         that consecutive keys spread over all buckets
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the bucket a key with the specified hash is in, in an index
+     *         with the specified number of buckets
+     */
+    static int bucket(int hash, int numBuckets) {
+        int mask = numBuckets == 1 ? 0 : (Integer.highestOneBit(numBuckets - 1) << 1) - 1;
+        int b = hash & mask;
+        if (b >= numBuckets)
+            b &= mask >> 1;
+        return b;
+    }
+
+    /**
+     * @return the number of significant bits of a bucket number
+     */
+    static int bits(int bucket) {
+        return Integer.SIZE - Integer.numberOfLeadingZeros(bucket);
+    }
+
+    /**
+     * @return the page number of the primary page of a bucket
+     */
+    static int pageOf(HashPage meta, int bucket) {
+        return 1 + bucket + meta.getSpare(bits(bucket));
+    }
+
+    /**
+     * Returns the File backing this index on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    public int getId() {
+        return indexid;
+    }
+
+    public int getTableId() {
+        return tableid;
+    }
+
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the type of the keys of this index
+     */
+    public Type getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * @return the TupleDesc of the entries of this index: the indexed field
+     *         only
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS;
+    }
+
+    /**
+     * @return the number of pages in this index
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            try {
+                channel = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            } catch (AccessDeniedException e) {
+                // read-only index; writes will fail when attempted
+                channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Close the underlying file. It is reopened by the next I/O.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pageSize = BufferPool.getPageSize();
+        long offset = (long) pid.getPageNumber() * pageSize;
+        try {
+            FileChannel c = channel();
+            ByteBuffer buf = ByteBuffer.allocate(pageSize);
+            while (buf.hasRemaining()) {
+                if (c.read(buf, offset + buf.position()) < 0)
+                    break;
+            }
+            if (buf.position() < pageSize)
+                throw new IllegalArgumentException("Read past end of index");
+            Debug.log(1, "HashFile.readPage: read page %d", pid.getPageNumber());
+            return new HashPage((HashPageId) pid, keyType, buf.array());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        writePageData(page.getId().getPageNumber(), page.getPageData());
+    }
+
+    private void writePageData(int pgNo, byte[] data) throws IOException {
+        long offset = (long) pgNo * BufferPool.getPageSize();
+        FileChannel c = channel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining())
+            c.write(buf, offset + buf.position());
+    }
+
+    /**
+     * Append empty pages to the index.
+     *
+     * @return the page number of the first one
+     */
+    private synchronized int appendPages(int count) throws IOException {
+        int first = numPages();
+        writePageData(first, new byte[count * BufferPool.getPageSize()]);
+        return first;
+    }
+
+    private HashPage getPage(TransactionId tid, int pgNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        return (HashPage) Database.getBufferPool().getPage(tid, new HashPageId(indexid, pgNo), perm);
+    }
+
+    private void unpin(TransactionId tid, HashPage p) {
+        Database.getBufferPool().unpinPage(tid, p.getId());
+    }
+
+    /**
+     * @return the specified property of the meta page, read under a shared
+     *         lock on it that is released again (unless tid held a lock on
+     *         it before)
+     */
+    private int readMeta(TransactionId tid, ToIntFunction<HashPage> property)
+            throws DbException, TransactionAbortedException {
+        HashPageId pid = new HashPageId(indexid, META_PAGE);
+        boolean alreadyLocked = Database.getBufferPool().holdsLock(tid, pid);
+        HashPage meta = getPage(tid, META_PAGE, Permissions.READ_ONLY);
+        int value = property.applyAsInt(meta);
+        unpin(tid, meta);
+        if (!alreadyLocked)
+            Database.getBufferPool().unsafeReleasePage(tid, pid);
+        return value;
+    }
+
+    /**
+     * Lock the primary page of the bucket the specified hash is in. Splits
+     * of the bucket wait for the lock, so the entries of the bucket stay in
+     * it until tid completes.
+     */
+    private HashPage lockBucket(TransactionId tid, int hash, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        while (true) {
+            int pgNo = readMeta(tid, meta -> pageOf(meta, bucket(hash, meta.getNumBuckets())));
+            HashPageId pid = new HashPageId(indexid, pgNo);
+            boolean alreadyLocked = Database.getBufferPool().holdsLock(tid, pid);
+            HashPage p = getPage(tid, pgNo, perm);
+            if (readMeta(tid, meta -> pageOf(meta, bucket(hash, meta.getNumBuckets()))) == pgNo)
+                return p;
+            // split while we waited for the lock
+            unpin(tid, p);
+            if (!alreadyLocked)
+                Database.getBufferPool().unsafeReleasePage(tid, pid);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Field key = t.getField(keyField);
+        RecordId rid = t.getRecordId();
+
+        // before we lock a bucket: the bucket an insert overflowed is often
+        // the next one to split, and its inserter keeps it locked
+        splitPending();
+        Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+        HashPage primary = lockBucket(tid, hash(key), Permissions.READ_WRITE);
+        if (add(tid, primary, key, rid.getPageId().getPageNumber(), rid.getTupleNumber(), dirtypages))
+            pendingSplits.incrementAndGet();
+        return new ArrayList<>(dirtypages.values());
+    }
+
+    /**
+     * @return true if there was a pending split, which the caller now does
+     */
+    private boolean takePendingSplit() {
+        int n;
+        do {
+            n = pendingSplits.get();
+            if (n == 0)
+                return false;
+        } while (!pendingSplits.compareAndSet(n, n - 1));
+        return true;
+    }
+
+    /**
+     * Do the pending splits, each in a transaction of its own, until there
+     * are none left or one cannot get its locks right away.
+     */
+    private void splitPending() throws DbException, IOException, TransactionAbortedException {
+        while (takePendingSplit()) {
+            TransactionId tid = new TransactionId();
+            boolean split = false;
+            try {
+                split = split(tid);
+            } finally {
+                Database.getBufferPool().transactionComplete(tid, split);
+                if (!split)
+                    pendingSplits.incrementAndGet();
+            }
+            if (!split)
+                return;
+        }
+    }
+
+    /**
+     * Add an entry to the first page of a bucket with room for it, chaining
+     * an overflow page to the bucket if all of its pages are full.
+     *
+     * @param p the primary page of the bucket, locked exclusively
+     * @return true if an overflow page was added
+     */
+    private boolean add(TransactionId tid, HashPage p, Field key, int page, int slot,
+                        Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+        boolean overflowed = false;
+        while (p.isFull()) {
+            if (p.getOverflow() == 0) {
+                p.setOverflow(appendPages(1));
+                dirtypages.put(p.getId(), p);
+                overflowed = true;
+            } else if (!dirtypages.containsKey(p.getId())) {
+                unpin(tid, p); // walked past, not changed
+            }
+            p = getPage(tid, p.getOverflow(), Permissions.READ_WRITE);
+        }
+        p.addEntry(key, page, slot);
+        dirtypages.put(p.getId(), p);
+        return overflowed;
+    }
+
+    /**
+     * Add a bucket to the index, by splitting the next bucket in order, as
+     * the specified transaction, which commits the split if this returns
+     * true.
+     *
+     * @return false if the meta page or a page of the bucket to split is
+     *         locked; nothing was changed then
+     */
+    private boolean split(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+        LockManager locks = Database.getBufferPool().getLockManager();
+        if (!locks.tryAcquire(tid, new HashPageId(indexid, META_PAGE), Permissions.READ_WRITE))
+            return false;
+        HashPage meta = getPage(tid, META_PAGE, Permissions.READ_WRITE);
+        int newBucket = meta.getNumBuckets();
+        int half = Integer.highestOneBit(newBucket);
+
+        // lock the whole bucket before changing anything
+        List<HashPage> pages = new ArrayList<>();
+        int pgNo = pageOf(meta, newBucket - half);
+        while (pgNo != 0) {
+            if (!locks.tryAcquire(tid, new HashPageId(indexid, pgNo), Permissions.READ_WRITE))
+                return false;
+            HashPage p = getPage(tid, pgNo, Permissions.READ_WRITE);
+            pages.add(p);
+            pgNo = p.getOverflow();
+        }
+
+        // marked dirty even if the split fails halfway, so that the abort
+        // restores them
+        Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+        try {
+            dirtypages.put(meta.getId(), meta);
+            if (newBucket == half) {
+                // the first bucket with this many bits: allocate the primary
+                // pages of all of them, after the overflow pages so far
+                int first = appendPages(half);
+                meta.setSpare(bits(newBucket), first - 1 - newBucket);
+            }
+            meta.setNumBuckets(newBucket + 1);
+
+            List<Entry> entries = new ArrayList<>();
+            for (HashPage p : pages) {
+                for (int i = 0; i < p.getNumEntries(); i++)
+                    entries.add(new Entry(p.getKey(i), p.getRecordPage(i), p.getRecordSlot(i)));
+                dirtypages.put(p.getId(), p);
+                p.clear();
+            }
+            for (Entry e : entries) {
+                // the pages of the new bucket are not in use by anyone yet
+                HashPage primary = getPage(tid, pageOf(meta, bucket(hash(e.key), newBucket + 1)),
+                        Permissions.READ_WRITE);
+                add(tid, primary, e.key, e.page, e.slot, dirtypages);
+            }
+        } finally {
+            for (Page p : dirtypages.values())
+                p.markDirty(true, tid);
+        }
+        return true;
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        Field key = t.getField(keyField);
+        RecordId rid = t.getRecordId();
+        int page = rid.getPageId().getPageNumber();
+        int slot = rid.getTupleNumber();
+
+        HashPage p = lockBucket(tid, hash(key), Permissions.READ_WRITE);
+        while (true) {
+            int i = p.find(key, page, slot);
+            if (i >= 0) {
+                p.removeEntry(i);
+                List<Page> pages = new ArrayList<>();
+                pages.add(p);
+                return pages;
+            }
+            int next = p.getOverflow();
+            unpin(tid, p); // walked past, not changed
+            if (next == 0)
+                throw new DbException("no index entry for tuple " + page + ":" + slot);
+            p = getPage(tid, next, Permissions.READ_WRITE);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(this, tid, null);
+    }
+
+    public DbFileIterator indexIterator(TransactionId tid, Predicate.Op op, Field operand) {
+        if (!supports(op))
+            throw new UnsupportedOperationException("hash indexes do not support " + op);
+        return new HashFileIterator(this, tid, operand);
+    }
+
+    /**
+     * Helper class that iterates over the entries of a HashFile with a key,
+     * or over all entries, bucket by bucket. A scan of all entries looks up
+     * the number of buckets again whenever it finishes one, so that it also
+     * reads the buckets that splits of buckets it had yet to read added.
+     */
+    private static class HashFileIterator extends AbstractDbFileIterator {
+
+        final HashFile hf;
+        final TransactionId tid;
+        final Field key; // null to return all entries
+
+        HashPage page = null;
+        int bucket;
+        int index;
+
+        HashFileIterator(HashFile hf, TransactionId tid, Field key) {
+            this.hf = hf;
+            this.tid = tid;
+            this.key = key;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            bucket = 0;
+            if (key == null)
+                page = hf.getPage(tid, hf.readMeta(tid, meta -> pageOf(meta, 0)), Permissions.READ_ONLY);
+            else
+                page = hf.lockBucket(tid, hash(key), Permissions.READ_ONLY);
+            index = 0;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (page != null) {
+                if (index >= page.getNumEntries()) {
+                    int overflow = page.getOverflow();
+                    hf.unpin(tid, page);
+                    if (overflow != 0)
+                        page = hf.getPage(tid, overflow, Permissions.READ_ONLY);
+                    else if (key == null && bucket + 1 < hf.readMeta(tid, HashPage::getNumBuckets)) {
+                        int next = ++bucket;
+                        page = hf.getPage(tid, hf.readMeta(tid, meta -> pageOf(meta, next)),
+                                Permissions.READ_ONLY);
+                    } else
+                        page = null;
+                    index = 0;
+                    continue;
+                }
+                Field k = page.getKey(index);
+                int recordPage = page.getRecordPage(index);
+                int recordSlot = page.getRecordSlot(index);
+                index++;
+                if (key != null && !k.compare(Predicate.Op.EQUALS, key))
+                    continue;
+                Tuple t = new Tuple(hf.td);
+                t.setField(0, k);
+                t.setRecordId(new RecordId(new HeapPageId(hf.tableid, recordPage), recordSlot));
+                return t;
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (page != null)
+                hf.unpin(tid, page);
+            page = null;
+        }
+    }
+}
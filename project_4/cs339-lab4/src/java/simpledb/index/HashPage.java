@@ -0,0 +1,313 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Each instance of HashPage stores one page of a HashFile: the meta page
+ * (page 0, which records the number of buckets and where they are), or a
+ * page of a bucket.
+ * <p>
+ * A bucket is a primary page followed by a chain of overflow pages, which
+ * hold entries (key, RecordId) in no particular order. The formats are:
+ * <pre>
+ *   meta:   kind (1 byte) | buckets (4 bytes) | 32 x spares (4 bytes)
+ *   bucket: kind (1 byte) | n (2 bytes) | overflow page (4 bytes)
+ *           | n x (key | record page (4 bytes) | record slot (4 bytes))
+ * </pre>
+ * where keys are serialized like the fields of a HeapPage. spares[k] is
+ * the number of overflow pages before the primary pages of the buckets
+ * with k significant bits (see {@link HashFile}). An overflow page of 0
+ * ends the chain (page 0 is always the meta page), and an all-zero page is
+ * an empty bucket.
+ *
+ * @see HashFile
+ */
+public class HashPage implements Page {
+
+    static final byte BUCKET = 0;
+    static final byte META = 1;
+
+    static final int HEADER_SIZE = 7;
+    static final int NUM_SPARES = 32;
+
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+
+    final HashPageId pid;
+    final Type keyType;
+    private final int pageSize;
+    private final byte kind;
+
+    // meta page only
+    private int numBuckets;
+    private final int[] spares = new int[NUM_SPARES];
+
+    // bucket pages only
+    private int overflow;
+    private int n = 0;
+    private Field[] keys;
+    private int[] recordPages;
+    private int[] recordSlots;
+
+    // the contents of the page as of the last setBeforeImage, or null if the
+    // page has not changed since. Captured on the first change.
+    private byte[] oldData = null;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a HashPage from a set of bytes of data read from disk, in the
+     * format described above.
+     */
+    public HashPage(HashPageId id, byte[] data) throws IOException {
+        this(id, ((HashFile) Database.getCatalog().getDatabaseFile(id.getTableId())).getKeyType(), data);
+    }
+
+    /**
+     * Create a HashPage of an index with the specified key type.
+     */
+    HashPage(HashPageId id, Type keyType, byte[] data) {
+        this.pid = id;
+        this.keyType = keyType;
+        this.pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        kind = buf.get();
+        if (kind == META) {
+            numBuckets = buf.getInt();
+            for (int k = 0; k < NUM_SPARES; k++)
+                spares[k] = buf.getInt();
+            return;
+        }
+        n = buf.getChar();
+        overflow = buf.getInt();
+        int capacity = getMaxEntries(keyType);
+        keys = new Field[capacity];
+        recordPages = new int[capacity];
+        recordSlots = new int[capacity];
+        try {
+            for (int i = 0; i < n; i++) {
+                keys[i] = keyType.parse(buf);
+                recordPages[i] = buf.getInt();
+                recordSlots[i] = buf.getInt();
+            }
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("corrupt index page " + id.getPageNumber(), e);
+        }
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * bucket page.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /**
+     * @return the data of a meta page with the specified number of buckets
+     *         and spares
+     */
+    static byte[] createMetaPageData(int numBuckets, int[] spares) {
+        byte[] data = createEmptyPageData();
+        ByteBuffer buf = ByteBuffer.wrap(data).put(META).putInt(numBuckets);
+        for (int spare : spares)
+            buf.putInt(spare);
+        return data;
+    }
+
+    /**
+     * @return the number of entries a bucket page can hold
+     */
+    static int getMaxEntries(Type keyType) {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / (keyType.getLen() + 8);
+    }
+
+    int getNumBuckets() {
+        return numBuckets;
+    }
+
+    int getSpare(int k) {
+        return spares[k];
+    }
+
+    void setNumBuckets(int numBuckets) {
+        beforeChange();
+        this.numBuckets = numBuckets;
+    }
+
+    void setSpare(int k, int spare) {
+        beforeChange();
+        spares[k] = spare;
+    }
+
+    int getNumEntries() {
+        return n;
+    }
+
+    Field getKey(int i) {
+        return keys[i];
+    }
+
+    int getRecordPage(int i) {
+        return recordPages[i];
+    }
+
+    int getRecordSlot(int i) {
+        return recordSlots[i];
+    }
+
+    int getOverflow() {
+        return overflow;
+    }
+
+    void setOverflow(int overflow) {
+        beforeChange();
+        this.overflow = overflow;
+    }
+
+    /**
+     * @return true if no more entries fit on this page
+     */
+    boolean isFull() {
+        return n == keys.length;
+    }
+
+    /**
+     * @return the index of the specified entry on this page, or -1 if it is
+     *         not on it
+     */
+    int find(Field key, int page, int slot) {
+        for (int i = 0; i < n; i++) {
+            if (recordPages[i] == page && recordSlots[i] == slot && keys[i].compare(Predicate.Op.EQUALS, key))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Add an entry to this page, which must not be full.
+     */
+    void addEntry(Field key, int page, int slot) {
+        beforeChange();
+        keys[n] = key;
+        recordPages[n] = page;
+        recordSlots[n] = slot;
+        n++;
+    }
+
+    /**
+     * Remove the entry at the specified index, moving the last entry into
+     * its place.
+     */
+    void removeEntry(int i) {
+        beforeChange();
+        n--;
+        keys[i] = keys[n];
+        recordPages[i] = recordPages[n];
+        recordSlots[i] = recordSlots[n];
+        keys[n] = null;
+    }
+
+    /**
+     * Remove all entries from this page, keeping its overflow page.
+     */
+    void clear() {
+        beforeChange();
+        Arrays.fill(keys, 0, n, null);
+        n = 0;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in the
+     * format described above.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(kind);
+            if (kind == META) {
+                dos.writeInt(numBuckets);
+                for (int spare : spares)
+                    dos.writeInt(spare);
+            } else {
+                dos.writeChar(n);
+                dos.writeInt(overflow);
+                for (int i = 0; i < n; i++) {
+                    keys[i].serialize(dos);
+                    dos.writeInt(recordPages[i]);
+                    dos.writeInt(recordSlots[i]);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return Arrays.copyOf(baos.toByteArray(), pageSize);
+    }
+
+    /**
+     * Return a view of this page before it was modified
+     * -- used by recovery
+     */
+    public HashPage getBeforeImage() {
+        byte[] oldDataRef;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
+        }
+        return new HashPage(pid, keyType, oldDataRef != null ? oldDataRef : getPageData());
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    private void beforeChange() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = getPageData();
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.dirtier = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb.index;
+
+import simpledb.storage.PageId;
+
+import java.util.Objects;
+
+/**
+ * Unique identifier for HashPage objects: a page of a HashFile.
+ */
+public class HashPageId implements PageId {
+
+    private final int tableId;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific index.
+     *
+     * @param tableId The index that is being referenced
+     * @param pgNo    The page number in that index.
+     */
+    public HashPageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+    }
+
+    /**
+     * @return the id of the index associated with this PageId
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the index associated with this PageId
+     */
+    public int getPageNumber() {
+        return pgNo;
+    }
+
+    public int hashCode() {
+        return Objects.hash(tableId, pgNo);
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof HashPageId))
+            return false;
+        HashPageId p = (HashPageId) o;
+        return tableId == p.tableId && pgNo == p.pgNo;
+    }
+
+    public int[] serialize() {
+        return new int[]{tableId, pgNo};
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb.index;
+
+import simpledb.execution.Predicate;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.transaction.TransactionId;
+
+/**
+ * IndexFile is implemented by secondary indexes on one field of a table.
+ * An index is a DbFile of its own, whose pages are managed by the
+ * BufferPool like those of tables, and which the Catalog keeps next to the
+ * table it indexes.
+ * <p>
+ * The tuples of an index are its entries: tuples with the indexed field
+ * only (see {@link #getTupleDesc}), whose RecordId is that of the table
+ * tuple they point at. {@link #insertTuple} and {@link #deleteTuple} take
+ * tuples of the table (with their RecordIds set) and add or remove their
+ * entries; BufferPool calls them whenever a tuple is inserted into or
+ * deleted from the table.
+ */
+public interface IndexFile extends DbFile {
+
+    /**
+     * @return the id of the table this index is on
+     */
+    int getTableId();
+
+    /**
+     * @return the index of the indexed field in the table's TupleDesc
+     */
+    int getKeyField();
+
+    /**
+     * @return true if {@link #indexIterator} can find the entries matching
+     *         the specified operator
+     */
+    boolean supports(Predicate.Op op);
+
+    /**
+     * Returns an iterator over the entries whose key satisfies
+     * {@code key op operand}.
+     *
+     * @throws UnsupportedOperationException if the index does not support
+     *                                       op
+     */
+    DbFileIterator indexIterator(TransactionId tid, Predicate.Op op, Field operand);
+}
@@ -0,0 +1,216 @@
+package simpledb.index;
+
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PositionIndex is the base of the in-memory indexes on a field of a
+ * HeapFile that answer predicates with a {@link Bitmap} of the positions
+ * of the tuples that may satisfy them: {@link BitmapIndex} and {@link
+ * TrigramIndex}. Each files the position of a tuple under one or more keys
+ * derived from the value of its indexed field (the value itself, or its
+ * trigrams), and keeps a bitmap per key.
+ * <p>
+ * Rather than going through the BufferPool and taking part in
+ * transactions, the bitmaps are kept a superset of the positions filed
+ * under each key: BufferPool adds the position of every tuple inserted into
+ * the table, whether or not its transaction commits, and deletes leave the
+ * bitmaps as they are. Scans must therefore check the tuples they fetch
+ * (see {@link simpledb.execution.BitmapHeapScan}), and they remove the
+ * stale positions they come across on clean pages ({@link #removeStale}).
+ * <p>
+ * An index is saved to its file when it is closed, as the number of keys,
+ * then per key the key followed by its bitmap. The file is only loaded if
+ * it is at least as recent as the table's file; otherwise the table changed
+ * after the index was saved (or the index was never closed), and the index
+ * is built again from the table.
+ *
+ * @param <K> the type of the keys
+ * @Threadsafe
+ */
+public abstract class PositionIndex<K> implements Closeable {
+
+    private final File f;
+    private final int tableid;
+    private final int keyField;
+    protected final Type keyType;
+    protected final Map<K, Bitmap> bitmaps = new HashMap<>(); // protected by this
+
+    protected PositionIndex(File f, DbFile table, int keyField) {
+        if (!(table instanceof HeapFile))
+            throw new IllegalArgumentException("position indexes can only index HeapFiles");
+        this.f = f;
+        this.tableid = table.getId();
+        this.keyField = keyField;
+        this.keyType = table.getTupleDesc().getFieldType(keyField);
+    }
+
+    /**
+     * @return the keys the position of a tuple whose indexed field has the
+     *         specified value is filed under
+     */
+    protected abstract Collection<K> keysOf(Field value);
+
+    /**
+     * @return the keys whose bitmaps {@link #lookup} consults to answer
+     *         {@code field op operand}
+     */
+    protected abstract Collection<K> keysFor(Predicate.Op op, Field operand);
+
+    protected abstract void writeKey(DataOutputStream dos, K key) throws IOException;
+
+    protected abstract K readKey(DataInputStream dis) throws IOException;
+
+    /**
+     * @return true if this index can narrow down the tuples that satisfy
+     *         {@code field op operand}
+     */
+    public abstract boolean supports(Predicate.Op op, Field operand);
+
+    /**
+     * @return the positions of the tuples whose indexed field may satisfy
+     *         {@code field op operand}, which {@link #supports} must hold
+     *         for. The result is a copy, which the caller may keep and
+     *         change.
+     */
+    public abstract Bitmap lookup(Predicate.Op op, Field operand);
+
+    /**
+     * Load the index from its file.
+     */
+    protected void load() throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            int n = dis.readInt();
+            for (int i = 0; i < n; i++) {
+                K key = readKey(dis);
+                bitmaps.put(key, Bitmap.read(dis));
+            }
+        }
+    }
+
+    /**
+     * Build the index from the tuples the table holds now, and save it.
+     *
+     * @param tid   the transaction to scan the table as a part of
+     * @param table the table the index is on
+     */
+    protected void build(TransactionId tid, DbFile table)
+            throws IOException, DbException, TransactionAbortedException {
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            insertTuple(it.next());
+        it.close();
+        save();
+    }
+
+    /**
+     * @return true if the index saved in the specified file is up to date
+     *         with the table's file, and can be opened instead of built
+     */
+    public static boolean isUpToDate(File f, DbFile table) {
+        File tableFile = ((HeapFile) table).getFile();
+        return f.length() > 0 && f.lastModified() >= tableFile.lastModified();
+    }
+
+    /**
+     * @return the id of the table this index is on
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the index of the indexed field in the table's TupleDesc
+     */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the number of keys positions are filed under
+     */
+    public synchronized int numKeys() {
+        return bitmaps.size();
+    }
+
+    /**
+     * Add the position of a tuple of the table, which must have a RecordId.
+     */
+    public synchronized void insertTuple(Tuple t) {
+        RecordId rid = t.getRecordId();
+        for (K key : keysOf(t.getField(keyField))) {
+            bitmaps.computeIfAbsent(key, k -> new Bitmap())
+                    .add(rid.getPageId().getPageNumber(), rid.getTupleNumber());
+        }
+    }
+
+    /**
+     * Remove a position that {@link #lookup} returned for {@code field op
+     * operand} from the bitmaps it consulted that the tuple at the position
+     * does not belong in now. Only call this with the committed contents of
+     * the position, i.e. while holding a lock on a clean page.
+     *
+     * @param rid   the position
+     * @param value the value of the indexed field of the tuple at the
+     *              position, or null if the slot is empty
+     */
+    public synchronized void removeStale(RecordId rid, Field value, Predicate.Op op, Field operand) {
+        Collection<K> keep = value == null ? null : keysOf(value);
+        for (K key : keysFor(op, operand)) {
+            if (keep != null && keep.contains(key))
+                continue;
+            Bitmap b = bitmaps.get(key);
+            if (b != null && b.remove(rid.getPageId().getPageNumber(), rid.getTupleNumber()) && b.numPages() == 0)
+                bitmaps.remove(key);
+        }
+    }
+
+    /**
+     * Write the index to its file.
+     */
+    public synchronized void save() throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            dos.writeInt(bitmaps.size());
+            for (Map.Entry<K, Bitmap> e : bitmaps.entrySet()) {
+                writeKey(dos, e.getKey());
+                e.getValue().write(dos);
+            }
+        }
+    }
+
+    /**
+     * Save the index; it keeps working in memory.
+     */
+    public void close() {
+        try {
+            save();
+        } catch (IOException e) {
+            // the index is rebuilt from the table the next time it is opened
+            Debug.log("%s: cannot save %s: %s", getClass().getSimpleName(), f, e);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb.index;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.StringField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * TrigramIndex is an inverted index of the trigrams (substrings of three
+ * characters) of a string field of a HeapFile, for LIKE predicates, which
+ * hold when the field contains the operand. A string contains the operand
+ * only if it contains every trigram of the operand, so intersecting the
+ * bitmaps of the operand's trigrams narrows the tuples to check down to
+ * the ones that have all of them, without reading the table. The check is
+ * still needed: the trigrams may be in the wrong order or far apart.
+ * <p>
+ * Operands shorter than three characters have no trigrams, and the index
+ * cannot help with them. See {@link PositionIndex} for how the bitmaps are
+ * kept up to date and saved.
+ *
+ * @Threadsafe
+ */
+public class TrigramIndex extends PositionIndex<Long> {
+
+    private TrigramIndex(File f, DbFile table, int keyField) {
+        super(f, table, keyField);
+        if (keyType != Type.STRING_TYPE)
+            throw new IllegalArgumentException("trigram indexes can only index string fields");
+    }
+
+    /**
+     * Opens the index saved in the specified file.
+     *
+     * @param f        the file the index was saved to
+     * @param table    the table the index is on
+     * @param keyField the index of the indexed field of the table, which
+     *                 must be a string field
+     */
+    public static TrigramIndex open(File f, DbFile table, int keyField) throws IOException {
+        TrigramIndex index = new TrigramIndex(f, table, keyField);
+        index.load();
+        return index;
+    }
+
+    /**
+     * Builds an index on the specified string field of a table, from the
+     * tuples the table holds now, and saves it.
+     *
+     * @param tid      the transaction to scan the table as a part of
+     * @param table    the table to index
+     * @param keyField the index of the field to index
+     * @param f        the file to save the index to; any existing contents
+     *                 are lost
+     */
+    public static TrigramIndex create(TransactionId tid, DbFile table, int keyField, File f)
+            throws IOException, DbException, TransactionAbortedException {
+        TrigramIndex index = new TrigramIndex(f, table, keyField);
+        index.build(tid, table);
+        return index;
+    }
+
+    /**
+     * @return the distinct trigrams of a string, each packed into a long
+     */
+    static Set<Long> trigrams(String s) {
+        Set<Long> trigrams = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= s.length(); i++)
+            trigrams.add(((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2));
+        return trigrams;
+    }
+
+    protected Collection<Long> keysOf(Field value) {
+        return trigrams(((StringField) value).getValue());
+    }
+
+    protected Collection<Long> keysFor(Predicate.Op op, Field operand) {
+        return trigrams(((StringField) operand).getValue());
+    }
+
+    protected void writeKey(DataOutputStream dos, Long key) throws IOException {
+        dos.writeLong(key);
+    }
+
+    protected Long readKey(DataInputStream dis) throws IOException {
+        return dis.readLong();
+    }
+
+    /**
+     * @return true for LIKE predicates whose operand has a trigram
+     */
+    public boolean supports(Predicate.Op op, Field operand) {
+        return op == Predicate.Op.LIKE && operand instanceof StringField
+                && ((StringField) operand).getValue().length() >= 3;
+    }
+
+    /**
+     * @return the intersection of the bitmaps of the operand's trigrams,
+     *         smallest first
+     */
+    public synchronized Bitmap lookup(Predicate.Op op, Field operand) {
+        List<Bitmap> lists = new ArrayList<>();
+        for (long trigram : keysFor(op, operand)) {
+            Bitmap b = bitmaps.get(trigram);
+            if (b == null)
+                return new Bitmap();
+            lists.add(b);
+        }
+        lists.sort(Comparator.comparingInt(Bitmap::numPages));
+        Bitmap result = lists.get(0).copy();
+        for (int i = 1; i < lists.size() && result.numPages() > 0; i++)
+            result = Bitmap.and(result, lists.get(i));
+        return result;
+    }
+}
@@ -5,6 +5,9 @@ import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.Bitmap;
+import simpledb.index.IndexFile;
+import simpledb.index.PositionIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -297,6 +300,189 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Work out which columns of the table scanned as the specified alias the
+     * query refers to, so that column-store tables only read those.
+     *
+     * @return the indexes of the referenced columns, in ascending order; all
+     *         columns if the query selects * (and at least one column if it
+     *         refers to none)
+     */
+    private int[] referencedColumns(String alias, TupleDesc td) {
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias))
+                names.add(lj.f1QuantifiedName);
+            if (alias.equals(lj.t2Alias))
+                names.add(lj.f2QuantifiedName);
+        }
+        names.add(groupByField);
+        names.add(aggField);
+        names.add(oByField);
+
+        boolean[] used = new boolean[td.numFields()];
+        for (String name : names) {
+            if (name == null)
+                continue;
+            if (name.equals("null.*") || name.equals(alias + ".*"))
+                Arrays.fill(used, true);
+            else if (name.startsWith(alias + ".")) {
+                try {
+                    used[td.indexForFieldName(name.substring(alias.length() + 1))] = true;
+                } catch (NoSuchElementException e) {
+                    // reported when the plan is built
+                }
+            }
+        }
+        int n = 0;
+        for (boolean u : used)
+            n += u ? 1 : 0;
+        int[] columns = new int[Math.max(n, 1)];
+        n = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i])
+                columns[n++] = i;
+        }
+        return columns;
+    }
+
+    /**
+     * @return the constant of a filter, as a field of the specified type
+     */
+    private static Field constant(Type type, String c) {
+        if (type == Type.INT_TYPE)
+            return new IntField(Integer.parseInt(c));
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
+    /**
+     * @return the filters on the table scanned as the specified alias, as
+     *         predicates on the fields of the table, for the scan to skip
+     *         pages with (the filters are still applied to what it returns)
+     */
+    private List<Predicate> scanPredicates(String alias, TupleDesc td) {
+        List<Predicate> predicates = new ArrayList<>();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias))
+                continue;
+            try {
+                int field = td.indexForFieldName(lf.fieldPureName);
+                predicates.add(new Predicate(field, lf.p, constant(td.getFieldType(field), lf.c)));
+            } catch (NoSuchElementException e) {
+                // reported when the filter is planned
+            }
+        }
+        return predicates;
+    }
+
+    /**
+     * Look for an index that answers one of the filters on the table scanned
+     * as table.alias, and scan the table through it if that is estimated to
+     * be cheaper than scanning the whole table. Each tuple an index scan
+     * returns may cost a page read of the table, unless the query needs no
+     * field of the table but the indexed one; then the scan only reads the
+     * part of the index's leaves the filter selects.
+     *
+     * @param answered the filter the returned scan answers is added to it
+     * @return the cheapest index scan, or null if the table should be
+     *         scanned sequentially
+     */
+    private IndexScan indexScan(TransactionId t, LogicalScanNode table, HeapFile file, TableStats s,
+                                Set<LogicalFilterNode> answered) {
+        List<IndexFile> indexes = Database.getCatalog().getIndexes(file.getId());
+        if (indexes.isEmpty() || s == null)
+            return null;
+        TupleDesc td = file.getTupleDesc();
+        double scanCost = s.estimateScanCost();
+        double pageCost = scanCost / Math.max(file.numPages(), 1);
+        double bestCost = scanCost;
+        LogicalFilterNode bestFilter = null;
+        IndexFile bestIndex = null;
+        boolean bestIndexOnly = false;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias))
+                continue;
+            int field;
+            try {
+                field = td.indexForFieldName(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                continue; // reported when the filter is planned
+            }
+            for (IndexFile index : indexes) {
+                if (index.getKeyField() != field || !index.supports(lf.p))
+                    continue;
+                double sel = s.estimateSelectivity(field, lf.p, constant(td.getFieldType(field), lf.c));
+                boolean indexOnly = Arrays.equals(referencedColumns(table.alias, td), new int[]{field});
+                double cost = indexOnly ? scanCost * sel : s.estimateTableCardinality(sel) * pageCost;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestFilter = lf;
+                    bestIndex = index;
+                    bestIndexOnly = indexOnly;
+                }
+            }
+        }
+        if (bestFilter == null)
+            return null;
+        answered.add(bestFilter);
+        Field operand = constant(td.getFieldType(bestIndex.getKeyField()), bestFilter.c);
+        return new IndexScan(t, bestIndex, table.alias, bestFilter.p, operand, bestIndexOnly);
+    }
+
+    /**
+     * Look for the filters on the table scanned as table.alias that bitmap
+     * or trigram indexes answer, and scan the table through their bitmaps
+     * if fetching the pages the candidates are on is cheaper than scanning
+     * the whole table. The indexes are in memory, so rather than estimating
+     * how many pages that is, the bitmaps are looked up and intersected.
+     *
+     * @param answered the filters the returned scan answers are added to it
+     * @return a bitmap scan, or null if the table should be scanned
+     *         sequentially
+     */
+    private BitmapHeapScan bitmapScan(TransactionId t, LogicalScanNode table, HeapFile file,
+                                      Set<LogicalFilterNode> answered) {
+        List<PositionIndex<?>> indexes = Database.getCatalog().getPositionIndexes(file.getId());
+        if (indexes.isEmpty())
+            return null;
+        TupleDesc td = file.getTupleDesc();
+        List<LogicalFilterNode> bitmapFilters = new ArrayList<>();
+        List<Predicate> predicates = new ArrayList<>();
+        Bitmap candidates = null;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias))
+                continue;
+            int field;
+            try {
+                field = td.indexForFieldName(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                continue; // reported when the filter is planned
+            }
+            Field operand = constant(td.getFieldType(field), lf.c);
+            for (PositionIndex<?> index : indexes) {
+                if (index.getKeyField() != field || !index.supports(lf.p, operand))
+                    continue;
+                Bitmap b = index.lookup(lf.p, operand);
+                candidates = candidates == null ? b : Bitmap.and(candidates, b);
+                bitmapFilters.add(lf);
+                predicates.add(new Predicate(field, lf.p, operand));
+                break;
+            }
+        }
+        if (predicates.isEmpty())
+            return null;
+        int numPages = Math.max(file.numPages(), 1);
+        if (candidates.numPages() >= numPages)
+            return null;
+        answered.addAll(bitmapFilters);
+        return new BitmapHeapScan(t, file.getId(), table.alias, predicates);
+    }
+
     /**
      * Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      * find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
@@ -317,12 +503,22 @@ public class LogicalPlan {
         Map<String, String> equivMap = new HashMap<>();
         Map<String, Double> filterSelectivities = new HashMap<>();
         Map<String, TableStats> statsMap = new HashMap<>();
+        Set<LogicalFilterNode> indexedFilters = new HashSet<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                TableStats stats = baseTableStats.get(Database.getCatalog().getTableName(table.t));
+                if (file instanceof ColumnFile)
+                    ss = new ColumnScan(t, file.getId(), table.alias, referencedColumns(table.alias, file.getTupleDesc()));
+                else if (file instanceof HeapFile)
+                    ss = indexScan(t, table, (HeapFile) file, stats, indexedFilters);
+                if (ss == null && file instanceof HeapFile)
+                    ss = bitmapScan(t, table, (HeapFile) file, indexedFilters);
+                if (ss == null)
+                    ss = new SeqScan(t, file.getId(), table.alias, scanPredicates(table.alias, file.getTupleDesc()));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -349,22 +545,26 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = constant(ftyp, lf.c);
 
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().indexForFieldName(lf.fieldQuantifiedName), lf.p, f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+            // filters answered by an index or bitmap scan need no Filter on top of it
+            if (!indexedFilters.contains(lf)) {
+                Predicate p = null;
+                try {
+                    p = new Predicate(subplan.getTupleDesc().indexForFieldName(lf.fieldQuantifiedName), lf.p, f);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+                }
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
+            int tableId = this.getTableId(lf.tableAlias);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().indexForFieldName(lf.fieldQuantifiedName), lf.p, f);
+            // the stats are indexed by the table's fields, which the scan
+            // may only return some of
+            int field = Database.getCatalog().getTupleDesc(tableId).indexForFieldName(lf.fieldPureName);
+            double sel = s.estimateSelectivity(field, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
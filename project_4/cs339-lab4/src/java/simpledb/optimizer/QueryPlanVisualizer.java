@@ -16,6 +16,10 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String COLUMN_SCAN = "column_scan";
+    static final String INDEX_SCAN = "index_scan";
+    static final String INDEX_ONLY_SCAN = "index_only_scan";
+    static final String BITMAP_SCAN = "bitmap_scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -65,24 +69,43 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof ColumnScan
+                || queryPlan instanceof IndexScan || queryPlan instanceof BitmapHeapScan) {
+            String scan;
+            String tableName;
+            String alias;
+            if (queryPlan instanceof SeqScan) {
+                scan = SCAN;
+                tableName = ((SeqScan) queryPlan).getTableName();
+                alias = ((SeqScan) queryPlan).getAlias();
+            } else if (queryPlan instanceof ColumnScan) {
+                scan = COLUMN_SCAN;
+                tableName = ((ColumnScan) queryPlan).getTableName();
+                alias = ((ColumnScan) queryPlan).getAlias();
+            } else if (queryPlan instanceof BitmapHeapScan) {
+                scan = BITMAP_SCAN;
+                tableName = ((BitmapHeapScan) queryPlan).getTableName();
+                alias = ((BitmapHeapScan) queryPlan).getAlias();
+            } else {
+                IndexScan s = (IndexScan) queryPlan;
+                scan = s.isIndexOnly() ? INDEX_ONLY_SCAN : INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            }
             //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
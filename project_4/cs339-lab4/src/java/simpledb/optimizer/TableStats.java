@@ -109,8 +109,11 @@ public class TableStats {
             maxValues.put(tupleDesc.getFieldName(i), Integer.MIN_VALUE);
         }
 
+        // both passes run as one read-only transaction, completed at the end
+        // so that its page locks are released
+        TransactionId tid = new TransactionId();
         int nTuples = 0;
-        DbFileIterator it = file.iterator(new TransactionId());
+        DbFileIterator it = file.iterator(tid);
         try {
             it.open();
             while (it.hasNext()) {
@@ -145,7 +148,7 @@ public class TableStats {
             }
         }
 
-        it = file.iterator(new TransactionId());
+        it = file.iterator(tid);
         try {
             it.open();
             while (it.hasNext()) {
@@ -165,6 +168,8 @@ public class TableStats {
             e.printStackTrace();
             // Handle exceptions without assert
             throw new RuntimeException("Error computing table statistics");
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
         }
     }
 
@@ -0,0 +1,292 @@
+package simpledb.storage;
+
+import simpledb.common.Debug;
+import simpledb.execution.Predicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * BloomMap keeps a Bloom filter of the values of some chosen fields on each
+ * page of a HeapFile, so that an equality predicate or a join probe on one
+ * of them can skip the pages that certainly do not hold the key, without
+ * reading them. This pays off for lookups of values that are mostly absent,
+ * which a {@link ZoneMap} cannot rule out unless they fall outside a page's
+ * range.
+ * <p>
+ * Like a zone, a filter must never miss a value on its page: it is computed
+ * exactly from a page only when the page is clean (read from disk or being
+ * written to it), an insert adds the new tuple's values to the filter of
+ * its page, and deletes leave it as it is. Pages with no filter yet are
+ * never skipped.
+ * <p>
+ * Each filter has about BITS_PER_KEY bits per tuple a HeapPage of the table
+ * holds (rounded up to a power of two) and is probed at NUM_HASHES
+ * positions, for a false positive rate of a few percent on a full page.
+ * The map is persisted in a side file next to the heap file: a header with
+ * the chosen fields and the filter size, then per page a byte that says
+ * whether the page has filters, followed by the filter of each chosen
+ * field. An entry is written through whenever its page is written to disk.
+ * If the side file is missing, older than the heap file or made for other
+ * fields, the map starts out empty, and filters are computed as pages are
+ * read.
+ *
+ * @Threadsafe
+ */
+class BloomMap {
+
+    /**
+     * Suffix of the side file, appended to the name of the heap file.
+     */
+    static final String SUFFIX = ".blm";
+
+    static final int BITS_PER_KEY = 8;
+    static final int NUM_HASHES = 4;
+
+    private final File file;
+    private FileChannel channel = null; // null if the map cannot be persisted; protected by this
+    private final int[] fields; // the chosen fields
+    private final int words; // 64-bit words per filter
+    private final int headerSize;
+    private final int entrySize;
+    private long[][] filters = new long[0][]; // per page, fields.length filters, or null; protected by this
+    private int numPages = 0; // protected by this
+
+    /**
+     * Opens the Bloom filters of the specified heap file, loading them from
+     * its side file if that is up to date.
+     *
+     * @param heapFile the file backing the heap file
+     * @param td       the TupleDesc of the heap file
+     * @param fields   the fields to keep filters of
+     */
+    BloomMap(File heapFile, TupleDesc td, int[] fields) {
+        this.file = new File(heapFile.getPath() + SUFFIX);
+        this.fields = fields.clone();
+        int bits = Math.max(64, HeapPage.getNumTuples(td) * BITS_PER_KEY);
+        this.words = Integer.highestOneBit(bits - 1) * 2 / 64;
+        this.headerSize = 8 + 4 * fields.length;
+        this.entrySize = 1 + 8 * words * fields.length;
+        boolean stale = !file.exists() || file.lastModified() < heapFile.lastModified();
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, buf.position()) < 0)
+                    break;
+            }
+            buf.flip();
+            if (stale || !readHeader(buf)) {
+                channel.truncate(0);
+                writeHeader();
+                return;
+            }
+            for (int pgNo = 0; buf.remaining() >= entrySize; pgNo++) {
+                grow(pgNo);
+                boolean known = buf.get() != 0;
+                long[] f = new long[words * fields.length];
+                for (int w = 0; w < f.length; w++)
+                    f[w] = buf.getLong();
+                filters[pgNo] = known ? f : null;
+            }
+        } catch (IOException e) {
+            // e.g., a read-only table; keep the map in memory only
+            Debug.log("BloomMap: cannot persist %s: %s", file, e);
+            close();
+        }
+    }
+
+    /**
+     * @return true if the side file was made for the same fields and filter
+     *         size as this map
+     */
+    private boolean readHeader(ByteBuffer buf) {
+        if (buf.remaining() < headerSize || buf.getInt() != fields.length || buf.getInt() != words)
+            return false;
+        for (int field : fields) {
+            if (buf.getInt() != field)
+                return false;
+        }
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(headerSize);
+        buf.putInt(fields.length).putInt(words);
+        for (int field : fields)
+            buf.putInt(field);
+        buf.flip();
+        while (buf.hasRemaining())
+            channel.write(buf, buf.position());
+    }
+
+    private void grow(int pgNo) {
+        if (pgNo >= numPages) {
+            if (pgNo >= filters.length)
+                filters = Arrays.copyOf(filters, Math.max(pgNo + 1, filters.length * 2));
+            numPages = pgNo + 1;
+        }
+    }
+
+    /**
+     * @return the index of the specified field among the chosen fields, or
+     *         -1 if it has no filters
+     */
+    int column(int field) {
+        for (int c = 0; c < fields.length; c++) {
+            if (fields[c] == field)
+                return c;
+        }
+        return -1;
+    }
+
+    /**
+     * Forget the filters of all pages from the specified page on.
+     */
+    synchronized void truncate(int n) {
+        if (n >= numPages)
+            return;
+        Arrays.fill(filters, n, numPages, null);
+        numPages = n;
+    }
+
+    /**
+     * @return true if the specified page has filters
+     */
+    synchronized boolean isKnown(int pgNo) {
+        return pgNo < numPages && filters[pgNo] != null;
+    }
+
+    /**
+     * Set the filters of the specified page to hold exactly the values of
+     * the tuples on it. The page must be clean.
+     */
+    synchronized void set(int pgNo, TuplePage p) {
+        grow(pgNo);
+        long[] f = new long[words * fields.length];
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext())
+            add(f, it.next());
+        filters[pgNo] = f;
+    }
+
+    /**
+     * Add the values of a tuple that is being inserted on the specified
+     * page to its filters (if it has any).
+     */
+    synchronized void add(int pgNo, Tuple t) {
+        if (isKnown(pgNo))
+            add(filters[pgNo], t);
+    }
+
+    private void add(long[] f, Tuple t) {
+        for (int c = 0; c < fields.length; c++) {
+            int h = hash(t.getField(fields[c]));
+            int step = (h >>> 16) | 1;
+            for (int k = 0; k < NUM_HASHES; k++, h += step) {
+                int bit = h & (words * 64 - 1);
+                f[c * words + (bit >>> 6)] |= 1L << bit;
+            }
+        }
+    }
+
+    private boolean mayContain(long[] f, int c, Field value) {
+        int h = hash(value);
+        int step = (h >>> 16) | 1;
+        for (int k = 0; k < NUM_HASHES; k++, h += step) {
+            int bit = h & (words * 64 - 1);
+            if ((f[c * words + (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static int hash(Field value) {
+        // spread the bits of hashCode, which is the value itself for ints
+        int h = value.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return false if no tuple on the specified page can satisfy all of
+     *         the predicates (only equality predicates on the chosen fields
+     *         are looked at)
+     */
+    synchronized boolean mayMatch(int pgNo, List<Predicate> predicates) {
+        if (!isKnown(pgNo))
+            return true;
+        for (Predicate p : predicates) {
+            int c = p.getOp() == Predicate.Op.EQUALS ? column(p.getField()) : -1;
+            if (c >= 0 && !mayContain(filters[pgNo], c, p.getOperand()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if no tuple on the specified page has one of the keys
+     *         in the specified chosen field
+     */
+    synchronized boolean mayContainAny(int pgNo, int field, Collection<Field> keys) {
+        int c = column(field);
+        if (c < 0 || !isKnown(pgNo))
+            return true;
+        for (Field key : keys) {
+            if (mayContain(filters[pgNo], c, key))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write the entry of the specified page to the side file.
+     */
+    synchronized void persist(int pgNo) {
+        if (channel == null || pgNo >= numPages)
+            return;
+        ByteBuffer buf = ByteBuffer.allocate(entrySize);
+        long[] f = filters[pgNo];
+        buf.put((byte) (f != null ? 1 : 0));
+        if (f != null) {
+            for (long w : f)
+                buf.putLong(w);
+        }
+        buf.rewind();
+        try {
+            while (buf.hasRemaining())
+                channel.write(buf, headerSize + (long) pgNo * entrySize + buf.position());
+        } catch (IOException e) {
+            // without the side file the filters are rebuilt as pages are
+            // read, so just stop writing it
+            Debug.log("BloomMap: cannot write %s: %s", file, e);
+            close();
+        }
+    }
+
+    /**
+     * Close the side file; the map keeps working in memory.
+     */
+    synchronized void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing was lost: every write went straight to the file
+        }
+        channel = null;
+    }
+}
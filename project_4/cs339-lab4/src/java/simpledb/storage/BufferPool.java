@@ -3,14 +3,24 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.index.IndexFile;
+import simpledb.index.PositionIndex;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -20,6 +30,41 @@ import java.util.concurrent.ConcurrentMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Concurrency: the page table is a ConcurrentHashMap, so hits never take
+ * the pool monitor. A miss only holds the monitor long enough to make room
+ * and register an in-flight load; the disk read itself happens outside of
+ * it, so misses on different pages proceed in parallel, while concurrent
+ * misses on the same page all wait for the single in-flight read.
+ * <p>
+ * Scans can ask the pool to read pages ahead of them ({@link #prefetch});
+ * those reads are done asynchronously by a small pool of background
+ * threads, into free frames or frames of clean pages only. Pages are read
+ * ahead, written on commit and written by {@link #flushAllPages} in batches
+ * per file, so that files can coalesce adjacent pages into single I/Os.
+ * <p>
+ * getPage pins the page it returns, and only unpinned pages are evicted, so
+ * an iterator can keep working on a page it got until it moves on. Callers
+ * that are done with a page unpin it with {@link #unpinPage}; the pins a
+ * transaction still holds are released when it completes, like its locks.
+ * A frame being evicted is marked with a pin count of -1 while the monitor
+ * is held, so that a concurrent getPage waits for the eviction instead of
+ * pinning a page that is about to leave the pool.
+ * <p>
+ * Scans of tables that are large compared to the pool read their pages into
+ * a small {@link ScanRing} of frames that they reuse, instead of evicting
+ * the working set of everybody else.
+ * <p>
+ * With {@link #enableSecondaryCache}, clean pages leaving the pool are kept
+ * compressed in a second tier, and misses look there before reading the
+ * disk.
+ * <p>
+ * By default, the pages a transaction dirtied are written when it commits.
+ * With {@link #enableWriteBehind}, the commit instead appends their images
+ * to a redo journal, and a background thread writes the pages later, at a
+ * bounded rate, so that misses find clean victims that are already on disk
+ * and query threads do not spend their time writing the pages of other
+ * transactions.
  *
  * @Threadsafe, all fields are final
  */
@@ -38,18 +83,125 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    private final Random random = new Random();
+    /**
+     * System property selecting the replacement policy of buffer pools
+     * created with {@link #BufferPool(int)}: "clock" (the default) or
+     * "lru-k" (LRU-2), e.g. -Dsimpledb.storage.BufferPool.policy=lru-k
+     */
+    public static final String POLICY_PROPERTY = "simpledb.storage.BufferPool.policy";
+
+    /**
+     * System property setting the default scan ring threshold (see
+     * {@link #setScanRingThreshold}), e.g.
+     * -Dsimpledb.storage.BufferPool.scanRingThreshold=0.5
+     */
+    public static final String SCAN_RING_THRESHOLD_PROPERTY = "simpledb.storage.BufferPool.scanRingThreshold";
+
+    /**
+     * Largest number of frames of a scan ring; rings are also limited to a
+     * quarter of the pool.
+     */
+    static final int MAX_SCAN_RING_PAGES = 64;
+
+    /**
+     * System property giving the size, in bytes, of the compressed second
+     * tier of buffer pools when they are created (see {@link
+     * #enableSecondaryCache}), e.g.
+     * -Dsimpledb.storage.BufferPool.secondaryCacheBytes=67108864
+     */
+    public static final String SECONDARY_CACHE_PROPERTY = "simpledb.storage.BufferPool.secondaryCacheBytes";
+
     final int numPages;   // number of pages -- currently, not enforced
     final ConcurrentMap<PageId, Page> pages; // hash table storing current pages in memory
+    final ConcurrentMap<PageId, CompletableFuture<Page>> loading; // reads in flight, each holds a frame
+    private final EvictionPolicy policy;
+    private final LockManager lockManager;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * Number of threads that read pages ahead of scans.
+     */
+    static final int READ_AHEAD_THREADS = 2;
+
+    // pages read (or being read) ahead that nobody has asked for yet
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+    private final int maxPrefetched;
+    private volatile ExecutorService readAheadExecutor = null; // created on first use
+    private final AtomicLong prefetches = new AtomicLong(0);
+    private final AtomicLong prefetchHits = new AtomicLong(0);
+
+    private volatile double scanRingThreshold;
+    private final AtomicLong ringReuses = new AtomicLong(0);
+
+    private volatile CompressedPageCache secondaryCache = null; // null if disabled
+
+    // pin count of each page that has been pinned since it was read, or -1
+    // while the page is being evicted (see claimFrame)
+    private final ConcurrentMap<PageId, AtomicInteger> pinCounts = new ConcurrentHashMap<>();
+    // the pins each transaction holds, by page
+    private final ConcurrentMap<TransactionId, Map<PageId, Integer>> pins = new ConcurrentHashMap<>();
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * How long the background writer waits before looking again when every
+     * unwritten page is locked by a writer or dirty again.
+     */
+    static final long WRITER_RETRY_MILLIS = 10;
+
+    // write-behind state, all protected by this; see enableWriteBehind
+    private PageJournal journal = null; // null unless write-behind is enabled
+    // committed pages not written to their files yet -> the journal record
+    // with their latest image; in commit order, so the oldest record is first
+    private final LinkedHashMap<PageId, Long> unwritten = new LinkedHashMap<>();
+    private final Set<PageId> writing = new HashSet<>(); // by the background writer, right now
+    private Thread pageWriter = null;
+    private TransactionId writerTid = null; // locks pages while they are written
+    private int writeRate; // pages per second between the watermarks
+    private int lowWatermark; // number of unwritten pages the writer leaves alone
+    private int highWatermark; // number of unwritten pages above which it does not throttle
+    private final AtomicLong backgroundWrites = new AtomicLong(0);
+    private final AtomicLong foregroundWrites = new AtomicLong(0);
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * replacement policy named by {@link #POLICY_PROPERTY}.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, defaultPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * specified policy to pick pages to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy   the page replacement policy
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
         this.numPages = numPages;
         this.pages = new ConcurrentHashMap<>();
+        this.loading = new ConcurrentHashMap<>();
+        this.policy = policy;
+        this.lockManager = new LockManager();
+        // read-ahead must never crowd out the working set
+        this.maxPrefetched = Math.max(1, numPages / 4);
+        this.scanRingThreshold = Double.parseDouble(System.getProperty(SCAN_RING_THRESHOLD_PROPERTY, "0.25"));
+        long secondaryBytes = Long.getLong(SECONDARY_CACHE_PROPERTY, 0);
+        if (secondaryBytes > 0)
+            this.secondaryCache = new CompressedPageCache(secondaryBytes);
+    }
+
+    private static EvictionPolicy defaultPolicy(int numPages) {
+        String name = System.getProperty(POLICY_PROPERTY, "clock");
+        if (name.equalsIgnoreCase("lru-k") || name.equalsIgnoreCase("lru2"))
+            return new LruKEvictionPolicy();
+        if (!name.equalsIgnoreCase("clock"))
+            throw new IllegalArgumentException("Unknown buffer pool policy " + name);
+        return new ClockEvictionPolicy(numPages);
     }
 
     public static int getPageSize() {
@@ -66,6 +218,376 @@ public class BufferPool {
         BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * @return the replacement policy used by this buffer pool
+     */
+    public EvictionPolicy getEvictionPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the lock manager of this buffer pool (e.g., to read its
+     *         deadlock and lock wait counters)
+     */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * @return the number of getPage calls that found the page resident
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of getPage calls that had to read the page from disk
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of pages evicted to make room for other pages
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of pages read ahead by {@link #prefetch}
+     */
+    public long getPrefetchCount() {
+        return prefetches.get();
+    }
+
+    /**
+     * @return the number of pages read ahead that were later requested with
+     *         getPage before being evicted
+     */
+    public long getPrefetchHitCount() {
+        return prefetchHits.get();
+    }
+
+    /**
+     * @return the number of committed pages written by the background
+     *         writer (see {@link #enableWriteBehind})
+     */
+    public long getBackgroundWriteCount() {
+        return backgroundWrites.get();
+    }
+
+    /**
+     * @return the number of committed pages that had to be written by a
+     *         query thread to make room, because the background writer had
+     *         not gotten to them yet
+     */
+    public long getForegroundWriteCount() {
+        return foregroundWrites.get();
+    }
+
+    /**
+     * @return the number of pages read by scans into frames of their
+     *         {@link ScanRing} that held an older page of the scan
+     */
+    public long getRingReuseCount() {
+        return ringReuses.get();
+    }
+
+    /**
+     * Set the size, as a fraction of the pool, above which sequential scans
+     * of a table (including those that build TableStats) read it through a
+     * {@link ScanRing}. The default is {@link #SCAN_RING_THRESHOLD_PROPERTY},
+     * or a quarter of the pool; Double.POSITIVE_INFINITY turns rings off.
+     */
+    public void setScanRingThreshold(double fraction) {
+        scanRingThreshold = fraction;
+    }
+
+    /**
+     * Get a ring of frames for a sequential scan of a table with the
+     * specified number of pages, if the table is large enough to need one.
+     *
+     * @return the ring, or null if the scan should use the whole pool
+     */
+    public ScanRing newScanRing(int tablePages) {
+        if (tablePages <= scanRingThreshold * numPages)
+            return null;
+        return new ScanRing(Math.max(2, Math.min(MAX_SCAN_RING_PAGES, numPages / 4)));
+    }
+
+    /**
+     * Keep clean pages evicted from the pool in a second tier of up to
+     * maxBytes of memory, compressed, so that misses on them do not read
+     * the disk. Pages evicted by scans that use a {@link ScanRing} are not
+     * kept, so a large scan does not flush the second tier either. Replaces
+     * the second tier, if there is one.
+     *
+     * @param maxBytes the memory the second tier may use, including an
+     *                 estimate of its overhead per page
+     */
+    public synchronized void enableSecondaryCache(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("bad secondary cache size " + maxBytes);
+        secondaryCache = new CompressedPageCache(maxBytes);
+    }
+
+    /**
+     * Drop the second tier and the pages in it. Does nothing if there is
+     * none.
+     */
+    public synchronized void disableSecondaryCache() {
+        secondaryCache = null;
+    }
+
+    /**
+     * @return the number of misses in the pool that were served from the
+     *         second tier instead of the disk
+     */
+    public long getSecondaryHitCount() {
+        CompressedPageCache c = secondaryCache;
+        return c == null ? 0 : c.hits();
+    }
+
+    /**
+     * @return the number of pages in the second tier
+     */
+    public int getSecondaryPageCount() {
+        CompressedPageCache c = secondaryCache;
+        return c == null ? 0 : c.size();
+    }
+
+    /**
+     * @return the memory used by the second tier, in bytes, as counted
+     *         against its limit
+     */
+    public long getSecondaryCacheBytes() {
+        CompressedPageCache c = secondaryCache;
+        return c == null ? 0 : c.bytes();
+    }
+
+    /**
+     * @return true if the pool holds another version of the specified page,
+     *         with changes that are not committed yet; i.e. the page was
+     *         written from its before image, not from what is in the pool
+     */
+    boolean hasUncommittedChanges(Page written) {
+        Page p = pages.get(written.getId());
+        return p != null && p != written && p.isDirty() != null;
+    }
+
+    /**
+     * @return the number of pins held on the specified page
+     */
+    public int getPinCount(PageId pid) {
+        AtomicInteger c = pinCounts.get(pid);
+        return c == null ? 0 : Math.max(0, c.get());
+    }
+
+    /**
+     * @return the number of pages of committed transactions that have not
+     *         been written to their files yet
+     */
+    public synchronized int getUnwrittenCount() {
+        return unwritten.size();
+    }
+
+    /**
+     * Reset the hit, miss and eviction counters, e.g. before the measured
+     * part of a workload.
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        prefetches.set(0);
+        prefetchHits.set(0);
+        ringReuses.set(0);
+        backgroundWrites.set(0);
+        foregroundWrites.set(0);
+        CompressedPageCache c = secondaryCache;
+        if (c != null)
+            c.resetStatistics();
+    }
+
+    /**
+     * Write the pages of committed transactions in the background instead of
+     * at commit (NO FORCE). A commit then appends the images of the pages
+     * the transaction dirtied to the specified journal and forces it, and
+     * the pages stay in the pool, clean but unwritten, until a background
+     * thread writes them. Files whose {@link DbFile#canWriteBehind} is false
+     * are still written at commit.
+     * <p>
+     * The writer leaves the pool alone while at most lowWatermark of it is
+     * unwritten, writes pagesPerSecond pages a second while between the
+     * watermarks, and writes as fast as it can above highWatermark. It skips
+     * pages a transaction has locked for writing, and holds a shared lock on
+     * each page while writing it. Pages are still never written before their
+     * transaction commits (NO STEAL), so the journal only needs to be
+     * replayed, never undone: if it holds records from before a crash, they
+     * are written to their files first (the Catalog must have loaded their
+     * tables).
+     *
+     * @param journal        the journal file; its segments are named after it
+     * @param pagesPerSecond the rate of the writer between the watermarks
+     * @param lowWatermark   the fraction of the pool that may stay unwritten
+     * @param highWatermark  the fraction of the pool above which the writer
+     *                       is not throttled
+     * @throws IOException if the journal cannot be replayed or created
+     */
+    public synchronized void enableWriteBehind(File journal, int pagesPerSecond,
+                                               double lowWatermark, double highWatermark)
+            throws IOException {
+        if (pagesPerSecond <= 0 || lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > 1)
+            throw new IllegalArgumentException("bad write-behind rate or watermarks");
+        if (this.journal != null)
+            throw new IllegalStateException("write-behind is already enabled");
+        PageJournal j = new PageJournal(journal);
+        // the journal has the last word on the pages it holds
+        for (PageId pid : j.replay())
+            removePage(pid);
+        this.journal = j;
+        this.writeRate = pagesPerSecond;
+        this.lowWatermark = (int) (lowWatermark * numPages);
+        this.highWatermark = (int) (highWatermark * numPages);
+        writerTid = new TransactionId();
+        Thread t = new Thread(this::writeBehind, "simpledb-page-writer");
+        t.setDaemon(true);
+        pageWriter = t;
+        t.start();
+    }
+
+    /**
+     * Stop the background writer, write every unwritten page and delete the
+     * journal; commits write their pages again. Does nothing if write-behind
+     * is not enabled.
+     */
+    public synchronized void disableWriteBehind() throws IOException {
+        if (journal == null)
+            return;
+        pageWriter = null; // it stops when it next looks
+        notifyAll();
+        writeUnwritten();
+        journal.delete();
+        journal = null;
+    }
+
+    /**
+     * The background writer: writes unwritten pages, oldest commit first,
+     * until write-behind is disabled.
+     */
+    private void writeBehind() {
+        Thread self = Thread.currentThread();
+        try {
+            while (true) {
+                PageId pid;
+                Page image;
+                synchronized (this) {
+                    if (pageWriter != self)
+                        return;
+                    if (unwritten.size() <= lowWatermark) {
+                        wait();
+                        continue;
+                    }
+                    pid = lockUnwritten();
+                    if (pid == null) {
+                        wait(WRITER_RETRY_MILLIS);
+                        continue;
+                    }
+                    image = pages.get(pid).getBeforeImage();
+                    writing.add(pid);
+                }
+
+                boolean written = false;
+                try {
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+                    written = true;
+                } catch (IOException | RuntimeException e) {
+                    Debug.log("BufferPool: could not write page %s: %s", pid, e);
+                } finally {
+                    lockManager.release(writerTid, pid);
+                }
+
+                PageJournal j;
+                long oldest;
+                synchronized (this) {
+                    j = journal;
+                    writing.remove(pid);
+                    if (written) {
+                        // nobody could commit the page while we held our lock
+                        unwritten.remove(pid);
+                        backgroundWrites.incrementAndGet();
+                    }
+                    oldest = oldestUnwritten();
+                    notifyAll();
+                    if (!written)
+                        wait(WRITER_RETRY_MILLIS);
+                    else if (unwritten.size() <= highWatermark && pageWriter == self)
+                        wait(Math.max(1, 1000 / writeRate));
+                }
+                if (j != null)
+                    j.release(oldest);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Debug.log("BufferPool: page writer stopped: %s", e);
+        }
+    }
+
+    /**
+     * Pick the oldest unwritten page that can be written now, i.e., one that
+     * is clean, unpinned, not being written, and that we get a shared lock
+     * on right away (so nobody changes it while it is written).
+     *
+     * @return the page, locked by writerTid, or null if there is none
+     */
+    private synchronized PageId lockUnwritten() {
+        for (PageId pid : unwritten.keySet()) {
+            Page p = pages.get(pid);
+            if (p == null || p.isDirty() != null || writing.contains(pid) || isPinned(pid))
+                continue;
+            if (lockManager.tryAcquire(writerTid, pid, Permissions.READ_ONLY))
+                return pid;
+        }
+        return null;
+    }
+
+    /**
+     * @return the oldest journal record that holds the latest image of an
+     *         unwritten page, or Long.MAX_VALUE if there is none
+     */
+    private synchronized long oldestUnwritten() {
+        for (long record : unwritten.values())
+            return record;
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Write every unwritten page, once the background writer is done with
+     * the pages it is writing. Pages dirtied again are written as they were
+     * committed, from their before images.
+     */
+    private synchronized void writeUnwritten() throws IOException {
+        try {
+            while (!writing.isEmpty())
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the page writer");
+        }
+        List<Page> images = new ArrayList<>();
+        for (PageId pid : unwritten.keySet()) {
+            Page p = pages.get(pid);
+            if (p != null)
+                images.add(p.getBeforeImage());
+        }
+        writePages(images);
+        unwritten.clear();
+        if (journal != null)
+            journal.release(Long.MAX_VALUE);
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -76,6 +598,9 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The page is pinned on behalf of tid (unless tid is null) until tid
+     * calls {@link #unpinPage} or completes.
      *
      * @param tid  the ID of the transaction requesting the page
      * @param pid  the ID of the requested page
@@ -83,25 +608,344 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        // XXX Yuan points out that HashMap is not synchronized, so this is buggy.
-        // XXX TODO(ghuo): do we really know enough to implement NO STEAL here?
-        //     won't we still evict pages?
-        Page p;
-        synchronized (this) {
-            p = pages.get(pid);
-            if (p == null) {
-                if (pages.size() >= numPages) {
-                    evictPage();
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId,
+     * Permissions)}, for a scan that reads the pages it misses into the
+     * specified ring of frames.
+     *
+     * @param ring the ring of the scan, or null to use the whole pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+            throws TransactionAbortedException, DbException {
+        // must not hold the pool monitor while we may block on a lock
+        if (tid != null) {
+            try {
+                lockManager.acquire(tid, pid, perm);
+            } catch (DeadlockException e) {
+                throw new TransactionAbortedException();
+            }
+            // before the lookup, so that the page cannot be evicted between
+            // the two
+            pin(tid, pid);
+        }
+
+        Page p = pages.get(pid);
+        if (p != null) {
+            hits.incrementAndGet();
+            policy.pageAccessed(pid);
+            notePrefetchHit(pid);
+            return p;
+        }
+        try {
+            return loadPage(pid, ring);
+        } catch (DbException | RuntimeException e) {
+            // the caller never gets the page to unpin
+            if (tid != null)
+                unpinPage(tid, pid);
+            throw e;
+        }
+    }
+
+    /**
+     * Pin the specified page, resident or not, on behalf of tid.
+     */
+    private void pin(TransactionId tid, PageId pid) {
+        while (true) {
+            AtomicInteger c = pinCounts.computeIfAbsent(pid, k -> new AtomicInteger());
+            int n = c.get();
+            if (n < 0) {
+                synchronized (this) {
+                    // being evicted or forgotten, which happens under the
+                    // monitor; the count is gone once we get it
                 }
+                continue;
+            }
+            if (c.compareAndSet(n, n + 1))
+                break;
+        }
+        pins.computeIfAbsent(tid, k -> new ConcurrentHashMap<>()).merge(pid, 1, Integer::sum);
+    }
 
-                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                pages.put(pid, p);
+    /**
+     * Release one pin tid holds on the specified page, once the caller no
+     * longer uses the page it got from getPage (e.g. because an iterator
+     * moved on to the next page). Does nothing if tid holds no pin on it.
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Map<PageId, Integer> held = pins.get(tid);
+        if (held == null)
+            return;
+        Integer n = held.get(pid);
+        if (n == null)
+            return;
+        if (n == 1)
+            held.remove(pid);
+        else
+            held.put(pid, n - 1);
+        unpinFrame(pid, 1);
+    }
+
+    /**
+     * Release all pins held by the specified transaction.
+     */
+    private void releasePins(TransactionId tid) {
+        Map<PageId, Integer> held = pins.remove(tid);
+        if (held == null)
+            return;
+        for (Map.Entry<PageId, Integer> e : held.entrySet())
+            unpinFrame(e.getKey(), e.getValue());
+    }
+
+    private void unpinFrame(PageId pid, int n) {
+        AtomicInteger c = pinCounts.get(pid);
+        if (c != null && c.addAndGet(-n) == 0 && !pages.containsKey(pid))
+            forgetFrame(pid, c);
+    }
+
+    /**
+     * Drop the pin count of a page that is not resident and no longer
+     * pinned (it was removed from the pool while pinned).
+     */
+    private synchronized void forgetFrame(PageId pid, AtomicInteger c) {
+        if (!pages.containsKey(pid) && c.compareAndSet(0, -1))
+            pinCounts.remove(pid, c);
+    }
+
+    /**
+     * @return true if some transaction holds a pin on the page
+     */
+    private boolean isPinned(PageId pid) {
+        AtomicInteger c = pinCounts.get(pid);
+        return c != null && c.get() > 0;
+    }
+
+    /**
+     * Mark an unpinned page as being evicted, so that getPage cannot pin it
+     * any more. Must be called with the monitor held, which is kept until
+     * the page has left the pool and its pin count was removed.
+     *
+     * @return the pin count of the page, or null if it was pinned in the
+     *         meantime
+     */
+    private AtomicInteger claimFrame(PageId pid) {
+        AtomicInteger c = pinCounts.computeIfAbsent(pid, k -> new AtomicInteger());
+        return c.compareAndSet(0, -1) ? c : null;
+    }
+
+    /**
+     * @return true if every frame holds a resident page or a read in flight
+     */
+    private boolean isFull() {
+        return pages.size() + loading.size() >= numPages;
+    }
+
+    private void notePrefetchHit(PageId pid) {
+        if (!prefetched.isEmpty() && prefetched.remove(pid))
+            prefetchHits.incrementAndGet();
+    }
+
+    /**
+     * Bring the specified page into the buffer pool, or wait for the read
+     * already in flight for it.
+     */
+    private Page loadPage(PageId pid, ScanRing ring) throws DbException {
+        CompletableFuture<Page> load;
+        boolean owner = false;
+        synchronized (this) {
+            Page p = pages.get(pid);
+            if (p != null) {
+                hits.incrementAndGet();
+                policy.pageAccessed(pid);
+                notePrefetchHit(pid);
+                return p;
+            }
+            load = loading.get(pid);
+            if (load != null) {
+                hits.incrementAndGet();
+                notePrefetchHit(pid);
+            } else {
+                misses.incrementAndGet();
+                // frames of reads in flight are already spoken for
+                if (isFull() && !reuseRingFrame(ring)) {
+                    evictPage(true);
+                }
+                if (ring != null)
+                    ring.add(pid);
+                load = new CompletableFuture<>();
+                loading.put(pid, load);
+                owner = true;
             }
         }
 
+        if (owner)
+            return readIntoPool(pid, load);
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the page from the second tier or from disk and publish it. Called
+     * by the one thread that registered the in-flight load; the read is done
+     * without holding the pool monitor, so it must not be called from a
+     * synchronized block.
+     */
+    private Page readIntoPool(PageId pid, CompletableFuture<Page> load) {
+        Page p = takeStashed(pid);
+        if (p != null)
+            return publish(pid, load, p);
+        try {
+            p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (RuntimeException e) {
+            loading.remove(pid);
+            load.completeExceptionally(e);
+            throw e;
+        }
+        return publish(pid, load, p);
+    }
+
+    /**
+     * @return the specified page, taken from the second tier, or null if
+     *         the second tier is disabled or does not hold it
+     */
+    private Page takeStashed(PageId pid) {
+        CompressedPageCache c = secondaryCache;
+        return c == null ? null : c.take(pid);
+    }
+
+    /**
+     * Make a page that was read for an in-flight load resident.
+     */
+    private Page publish(PageId pid, CompletableFuture<Page> load, Page p) {
+        // publish before retiring the in-flight entry, so that a concurrent
+        // miss sees one or the other
+        pages.put(pid, p);
+        policy.pageAdded(pid);
+        loading.remove(pid);
+        load.complete(p);
         return p;
     }
 
+    /**
+     * Asynchronously read the specified pages into the buffer pool, in
+     * order, typically because a scan is about to request them. No locks are
+     * acquired; the scan still locks each page when it calls getPage, which
+     * then finds the page resident (or joins the read in flight).
+     * <p>
+     * Read-ahead only takes free frames or frames of clean, written pages
+     * chosen by the replacement policy, and the number of pages read ahead but not yet
+     * requested is bounded by a quarter of the pool, so it never evicts
+     * dirty pages nor crowds out the working set.
+     *
+     * @param pids the pages to read ahead, in the order they will be needed
+     * @return the number of pages, from the start of pids, that are resident,
+     *         in flight or now scheduled; less than pids.size() if read-ahead
+     *         stopped early because the pool has no room for more
+     */
+    public int prefetch(List<PageId> pids) {
+        return prefetch(pids, null);
+    }
+
+    /**
+     * Read pages ahead like {@link #prefetch(List)}, for a scan that reads
+     * the pages it misses into the specified ring of frames.
+     *
+     * @param ring the ring of the scan, or null to use the whole pool
+     */
+    public int prefetch(List<PageId> pids, ScanRing ring) {
+        List<PageId> toRead = new ArrayList<>();
+        int accepted = 0;
+        synchronized (this) {
+            for (PageId pid : pids) {
+                if (!pages.containsKey(pid) && !loading.containsKey(pid)) {
+                    if (prefetched.size() >= maxPrefetched)
+                        break;
+                    if (isFull() && !reuseRingFrame(ring)) {
+                        try {
+                            evictPage(false);
+                        } catch (DbException e) {
+                            break; // only dirty or unwritten pages left
+                        }
+                    }
+                    if (ring != null)
+                        ring.add(pid);
+                    loading.put(pid, new CompletableFuture<>());
+                    prefetched.add(pid);
+                    toRead.add(pid);
+                }
+                accepted++;
+            }
+        }
+        if (!toRead.isEmpty()) {
+            prefetches.addAndGet(toRead.size());
+            readAheadExecutor().execute(() -> readAhead(toRead));
+        }
+        return accepted;
+    }
+
+    /**
+     * Read pages registered as in flight by prefetch, one batch per file so
+     * that adjacent pages are read together (see {@link DbFile#readPages}).
+     */
+    private void readAhead(List<PageId> toRead) {
+        Map<Integer, List<PageId>> byTable = new LinkedHashMap<>();
+        for (PageId pid : toRead) {
+            Page p = takeStashed(pid);
+            if (p != null)
+                publish(pid, loading.get(pid), p);
+            else
+                byTable.computeIfAbsent(pid.getTableId(), k -> new ArrayList<>()).add(pid);
+        }
+        for (Map.Entry<Integer, List<PageId>> e : byTable.entrySet()) {
+            List<PageId> pids = e.getValue();
+            List<Page> read = null;
+            try {
+                read = Database.getCatalog().getDatabaseFile(e.getKey()).readPages(pids);
+            } catch (RuntimeException ex) {
+                // e.g. the table shrank; read the pages one at a time below
+            }
+            for (int i = 0; i < pids.size(); i++) {
+                PageId pid = pids.get(i);
+                CompletableFuture<Page> load = loading.get(pid);
+                try {
+                    if (read != null)
+                        publish(pid, load, read.get(i));
+                    else
+                        readIntoPool(pid, load);
+                } catch (RuntimeException ex) {
+                    // whoever asks for the page gets the error from its own
+                    // read
+                    prefetched.remove(pid);
+                }
+            }
+        }
+    }
+
+    private ExecutorService readAheadExecutor() {
+        ExecutorService e = readAheadExecutor;
+        if (e == null) {
+            synchronized (this) {
+                e = readAheadExecutor;
+                if (e == null) {
+                    e = Executors.newFixedThreadPool(READ_AHEAD_THREADS, r -> {
+                        Thread t = new Thread(r, "simpledb-read-ahead");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    readAheadExecutor = e;
+                }
+            }
+        }
+        return e;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -112,7 +956,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void unsafeReleasePage(TransactionId tid, PageId pid) {
-        // TODO: some code goes here
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -121,27 +965,56 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) {
-        // TODO: some code goes here
+        transactionComplete(tid, true);
     }
 
     /**
      * Return true if the specified transaction has a lock on the specified page
      */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // TODO: some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit, the pages the transaction dirtied are forced to disk (FORCE),
+     * or to the journal if write-behind is enabled, and become the new before
+     * images. On abort, they are replaced in the pool by their before images;
+     * since dirty pages are never evicted (NO STEAL), the disk (or the
+     * journal) still holds the committed versions.
      *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
-        // TODO: some code goes here
+        try {
+            synchronized (this) {
+                if (commit) {
+                    flushPages(tid);
+                } else {
+                    restorePages(tid);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            releasePins(tid);
+            lockManager.releaseAll(tid);
+        }
+    }
+
+    /**
+     * Replace every page dirtied by tid with its before image.
+     */
+    private synchronized void restorePages(TransactionId tid) {
+        for (PageId pid : lockManager.getLockedPages(tid)) {
+            Page p = pages.get(pid);
+            if (p != null && tid.equals(p.isDirty())) {
+                pages.put(pid, p.getBeforeImage());
+            }
+        }
     }
 
     /**
@@ -166,27 +1039,13 @@ public class BufferPool {
         // let the specific implementation of the file decide which page to add it
         // to.
 
-        List<Page> dirtypages = file.insertTuple(tid, t);
-
-        synchronized (this) {
-            for (Page p : dirtypages) {
-                p.markDirty(true, tid);
-
-                //System.out.println("ADDING TUPLE TO PAGE " + p.getId().pageno() + " WITH HASH CODE " + p.getId().hashCode());
-
-                // if page in pool already, done.
-                if (pages.get(p.getId()) != null) {
-                    //replace old page with new one in case addTuple returns a new copy of the page
-                    pages.put(p.getId(), p);
-                } else {
-
-                    // put page in pool
-                    if (pages.size() >= numPages)
-                        evictPage();
-                    pages.put(p.getId(), p);
-                }
-            }
-        }
+        addDirtyPages(tid, file.insertTuple(tid, t));
+        // t now has its RecordId, which the indexes point at
+        for (IndexFile index : Database.getCatalog().getIndexes(tableId))
+            addDirtyPages(tid, index.insertTuple(tid, t));
+        // bitmap and trigram indexes only ever gain positions; see PositionIndex
+        for (PositionIndex<?> index : Database.getCatalog().getPositionIndexes(tableId))
+            index.insertTuple(t);
     }
 
     /**
@@ -204,37 +1063,67 @@ public class BufferPool {
      */
     public void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        List<Page> dirtypages = file.deleteTuple(tid, t);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        // the index entries first, while the fields of t can still be read
+        // from its page
+        for (IndexFile index : Database.getCatalog().getIndexes(tableId))
+            addDirtyPages(tid, index.deleteTuple(tid, t));
+        addDirtyPages(tid, file.deleteTuple(tid, t));
+    }
 
-        synchronized (this) {
-            for (Page p : dirtypages) {
-                p.markDirty(true, tid);
+    /**
+     * Mark the pages an insert or delete dirtied as dirtied by tid, and add
+     * them to the pool (replacing any existing versions of those pages).
+     */
+    private synchronized void addDirtyPages(TransactionId tid, List<Page> dirtypages) throws DbException {
+        for (Page p : dirtypages) {
+            p.markDirty(true, tid);
+            dropStashed(p.getId()); // in case the file did not get it from the pool
 
-                // if page in pool already, done.
-                if (pages.get(p.getId()) != null) {
-                    //replace old page with new one in case deleteTuple returns a new copy of the page
-                    pages.put(p.getId(), p);
-                } else {
+            // if page in pool already, done.
+            if (pages.get(p.getId()) != null) {
+                //replace old page with new one in case the file returns a new copy of the page
+                pages.put(p.getId(), p);
+            } else {
 
-                    // put page in pool
-                    if (pages.size() >= numPages)
-                        evictPage();
-                    pages.put(p.getId(), p);
-                }
+                // put page in pool
+                if (isFull())
+                    evictPage(true);
+                pages.put(p.getId(), p);
+                policy.pageAdded(p.getId());
             }
         }
     }
 
     /**
-     * Flush all dirty pages to disk.
+     * Flush all dirty pages to disk, as well as committed pages that have
+     * not been written yet.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      * break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        /* calls flushPage() for each page in the BufferPool */
-        for (PageId pageId : pages.keySet()) flushPage(pageId);
+        writeUnwritten();
+        List<Page> dirty = new ArrayList<>();
+        for (Page p : pages.values()) {
+            if (p.isDirty() != null)
+                dirty.add(p);
+        }
+        writePages(dirty);
+        for (Page p : dirty)
+            p.markDirty(false, null);
+    }
 
+    /**
+     * Write the specified pages to their files, one batch per file so that
+     * adjacent pages can be written together (see {@link DbFile#writePages}).
+     */
+    private void writePages(List<Page> toWrite) throws IOException {
+        Map<Integer, List<Page>> byTable = new HashMap<>();
+        for (Page p : toWrite)
+            byTable.computeIfAbsent(p.getId().getTableId(), k -> new ArrayList<>()).add(p);
+        for (Map.Entry<Integer, List<Page>> e : byTable.entrySet())
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(e.getValue());
     }
 
     /**
@@ -247,9 +1136,14 @@ public class BufferPool {
      * are removed from the cache so they can be reused safely
      */
     public synchronized void removePage(PageId pid) {
+        // the caller has replaced the page on disk, or does not need it
+        unwritten.remove(pid);
+        dropStashed(pid);
         Page p = pages.get(pid);
         if (p != null) {
             pages.remove(pid);
+            policy.pageRemoved(pid);
+            prefetched.remove(pid);
         }
     }
 
@@ -263,6 +1157,8 @@ public class BufferPool {
         Page p = pages.get(pid);
         if (p == null)
             return; //not in buffer pool -- doesn't need to be flushed
+        if (p.isDirty() == null)
+            return; //clean -- the disk already has this version
 
         DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
         file.writePage(p);
@@ -270,46 +1166,135 @@ public class BufferPool {
     }
 
     /**
-     * Write all pages of the specified transaction to disk.
+     * Write all pages of the specified transaction to disk, or to the
+     * journal if write-behind is enabled.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        // TODO: some code goes here
+        List<Page> forced = new ArrayList<>();
+        List<Page> deferred = new ArrayList<>();
+        // only pages tid holds an exclusive lock on can be dirtied by it
+        for (PageId pid : lockManager.getLockedPages(tid)) {
+            Page p = pages.get(pid);
+            if (p != null && tid.equals(p.isDirty())) {
+                if (journal != null && Database.getCatalog().getDatabaseFile(pid.getTableId()).canWriteBehind())
+                    deferred.add(p);
+                else
+                    forced.add(p);
+            }
+        }
+        writePages(forced);
+        for (Page p : forced) {
+            p.markDirty(false, null);
+            // the committed version is what a later abort rolls back to
+            p.setBeforeImage();
+        }
+        if (deferred.isEmpty())
+            return;
+        long record = journal.append(deferred);
+        for (Page p : deferred) {
+            p.markDirty(false, null);
+            p.setBeforeImage();
+            // to the end, behind the pages committed before
+            unwritten.remove(p.getId());
+            unwritten.put(p.getId(), record);
+        }
+        if (unwritten.size() > lowWatermark)
+            notifyAll();
+    }
+
+    /**
+     * Make room for a page read by a scan with a full ring by evicting the
+     * oldest page of the ring. Pages of the ring that are in use, or have
+     * been read ahead but not yet requested, leave the ring and stay in the
+     * pool instead.
+     *
+     * @param ring the ring of the scan; may be null
+     * @return false if the ring is null or not full, or if it had no page
+     *         that could be evicted; the caller evicts some other page then
+     */
+    private synchronized boolean reuseRingFrame(ScanRing ring) {
+        while (ring != null && ring.isFull()) {
+            PageId pid = ring.poll();
+            Page p = pages.get(pid);
+            if (p == null || p.isDirty() != null || isPinned(pid) || prefetched.contains(pid)
+                    || unwritten.containsKey(pid) || writing.contains(pid))
+                continue;
+            AtomicInteger claimed = claimFrame(pid);
+            if (claimed == null)
+                continue;
+            pages.remove(pid);
+            pinCounts.remove(pid, claimed);
+            policy.pageRemoved(pid);
+            evictions.incrementAndGet();
+            ringReuses.incrementAndGet();
+            return true;
+        }
+        return false;
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy among the clean pages,
+     * since dirty pages may hold uncommitted updates (NO STEAL), and among
+     * the unpinned pages, since pinned ones are in use. Clean pages the
+     * background writer has not written yet are only evicted if there are no
+     * others, after writing them here.
+     *
+     * @param mayWrite whether an unwritten page may be written to make room
      */
-    private synchronized void evictPage() throws DbException {
-        // pick a random page and flush it.
-        // XXX this will work for lab1, but not for lab4.
-        // XXX this can cause pages to be evicted that have uncommitted updates on them
-        Object[] pids = pages.keySet().toArray();
-        PageId pid = (PageId) pids[random.nextInt(pids.length)];
-        try {
-            Page p = pages.get(pid);
-            if (p.isDirty() != null) { //if this is dirty, remove first non-dirty
-                boolean gotNew = false;
-                for (PageId pg : pages.keySet()) {
-                    if (pages.get(pg).isDirty() == null) {
-                        pid = pg;
-                        gotNew = true;
-                        break;
+    private synchronized void evictPage(boolean mayWrite) throws DbException {
+        PageId pid;
+        AtomicInteger claimed;
+        do {
+            pid = policy.chooseVictim(id -> {
+                Page p = pages.get(id);
+                return p != null && p.isDirty() == null && !isPinned(id)
+                        && !unwritten.containsKey(id) && !writing.contains(id);
+            });
+            if (pid == null && mayWrite && !unwritten.isEmpty()) {
+                pid = lockUnwritten();
+                if (pid != null) {
+                    try {
+                        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pages.get(pid));
+                    } catch (IOException e) {
+                        throw new DbException("could not write page " + pid + " to evict it");
+                    } finally {
+                        lockManager.release(writerTid, pid);
                     }
+                    unwritten.remove(pid);
+                    foregroundWrites.incrementAndGet();
                 }
-                if (!gotNew) {
-                    throw new DbException("All buffer pool slots contain dirty pages;  COMMIT or ROLLBACK to continue.");
-                }
             }
-            //XXX: The above code makes sure page is not dirty. 
+            if (pid == null) {
+                throw new DbException("All buffer pool slots contain dirty or pinned pages;  COMMIT or ROLLBACK to continue.");
+            }
+            // a getPage may have pinned it since we looked
+        } while ((claimed = claimFrame(pid)) == null);
+        try {
+            //XXX: The above code makes sure page is not dirty.
             //Assuming we have FORCE, Why do we flush it to disk?
             //Answer: yes we don't need this if we have FORCE, but we do need it if we don't.
-            //it doesn't hurt to keep it here.            
+            //flushPage() skips clean pages, so this costs no I/O under FORCE.
             flushPage(pid);
         } catch (IOException e) {
+            claimed.set(0);
             throw new DbException("could not evict page");
         }
-        pages.remove(pid);
+        Page p = pages.remove(pid);
+        pinCounts.remove(pid, claimed);
+        policy.pageRemoved(pid);
+        prefetched.remove(pid);
+        evictions.incrementAndGet();
+        CompressedPageCache c = secondaryCache;
+        if (c != null)
+            c.stash(p);
+    }
+
+    private void dropStashed(PageId pid) {
+        CompressedPageCache c = secondaryCache;
+        if (c != null)
+            c.remove(pid);
     }
 
 }
@@ -0,0 +1,111 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) page replacement.
+ * <p>
+ * Every resident page occupies a slot in a circular frame table and has a
+ * reference bit. A hit sets the bit; the clock hand sweeps the table,
+ * clearing set bits and stopping at the first page whose bit is already
+ * clear. Eviction is therefore O(1) amortized and a hit costs one hash
+ * lookup and one store, without taking any lock.
+ * <p>
+ * Pages enter the table with their reference bit clear, so a page that is
+ * touched exactly once (typically by a large sequential scan) is the first
+ * thing the hand takes, while pages that are hit again in the meantime
+ * (index, dimension or catalog pages) get a second chance and stay resident.
+ *
+ * @Threadsafe
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final ConcurrentMap<PageId, Integer> frameOf;
+    private final Deque<Integer> freeFrames; // protected by this
+    private PageId[] frames; // protected by this
+    private volatile AtomicIntegerArray refBits;
+    private int hand = 0; // protected by this
+
+    /**
+     * Creates a CLOCK policy for a buffer pool of the specified size.
+     *
+     * @param numPages the number of frames in the buffer pool. The frame
+     *                 table grows if more pages are ever resident at once.
+     */
+    public ClockEvictionPolicy(int numPages) {
+        int n = Math.max(numPages, 1);
+        this.frameOf = new ConcurrentHashMap<>();
+        this.freeFrames = new ArrayDeque<>();
+        this.frames = new PageId[n];
+        this.refBits = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++)
+            freeFrames.addLast(i);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (frameOf.containsKey(pid))
+            return;
+        if (freeFrames.isEmpty())
+            grow();
+        int frame = freeFrames.removeFirst();
+        frames[frame] = pid;
+        refBits.set(frame, 0);
+        frameOf.put(pid, frame);
+    }
+
+    public void pageAccessed(PageId pid) {
+        // lock free: at worst we set the bit of a frame that was recycled
+        // concurrently, which only gives that page one extra chance
+        Integer frame = frameOf.get(pid);
+        if (frame != null)
+            refBits.lazySet(frame, 1);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null)
+            return;
+        frames[frame] = null;
+        refBits.set(frame, 0);
+        freeFrames.addLast(frame);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> canEvict) {
+        // the first lap clears reference bits, so after two laps every
+        // evictable page has been offered once with its bit clear
+        int n = frames.length;
+        for (int steps = 0; steps < 2 * n + 1; steps++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames[frame];
+            if (pid == null)
+                continue;
+            if (refBits.getAndSet(frame, 0) != 0)
+                continue;
+            if (canEvict.test(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "CLOCK";
+    }
+
+    private void grow() {
+        int n = frames.length;
+        frames = Arrays.copyOf(frames, n * 2);
+        AtomicIntegerArray bits = new AtomicIntegerArray(n * 2);
+        for (int i = 0; i < n; i++)
+            bits.set(i, refBits.get(i));
+        refBits = bits;
+        for (int i = n; i < n * 2; i++)
+            freeFrames.addLast(i);
+    }
+}
@@ -0,0 +1,241 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ColumnEncoding holds the lightweight encodings that {@link ColumnPage} and
+ * {@link CompressedPage} store runs of values of one column in:
+ * <ul>
+ * <li> PLAIN -- ints as 4 bytes each; strings as a 2-byte length followed by
+ * their bytes
+ * <li> FRAME_OF_REFERENCE (ints) -- a bit width b, then every value minus
+ * the smallest value packed into b bits
+ * <li> RUN_LENGTH (ints) -- the number of runs, then (value, length) pairs
+ * <li> DICTIONARY (strings) -- the number of distinct values and the values
+ * themselves (like PLAIN), then one 1- or 2-byte code per value
+ * </ul>
+ * The sizes of the encodings depend only on a few statistics of the values
+ * (their number, smallest and largest value and number of runs for ints;
+ * their number, total plain size and distinct values for strings), so pages
+ * can keep those up to date as values come and go and know how much room
+ * they have left without encoding anything. The smallest value is not part
+ * of the encoded body; callers store it themselves.
+ */
+final class ColumnEncoding {
+
+    static final byte PLAIN = 0;
+    static final byte FRAME_OF_REFERENCE = 1;
+    static final byte RUN_LENGTH = 2;
+    static final byte DICTIONARY = 3;
+
+    private static final int MAX_DICTIONARY_SIZE = 65535;
+
+    private ColumnEncoding() {
+    }
+
+    /**
+     * @return the number of bits needed for the difference between two
+     *         values
+     */
+    static int bitWidth(int min, int max) {
+        long range = (long) max - min;
+        return range <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(range);
+    }
+
+    /**
+     * @return the smallest encoding of n ints with the specified statistics
+     */
+    static byte chooseIntEncoding(int n, int min, int max, int runs) {
+        long plain = 4L * n;
+        long frameOfReference = 1 + ((long) n * bitWidth(min, max) + 7) / 8;
+        long runLength = 4 + 8L * runs;
+        if (frameOfReference < plain && frameOfReference <= runLength)
+            return FRAME_OF_REFERENCE;
+        if (runLength < plain)
+            return RUN_LENGTH;
+        return PLAIN;
+    }
+
+    /**
+     * @return the size of the body of n ints with the specified statistics,
+     *         in their smallest encoding
+     */
+    static int intBodySize(int n, int min, int max, int runs) {
+        long plain = 4L * n;
+        long frameOfReference = 1 + ((long) n * bitWidth(min, max) + 7) / 8;
+        long runLength = 4 + 8L * runs;
+        return (int) Math.min(plain, Math.min(frameOfReference, runLength));
+    }
+
+    /**
+     * @return the smallest encoding of n strings with the specified
+     *         statistics
+     */
+    static byte chooseStringEncoding(int n, int plainBytes, int dictSize, int dictionaryBytes) {
+        return stringBodySize(n, plainBytes, dictSize, dictionaryBytes) < plainBytes ? DICTIONARY : PLAIN;
+    }
+
+    /**
+     * @return the size of the body of n strings with the specified
+     *         statistics, in their smallest encoding
+     */
+    static int stringBodySize(int n, int plainBytes, int dictSize, int dictionaryBytes) {
+        if (dictSize > MAX_DICTIONARY_SIZE)
+            return plainBytes;
+        int codes = n * (dictSize <= 256 ? 1 : 2);
+        return Math.min(plainBytes, 2 + dictionaryBytes + codes);
+    }
+
+    /**
+     * @return the number of bytes a string takes in the plain encoding (and
+     *         in a dictionary)
+     */
+    static int plainSize(String s) {
+        return 2 + Math.min(s.length(), Type.STRING_LEN);
+    }
+
+    /**
+     * Write the body of the first n of the specified ints.
+     *
+     * @param min  the smallest of the values
+     * @param max  the largest of the values
+     * @param runs the number of runs of equal values
+     */
+    static void encodeInts(ByteBuffer buf, byte encoding, int[] values, int n, int min, int max, int runs) {
+        if (encoding == FRAME_OF_REFERENCE) {
+            int bits = bitWidth(min, max);
+            buf.put((byte) bits);
+            long acc = 0;
+            int accBits = 0;
+            for (int i = 0; i < n; i++) {
+                acc |= ((long) values[i] - min) << accBits;
+                accBits += bits;
+                while (accBits >= 8) {
+                    buf.put((byte) acc);
+                    acc >>>= 8;
+                    accBits -= 8;
+                }
+            }
+            if (accBits > 0)
+                buf.put((byte) acc);
+        } else if (encoding == RUN_LENGTH) {
+            buf.putInt(runs);
+            int i = 0;
+            while (i < n) {
+                int j = i;
+                while (j < n && values[j] == values[i])
+                    j++;
+                buf.putInt(values[i]);
+                buf.putInt(j - i);
+                i = j;
+            }
+        } else {
+            for (int i = 0; i < n; i++)
+                buf.putInt(values[i]);
+        }
+    }
+
+    /**
+     * Read the body of n ints written by encodeInts.
+     *
+     * @param min the smallest of the values
+     */
+    static int[] decodeInts(ByteBuffer buf, byte encoding, int n, int min) {
+        int[] values = new int[n];
+        if (encoding == FRAME_OF_REFERENCE) {
+            int bits = buf.get();
+            long acc = 0;
+            int accBits = 0;
+            long mask = bits == 0 ? 0 : (1L << bits) - 1;
+            for (int i = 0; i < n; i++) {
+                while (accBits < bits) {
+                    acc |= (buf.get() & 0xFFL) << accBits;
+                    accBits += 8;
+                }
+                values[i] = (int) (min + (acc & mask));
+                acc >>>= bits;
+                accBits -= bits;
+            }
+        } else if (encoding == RUN_LENGTH) {
+            int numRuns = buf.getInt();
+            int i = 0;
+            for (int r = 0; r < numRuns; r++) {
+                int v = buf.getInt();
+                int len = buf.getInt();
+                Arrays.fill(values, i, i + len, v);
+                i += len;
+            }
+        } else {
+            for (int i = 0; i < n; i++)
+                values[i] = buf.getInt();
+        }
+        return values;
+    }
+
+    /**
+     * Write the body of the first n of the specified strings.
+     */
+    static void encodeStrings(ByteBuffer buf, byte encoding, String[] values, int n) {
+        if (encoding != DICTIONARY) {
+            for (int i = 0; i < n; i++)
+                writeString(buf, values[i]);
+            return;
+        }
+        Map<String, Integer> dictionary = new HashMap<>();
+        for (int i = 0; i < n; i++)
+            dictionary.putIfAbsent(values[i], dictionary.size());
+        int dictSize = dictionary.size();
+        String[] dict = new String[dictSize];
+        for (Map.Entry<String, Integer> e : dictionary.entrySet())
+            dict[e.getValue()] = e.getKey();
+        buf.putChar((char) dictSize);
+        for (String s : dict)
+            writeString(buf, s);
+        for (int i = 0; i < n; i++) {
+            int code = dictionary.get(values[i]);
+            if (dictSize <= 256)
+                buf.put((byte) code);
+            else
+                buf.putChar((char) code);
+        }
+    }
+
+    /**
+     * Read the body of n strings written by encodeStrings.
+     */
+    static String[] decodeStrings(ByteBuffer buf, byte encoding, int n) {
+        String[] values = new String[n];
+        if (encoding == DICTIONARY) {
+            int dictSize = buf.getChar();
+            String[] dict = new String[dictSize];
+            for (int d = 0; d < dictSize; d++)
+                dict[d] = readString(buf);
+            for (int i = 0; i < n; i++)
+                values[i] = dict[dictSize <= 256 ? buf.get() & 0xFF : buf.getChar()];
+        } else {
+            for (int i = 0; i < n; i++)
+                values[i] = readString(buf);
+        }
+        return values;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getChar();
+        byte[] bs = new byte[len];
+        buf.get(bs);
+        return new String(bs);
+    }
+
+    private static void writeString(ByteBuffer buf, String s) {
+        int len = Math.min(s.length(), Type.STRING_LEN);
+        buf.putChar((char) len);
+        // one byte per char, as DataOutputStream.writeBytes does
+        for (int i = 0; i < len; i++)
+            buf.put((byte) s.charAt(i));
+    }
+}
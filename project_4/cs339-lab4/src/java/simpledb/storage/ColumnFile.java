@@ -0,0 +1,462 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ColumnFile is a DbFile that stores a table column by column, for analytic
+ * queries that only look at a few columns of wide tables.
+ * <p>
+ * Each column is kept in a segment file of its own (the name of the table's
+ * file plus ".col" and the column number), as a sequence of
+ * {@link ColumnPage}s. Every page holds the values of consecutive rows of
+ * its column, lightly encoded and with the minimum and maximum value of the
+ * page in its header. Scans that only need some of the columns ({@link
+ * #iterator(TransactionId, int[])}, used by
+ * {@link simpledb.execution.ColumnScan}) read only the pages of those
+ * columns, so their I/O shrinks with the fraction of the table's bytes they
+ * skip.
+ * <p>
+ * A column file is meant to be bulk loaded (see {@link #convert}) and then
+ * read. Inserts append to the last page of every column; they take the
+ * exclusive lock on the last page of the first column first, and hold it
+ * until they complete, so concurrent inserters take turns. An inserter that
+ * had to wait for that lock starts over if the page is no longer the last
+ * one. Deletes are not supported.
+ *
+ * @see ColumnPage
+ */
+public class ColumnFile implements DbFile, Closeable {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final FileChannel[] channels; // opened lazily, protected by this
+
+    /**
+     * Constructs a column file for the table named by the specified file.
+     *
+     * @param f  the file of the table; the columns are stored next to it
+     * @param td the schema of the table
+     */
+    public ColumnFile(File f, TupleDesc td) {
+        this.f = f;
+        this.td = td;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.channels = new FileChannel[td.numFields()];
+    }
+
+    /**
+     * @return the file the specified column of a table is stored in
+     */
+    public static File getColumnFile(File f, int column) {
+        return new File(f.getPath() + ".col" + column);
+    }
+
+    /**
+     * Write the specified tuples to the column files of a table, filling
+     * the pages of each column one after another. Any existing contents of
+     * the files are lost.
+     *
+     * @param tuples the tuples to write
+     * @param td     the schema of the tuples
+     * @param f      the file of the table
+     * @throws IOException if the files cannot be written
+     */
+    public static void convert(Iterator<Tuple> tuples, TupleDesc td, File f) throws IOException {
+        int n = td.numFields();
+        OutputStream[] out = new OutputStream[n];
+        ColumnPage[] pages = new ColumnPage[n];
+        int[] pgNos = new int[n];
+        try {
+            for (int c = 0; c < n; c++) {
+                out[c] = new FileOutputStream(getColumnFile(f, c));
+                pages[c] = new ColumnPage(new ColumnPageId(0, c, 0), td.getFieldType(c),
+                        ByteBuffer.wrap(ColumnPage.createEmptyPageData(0)));
+            }
+            int row = 0;
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                for (int c = 0; c < n; c++) {
+                    if (append(pages[c], t.getField(c)))
+                        continue;
+                    out[c].write(pages[c].getPageData());
+                    pages[c] = new ColumnPage(new ColumnPageId(0, c, ++pgNos[c]), td.getFieldType(c),
+                            ByteBuffer.wrap(ColumnPage.createEmptyPageData(row)));
+                    if (!append(pages[c], t.getField(c)))
+                        throw new IOException("value does not fit on a page: " + t.getField(c));
+                }
+                row++;
+            }
+            for (int c = 0; c < n; c++)
+                out[c].write(pages[c].getPageData());
+        } finally {
+            for (OutputStream os : out) {
+                if (os != null)
+                    os.close();
+            }
+        }
+    }
+
+    private static boolean append(ColumnPage p, Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            return p.append(((IntField) f).getValue());
+        return p.append(((StringField) f).getValue());
+    }
+
+    /**
+     * Returns the File naming this table on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    public int getId() {
+        return tableid;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of pages of the specified column
+     */
+    public int numPages(int column) {
+        return (int) (getColumnFile(f, column).length() / BufferPool.getPageSize());
+    }
+
+    private synchronized FileChannel channel(int column) throws IOException {
+        FileChannel c = channels[column];
+        if (c == null || !c.isOpen()) {
+            java.nio.file.Path path = getColumnFile(f, column).toPath();
+            try {
+                c = FileChannel.open(path, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            } catch (AccessDeniedException e) {
+                // read-only table; writes will fail when attempted
+                c = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            channels[column] = c;
+        }
+        return c;
+    }
+
+    /**
+     * Close the column files. They are reopened by the next I/O.
+     */
+    public synchronized void close() throws IOException {
+        for (int c = 0; c < channels.length; c++) {
+            if (channels[c] != null) {
+                channels[c].close();
+                channels[c] = null;
+            }
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        ColumnPageId id = (ColumnPageId) pid;
+        int pageSize = BufferPool.getPageSize();
+        long offset = (long) id.getPageNumber() * pageSize;
+        try {
+            FileChannel c = channel(id.getColumn());
+            ByteBuffer buf = ByteBuffer.allocate(pageSize);
+            while (buf.hasRemaining()) {
+                if (c.read(buf, offset + buf.position()) < 0)
+                    break;
+            }
+            if (buf.position() < pageSize)
+                throw new IllegalArgumentException("Read past end of column " + id.getColumn());
+            buf.flip();
+            Debug.log(1, "ColumnFile.readPage: read page %d of column %d", id.getPageNumber(), id.getColumn());
+            return new ColumnPage(id, td.getFieldType(id.getColumn()), buf);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        ColumnPageId id = (ColumnPageId) page.getId();
+        writePageData(id.getColumn(), id.getPageNumber(), page.getPageData());
+    }
+
+    private void writePageData(int column, int pgNo, byte[] data) throws IOException {
+        long offset = (long) pgNo * BufferPool.getPageSize();
+        FileChannel c = channel(column);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining())
+            c.write(buf, offset + buf.position());
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in insertTuple");
+
+        List<Page> dirtypages = new ArrayList<>();
+        int row = -1;
+        int firstPgNo = -1;
+        // column 0 first: whoever holds the last page of the first column
+        // gets to append the next row
+        for (int c = 0; c < td.numFields(); c++) {
+            ColumnPage p = lastPage(tid, c);
+            if (p.getNumValues() == 0) {
+                // empty last pages left behind by an aborted insert may
+                // carry the wrong first row; start at the end of the column
+                int start = c == 0 ? endOfColumn(tid, p.getId().getPageNumber()) : row;
+                if (p.getFirstRow() != start)
+                    p = replaceEmptyPage(tid, p, start);
+            }
+            int end = p.getFirstRow() + p.getNumValues();
+            if (row == -1)
+                row = end;
+            else if (end != row)
+                throw new DbException("column " + c + " ends at row " + end + ", expected " + row);
+
+            if (!p.appendField(t.getField(c))) {
+                p = appendPage(tid, c, row);
+                if (!p.appendField(t.getField(c)))
+                    throw new DbException("value does not fit on a page: " + t.getField(c));
+            }
+            if (c == 0)
+                firstPgNo = p.getId().getPageNumber();
+            dirtypages.add(p);
+        }
+        t.setRecordId(new RecordId(new ColumnPageId(tableid, 0, firstPgNo), row));
+        return dirtypages;
+    }
+
+    /**
+     * @return the last page of the column, locked exclusively (appending an
+     *         empty page first if the column has none)
+     */
+    private ColumnPage lastPage(TransactionId tid, int column)
+            throws DbException, IOException, TransactionAbortedException {
+        while (true) {
+            int n = numPages(column);
+            if (n == 0) {
+                // atomic, so that two inserters do not both append a first page
+                synchronized (this) {
+                    if (numPages(column) == 0)
+                        writePageData(column, 0, ColumnPage.createEmptyPageData(0));
+                }
+                continue;
+            }
+            ColumnPageId pid = new ColumnPageId(tableid, column, n - 1);
+            boolean alreadyLocked = Database.getBufferPool().holdsLock(tid, pid);
+            ColumnPage p = (ColumnPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_WRITE);
+            // the inserter we waited for may have appended a page; the rows
+            // go after its last one
+            if (numPages(column) == n)
+                return p;
+            Database.getBufferPool().unpinPage(tid, pid);
+            if (!alreadyLocked)
+                Database.getBufferPool().unsafeReleasePage(tid, pid);
+        }
+    }
+
+    /**
+     * @return the row after the last value of the first column stored on a
+     *         page before the specified one
+     */
+    private int endOfColumn(TransactionId tid, int pgNo)
+            throws DbException, TransactionAbortedException {
+        for (int i = pgNo - 1; i >= 0; i--) {
+            ColumnPage prev = (ColumnPage) Database.getBufferPool().getPage(tid,
+                    new ColumnPageId(tableid, 0, i), Permissions.READ_ONLY);
+            int firstRow = prev.getFirstRow();
+            int numValues = prev.getNumValues();
+            Database.getBufferPool().unpinPage(tid, prev.getId());
+            if (numValues > 0)
+                return firstRow + numValues;
+        }
+        return 0;
+    }
+
+    /**
+     * Append an empty page to the column, and lock it exclusively.
+     */
+    private ColumnPage appendPage(TransactionId tid, int column, int firstRow)
+            throws DbException, IOException, TransactionAbortedException {
+        int pgNo;
+        // atomic, so that two inserters do not append the same page number
+        synchronized (this) {
+            pgNo = numPages(column);
+            writePageData(column, pgNo, ColumnPage.createEmptyPageData(firstRow));
+        }
+        return (ColumnPage) Database.getBufferPool().getPage(tid,
+                new ColumnPageId(tableid, column, pgNo), Permissions.READ_WRITE);
+    }
+
+    /**
+     * Give an empty page (which tid holds an exclusive lock on) a new first
+     * row, by rewriting it on disk and reading it back into the pool.
+     */
+    private ColumnPage replaceEmptyPage(TransactionId tid, ColumnPage p, int firstRow)
+            throws DbException, IOException, TransactionAbortedException {
+        ColumnPageId id = p.getId();
+        writePageData(id.getColumn(), id.getPageNumber(), ColumnPage.createEmptyPageData(firstRow));
+        Database.getBufferPool().removePage(id);
+        return (ColumnPage) Database.getBufferPool().getPage(tid, id, Permissions.READ_WRITE);
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException("ColumnFile does not support deletes");
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] columns = new int[td.numFields()];
+        for (int c = 0; c < columns.length; c++)
+            columns[c] = c;
+        return iterator(tid, columns);
+    }
+
+    /**
+     * Returns an iterator over the specified columns of all rows of the
+     * table. Only the pages of those columns are read.
+     *
+     * @param tid     the transaction the scan runs as a part of
+     * @param columns the columns to return, in the order they should appear
+     *                in the returned tuples; at least one
+     * @return an iterator over tuples whose TupleDesc is {@link
+     *         #getTupleDesc(int[])} of the columns
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns) {
+        if (columns.length == 0)
+            throw new IllegalArgumentException("a column scan needs at least one column");
+        return new ColumnFileIterator(this, tid, columns);
+    }
+
+    /**
+     * @return the TupleDesc of tuples made of the specified columns
+     */
+    public TupleDesc getTupleDesc(int[] columns) {
+        Type[] types = new Type[columns.length];
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            types[i] = td.getFieldType(columns[i]);
+            names[i] = td.getFieldName(columns[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+}
+
+/**
+ * Helper class that reads some of the columns of a ColumnFile in step, one
+ * page at a time per column.
+ */
+class ColumnFileIterator extends AbstractDbFileIterator {
+
+    final ColumnFile cf;
+    final TransactionId tid;
+    final int[] columns;
+    final TupleDesc td;
+
+    ColumnPage[] pages = null;
+    int[] pgNos;
+    int[] indexes; // index of the next value on each page
+    int[] numPages;
+
+    ColumnFileIterator(ColumnFile cf, TransactionId tid, int[] columns) {
+        this.cf = cf;
+        this.tid = tid;
+        this.columns = columns.clone();
+        this.td = cf.getTupleDesc(columns);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        pages = new ColumnPage[columns.length];
+        pgNos = new int[columns.length];
+        indexes = new int[columns.length];
+        numPages = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            numPages[i] = cf.numPages(columns[i]);
+            pgNos[i] = -1;
+        }
+    }
+
+    /**
+     * Make sure the current page of the i-th column has a value left,
+     * moving on to the next page if needed.
+     *
+     * @return false if the column has no values left
+     */
+    private boolean advance(int i) throws DbException, TransactionAbortedException {
+        while (pages[i] == null || indexes[i] >= pages[i].getNumValues()) {
+            if (pgNos[i] + 1 >= numPages[i])
+                return false;
+            unpin(i);
+            pgNos[i]++;
+            pages[i] = (ColumnPage) Database.getBufferPool().getPage(tid,
+                    new ColumnPageId(cf.getId(), columns[i], pgNos[i]), Permissions.READ_ONLY);
+            indexes[i] = 0;
+        }
+        return true;
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        if (pages == null)
+            return null;
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++) {
+            if (!advance(i)) {
+                if (i == 0)
+                    return null;
+                throw new DbException("column " + columns[i] + " has fewer values than column " + columns[0]);
+            }
+            t.setField(i, pages[i].getField(indexes[i]++));
+        }
+        ColumnPage first = pages[0];
+        t.setRecordId(new RecordId(first.getId(), first.getFirstRow() + indexes[0] - 1));
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Unpin the current page of the i-th column, if any.
+     */
+    private void unpin(int i) {
+        if (pages[i] != null) {
+            Database.getBufferPool().unpinPage(tid, pages[i].getId());
+            pages[i] = null;
+        }
+    }
+
+    public void close() {
+        super.close();
+        if (pages != null) {
+            for (int i = 0; i < pages.length; i++)
+                unpin(i);
+        }
+        pages = null;
+    }
+}
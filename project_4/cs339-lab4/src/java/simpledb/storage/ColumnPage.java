@@ -0,0 +1,294 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Each instance of ColumnPage stores the values of one column for a range
+ * of consecutive rows of a ColumnFile. The format of a page is:
+ * <pre>
+ *   count (4 bytes) | firstRow (4 bytes) | encoding (1 byte)
+ *   [min (4 bytes) | max (4 bytes)]      -- int columns only
+ *   encoded values
+ * </pre>
+ * where count is the number of values on the page and firstRow the number
+ * of the row the first of them belongs to. Pages of int columns record the
+ * smallest and largest value on the page, so that readers can tell from the
+ * header alone whether the page can hold a value they are looking for.
+ * <p>
+ * Each page is encoded with whichever of the {@link ColumnEncoding}s makes
+ * it smallest, so a page holds as many values as fit encoded.
+ * <p>
+ * Values are only ever appended to a page (by inserts into the last page
+ * of a column); pages are re-encoded when they are written.
+ *
+ * @see ColumnFile
+ */
+public class ColumnPage implements Page {
+
+    static final int HEADER_SIZE = 9;
+    static final int MIN_MAX_SIZE = 8;
+
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+
+    final ColumnPageId pid;
+    final Type type;
+    private final int pageSize;
+    private final int firstRow;
+    private int count = 0;
+    private int[] ints = new int[0]; // values of int columns
+    private String[] strings = new String[0]; // values of string columns
+
+    // statistics that determine the encoded size, kept up to date on append
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    private int runs = 0;
+    private int plainBytes = 0;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private int dictionaryBytes = 0;
+
+    // the contents of the page as of the last setBeforeImage, or null if the
+    // page has not changed since. Captured on the first change.
+    private byte[] oldData = null;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a ColumnPage from a set of bytes of data read from disk, in the
+     * format described above.
+     */
+    public ColumnPage(ColumnPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()).getFieldType(id.getColumn()),
+                ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a ColumnPage of a column of the specified type from one page
+     * worth of bytes starting at the current position of a buffer. The
+     * buffer's position is not changed.
+     */
+    ColumnPage(ColumnPageId id, Type type, ByteBuffer data) {
+        this.pid = id;
+        this.type = type;
+        this.pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = data.slice();
+        int n = buf.getInt(0);
+        this.firstRow = buf.getInt(4);
+        byte encoding = buf.get(8);
+        buf.position(HEADER_SIZE);
+        if (type == Type.INT_TYPE)
+            decodeInts(buf, encoding, n);
+        else
+            decodeStrings(buf, encoding, n);
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * ColumnPage, whose first value will belong to the specified row.
+     */
+    public static byte[] createEmptyPageData(int firstRow) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer.wrap(data).putInt(4, firstRow);
+        return data;
+    }
+
+    private void decodeInts(ByteBuffer buf, byte encoding, int n) {
+        int pageMin = buf.getInt();
+        buf.getInt(); // max, recomputed by append
+        for (int v : ColumnEncoding.decodeInts(buf, encoding, n, pageMin))
+            append(v);
+    }
+
+    private void decodeStrings(ByteBuffer buf, byte encoding, int n) {
+        for (String v : ColumnEncoding.decodeStrings(buf, encoding, n))
+            append(v);
+    }
+
+    private int headerSize() {
+        return HEADER_SIZE + (type == Type.INT_TYPE ? MIN_MAX_SIZE : 0);
+    }
+
+    /**
+     * Append a value of an int column, if it fits on the page encoded.
+     *
+     * @return false if the page has no room for the value
+     */
+    boolean append(int v) {
+        int newMin = Math.min(min, v);
+        int newMax = Math.max(max, v);
+        int newRuns = runs + (count > 0 && ints[count - 1] == v ? 0 : 1);
+        if (headerSize() + ColumnEncoding.intBodySize(count + 1, newMin, newMax, newRuns) > pageSize)
+            return false;
+        if (count == ints.length)
+            ints = Arrays.copyOf(ints, Math.max(16, count * 2));
+        ints[count++] = v;
+        min = newMin;
+        max = newMax;
+        runs = newRuns;
+        return true;
+    }
+
+    /**
+     * Append a value of a string column, if it fits on the page encoded.
+     *
+     * @return false if the page has no room for the value
+     */
+    boolean append(String v) {
+        if (v.length() > Type.STRING_LEN)
+            v = v.substring(0, Type.STRING_LEN);
+        int size = ColumnEncoding.plainSize(v);
+        boolean known = dictionary.containsKey(v);
+        int newDictSize = dictionary.size() + (known ? 0 : 1);
+        int newDictBytes = dictionaryBytes + (known ? 0 : size);
+        if (headerSize() + ColumnEncoding.stringBodySize(count + 1, plainBytes + size, newDictSize, newDictBytes) > pageSize)
+            return false;
+        if (count == strings.length)
+            strings = Arrays.copyOf(strings, Math.max(16, count * 2));
+        strings[count++] = v;
+        plainBytes += size;
+        if (!known)
+            dictionary.put(v, dictionary.size());
+        dictionaryBytes = newDictBytes;
+        return true;
+    }
+
+    /**
+     * Append the specified field to the page on behalf of an insert,
+     * remembering the before image first.
+     *
+     * @return false if the page has no room for the value
+     */
+    boolean appendField(Field f) {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = getPageData();
+        }
+        if (type == Type.INT_TYPE)
+            return append(((IntField) f).getValue());
+        return append(((StringField) f).getValue());
+    }
+
+    /**
+     * @return the number of values on this page
+     */
+    public int getNumValues() {
+        return count;
+    }
+
+    /**
+     * @return the number of the row the first value on this page belongs to
+     */
+    public int getFirstRow() {
+        return firstRow;
+    }
+
+    /**
+     * @return the smallest value on this page (int columns only;
+     *         Integer.MAX_VALUE if the page is empty)
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * @return the largest value on this page (int columns only;
+     *         Integer.MIN_VALUE if the page is empty)
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * @return the i-th value on this page
+     */
+    public Field getField(int i) {
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("value " + i + " of " + count);
+        if (type == Type.INT_TYPE)
+            return new IntField(ints[i]);
+        return new StringField(strings[i], Type.STRING_LEN);
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public ColumnPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in the
+     * smallest encoding.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        byte[] data = new byte[pageSize];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.putInt(count);
+        buf.putInt(firstRow);
+        if (type == Type.INT_TYPE)
+            encodeInts(buf);
+        else
+            encodeStrings(buf);
+        return data;
+    }
+
+    private void encodeInts(ByteBuffer buf) {
+        byte encoding = ColumnEncoding.chooseIntEncoding(count, min, max, runs);
+        buf.put(encoding);
+        buf.putInt(count > 0 ? min : 0);
+        buf.putInt(count > 0 ? max : 0);
+        ColumnEncoding.encodeInts(buf, encoding, ints, count, min, max, runs);
+    }
+
+    private void encodeStrings(ByteBuffer buf) {
+        byte encoding = ColumnEncoding.chooseStringEncoding(count, plainBytes, dictionary.size(), dictionaryBytes);
+        buf.put(encoding);
+        ColumnEncoding.encodeStrings(buf, encoding, strings, count);
+    }
+
+    /**
+     * Return a view of this page before it was modified
+     * -- used by recovery
+     */
+    public ColumnPage getBeforeImage() {
+        byte[] oldDataRef;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
+        }
+        return new ColumnPage(pid, type, ByteBuffer.wrap(oldDataRef != null ? oldDataRef : getPageData()));
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.dirtier = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb.storage;
+
+import java.util.Objects;
+
+/**
+ * Unique identifier for ColumnPage objects: a page of one column of a
+ * ColumnFile.
+ */
+public class ColumnPageId implements PageId {
+
+    private final int tableId;
+    private final int column;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific column of a specific table.
+     *
+     * @param tableId The table that is being referenced
+     * @param column  The column of the table
+     * @param pgNo    The page number in that column.
+     */
+    public ColumnPageId(int tableId, int column, int pgNo) {
+        this.tableId = tableId;
+        this.column = column;
+        this.pgNo = pgNo;
+    }
+
+    /**
+     * @return the table associated with this PageId
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the column of the table this page stores values of
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the page number in the column associated with this PageId
+     */
+    public int getPageNumber() {
+        return pgNo;
+    }
+
+    public int hashCode() {
+        return Objects.hash(tableId, column, pgNo);
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ColumnPageId))
+            return false;
+        ColumnPageId p = (ColumnPageId) o;
+        return tableId == p.tableId && column == p.column && pgNo == p.pgNo;
+    }
+
+    public int[] serialize() {
+        return new int[]{tableId, column, pgNo};
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * CompressedFile is a HeapFile whose pages are {@link CompressedPage}s,
+ * which store their tuples column by column in dictionary, run-length or
+ * frame-of-reference encodings. Tables with small int ranges and
+ * low-cardinality strings fit several times more tuples on a page this
+ * way, so scans read a fraction of the pages.
+ * <p>
+ * All I/O, the free space map and the scan iterator are those of HeapFile;
+ * only the page format differs. Pages are decoded when they are read into
+ * the buffer pool, so operators see ordinary tuples. Whether a tuple fits
+ * on a page depends on its values (a value outside a page's range can
+ * widen the packed ints of a whole column), so inserts ask the page itself
+ * and only use the free space map to skip pages known to be full.
+ * <p>
+ * Existing tables can be converted by scanning them and passing the tuples
+ * to {@link #convert}.
+ *
+ * @see CompressedPage
+ */
+public class CompressedFile extends HeapFile {
+
+    /**
+     * Constructs a compressed file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this file
+     */
+    public CompressedFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a compressed file backed by the specified file.
+     *
+     * @param f            the file that stores the on-disk backing store for
+     *                     this file
+     * @param memoryMapped if true, pages are read through a memory mapping
+     *                     of the file rather than with read calls
+     */
+    public CompressedFile(File f, TupleDesc td, boolean memoryMapped) {
+        super(f, td, memoryMapped);
+    }
+
+    /**
+     * Write the specified tuples to a file in the compressed format, filling
+     * one page after another. Any existing contents of the file are lost.
+     *
+     * @param tuples  the tuples to write
+     * @param td      the schema of the tuples
+     * @param outFile the file to write
+     * @throws IOException if the file cannot be written, or a tuple does not
+     *                     fit on a page
+     */
+    public static void convert(Iterator<Tuple> tuples, TupleDesc td, File outFile) throws IOException {
+        try (OutputStream os = new FileOutputStream(outFile)) {
+            int pgNo = 0;
+            CompressedPage page = new CompressedPage(new HeapPageId(0, pgNo),
+                    td, ByteBuffer.wrap(CompressedPage.createEmptyPageData()));
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                if (!page.hasRoomFor(t) && page.getNumTuples() > 0) {
+                    os.write(page.getPageData());
+                    page = new CompressedPage(new HeapPageId(0, ++pgNo),
+                            td, ByteBuffer.wrap(CompressedPage.createEmptyPageData()));
+                }
+                try {
+                    page.insertTuple(t);
+                } catch (DbException e) {
+                    throw new IOException("tuple does not fit on a page: " + t);
+                }
+            }
+            // like HeapFileEncoder, write one (empty) page even if there
+            // were no tuples
+            os.write(page.getPageData());
+        }
+    }
+
+    @Override
+    int readFreeSpace(int pgNo) throws IOException {
+        // free space depends on all values on the page, so the whole page
+        // has to be decoded
+        return ((TuplePage) readPage(new HeapPageId(getId(), pgNo))).getFreeSpace();
+    }
+
+    @Override
+    TuplePage createPage(HeapPageId id, ByteBuffer data) {
+        return new CompressedPage(id, data);
+    }
+
+    @Override
+    byte[] createEmptyPageData() {
+        return CompressedPage.createEmptyPageData();
+    }
+
+    @Override
+    boolean hasRoomFor(TuplePage p, Tuple t) {
+        return ((CompressedPage) p).hasRoomFor(t);
+    }
+}
@@ -0,0 +1,514 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Each instance of CompressedPage stores data for one page of a
+ * CompressedFile. The tuples of a page are stored column by column, each
+ * column in the smallest of the {@link ColumnEncoding}s for its values, so
+ * small int ranges and low-cardinality strings take a fraction of the room
+ * they take on a HeapPage:
+ * <pre>
+ *   numSlots (2 bytes) | used bitmap (one bit per slot)
+ *   for each field:    encoding (1 byte) [| min (4 bytes), int fields only]
+ *                      | encoded values of the used slots, in slot order
+ * </pre>
+ * A tuple keeps its slot, and hence its RecordId, until it is deleted;
+ * deleting it only clears its bit, and its values drop out of the columns
+ * the next time the page is written.
+ * <p>
+ * Pages are decoded into tuples once, when they are read into the buffer
+ * pool, and encoded again when they are written. In between, the page keeps
+ * the statistics the size of each encoding depends on up to date, so that
+ * inserts can tell whether a tuple still fits. (The statistics are allowed
+ * to overestimate the size after deletes and inserts in the middle of the
+ * page; they are recomputed exactly when the page is read back.)
+ *
+ * @see CompressedFile
+ * @see ColumnEncoding
+ */
+public class CompressedPage implements TuplePage {
+
+    static final int HEADER_SIZE = 2;
+    static final int MAX_SLOTS = 65535;
+
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    private final int pageSize;
+    private Tuple[] tuples; // by slot; null for free slots
+    private int numSlots = 0;
+    private int numTuples = 0;
+
+    // per-field statistics that bound the encoded size of the page
+    private final int[] min;
+    private final int[] max;
+    private final int[] runs;
+    private final int[] plainBytes;
+    private final List<Map<String, Integer>> dictionaries = new ArrayList<>(); // value -> uses
+    private final int[] dictionaryBytes;
+    private int size; // the encoded size the statistics add up to
+
+    // the contents of the page as of the last setBeforeImage, or null if the
+    // page has not changed since. Captured on the first change.
+    private byte[] oldData = null;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a CompressedPage from a set of bytes of data read from disk, in
+     * the format described above.
+     */
+    public CompressedPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a CompressedPage from one page worth of bytes starting at the
+     * current position of a buffer. The buffer's position is not changed.
+     */
+    CompressedPage(HeapPageId id, ByteBuffer data) {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /**
+     * Create a CompressedPage of a table with the specified schema, which
+     * need not be in the catalog (yet).
+     */
+    CompressedPage(HeapPageId id, TupleDesc td, ByteBuffer data) {
+        this.pid = id;
+        this.td = td;
+        this.pageSize = BufferPool.getPageSize();
+        int numFields = td.numFields();
+        this.min = new int[numFields];
+        this.max = new int[numFields];
+        this.runs = new int[numFields];
+        this.plainBytes = new int[numFields];
+        this.dictionaryBytes = new int[numFields];
+        for (int j = 0; j < numFields; j++)
+            dictionaries.add(new HashMap<>());
+
+        ByteBuffer buf = data.slice();
+        numSlots = buf.getChar();
+        byte[] used = new byte[(numSlots + 7) / 8];
+        buf.get(used);
+        tuples = new Tuple[Math.max(numSlots, 16)];
+        for (int i = 0; i < numSlots; i++) {
+            if ((used[i / 8] & (1 << (i % 8))) != 0) {
+                tuples[i] = new Tuple(td);
+                tuples[i].setRecordId(new RecordId(pid, i));
+                numTuples++;
+            }
+        }
+        for (int j = 0; j < numFields; j++) {
+            byte encoding = buf.get();
+            int k = 0;
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                int columnMin = buf.getInt();
+                for (int v : ColumnEncoding.decodeInts(buf, encoding, numTuples, columnMin)) {
+                    k = nextUsed(k);
+                    tuples[k++].setField(j, new IntField(v));
+                }
+            } else {
+                for (String v : ColumnEncoding.decodeStrings(buf, encoding, numTuples)) {
+                    k = nextUsed(k);
+                    tuples[k++].setField(j, new StringField(v, Type.STRING_LEN));
+                }
+            }
+        }
+        computeStatistics();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * CompressedPage.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    private int nextUsed(int slot) {
+        while (tuples[slot] == null)
+            slot++;
+        return slot;
+    }
+
+    private static int intValue(Tuple t, int j) {
+        return ((IntField) t.getField(j)).getValue();
+    }
+
+    private static String stringValue(Tuple t, int j) {
+        return ((StringField) t.getField(j)).getValue();
+    }
+
+    /**
+     * Compute the statistics of every field exactly from the tuples on the
+     * page.
+     */
+    private void computeStatistics() {
+        for (int j = 0; j < td.numFields(); j++) {
+            min[j] = Integer.MAX_VALUE;
+            max[j] = Integer.MIN_VALUE;
+            runs[j] = 0;
+            plainBytes[j] = 0;
+            dictionaryBytes[j] = 0;
+            dictionaries.get(j).clear();
+            Field prev = null;
+            for (int i = 0; i < numSlots; i++) {
+                if (tuples[i] == null)
+                    continue;
+                Field f = tuples[i].getField(j);
+                if (!f.equals(prev))
+                    runs[j]++;
+                prev = f;
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    min[j] = Math.min(min[j], intValue(tuples[i], j));
+                    max[j] = Math.max(max[j], intValue(tuples[i], j));
+                } else {
+                    addString(j, stringValue(tuples[i], j));
+                }
+            }
+        }
+        size = encodedSize(numSlots, numTuples);
+    }
+
+    private void addString(int j, String v) {
+        int vSize = ColumnEncoding.plainSize(v);
+        plainBytes[j] += vSize;
+        if (dictionaries.get(j).merge(v, 1, Integer::sum) == 1)
+            dictionaryBytes[j] += vSize;
+    }
+
+    private void removeString(int j, String v) {
+        int vSize = ColumnEncoding.plainSize(v);
+        plainBytes[j] -= vSize;
+        Map<String, Integer> dictionary = dictionaries.get(j);
+        if (dictionary.merge(v, -1, Integer::sum) == 0) {
+            dictionary.remove(v);
+            dictionaryBytes[j] -= vSize;
+        }
+    }
+
+    /**
+     * @return the encoded size of a page with the specified number of slots
+     *         and tuples and the current statistics
+     */
+    private int encodedSize(int slots, int n) {
+        int total = HEADER_SIZE + (slots + 7) / 8;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE)
+                total += 5 + ColumnEncoding.intBodySize(n, min[j], max[j], runs[j]);
+            else
+                total += 1 + ColumnEncoding.stringBodySize(n, plainBytes[j], dictionaries.get(j).size(),
+                        dictionaryBytes[j]);
+        }
+        return total;
+    }
+
+    /**
+     * @return the slot the next tuple is inserted into (numSlots if there
+     *         is no free slot)
+     */
+    private int freeSlot() {
+        for (int i = 0; i < numSlots; i++) {
+            if (tuples[i] == null)
+                return i;
+        }
+        return numSlots;
+    }
+
+    /**
+     * @return the encoded size of the page with the specified tuple added in
+     *         the specified slot
+     */
+    private int sizeWith(Tuple t, int slot) {
+        int slots = Math.max(numSlots, slot + 1);
+        int n = numTuples + 1;
+        int total = HEADER_SIZE + (slots + 7) / 8;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                int v = intValue(t, j);
+                total += 5 + ColumnEncoding.intBodySize(n, Math.min(min[j], v), Math.max(max[j], v),
+                        runs[j] + runsAdded(t, slot, j));
+            } else {
+                String v = stringValue(t, j);
+                int vSize = ColumnEncoding.plainSize(v);
+                boolean known = dictionaries.get(j).containsKey(v);
+                total += 1 + ColumnEncoding.stringBodySize(n, plainBytes[j] + vSize,
+                        dictionaries.get(j).size() + (known ? 0 : 1),
+                        dictionaryBytes[j] + (known ? 0 : vSize));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return an upper bound on the number of runs the j-th field gains if
+     *         the specified tuple is added in the specified slot
+     */
+    private int runsAdded(Tuple t, int slot, int j) {
+        if (slot < numSlots) {
+            // may also split the run it lands in
+            return 2;
+        }
+        // the last slot is always used (free slots at the end are dropped)
+        return numSlots > 0 && tuples[numSlots - 1].getField(j).equals(t.getField(j)) ? 0 : 1;
+    }
+
+    /**
+     * @return true if the specified tuple fits on this page
+     */
+    boolean hasRoomFor(Tuple t) {
+        int slot = freeSlot();
+        return slot < MAX_SLOTS && sizeWith(t, slot) <= pageSize;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, in the
+     * format described above.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        byte[] data = new byte[pageSize];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.putChar((char) numSlots);
+        byte[] used = new byte[(numSlots + 7) / 8];
+        for (int i = 0; i < numSlots; i++) {
+            if (tuples[i] != null)
+                used[i / 8] |= (byte) (1 << (i % 8));
+        }
+        buf.put(used);
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE)
+                encodeInts(buf, j);
+            else
+                encodeStrings(buf, j);
+        }
+        return data;
+    }
+
+    private void encodeInts(ByteBuffer buf, int j) {
+        // the statistics may overestimate; encode with exact ones
+        int[] values = new int[numTuples];
+        int n = 0;
+        int columnMin = Integer.MAX_VALUE;
+        int columnMax = Integer.MIN_VALUE;
+        int columnRuns = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (tuples[i] == null)
+                continue;
+            int v = intValue(tuples[i], j);
+            if (n == 0 || values[n - 1] != v)
+                columnRuns++;
+            values[n++] = v;
+            columnMin = Math.min(columnMin, v);
+            columnMax = Math.max(columnMax, v);
+        }
+        byte encoding = ColumnEncoding.chooseIntEncoding(n, columnMin, columnMax, columnRuns);
+        buf.put(encoding);
+        buf.putInt(n > 0 ? columnMin : 0);
+        ColumnEncoding.encodeInts(buf, encoding, values, n, columnMin, columnMax, columnRuns);
+    }
+
+    private void encodeStrings(ByteBuffer buf, int j) {
+        String[] values = new String[numTuples];
+        int n = 0;
+        int columnPlainBytes = 0;
+        int columnDictionaryBytes = 0;
+        Set<String> distinct = new HashSet<>();
+        for (int i = 0; i < numSlots; i++) {
+            if (tuples[i] == null)
+                continue;
+            String v = stringValue(tuples[i], j);
+            values[n++] = v;
+            columnPlainBytes += ColumnEncoding.plainSize(v);
+            if (distinct.add(v))
+                columnDictionaryBytes += ColumnEncoding.plainSize(v);
+        }
+        byte encoding = ColumnEncoding.chooseStringEncoding(n, columnPlainBytes, distinct.size(),
+                columnDictionaryBytes);
+        buf.put(encoding);
+        ColumnEncoding.encodeStrings(buf, encoding, values, n);
+    }
+
+    /**
+     * Return a view of this page before it was modified
+     * -- used by recovery
+     */
+    public CompressedPage getBeforeImage() {
+        byte[] oldDataRef;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
+        }
+        return new CompressedPage(pid, td, ByteBuffer.wrap(oldDataRef != null ? oldDataRef : getPageData()));
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    private void captureBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = getPageData();
+        }
+    }
+
+    /**
+     * Delete the specified tuple from the page.
+     *
+     * @param t The tuple to delete
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *                     already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= numSlots || tuples[slot] == null)
+            throw new DbException("tuple slot is already empty");
+        captureBeforeImage();
+        Tuple old = tuples[slot];
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE)
+                removeString(j, stringValue(old, j));
+        }
+        // min, max and runs can only shrink, so they are left as they are
+        tuples[slot] = null;
+        numTuples--;
+        while (numSlots > 0 && tuples[numSlots - 1] == null)
+            numSlots--;
+        size = encodedSize(numSlots, numTuples);
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple should be updated to
+     * reflect that it is now stored on this page.
+     *
+     * @param t The tuple to add.
+     * @throws DbException if the page is full (no room for the tuple encoded)
+     *                     or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("type mismatch, in insertTuple");
+        int slot = freeSlot();
+        if (slot >= MAX_SLOTS || sizeWith(t, slot) > pageSize)
+            throw new DbException("not enough space on the page");
+        captureBeforeImage();
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                min[j] = Math.min(min[j], intValue(t, j));
+                max[j] = Math.max(max[j], intValue(t, j));
+                runs[j] += runsAdded(t, slot, j);
+            } else {
+                addString(j, stringValue(t, j));
+            }
+        }
+        if (slot >= tuples.length)
+            tuples = Arrays.copyOf(tuples, tuples.length * 2);
+        tuples[slot] = t;
+        t.setRecordId(new RecordId(pid, slot));
+        numSlots = Math.max(numSlots, slot + 1);
+        numTuples++;
+        size = encodedSize(numSlots, numTuples);
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.dirtier = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+
+    /**
+     * @return the number of bytes left on this page, by the statistics.
+     *         Whether a tuple fits depends on its values as well; see
+     *         {@link #hasRoomFor}.
+     */
+    public int getFreeSpace() {
+        return pageSize - size;
+    }
+
+    /**
+     * @return the tuple in the specified slot, or null if the slot is not
+     *         used
+     */
+    public Tuple getTuple(int slot) {
+        return slot >= 0 && slot < numSlots ? tuples[slot] : null;
+    }
+
+    /**
+     * @return the number of tuples on this page
+     */
+    public int getNumTuples() {
+        return numTuples;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     *         (note that this iterator shouldn't return tuples in empty slots!)
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                while (i < numSlots && tuples[i] == null)
+                    i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = tuples[next];
+                next = advance(next + 1);
+                return t;
+            }
+        };
+    }
+}
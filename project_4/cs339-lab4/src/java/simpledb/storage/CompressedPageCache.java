@@ -0,0 +1,175 @@
+package simpledb.storage;
+
+import simpledb.common.Debug;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CompressedPageCache is the optional second tier of the BufferPool (see
+ * {@link BufferPool#enableSecondaryCache}): clean pages evicted from the
+ * pool are kept here, compressed with {@link Lz4Codec}, and a miss in the
+ * pool takes its page from here instead of reading it from disk if it can.
+ * Mostly empty or repetitive pages compress to a fraction of a frame, so
+ * the same memory holds many more pages this way.
+ * <p>
+ * A page is in the pool or in the cache, never both: a hit removes it from
+ * the cache, and the pool stashes it again when it evicts it. The cache
+ * holds images of written pages only, so it never needs to write anything;
+ * when its size limit is reached, the pages stashed longest ago are
+ * dropped. Pages are rebuilt with their (PageId, byte[]) constructor, like
+ * {@link LogFile} rebuilds logged pages; pages without one, and pages that
+ * do not compress, are not cached.
+ *
+ * @Threadsafe
+ */
+class CompressedPageCache {
+
+    /**
+     * Estimated bytes of memory per cached page besides its compressed
+     * image, counted against the size limit.
+     */
+    static final int ENTRY_OVERHEAD = 64;
+
+    private static class Entry {
+        final Constructor<?> constructor;
+        final byte[] compressed;
+        final int length;
+
+        Entry(Constructor<?> constructor, byte[] compressed, int length) {
+            this.constructor = constructor;
+            this.compressed = compressed;
+            this.length = length;
+        }
+
+        long size() {
+            return compressed.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final long maxBytes;
+    // oldest stash first; protected by this
+    private final LinkedHashMap<PageId, Entry> entries = new LinkedHashMap<>();
+    private long bytes = 0; // protected by this
+    // page class -> its (PageId, byte[]) constructor, or null if it has none;
+    // protected by this
+    private final Map<Class<?>, Constructor<?>> constructors = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong stashed = new AtomicLong(0);
+
+    /**
+     * @param maxBytes the memory the cache may use
+     */
+    CompressedPageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private synchronized Constructor<?> constructor(Class<?> pageClass) {
+        if (constructors.containsKey(pageClass))
+            return constructors.get(pageClass);
+        Constructor<?> c;
+        try {
+            c = LogFile.pageDataConstructor(pageClass);
+        } catch (IOException e) {
+            c = null;
+        }
+        constructors.put(pageClass, c);
+        return c;
+    }
+
+    /**
+     * Keep a compressed image of a clean, written page that is leaving the
+     * pool, replacing any older image of it.
+     */
+    void stash(Page p) {
+        Constructor<?> c = constructor(p.getClass());
+        if (c == null)
+            return;
+        byte[] data = p.getPageData();
+        byte[] compressed = Lz4Codec.compress(data);
+        Entry e = new Entry(c, compressed, data.length);
+        if (e.size() >= data.length || e.size() > maxBytes)
+            return; // costs as much memory as a frame
+        synchronized (this) {
+            Entry old = entries.put(p.getId(), e);
+            if (old != null)
+                bytes -= old.size();
+            bytes += e.size();
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= it.next().size();
+                it.remove();
+            }
+        }
+        stashed.incrementAndGet();
+    }
+
+    /**
+     * Remove the image of the specified page from the cache and rebuild the
+     * page from it.
+     *
+     * @return the page, or null if the cache does not hold it
+     */
+    Page take(PageId pid) {
+        Entry e;
+        synchronized (this) {
+            e = entries.remove(pid);
+            if (e == null)
+                return null;
+            bytes -= e.size();
+        }
+        try {
+            Page p = (Page) e.constructor.newInstance(pid, Lz4Codec.decompress(e.compressed, e.length));
+            hits.incrementAndGet();
+            return p;
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException
+                 | IllegalArgumentException ex) {
+            Debug.log("CompressedPageCache: could not rebuild page %s: %s", pid, ex);
+            return null; // read it from disk instead
+        }
+    }
+
+    /**
+     * Drop the image of the specified page, if the cache holds one.
+     */
+    synchronized void remove(PageId pid) {
+        Entry e = entries.remove(pid);
+        if (e != null)
+            bytes -= e.size();
+    }
+
+    /**
+     * @return the number of pages the cache holds
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the memory the cache uses, in bytes, as counted against its
+     *         limit
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long stashed() {
+        return stashed.get();
+    }
+
+    void resetStatistics() {
+        hits.set(0);
+        stashed.set(0);
+    }
+}
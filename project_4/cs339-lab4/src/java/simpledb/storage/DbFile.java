@@ -6,6 +6,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -31,6 +32,44 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Read the specified pages from disk, e.g. to read ahead of a scan.
+     * Files that can should sort the pages and read runs of adjacent pages
+     * with one I/O each; by default they are read one at a time.
+     *
+     * @return the pages, in the order of ids
+     * @throws IllegalArgumentException if a page does not exist in this file.
+     */
+    default List<Page> readPages(List<PageId> ids) {
+        List<Page> result = new ArrayList<>(ids.size());
+        for (PageId id : ids)
+            result.add(readPage(id));
+        return result;
+    }
+
+    /**
+     * Push the specified pages to disk, e.g. on a commit or a checkpoint.
+     * Files that can should sort the pages and write runs of adjacent pages
+     * with one I/O each; by default they are written one at a time.
+     *
+     * @throws IOException if a write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+    }
+
+    /**
+     * Returns true if the pages of this file that a transaction committed
+     * may be written some time after the commit (see {@link
+     * BufferPool#enableWriteBehind}), which requires that writePage only
+     * bring the file up to date with the page. Files whose writePage must
+     * run when the transaction commits return false.
+     */
+    default boolean canWriteBehind() {
+        return true;
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -0,0 +1,62 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy is the interface the BufferPool uses to decide which
+ * resident page to give up when it needs a free frame.
+ * <p>
+ * The BufferPool tells the policy about every page that enters or leaves
+ * the pool and about every hit on a resident page; the policy keeps whatever
+ * bookkeeping it needs (reference bits, access history, ...) and picks a
+ * victim on request. The BufferPool still has the last word on whether a
+ * page may actually be evicted (e.g., dirty pages may not be under NO STEAL),
+ * which it passes in as a filter to {@link #chooseVictim}.
+ *
+ * @see BufferPool
+ * @see ClockEvictionPolicy
+ * @see LruKEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called after the specified page has been added to the buffer pool.
+     *
+     * @param pid the id of the page that became resident
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * Called on every buffer pool hit on the specified (resident) page.
+     * Implementations should keep this cheap, since it is on the hot path of
+     * {@link BufferPool#getPage}.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Called after the specified page has left the buffer pool, either
+     * because it was evicted or because it was explicitly removed.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose a resident page to evict. The page is not removed from the
+     * policy's bookkeeping until {@link #pageRemoved} is called.
+     *
+     * @param canEvict returns true for pages the buffer pool is allowed to
+     *                 evict right now
+     * @return the id of the page to evict, or null if no resident page is
+     *         accepted by canEvict
+     */
+    PageId chooseVictim(Predicate<PageId> canEvict);
+
+    /**
+     * @return a short, human readable name of this policy (used when
+     *         reporting buffer pool statistics)
+     */
+    String getName();
+}
@@ -0,0 +1,203 @@
+package simpledb.storage;
+
+import simpledb.common.Debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers how much free space each page of a HeapFile has
+ * (in the unit its page format counts free space in: slots for HeapPages,
+ * bytes for SlottedPages), so that HeapFile.insertTuple can go straight to
+ * a page with room instead of reading pages one after another until it
+ * finds one.
+ * <p>
+ * The map is only a hint. Counts are updated whenever a tuple is inserted
+ * or deleted and whenever a page is read from or written to disk, but they
+ * can be briefly out of date (e.g., after an abort restores a page). The
+ * inserter therefore always checks the page itself under its lock, and
+ * corrects the count if the page turned out to be full.
+ * <p>
+ * The map is persisted in a side file next to the heap file, two bytes per
+ * page. An entry is written through whenever its page is written to disk. If
+ * the side file is missing, or older than the heap file (the table was
+ * rewritten, or we crashed between writing a page and its entry), the map is
+ * rebuilt by looking at every page once (for HeapPages, just their headers).
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    /**
+     * Suffix of the side file, appended to the name of the heap file.
+     */
+    static final String SUFFIX = ".fsm";
+
+    private static final int ENTRY_SIZE = 2;
+
+    private final File file;
+    private FileChannel channel = null; // null if the map cannot be persisted; protected by this
+    private short[] free = new short[0]; // protected by this
+    private final int minRoom;
+    private final BitSet room = new BitSet(); // pages with at least minRoom free; protected by this
+    private int numPages = 0; // protected by this
+    private int cursor = 0; // where the last search ended; protected by this
+
+    /**
+     * Opens the free space map of the specified heap file, loading the
+     * entries from its side file if that is up to date.
+     *
+     * @param heapFile the file backing the heap file
+     * @param minRoom  the free space a page needs to take any tuple at all;
+     *                 pages with less are never offered to inserters
+     */
+    FreeSpaceMap(File heapFile, int minRoom) {
+        this.file = new File(heapFile.getPath() + SUFFIX);
+        this.minRoom = Math.max(minRoom, 1);
+        boolean stale = !file.exists() || file.lastModified() < heapFile.lastModified();
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            if (stale)
+                channel.truncate(0);
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, buf.position()) < 0)
+                    break;
+            }
+            buf.flip();
+            while (buf.remaining() >= ENTRY_SIZE)
+                set(numPages, buf.getShort());
+        } catch (IOException e) {
+            // e.g., a read-only table; keep the map in memory only
+            Debug.log("FreeSpaceMap: cannot persist %s: %s", file, e);
+            close();
+        }
+    }
+
+    /**
+     * @return the number of pages the map has an entry for
+     */
+    synchronized int size() {
+        return numPages;
+    }
+
+    /**
+     * Forget the entries of all pages from the specified page on.
+     */
+    synchronized void truncate(int n) {
+        if (n >= numPages)
+            return;
+        room.clear(n, numPages);
+        numPages = n;
+    }
+
+    /**
+     * Record the free space on the specified page. Pages before it that
+     * have no entry yet are assumed to be full.
+     */
+    synchronized void set(int pgNo, int freeSpace) {
+        if (pgNo >= free.length)
+            free = Arrays.copyOf(free, Math.max(pgNo + 1, free.length * 2));
+        for (int i = numPages; i < pgNo; i++)
+            free[i] = 0;
+        numPages = Math.max(numPages, pgNo + 1);
+        free[pgNo] = (short) Math.min(Math.max(freeSpace, 0), Short.MAX_VALUE);
+        room.set(pgNo, free[pgNo] >= minRoom);
+    }
+
+    /**
+     * @return the free space recorded for the specified page
+     */
+    synchronized int get(int pgNo) {
+        return pgNo < numPages ? free[pgNo] : 0;
+    }
+
+    /**
+     * Find a page that had enough free space when it was last looked at.
+     * The search continues where the last one ended, so that inserters keep
+     * filling the same page and do not go back to the start of the file
+     * every time.
+     *
+     * @param needed the free space the page must have
+     * @return a page number, or -1 if no page is known to have room
+     */
+    synchronized int findPageWithRoom(int needed) {
+        int pgNo = search(cursor, numPages, needed);
+        if (pgNo < 0)
+            pgNo = search(0, Math.min(cursor, numPages), needed);
+        if (pgNo < 0)
+            return -1;
+        cursor = pgNo;
+        return pgNo;
+    }
+
+    private int search(int from, int to, int needed) {
+        for (int pgNo = room.nextSetBit(from); pgNo >= 0 && pgNo < to; pgNo = room.nextSetBit(pgNo + 1)) {
+            if (free[pgNo] >= needed)
+                return pgNo;
+        }
+        return -1;
+    }
+
+    /**
+     * Write the entry of the specified page to the side file.
+     */
+    synchronized void persist(int pgNo) {
+        if (channel == null || pgNo >= numPages)
+            return;
+        ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+        buf.putShort(free[pgNo]);
+        buf.flip();
+        write(buf, (long) pgNo * ENTRY_SIZE);
+    }
+
+    /**
+     * Write the whole map to the side file.
+     */
+    synchronized void persistAll() {
+        if (channel == null)
+            return;
+        ByteBuffer buf = ByteBuffer.allocate(numPages * ENTRY_SIZE);
+        for (int i = 0; i < numPages; i++)
+            buf.putShort(free[i]);
+        buf.flip();
+        write(buf, 0);
+        try {
+            channel.truncate((long) numPages * ENTRY_SIZE);
+        } catch (IOException e) {
+            Debug.log("FreeSpaceMap: cannot truncate %s: %s", file, e);
+        }
+    }
+
+    private void write(ByteBuffer buf, long offset) {
+        try {
+            while (buf.hasRemaining())
+                channel.write(buf, offset + buf.position());
+        } catch (IOException e) {
+            // the map is rebuilt from the pages if the side file is missing
+            // entries, so just stop writing it
+            Debug.log("FreeSpaceMap: cannot write %s: %s", file, e);
+            close();
+        }
+    }
+
+    /**
+     * Close the side file; the map keeps working in memory.
+     */
+    synchronized void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing was lost: every write went straight to the file
+        }
+        channel = null;
+    }
+}
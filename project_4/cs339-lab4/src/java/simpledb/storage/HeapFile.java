@@ -4,13 +4,24 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -18,17 +29,74 @@ import java.util.List;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * All page I/O goes through one FileChannel per HeapFile, which is opened on
+ * first use and kept open. Reads and writes are positional, so any number of
+ * threads can read pages concurrently without opening the file or sharing a
+ * file pointer. {@link #readPages} and {@link #writePages} sort the pages
+ * they are given and move each run of adjacent pages (up to
+ * {@link #MAX_RUN_PAGES}) with a single read or write.
+ * <p>
+ * A HeapFile can optionally be memory mapped, which suits tables that are
+ * loaded once and then mostly scanned. Pages are then parsed straight out
+ * of the mapped region instead of being read into a fresh array first;
+ * writes still go through the channel (the mapping is read-only, and sees
+ * them through the shared page cache). The file is mapped in fixed-size
+ * segments so that tables larger than 2GB can be mapped, and the last
+ * segment is remapped when the file grows.
+ * <p>
+ * Tuples are stored in {@link HeapPage}s, which give every tuple a
+ * fixed-size slot. Subclasses can store them in a different page format
+ * (see {@link SlottedFile} and {@link CompressedFile}); they reuse all of the I/O and only decide how
+ * pages are created and how much room a tuple needs on them.
+ * <p>
+ * Inserts find a page with free space through a {@link FreeSpaceMap}, which
+ * is kept in a side file next to the heap file and loaded on the first
+ * insert or delete, so an insert reads at most the pages the map wrongly
+ * believes to have room instead of every full page before the first free
+ * slot.
+ * <p>
+ * Tables with int fields also keep a {@link ZoneMap} of the range of values
+ * of each int field on each page, in another side file. It is loaded on the
+ * first insert or the first scan with predicates (see {@link
+ * #iterator(TransactionId, List)}), which skips the pages it rules out.
+ * Fields chosen with {@link #setBloomFields} get a {@link BloomMap} of
+ * per-page Bloom filters as well, which lets equality predicates and join
+ * probes on them skip the pages that do not hold the key.
  *
  * @author Sam Madden
  * @see HeapPage#HeapPage
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements DbFile, Closeable {
 
     private final File f;
     private final TupleDesc td;
     private final int tableid;
-    // a hack to remember the last page that had a free slot
-    private volatile int lastEmptyPage = -1;
+    private volatile FreeSpaceMap freeSpace = null; // loaded lazily, see freeSpace()
+    private volatile ZoneMap zones = null; // loaded lazily, see zones()
+    private volatile int[] bloomFields = new int[0];
+    private volatile BloomMap blooms = null; // loaded lazily, see blooms()
+    private volatile FileChannel channel = null; // opened lazily, see channel()
+
+    /**
+     * Number of pages covered by one mapped segment of a memory-mapped file.
+     */
+    static final int PAGES_PER_SEGMENT = 16384;
+    private final boolean memoryMapped;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0]; // copy on write, protected by this
+    private int segmentPageSize = -1; // page size the segments were mapped with, protected by this
+
+    // per-thread direct buffer for page I/O, so that reads and writes do not
+    // allocate (or make the JDK copy through) a temporary buffer every time
+    private static final ThreadLocal<ByteBuffer> ioBuffer = new ThreadLocal<>();
+
+    /**
+     * Largest number of adjacent pages read or written with one I/O by
+     * readPages and writePages.
+     */
+    static final int MAX_RUN_PAGES = 64;
+    // per-thread direct buffer runs of pages are read into and gathered in
+    private static final ThreadLocal<ByteBuffer> runBuffer = new ThreadLocal<>();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -37,9 +105,29 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f            the file that stores the on-disk backing store for
+     *                     this heap file.
+     * @param memoryMapped if true, pages are read through a memory mapping
+     *                     of the file rather than with read calls
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.td = td;
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -73,43 +161,476 @@ public class HeapFile implements DbFile {
         return td;
     }
 
+    /**
+     * Returns the channel all I/O on this file goes through, opening it if
+     * this is the first I/O (or if the file was closed with {@link #close}).
+     */
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c == null || !c.isOpen()) {
+            synchronized (this) {
+                c = channel;
+                if (c == null || !c.isOpen()) {
+                    try {
+                        c = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    } catch (AccessDeniedException e) {
+                        // read-only table; writes will fail when attempted
+                        c = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+                    }
+                    channel = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Close the underlying file. The file is reopened by the next I/O, so
+     * this is only a way to release the file descriptor early.
+     */
+    public synchronized void close() throws IOException {
+        segments = new MappedByteBuffer[0];
+        if (freeSpace != null) {
+            freeSpace.close();
+            freeSpace = null;
+        }
+        if (zones != null) {
+            zones.close();
+            zones = null;
+        }
+        if (blooms != null) {
+            blooms.close();
+            blooms = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Returns the free space map of this file, loading it (and counting the
+     * free slots of the pages it has no entries for) on first use.
+     */
+    private FreeSpaceMap freeSpace() throws IOException {
+        FreeSpaceMap m = freeSpace;
+        if (m == null) {
+            synchronized (this) {
+                m = freeSpace;
+                if (m == null) {
+                    m = new FreeSpaceMap(f, minSpaceNeeded());
+                    int n = numPages();
+                    m.truncate(n);
+                    if (m.size() < n) {
+                        for (int pgNo = m.size(); pgNo < n; pgNo++)
+                            m.set(pgNo, readFreeSpace(pgNo));
+                        m.persistAll();
+                    }
+                    freeSpace = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Returns the zone map of this file, loading it on first use.
+     *
+     * @return the zone map, or null if the table has no int fields
+     */
+    private ZoneMap zones() {
+        ZoneMap m = zones;
+        if (m == null && ZoneMap.covers(td)) {
+            synchronized (this) {
+                m = zones;
+                if (m == null) {
+                    m = new ZoneMap(f, td);
+                    m.truncate(numPages());
+                    zones = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Choose the fields to keep per-page Bloom filters of. The filters of
+     * the previous choice are dropped.
+     *
+     * @param fields indexes of fields of this file's TupleDesc
+     */
+    public synchronized void setBloomFields(int... fields) {
+        if (blooms != null) {
+            blooms.close();
+            blooms = null;
+        }
+        bloomFields = fields.clone();
+    }
+
+    /**
+     * @return true if this file keeps Bloom filters of the specified field
+     */
+    public boolean hasBloomFilter(int field) {
+        for (int f : bloomFields) {
+            if (f == field)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the Bloom filters of this file, loading them on first use.
+     *
+     * @return the filters, or null if no fields were chosen
+     */
+    private BloomMap blooms() {
+        BloomMap m = blooms;
+        if (m == null && bloomFields.length > 0) {
+            synchronized (this) {
+                m = blooms;
+                if (m == null && bloomFields.length > 0) {
+                    m = new BloomMap(f, td, bloomFields);
+                    m.truncate(numPages());
+                    blooms = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Counts the free space of the specified page straight from the file,
+     * without going through the buffer pool (used to build the free space
+     * map). For HeapPages, only the header has to be read.
+     */
+    int readFreeSpace(int pgNo) throws IOException {
+        long offset = (long) pgNo * BufferPool.getPageSize();
+        FileChannel c = channel();
+        ByteBuffer buf = ByteBuffer.allocate(HeapPage.getHeaderSize(td));
+        while (buf.hasRemaining()) {
+            if (c.read(buf, offset + buf.position()) < 0)
+                throw new IOException("Unable to read header of page " + pgNo);
+        }
+        return HeapPage.getNumUnusedSlots(buf.array(), HeapPage.getNumTuples(td));
+    }
+
+    /**
+     * Creates a page of this file from one page worth of bytes starting at
+     * the current position of a buffer.
+     */
+    TuplePage createPage(HeapPageId id, ByteBuffer data) {
+        return new HeapPage(id, data);
+    }
+
+    /**
+     * @return the data of an empty page of this file
+     */
+    byte[] createEmptyPageData() {
+        return HeapPage.createEmptyPageData();
+    }
+
+    /**
+     * @return the free space (as counted by {@link TuplePage#getFreeSpace})
+     *         a page needs to be able to take the specified tuple
+     */
+    int spaceNeeded(Tuple t) {
+        return 1;
+    }
+
+    /**
+     * @return the free space a page needs to be able to take any tuple of
+     *         this file at all
+     */
+    int minSpaceNeeded() {
+        return 1;
+    }
+
+    /**
+     * @return true if the specified tuple fits on the page. This is decided
+     *         by spaceNeeded unless the page format can only tell by looking
+     *         at the tuple and the page together.
+     */
+    boolean hasRoomFor(TuplePage p, Tuple t) {
+        return p.getFreeSpace() >= spaceNeeded(t);
+    }
+
+    /**
+     * Returns the mapped bytes of the specified page, mapping (or remapping
+     * a grown) segment of the file if necessary.
+     *
+     * @return a buffer positioned at the start of the page and limited to
+     *         its end, or null if the page lies beyond the end of the file
+     */
+    private ByteBuffer mappedPage(int pgNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int seg = pgNo / PAGES_PER_SEGMENT;
+        int offset = (pgNo % PAGES_PER_SEGMENT) * pageSize;
+
+        MappedByteBuffer[] segs = segments;
+        if (seg >= segs.length || segs[seg] == null || segs[seg].capacity() < offset + pageSize) {
+            synchronized (this) {
+                segs = segments;
+                if (segmentPageSize != pageSize) {
+                    segs = new MappedByteBuffer[0];
+                    segmentPageSize = pageSize;
+                }
+                if (seg >= segs.length || segs[seg] == null || segs[seg].capacity() < offset + pageSize) {
+                    long segStart = (long) seg * PAGES_PER_SEGMENT * pageSize;
+                    long size = Math.min((long) PAGES_PER_SEGMENT * pageSize,
+                            channel().size() - segStart);
+                    if (size < offset + pageSize)
+                        return null;
+                    segs = Arrays.copyOf(segs, Math.max(segs.length, seg + 1));
+                    segs[seg] = channel().map(FileChannel.MapMode.READ_ONLY, segStart, size);
+                    segments = segs;
+                }
+            }
+        }
+        return segs[seg].slice(offset, pageSize);
+    }
+
+    /**
+     * @return this thread's page I/O buffer, cleared and limited to one page
+     */
+    private static ByteBuffer ioBuffer() {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = ioBuffer.get();
+        if (buf == null || buf.capacity() != pageSize) {
+            buf = ByteBuffer.allocateDirect(pageSize);
+            ioBuffer.set(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * @return this thread's run I/O buffer, cleared
+     */
+    private static ByteBuffer runBuffer() {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = runBuffer.get();
+        if (buf == null || buf.capacity() != MAX_RUN_PAGES * pageSize) {
+            buf = ByteBuffer.allocateDirect(MAX_RUN_PAGES * pageSize);
+            runBuffer.set(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         HeapPageId id = (HeapPageId) pid;
+        int pageSize = BufferPool.getPageSize();
+        long offset = (long) id.getPageNumber() * pageSize;
+
+        try {
+            if (memoryMapped) {
+                ByteBuffer mapped = mappedPage(id.getPageNumber());
+                if (mapped == null) {
+                    throw new IllegalArgumentException("Read past end of table");
+                }
+                Debug.log(1, "HeapFile.readPage: mapped page %d", id.getPageNumber());
+                return noteRead(createPage(id, mapped));
+            }
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            byte[] pageBuf = new byte[BufferPool.getPageSize()];
-            if (bis.skip((long) id.getPageNumber() * BufferPool.getPageSize()) != (long) id
-                    .getPageNumber() * BufferPool.getPageSize()) {
-                throw new IllegalArgumentException(
-                        "Unable to seek to correct place in heapfile");
+            FileChannel c = channel();
+            ByteBuffer buf = ioBuffer();
+            while (buf.hasRemaining()) {
+                if (c.read(buf, offset + buf.position()) < 0)
+                    break;
             }
-            int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-            if (retval == -1) {
+            if (buf.position() == 0) {
                 throw new IllegalArgumentException("Read past end of table");
             }
-            if (retval < BufferPool.getPageSize()) {
+            if (buf.position() < pageSize) {
                 throw new IllegalArgumentException("Unable to read "
-                        + BufferPool.getPageSize() + " bytes from heapfile");
+                        + pageSize + " bytes from heapfile");
             }
+            buf.flip();
+            byte[] pageBuf = new byte[pageSize];
+            buf.get(pageBuf);
             Debug.log(1, "HeapFile.readPage: read page %d", id.getPageNumber());
-            return new HeapPage(id, pageBuf);
+            return noteRead(createPage(id, ByteBuffer.wrap(pageBuf)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Refresh the free space map entry of a page that was just read, if the
+     * map is loaded (this corrects entries that went out of date, e.g.
+     * because an abort put a page's before image back into the pool), and
+     * compute its zone and Bloom filters if it has none yet.
+     */
+    private TuplePage noteRead(TuplePage p) {
+        int pgNo = p.getId().getPageNumber();
+        FreeSpaceMap m = freeSpace;
+        if (m != null)
+            m.set(pgNo, p.getFreeSpace());
+        ZoneMap z = zones;
+        if (z != null && !z.isKnown(pgNo)) {
+            z.set(pgNo, p);
+            z.persist(pgNo);
+        }
+        BloomMap b = blooms;
+        if (b != null && !b.isKnown(pgNo)) {
+            b.set(pgNo, p);
+            b.persist(pgNo);
+        }
+        return p;
+    }
+
+    /**
+     * Read the specified pages, one run of adjacent pages at a time.
+     */
+    @Override
+    public List<Page> readPages(List<PageId> ids) {
+        if (memoryMapped || ids.size() < 2)
+            return DbFile.super.readPages(ids);
+        TreeMap<Integer, HeapPageId> sorted = new TreeMap<>();
+        for (PageId id : ids)
+            sorted.put(id.getPageNumber(), (HeapPageId) id);
+        Map<Integer, Page> read = new HashMap<>();
+        try {
+            FileChannel c = channel();
+            List<HeapPageId> run = new ArrayList<>();
+            for (HeapPageId id : sorted.values()) {
+                if (!run.isEmpty() && (run.size() == MAX_RUN_PAGES
+                        || id.getPageNumber() != run.get(run.size() - 1).getPageNumber() + 1)) {
+                    readRun(c, run, read);
+                    run.clear();
+                }
+                run.add(id);
+            }
+            readRun(c, run, read);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
+        List<Page> result = new ArrayList<>(ids.size());
+        for (PageId id : ids)
+            result.add(read.get(id.getPageNumber()));
+        return result;
+    }
+
+    /**
+     * Read a run of adjacent pages with one read. Each page gets its own
+     * copy of its bytes: lazily decoded tuples keep their page's bytes
+     * reachable, and must not keep those of the whole run with them.
+     */
+    private void readRun(FileChannel c, List<HeapPageId> run, Map<Integer, Page> read) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int first = run.get(0).getPageNumber();
+        ByteBuffer buf = runBuffer();
+        buf.limit(run.size() * pageSize);
+        long offset = (long) first * pageSize;
+        while (buf.hasRemaining()) {
+            if (c.read(buf, offset + buf.position()) < 0)
+                throw new IllegalArgumentException("Read past end of table");
+        }
+        Debug.log(1, "HeapFile.readPages: read pages %d to %d", first, first + run.size() - 1);
+        buf.flip();
+        for (int i = 0; i < run.size(); i++) {
+            byte[] data = new byte[pageSize];
+            buf.get(data);
+            read.put(first + i, noteRead(createPage(run.get(i), ByteBuffer.wrap(data))));
+        }
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        HeapPage p = (HeapPage) page;
+        TuplePage p = (TuplePage) page;
         // System.out.println("Writing back page " + p.getId().pageno());
-        byte[] data = p.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek((long) p.getId().getPageNumber() * BufferPool.getPageSize());
-        rf.write(data);
-        rf.close();
+        int pgNo = p.getId().getPageNumber();
+        writePageData(pgNo, p.getPageData());
+        noteWritten(p);
+    }
+
+    /**
+     * Write the specified pages, one run of adjacent pages at a time.
+     */
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.size() < 2) {
+            DbFile.super.writePages(pages);
+            return;
+        }
+        TreeMap<Integer, Page> sorted = new TreeMap<>();
+        for (Page p : pages)
+            sorted.put(p.getId().getPageNumber(), p);
+        FileChannel c = channel();
+        List<Page> run = new ArrayList<>();
+        for (Page p : sorted.values()) {
+            if (!run.isEmpty() && (run.size() == MAX_RUN_PAGES
+                    || p.getId().getPageNumber() != run.get(run.size() - 1).getId().getPageNumber() + 1)) {
+                writeRun(c, run);
+                run.clear();
+            }
+            run.add(p);
+        }
+        writeRun(c, run);
+    }
+
+    /**
+     * Write a run of adjacent pages with one write.
+     */
+    private void writeRun(FileChannel c, List<Page> run) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = runBuffer();
+        for (Page p : run) {
+            byte[] data = p.getPageData();
+            buf.put(data, 0, Math.min(data.length, pageSize));
+            for (int i = data.length; i < pageSize; i++)
+                buf.put((byte) 0);
+        }
+        buf.flip();
+        long offset = (long) run.get(0).getId().getPageNumber() * pageSize;
+        while (buf.hasRemaining())
+            c.write(buf, offset + buf.position());
+        for (Page p : run)
+            noteWritten((TuplePage) p);
+    }
+
+    /**
+     * Bring the free space, zone and Bloom maps up to date with a page that
+     * was just written. If the page was written from its before image while
+     * a transaction has changed it in the pool, its zone and Bloom filters
+     * are left alone: they also cover the changes, which that transaction's
+     * own scans must not skip.
+     */
+    private void noteWritten(TuplePage p) {
+        int pgNo = p.getId().getPageNumber();
+        FreeSpaceMap m = freeSpace;
+        if (m != null) {
+            m.set(pgNo, p.getFreeSpace());
+            m.persist(pgNo);
+        }
+        if (Database.getBufferPool().hasUncommittedChanges(p))
+            return;
+        ZoneMap z = zones;
+        if (z != null) {
+            z.set(pgNo, p);
+            z.persist(pgNo);
+        }
+        BloomMap b = blooms;
+        if (b != null) {
+            b.set(pgNo, p);
+            b.persist(pgNo);
+        }
+    }
+
+    /**
+     * Write one page worth of data at the offset of the specified page.
+     */
+    private void writePageData(int pgNo, byte[] data) throws IOException {
+        long offset = (long) pgNo * BufferPool.getPageSize();
+        FileChannel c = channel();
+        ByteBuffer buf = ioBuffer();
+        buf.put(data, 0, Math.min(data.length, buf.remaining()));
+        buf.flip();
+        while (buf.hasRemaining()) {
+            c.write(buf, offset + buf.position());
+        }
     }
 
     /**
@@ -126,43 +647,53 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         List<Page> dirtypages = new ArrayList<>();
 
-        // find the first page with a free slot in it
-        int i = 0;
-        if (lastEmptyPage != -1)
-            i = lastEmptyPage;
-        // XXX: Would it not be better to scan from numPages() to 0 since the
-        // last pages are more likely to have empty slots?
-        for (; i < numPages(); i++) {
+        // find a page with room for the tuple
+        FreeSpaceMap fsm = freeSpace();
+        ZoneMap zm = zones();
+        BloomMap bm = blooms();
+        int needed = spaceNeeded(t);
+        int i;
+        while ((i = fsm.findPageWithRoom(needed)) != -1) {
             Debug.log(
                     4,
                     "HeapFile.addTuple: checking free slots on page %d of table %d",
                     i, tableid);
             HeapPageId pid = new HeapPageId(tableid, i);
-            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid,
+            // lock the page exclusively right away: peeking with a shared
+            // lock and upgrading it is how inserters that the map sends to
+            // the same page deadlock
+            boolean alreadyLocked = Database.getBufferPool().holdsLock(tid, pid);
+            TuplePage p = (TuplePage) Database.getBufferPool().getPage(tid, pid,
                     Permissions.READ_WRITE);
 
-            // no empty slots
+            // no room after all; the map was out of date
             //
             // think about why we have to invoke releasePage here.
             // can you think of ways where
-            if (p.getNumUnusedSlots() == 0) {
+            if (!hasRoomFor(p, t)) {
                 Debug.log(
                         4,
                         "HeapFile.addTuple: no free slots on page %d of table %d",
                         i, tableid);
-
-                // we mistakenly got here through lastEmptyPage, just add a page
-                // XXX we know this isn't very pretty.
-                if (lastEmptyPage != -1) {
-                    lastEmptyPage = -1;
-                    break;
-                }
+                // (less than needed, so that the map does not offer the
+                // page for this tuple size again)
+                fsm.set(i, Math.min(p.getFreeSpace(), needed - 1));
+                // we only looked at the header of this page; nothing we
+                // return depends on it, so the lock need not be held to
+                // the end of the transaction
+                Database.getBufferPool().unpinPage(tid, pid);
+                if (!alreadyLocked)
+                    Database.getBufferPool().unsafeReleasePage(tid, pid);
                 continue;
             }
-            Debug.log(4, "HeapFile.addTuple: %d free slots in table %d",
-                    p.getNumUnusedSlots(), tableid);
+            Debug.log(4, "HeapFile.addTuple: %d free space in table %d",
+                    p.getFreeSpace(), tableid);
             p.insertTuple(t);
-            lastEmptyPage = p.getId().getPageNumber();
+            fsm.set(i, p.getFreeSpace());
+            if (zm != null)
+                zm.widen(i, t);
+            if (bm != null)
+                bm.add(i, t);
             // System.out.println("nfetches = " + nfetches);
             dirtypages.add(p);
             return dirtypages;
@@ -176,24 +707,50 @@ public class HeapFile implements DbFile {
         // new tuples to the page. The second transaction then overwrites the
         // data with an empty
         // page, losing the new data.
+        int newPageNo;
         synchronized (this) {
-            BufferedOutputStream bw = new BufferedOutputStream(
-                    new FileOutputStream(f, true));
-            byte[] emptyData = HeapPage.createEmptyPageData();
-            bw.write(emptyData);
-            bw.close();
+            newPageNo = numPages();
+            byte[] empty = createEmptyPageData();
+            writePageData(newPageNo, empty);
+            TuplePage emptyPage = createPage(new HeapPageId(tableid, newPageNo), ByteBuffer.wrap(empty));
+            fsm.set(newPageNo, emptyPage.getFreeSpace());
+            fsm.persist(newPageNo);
+            if (zm != null) {
+                zm.set(newPageNo, emptyPage);
+                zm.persist(newPageNo);
+            }
+            if (bm != null) {
+                bm.set(newPageNo, emptyPage);
+                bm.persist(newPageNo);
+            }
         }
 
         // by virtue of writing these bits to the HeapFile, it is now visible.
         // so some other dude may have obtained a read lock on the empty page
         // we just created---which is ok, we haven't yet added the tuple.
         // we just need to lock the page before we can add the tuple to it.
-
-        HeapPage p = (HeapPage) Database.getBufferPool()
-                .getPage(tid, new HeapPageId(tableid, numPages() - 1),
-                        Permissions.READ_WRITE);
+        // (use the page number we appended, not numPages() - 1: another
+        // inserter may have appended a page of its own in the meantime)
+
+        HeapPageId pid = new HeapPageId(tableid, newPageNo);
+        boolean alreadyLocked = Database.getBufferPool().holdsLock(tid, pid);
+        TuplePage p = (TuplePage) Database.getBufferPool().getPage(tid, pid,
+                Permissions.READ_WRITE);
+        if (!hasRoomFor(p, t)) {
+            // the map offers the page as soon as it is appended, so the
+            // inserters it was offered to may have filled it while we waited
+            // for the lock
+            Database.getBufferPool().unpinPage(tid, pid);
+            if (!alreadyLocked)
+                Database.getBufferPool().unsafeReleasePage(tid, pid);
+            return insertTuple(tid, t);
+        }
         p.insertTuple(t);
-        lastEmptyPage = p.getId().getPageNumber();
+        fsm.set(newPageNo, p.getFreeSpace());
+        if (zm != null)
+            zm.widen(newPageNo, t);
+        if (bm != null)
+            bm.add(newPageNo, t);
         // System.out.println("nfetches = " + nfetches);
         dirtypages.add(p);
         return dirtypages;
@@ -202,41 +759,133 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(
+        TuplePage p = (TuplePage) Database.getBufferPool().getPage(
                 tid,
                 new HeapPageId(tableid, t.getRecordId().getPageId()
                         .getPageNumber()), Permissions.READ_WRITE);
         p.deleteTuple(t);
+        try {
+            freeSpace().set(p.getId().getPageNumber(), p.getFreeSpace());
+        } catch (IOException e) {
+            throw new DbException("unable to load free space map: " + e.getMessage());
+        }
         List<Page> pages = new ArrayList<>();
         pages.add(p);
         return pages;
     }
 
+    /**
+     * Fetch a single tuple by its RecordId (e.g., one an index points at),
+     * reading its page through the BufferPool with a shared lock.
+     *
+     * @return the tuple, or null if its slot is empty
+     */
+    public Tuple getTuple(TransactionId tid, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        HeapPageId pid = new HeapPageId(tableid, rid.getPageId().getPageNumber());
+        TuplePage p = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        Tuple t = p.getTuple(rid.getTupleNumber());
+        Database.getBufferPool().unpinPage(tid, pid);
+        return t;
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, null, null, null, -1, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that skips the pages
+     * on which, according to the zone map and the Bloom filters, no tuple
+     * can satisfy all of the specified predicates. It may still return
+     * tuples that do not satisfy them; the predicates only rule out pages.
+     *
+     * @param predicates predicates on fields of this file's TupleDesc
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates) {
+        return iterator(tid, predicates, -1, null);
+    }
+
+    /**
+     * Returns an iterator like {@link #iterator(TransactionId, List)} that
+     * also skips the pages on which, according to the Bloom filters of the
+     * specified field, no tuple has one of the specified keys in it (e.g.,
+     * the keys a join probes this file with). Keys are only looked up if
+     * the field has Bloom filters.
+     *
+     * @param keyField the field the keys are values of, or -1
+     * @param keys     the keys, or null to not restrict the scan by key
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates, int keyField,
+                                   Collection<Field> keys) {
+        if (keys != null && !hasBloomFilter(keyField))
+            keys = null;
+        BloomMap b = predicates.isEmpty() && keys == null ? null : blooms();
+        return new HeapFileIterator(this, tid, predicates.isEmpty() ? null : zones(), b, predicates, keyField, keys);
     }
 
 }
 
 /**
  * Helper class that implements the Java Iterator for tuples on a HeapFile
+ * <p>
+ * A scan reads pages strictly in order, so the iterator asks the buffer
+ * pool to read the next pages ahead of it. The read-ahead window starts
+ * small, doubles every time the scan catches up with the pages read ahead
+ * (up to MAX_READ_AHEAD pages), and is halved when the pool has no room to
+ * read as far ahead as asked. Pages the zone map rules out are neither read
+ * nor read ahead, and neither are the pages the Bloom filters rule out.
+ * <p>
+ * A scan of a table too large for the pool reads it through a {@link
+ * ScanRing}, and reads no further ahead than half the ring, so the pages it
+ * reads ahead are not recycled before it gets to them.
  */
 class HeapFileIterator extends AbstractDbFileIterator {
 
+    static final int MIN_READ_AHEAD = 2;
+    static final int MAX_READ_AHEAD = 32;
+
     Iterator<Tuple> it = null;
     int curpgno = 0;
+    HeapPageId pinned = null; // the page it iterates over, pinned until we move on
+    int readAheadWindow = MIN_READ_AHEAD;
+    int readAheadUpTo = -1; // last page requested from the pool ahead of time
+    ScanRing ring = null; // null if the scan uses the whole pool
+    int maxReadAhead = MAX_READ_AHEAD;
 
     final TransactionId tid;
     final HeapFile hf;
-
-    public HeapFileIterator(HeapFile hf, TransactionId tid) {
+    final ZoneMap zones; // null to not skip pages by range
+    final BloomMap blooms; // null to not skip pages by key
+    final List<Predicate> predicates;
+    final int keyField;
+    final Collection<Field> keys; // null if the scan is not restricted by key
+
+    public HeapFileIterator(HeapFile hf, TransactionId tid, ZoneMap zones, BloomMap blooms,
+                            List<Predicate> predicates, int keyField, Collection<Field> keys) {
         this.hf = hf;
         this.tid = tid;
+        this.zones = zones;
+        this.blooms = blooms;
+        this.predicates = predicates;
+        this.keyField = keyField;
+        this.keys = keys;
+    }
+
+    private boolean skip(int pgno) {
+        if (zones != null && !zones.mayMatch(pgno, predicates))
+            return true;
+        return blooms != null && (!blooms.mayMatch(pgno, predicates)
+                || (keys != null && !blooms.mayContainAny(pgno, keyField, keys)));
     }
 
     public void open() {
         curpgno = -1;
+        readAheadWindow = MIN_READ_AHEAD;
+        readAheadUpTo = -1;
+        ring = Database.getBufferPool().newScanRing(hf.numPages());
+        maxReadAhead = ring == null ? MAX_READ_AHEAD
+                : Math.max(MIN_READ_AHEAD, Math.min(MAX_READ_AHEAD, ring.getCapacity() / 2));
     }
 
     @Override
@@ -245,20 +894,73 @@ class HeapFileIterator extends AbstractDbFileIterator {
             it = null;
 
         while (it == null && curpgno < hf.numPages() - 1) {
+            unpin();
             curpgno++;
+            if (skip(curpgno))
+                continue;
+            readAhead();
             HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
-            HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid,
-                    curpid, Permissions.READ_ONLY);
+            TuplePage curp = (TuplePage) Database.getBufferPool().getPage(tid,
+                    curpid, Permissions.READ_ONLY, ring);
+            pinned = curpid;
+            // a page that was in the pool before the zone map (or the
+            // Bloom filters) were loaded gets its zone (and filters) here,
+            // unless it has uncommitted changes
+            if (zones != null && !zones.isKnown(curpgno) && curp.isDirty() == null) {
+                zones.set(curpgno, curp);
+                zones.persist(curpgno);
+            }
+            if (blooms != null && !blooms.isKnown(curpgno) && curp.isDirty() == null) {
+                blooms.set(curpgno, curp);
+                blooms.persist(curpgno);
+            }
             it = curp.iterator();
             if (!it.hasNext())
                 it = null;
         }
 
-        if (it == null)
+        if (it == null) {
+            unpin();
             return null;
+        }
         return it.next();
     }
 
+    private void unpin() {
+        if (pinned != null) {
+            Database.getBufferPool().unpinPage(tid, pinned);
+            pinned = null;
+        }
+    }
+
+    /**
+     * Once the scan is into the second half of the pages read ahead, ask
+     * for the next window (so the next reads overlap with processing).
+     */
+    private void readAhead() {
+        if (readAheadUpTo - curpgno > readAheadWindow / 2)
+            return;
+        int first = Math.max(curpgno + 1, readAheadUpTo + 1);
+        int last = Math.min(hf.numPages() - 1, first + readAheadWindow - 1);
+        if (first > last)
+            return;
+
+        List<PageId> pids = new ArrayList<>(last - first + 1);
+        for (int pgno = first; pgno <= last; pgno++) {
+            if (!skip(pgno))
+                pids.add(new HeapPageId(hf.getId(), pgno));
+        }
+        int accepted = pids.isEmpty() ? 0 : Database.getBufferPool().prefetch(pids, ring);
+        if (accepted == pids.size())
+            readAheadUpTo = last;
+        else
+            readAheadUpTo = accepted == 0 ? first - 1 : pids.get(accepted - 1).getPageNumber();
+        if (accepted < pids.size())
+            readAheadWindow = Math.max(MIN_READ_AHEAD, readAheadWindow / 2);
+        else
+            readAheadWindow = Math.min(maxReadAhead, readAheadWindow * 2);
+    }
+
     public void rewind() {
         close();
         open();
@@ -267,6 +969,8 @@ class HeapFileIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
+        unpin();
+        ring = null;
         curpgno = Integer.MAX_VALUE;
     }
 }
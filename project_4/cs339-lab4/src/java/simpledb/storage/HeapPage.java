@@ -7,28 +7,55 @@ import simpledb.common.Debug;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the bytes it was read from and decodes tuples lazily:
+ * reading a page only copies its header, a tuple is only created when an
+ * iterator reaches its slot, and each of its fields is only decoded the
+ * first time it is accessed (see {@link Tuple#getField}). Tuples inserted
+ * into the page are kept aside until the page is serialized again, so the
+ * original bytes are never modified. Pages read straight out of a
+ * memory-mapped file are the exception: their bytes can change under them,
+ * so their tuples are decoded when they are created.
+ * <p>
+ * For the same reason, the before image used by recovery costs nothing until
+ * the page is changed: it is only captured when a transaction first inserts
+ * or deletes a tuple after the last {@link #setBeforeImage}, and a page that
+ * has not been changed since it was read simply shares its bytes.
  *
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements TuplePage {
     private volatile boolean dirty = false;
     private volatile TransactionId dirtier = null;
 
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
-
-    byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    // the page as it was read; never modified (and never has its position
+    // moved), so any number of threads may decode fields out of it
+    private ByteBuffer data;
+    // offset of each field within a tuple
+    private final int[] fieldOffsets;
+    // tuples inserted since the page was read, by slot; allocated on first
+    // insert
+    private Tuple[] inserted = null;
+    // true once the page no longer matches data
+    private boolean modified = false;
+
+    // the contents of the page as of the last setBeforeImage, or null if the
+    // page has not changed since, in which case the before image is the page
+    // itself. Captured on the first change after setBeforeImage.
+    private ByteBuffer oldData = null;
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -42,33 +69,42 @@ public class HeapPage implements Page {
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a reference to data, which must not be modified
+     * afterwards.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from one page worth of bytes starting at the current
+     * position of a buffer, without first copying them into an array (e.g.,
+     * straight from a memory-mapped file). The buffer's position is not
+     * changed; the page keeps a view of its contents, which must not be
+     * modified afterwards.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data.slice();
+        if (this.data.remaining() < BufferPool.getPageSize())
+            throw new IllegalArgumentException("page data too short");
 
-        // allocate and read the header slots of this page
+        // read the header slots of this page; the records are decoded
+        // on demand
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
+        this.data.get(0, header);
 
-        setBeforeImage();
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
     }
 
     /**
@@ -77,9 +113,16 @@ public class HeapPage implements Page {
      * @return the number of tuples on this page
      */
     private int getNumTuples() {
+        return getNumTuples(td);
+    }
+
+    /**
+     * @return the number of tuple slots on a page of a table with the
+     *         specified schema
+     */
+    static int getNumTuples(TupleDesc td) {
         int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
         return (BufferPool.getPageSize() * 8) / bitsPerTupleIncludingHeader;
-
     }
 
     /**
@@ -88,8 +131,16 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
+        return getHeaderSize(td);
+    }
 
-        int tuplesPerPage = getNumTuples();
+    /**
+     * @return the number of header bytes on a page of a table with the
+     *         specified schema
+     */
+    static int getHeaderSize(TupleDesc td) {
+
+        int tuplesPerPage = getNumTuples(td);
         int hb = (tuplesPerPage / 8);
         if (hb * 8 < tuplesPerPage) hb++;
 
@@ -102,24 +153,32 @@ public class HeapPage implements Page {
      * -- used by recovery
      */
     public HeapPage getBeforeImage() {
-        try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid, oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
+        ByteBuffer oldDataRef = null;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
         }
-        return null;
+        if (oldDataRef == null)
+            oldDataRef = modified ? ByteBuffer.wrap(getPageData()) : data;
+        return new HeapPage(pid, oldDataRef);
     }
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = null;
+        }
+    }
+
+    /**
+     * Called before every change to the page: if this is the first change
+     * since the last setBeforeImage, remember the current contents as the
+     * before image.
+     */
+    private void captureBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = modified ? ByteBuffer.wrap(getPageData()) : data;
         }
+        modified = true;
     }
 
     /**
@@ -130,37 +189,44 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the specified slot within the page data
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slot) {
+        return header.length + slot * td.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    /**
+     * Decode one field of a tuple, without materializing the rest of it.
+     * Fields of tuples inserted since the page was read come from the
+     * inserted tuple; all others are decoded from the bytes the page was
+     * read from.
+     *
+     * @param slot  the slot of the tuple
+     * @param field the index of the field in the tuple
+     * @return the field
+     * @throws NoSuchElementException if the field could not be decoded
+     */
+    public Field getField(int slot, int field) throws NoSuchElementException {
+        if (slot < 0 || slot >= numSlots)
+            throw new NoSuchElementException();
+        Tuple[] ins = inserted;
+        if (ins != null && ins[slot] != null)
+            return ins[slot].getField(field);
+        return readField(slot, field);
+    }
+
+    /**
+     * Decode one field of the specified slot as it was when the page was
+     * read. Used by the lazily decoded tuples returned by getTuple, which
+     * stay valid if their slot is reused later.
+     */
+    Field readField(int slot, int field) {
         try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            return td.getFieldType(field).parse(data, slotOffset(slot) + fieldOffsets[field]);
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
-
-        return t;
     }
 
     /**
@@ -176,63 +242,48 @@ public class HeapPage implements Page {
      */
     public byte[] getPageData() {
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        int tupleSize = td.getSize();
+        byte[] result = new byte[len];
 
         // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, result, 0, header.length);
 
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+        // copy the tuples that are still as they were read, and serialize
+        // the ones that were inserted since; empty slots and the padding
+        // stay zero
+        ByteArrayOutputStream baos = null;
+        DataOutputStream dos = null;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            int off = slotOffset(i);
+            if (inserted == null || inserted[i] == null) {
+                data.get(off, result, off, tupleSize);
                 continue;
             }
 
-            // non-empty slot
+            if (baos == null) {
+                baos = new ByteArrayOutputStream(tupleSize);
+                dos = new DataOutputStream(baos);
+            }
+            baos.reset();
             for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = inserted[i].getField(j);
                 try {
                     f.serialize(dos);
-
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            try {
+                dos.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.arraycopy(baos.toByteArray(), 0, result, off, tupleSize);
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return result;
     }
 
     /**
@@ -263,7 +314,11 @@ public class HeapPage implements Page {
             throw new DbException("tried to delete tuple on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to delete null tuple.");
+        detach();
+        captureBeforeImage();
         markSlotUsed(rid.getTupleNumber(), false);
+        if (inserted != null)
+            inserted[rid.getTupleNumber()] = null;
     }
 
     /**
@@ -280,21 +335,39 @@ public class HeapPage implements Page {
             throw new DbException("type mismatch, in addTuple");
 
         int goodSlot = -1;
-        for (int i = 0; i < numSlots; i++) {
-            if (!isSlotUsed(i) && goodSlot == -1) {
+        for (int b = 0; b < header.length && goodSlot == -1; b++) {
+            if (header[b] == (byte) 0xFF)
+                continue;
+            int i = b * 8 + Integer.numberOfTrailingZeros(~header[b] & 0xFF);
+            if (i < numSlots)
                 goodSlot = i;
-                break;
-            }
-
         }
         if (goodSlot == -1)
             throw new DbException("called addTuple on page with no empty slots.");
 
+        detach();
+        captureBeforeImage();
         markSlotUsed(goodSlot, true);
         Debug.log(1, "HeapPage.addTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
         RecordId rid = new RecordId(pid, goodSlot);
         t.setRecordId(rid);
-        tuples[goodSlot] = t;
+        if (inserted == null)
+            inserted = new Tuple[numSlots];
+        inserted[goodSlot] = t;
+    }
+
+    /**
+     * Before the first change to a page that was read straight out of a
+     * memory-mapped file, take a private copy of its bytes: once the page is
+     * written back, the mapping changes underneath it, and tuples that were
+     * handed out earlier would otherwise start decoding the new contents.
+     */
+    private void detach() {
+        if (!data.isDirect())
+            return;
+        byte[] copy = new byte[data.capacity()];
+        data.get(0, copy);
+        data = ByteBuffer.wrap(copy);
     }
 
     /**
@@ -321,11 +394,32 @@ public class HeapPage implements Page {
      * Returns the number of unused (i.e., empty) slots on this page.
      */
     public int getNumUnusedSlots() {
-        int cnt = 0;
-        for (int i = 0; i < numSlots; i++)
-            if (!isSlotUsed(i))
-                cnt++;
-        return cnt;
+        return getNumUnusedSlots(header, numSlots);
+    }
+
+    /**
+     * @return the number of unused slots on this page
+     */
+    public int getFreeSpace() {
+        return getNumUnusedSlots();
+    }
+
+    /**
+     * Counts the unused slots of a page from its header alone, without
+     * creating the page.
+     *
+     * @param header   the header bytes of the page
+     * @param numSlots the number of slots on the page
+     */
+    static int getNumUnusedSlots(byte[] header, int numSlots) {
+        int used = 0;
+        for (int b = 0; b < header.length; b++) {
+            int bits = header[b] & 0xFF;
+            if (b == header.length - 1 && numSlots % 8 != 0)
+                bits &= (1 << (numSlots % 8)) - 1;
+            used += Integer.bitCount(bits);
+        }
+        return numSlots - used;
     }
 
     /**
@@ -359,25 +453,41 @@ public class HeapPage implements Page {
         return new HeapPageIterator(this);
     }
 
-    // protected method used by the iterator to get the ith tuple
-    // out of this page
-    Tuple getTuple(int i) throws NoSuchElementException {
-
-        if (i >= tuples.length)
-            throw new NoSuchElementException();
+    /**
+     * Get the ith tuple out of this page (used by the iterator, and by index
+     * scans to fetch tuples by RecordId).
+     *
+     * @return the tuple, or null if the slot is not used
+     */
+    public Tuple getTuple(int i) {
 
-        try {
-            if (!isSlotUsed(i)) {
-                Debug.log(1, "HeapPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
-                return null;
-            }
+        if (i < 0 || i >= numSlots)
+            return null;
 
-            Debug.log(1, "HeapPage.getTuple: returning tuple %d", i);
-            return tuples[i];
+        if (!isSlotUsed(i)) {
+            Debug.log(1, "HeapPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
+            return null;
+        }
 
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new NoSuchElementException();
+        Debug.log(1, "HeapPage.getTuple: returning tuple %d", i);
+        if (inserted != null && inserted[i] != null)
+            return inserted[i];
+        Tuple t;
+        if (data.isDirect()) {
+            // the bytes of a memory-mapped page change as soon as a newer
+            // version of it is written, which can happen once this page has
+            // left the pool while its tuples are still in use (e.g. in the
+            // hash table of a join); decode them now
+            t = new Tuple(td);
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, readField(i, j));
+        } else {
+            // the fields are decoded from the page bytes, which never
+            // change, when they are first accessed
+            t = new Tuple(td, this, i);
         }
+        t.setRecordId(new RecordId(pid, i));
+        return t;
     }
 }
 
@@ -397,15 +507,12 @@ class HeapPageIterator implements Iterator<Tuple> {
         if (nextToReturn != null)
             return true;
 
-        try {
-            while (true) {
-                nextToReturn = p.getTuple(curTuple++);
-                if (nextToReturn != null)
-                    return true;
-            }
-        } catch (NoSuchElementException e) {
-            return false;
+        while (curTuple < p.numSlots) {
+            nextToReturn = p.getTuple(curTuple++);
+            if (nextToReturn != null)
+                return true;
         }
+        return false;
     }
 
     public Tuple next() {
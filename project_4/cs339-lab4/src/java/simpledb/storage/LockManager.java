@@ -0,0 +1,402 @@
+package simpledb.storage;
+
+import simpledb.common.DeadlockException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager implements page-level shared/exclusive locks for strict
+ * two-phase locking. It is used by the BufferPool: every getPage acquires a
+ * shared (READ_ONLY) or exclusive (READ_WRITE) lock on the page on behalf of
+ * the requesting transaction, and all locks of a transaction are released
+ * together when it commits or aborts.
+ * <p>
+ * A transaction that holds the only shared lock on a page may upgrade it to
+ * an exclusive lock. Requests that cannot be granted block until the lock
+ * becomes available.
+ * <p>
+ * Deadlocks are detected with a waits-for graph: whenever a transaction has
+ * to wait, it gets an edge to every transaction holding a conflicting lock,
+ * and the graph is searched for a cycle through the new edges. Cycles can
+ * only form when edges are added, so this finds every deadlock the moment
+ * it forms. The youngest transaction on the cycle is chosen as the victim
+ * and its lock request fails right away with a DeadlockException, instead
+ * of every waiter sitting out a timeout.
+ * <p>
+ * The lock table is split into stripes by PageId, each with its own
+ * monitor, so requests that can be granted right away only synchronize
+ * with requests for pages of the same stripe. Waiters wait on the monitor
+ * of their page's stripe. Only the waits-for graph is global, and only
+ * transactions that have to wait touch it.
+ * <p>
+ * Each transaction's lock set is kept separately, so releasing the locks of
+ * a finished transaction costs O(1) per lock it held.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /**
+     * Number of stripes of the lock table; a power of two.
+     */
+    static final int STRIPES = 64;
+
+    /**
+     * Lock state of one page: either any number of shared holders, or a
+     * single exclusive holder.
+     */
+    private static class PageLock {
+        final Set<TransactionId> sharers = new HashSet<>();
+        TransactionId exclusive = null;
+
+        boolean isFree() {
+            return exclusive == null && sharers.isEmpty();
+        }
+    }
+
+    /**
+     * The locks of the pages that hash to one stripe. Its monitor protects
+     * them, and is the one the waiters for these pages wait on.
+     */
+    private static class Stripe {
+        final Map<PageId, PageLock> locks = new HashMap<>(); // protected by this
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Map<TransactionId, Set<PageId>> lockSets = new ConcurrentHashMap<>();
+
+    // waits-for graph: waiting transaction -> transactions it waits for;
+    // protected by graph; nothing takes a stripe monitor while holding it
+    private final Object graph = new Object();
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+    private final Map<TransactionId, Stripe> waitingOn = new HashMap<>(); // protected by graph
+    // waiting transactions chosen to break a deadlock they are not the
+    // requester of; they give up as soon as they wake up
+    private final Set<TransactionId> victims = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong deadlocks = new AtomicLong(0);
+    private final AtomicLong lockWaits = new AtomicLong(0);
+    private final AtomicLong lockWaitNanos = new AtomicLong(0);
+
+    public LockManager() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * @return the number of the stripe the locks of the specified page are in
+     */
+    static int stripeOf(PageId pid) {
+        int h = pid.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private Stripe stripe(PageId pid) {
+        return stripes[stripeOf(pid)];
+    }
+
+    /**
+     * Acquire a lock on the specified page, blocking until it can be granted.
+     *
+     * @param tid  the transaction requesting the lock
+     * @param pid  the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws DeadlockException           if tid was chosen as the victim of a
+     *                                     deadlock; it holds no new lock
+     * @throws TransactionAbortedException if the waiting thread was interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws DeadlockException, TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        Stripe stripe = stripe(pid);
+        synchronized (stripe) {
+            if (tryGrant(stripe, tid, pid, exclusive))
+                return;
+        }
+
+        lockWaits.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                Stripe wake = null; // of a victim waiting in another stripe
+                synchronized (stripe) {
+                    if (victims.contains(tid))
+                        giveUp(tid);
+                    if (tryGrant(stripe, tid, pid, exclusive))
+                        return;
+
+                    // (re)compute our edges: the set of conflicting holders may
+                    // have changed since we last looked
+                    Set<TransactionId> blockers = blockers(stripe, tid, pid, exclusive);
+                    synchronized (graph) {
+                        waitsFor.put(tid, blockers);
+                        waitingOn.put(tid, stripe);
+                        List<TransactionId> cycle = findCycle(tid);
+                        if (cycle != null) {
+                            // the other waiters on the cycle find it again until the
+                            // victim has left, so count it when the victim is chosen
+                            TransactionId victim = youngest(cycle);
+                            if (victim.equals(tid)) {
+                                // another waiter on the cycle may have chosen
+                                // us at the same time, and counted it
+                                if (!victims.contains(tid))
+                                    deadlocks.incrementAndGet();
+                                giveUp(tid);
+                            }
+                            // only wake the victim up once: waiters on the same
+                            // cycle that keep waking each other up can starve it
+                            // of its monitor
+                            if (victims.add(victim)) {
+                                deadlocks.incrementAndGet();
+                                wake = waitingOn.get(victim);
+                            }
+                        }
+                    }
+
+                    if (wake == stripe) {
+                        stripe.notifyAll();
+                        wake = null;
+                    }
+                    if (wake == null) {
+                        try {
+                            stripe.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new TransactionAbortedException();
+                        }
+                    }
+                }
+                // never hold two stripe monitors at once
+                if (wake != null) {
+                    synchronized (wake) {
+                        wake.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            synchronized (graph) {
+                waitsFor.remove(tid);
+                waitingOn.remove(tid);
+            }
+            synchronized (stripe) {
+                forgetIfFree(stripe, pid);
+            }
+            lockWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Take a waiting victim out of the waits-for graph and fail its request.
+     * Its edges go in the same step as its victim flag, so that no other
+     * waiter finds the deadlock again and chooses it once more.
+     */
+    private void giveUp(TransactionId tid) throws DeadlockException {
+        synchronized (graph) {
+            waitsFor.remove(tid);
+            waitingOn.remove(tid);
+            victims.remove(tid);
+        }
+        throw new DeadlockException();
+    }
+
+    /**
+     * Acquire a lock on the specified page if it can be granted right away.
+     *
+     * @return true if tid now holds the requested lock, false if another
+     *         transaction holds a conflicting one
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm) {
+        Stripe stripe = stripe(pid);
+        synchronized (stripe) {
+            boolean granted = tryGrant(stripe, tid, pid, perm == Permissions.READ_WRITE);
+            forgetIfFree(stripe, pid);
+            return granted;
+        }
+    }
+
+    /**
+     * @return the transactions holding locks on pid that conflict with the
+     *         requested lock
+     */
+    private Set<TransactionId> blockers(Stripe stripe, TransactionId tid, PageId pid, boolean exclusive) {
+        Set<TransactionId> result = new HashSet<>();
+        PageLock lock = stripe.locks.get(pid);
+        if (lock == null)
+            return result;
+        if (lock.exclusive != null && !lock.exclusive.equals(tid))
+            result.add(lock.exclusive);
+        if (exclusive) {
+            result.addAll(lock.sharers);
+            result.remove(tid);
+        }
+        return result;
+    }
+
+    /**
+     * Search the waits-for graph for a cycle through start.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        List<TransactionId> path = new ArrayList<>();
+        path.add(start);
+        return findCycle(start, start, path, new HashSet<>()) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId start, TransactionId from,
+                              List<TransactionId> path, Set<TransactionId> visited) {
+        Set<TransactionId> edges = waitsFor.get(from);
+        if (edges == null)
+            return false;
+        for (TransactionId to : edges) {
+            if (to.equals(start))
+                return true;
+            if (!visited.add(to))
+                continue;
+            path.add(to);
+            if (findCycle(start, to, path, visited))
+                return true;
+            path.remove(path.size() - 1);
+        }
+        return false;
+    }
+
+    /**
+     * Transaction ids are handed out in increasing order, so the youngest
+     * transaction (the one that has likely done the least work) has the
+     * largest id.
+     */
+    private static TransactionId youngest(List<TransactionId> tids) {
+        TransactionId youngest = tids.get(0);
+        for (TransactionId t : tids) {
+            if (t.getId() > youngest.getId())
+                youngest = t;
+        }
+        return youngest;
+    }
+
+    /**
+     * Grant the lock if it is compatible with the current holders.
+     *
+     * @return true if tid now holds the requested lock
+     */
+    private boolean tryGrant(Stripe stripe, TransactionId tid, PageId pid, boolean exclusive) {
+        PageLock lock = stripe.locks.computeIfAbsent(pid, k -> new PageLock());
+        if (tid.equals(lock.exclusive))
+            return true;
+        if (exclusive) {
+            // free, or an upgrade of our own (only) shared lock
+            if (lock.exclusive != null)
+                return false;
+            if (!lock.sharers.isEmpty()
+                    && !(lock.sharers.size() == 1 && lock.sharers.contains(tid)))
+                return false;
+            lock.sharers.remove(tid);
+            lock.exclusive = tid;
+        } else {
+            if (lock.exclusive != null)
+                return false;
+            lock.sharers.add(tid);
+        }
+        lockSets.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        return true;
+    }
+
+    /**
+     * Release the lock tid holds on the specified page, if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Set<PageId> held = lockSets.get(tid);
+        if (held != null)
+            held.remove(pid); // an empty set goes when the transaction completes
+        releaseLock(tid, pid);
+    }
+
+    /**
+     * Release all locks held by the specified transaction.
+     */
+    public void releaseAll(TransactionId tid) {
+        victims.remove(tid);
+        Set<PageId> held = lockSets.remove(tid);
+        if (held == null)
+            return;
+        for (PageId pid : held)
+            releaseLock(tid, pid);
+    }
+
+    private void releaseLock(TransactionId tid, PageId pid) {
+        Stripe stripe = stripe(pid);
+        synchronized (stripe) {
+            PageLock lock = stripe.locks.get(pid);
+            if (lock == null)
+                return;
+            boolean released = lock.sharers.remove(tid);
+            if (tid.equals(lock.exclusive)) {
+                lock.exclusive = null;
+                released = true;
+            }
+            if (lock.isFree())
+                stripe.locks.remove(pid);
+            if (released)
+                stripe.notifyAll();
+        }
+    }
+
+    private void forgetIfFree(Stripe stripe, PageId pid) {
+        PageLock lock = stripe.locks.get(pid);
+        if (lock != null && lock.isFree())
+            stripe.locks.remove(pid);
+    }
+
+    /**
+     * @return true if tid holds a shared or exclusive lock on the page
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> held = lockSets.get(tid);
+        return held != null && held.contains(pid);
+    }
+
+    /**
+     * @return the pages tid holds locks on (a snapshot; empty if none)
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> held = lockSets.get(tid);
+        if (held == null)
+            return Collections.emptySet();
+        return new HashSet<>(held);
+    }
+
+    /**
+     * @return the number of deadlocks detected so far
+     */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /**
+     * @return the number of lock requests that could not be granted
+     *         immediately and had to wait
+     */
+    public long getLockWaitCount() {
+        return lockWaits.get();
+    }
+
+    /**
+     * @return the total time, in milliseconds, lock requests have spent
+     *         waiting (including requests that ended in a deadlock abort)
+     */
+    public long getLockWaitMillis() {
+        return lockWaitNanos.get() / 1_000_000;
+    }
+}
@@ -275,7 +275,7 @@ public class LogFile {
             }
             pid = (PageId) idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = pageDataConstructor(pageClass);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -285,7 +285,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+            newPage = (Page) pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
@@ -296,6 +296,20 @@ public class LogFile {
 
     }
 
+    /**
+     * Find the Page(PageId id, byte[] data) constructor every page class
+     * must have (page classes may declare other constructors as well).
+     */
+    static Constructor<?> pageDataConstructor(Class<?> pageClass) throws IOException {
+        for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length == 2 && PageId.class.isAssignableFrom(params[0])
+                    && params[1] == byte[].class)
+                return c;
+        }
+        throw new IOException("no (PageId, byte[]) constructor in " + pageClass.getName());
+    }
+
     /**
      * Write a BEGIN record for the specified transaction
      *
@@ -0,0 +1,119 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K page replacement (O'Neil, O'Neil and Weikum, SIGMOD '93).
+ * <p>
+ * The policy remembers the times of the last K accesses to every resident
+ * page and evicts the page whose K-th most recent access lies furthest in
+ * the past. Pages that have been accessed fewer than K times have an
+ * infinite backward K-distance and are evicted first (oldest last access
+ * first), so pages read once by a large scan never push out pages that are
+ * referenced repeatedly.
+ * <p>
+ * Pages are kept in a tree ordered by backward K-distance, so accesses cost
+ * O(log n) and eviction is O(log n) amortized. All methods synchronize on
+ * the policy; use {@link ClockEvictionPolicy} if hits must be lock free.
+ *
+ * @Threadsafe
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    /**
+     * Default K; LRU-2 gives most of the benefit of larger K values.
+     */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock = 0; // protected by this
+    private final Map<PageId, History> histories = new HashMap<>(); // protected by this
+    private final TreeSet<History> order = new TreeSet<>(); // protected by this
+
+    /**
+     * Creates an LRU-K policy.
+     *
+     * @param k the number of past accesses remembered per page (at least 1;
+     *          LRU-1 is plain LRU)
+     */
+    public LruKEvictionPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("LRU-K needs k >= 1");
+        this.k = k;
+    }
+
+    public LruKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (histories.containsKey(pid))
+            return;
+        History h = new History(pid, k);
+        h.record(++clock);
+        histories.put(pid, h);
+        order.add(h);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null)
+            return;
+        // re-insert, since the ordering key changes
+        order.remove(h);
+        h.record(++clock);
+        order.add(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null)
+            order.remove(h);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> canEvict) {
+        for (History h : order) {
+            if (canEvict.test(h.pid))
+                return h.pid;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "LRU-" + k;
+    }
+
+    /**
+     * Access history of one resident page. times[0] is the most recent
+     * access, times[k - 1] the K-th most recent; 0 means "no such access".
+     */
+    private static class History implements Comparable<History> {
+        final PageId pid;
+        final long[] times;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void record(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+        }
+
+        /**
+         * Pages with the oldest K-th access (infinite distance, i.e. 0,
+         * first) sort first; ties are broken by the most recent access and
+         * finally by the (unique) timestamp of that access.
+         */
+        public int compareTo(History o) {
+            int c = Long.compare(times[times.length - 1], o.times[o.times.length - 1]);
+            if (c != 0)
+                return c;
+            return Long.compare(times[0], o.times[0]);
+        }
+    }
+}
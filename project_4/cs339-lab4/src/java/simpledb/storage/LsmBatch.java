@@ -0,0 +1,99 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The write batch of a transaction on an LsmFile: the entries of the tuples
+ * the transaction inserted and the tombstones of the tuples it deleted, in
+ * order. The batch goes through the BufferPool like a page, so that it
+ * takes part in commits and aborts like the pages of other files: it is
+ * dirtied by the first change, written to the file (which applies it to the
+ * memtable) when the transaction commits, and replaced by its before image,
+ * an empty batch, when it aborts.
+ * <p>
+ * Unlike a page, a batch is not limited to the page size; its data is a
+ * count followed by the entries, as laid out in {@link LsmEntry}.
+ */
+class LsmBatch implements Page {
+
+    private final LsmPageId pid;
+    private final Comparator<LsmEntry> order;
+    private final ConcurrentSkipListMap<LsmEntry, LsmEntry> entries;
+    private volatile TransactionId dirtier = null;
+
+    LsmBatch(LsmPageId pid, Comparator<LsmEntry> order) {
+        this.pid = pid;
+        this.order = order;
+        this.entries = new ConcurrentSkipListMap<>(order);
+    }
+
+    public LsmPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Add an entry to the batch, replacing the tuple it deletes if that was
+     * inserted by the same transaction.
+     */
+    void put(LsmEntry e) {
+        entries.put(e, e);
+    }
+
+    /**
+     * @return the entries of the batch, in order
+     */
+    NavigableMap<LsmEntry, LsmEntry> entries() {
+        return entries;
+    }
+
+    Collection<LsmEntry> values() {
+        return entries.values();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtier = dirty ? tid : null;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(entries.size());
+            for (LsmEntry e : entries.values())
+                e.write(dos);
+            dos.flush();
+        } catch (IOException e) {
+            // cannot happen with a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return an empty batch: the changes of a transaction leave the batch
+     *         when it commits
+     */
+    public LsmBatch getBeforeImage() {
+        return new LsmBatch(pid, order);
+    }
+
+    public void setBeforeImage() {
+        // the before image is always empty
+    }
+}
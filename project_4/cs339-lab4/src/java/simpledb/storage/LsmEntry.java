@@ -0,0 +1,94 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Comparator;
+
+/**
+ * An entry of an LsmFile: a tuple with the sequence number it was given
+ * when it was inserted, or a tombstone that deletes the tuple with that
+ * sequence number. Entries are ordered by the key field of their tuple,
+ * then by sequence number; a tuple and its tombstone compare equal.
+ * <p>
+ * An entry is stored as a byte that is 1 for tombstones, the sequence
+ * number, and the fields of the tuple (tombstones keep the tuple they
+ * delete, so that they sort next to it).
+ */
+final class LsmEntry {
+
+    final Tuple tuple;
+    final long seq;
+    final boolean deleted;
+
+    LsmEntry(Tuple tuple, long seq, boolean deleted) {
+        this.tuple = tuple;
+        this.seq = seq;
+        this.deleted = deleted;
+    }
+
+    /**
+     * @return the number of bytes an entry of a table with the specified
+     *         schema takes
+     */
+    static int size(TupleDesc td) {
+        return 1 + 8 + td.getSize();
+    }
+
+    /**
+     * @return the order of the entries of a table with the specified key
+     *         field
+     */
+    static Comparator<LsmEntry> order(int keyField) {
+        return (a, b) -> {
+            int c = compareKeys(a.tuple.getField(keyField), b.tuple.getField(keyField));
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+    }
+
+    static int compareKeys(Field a, Field b) {
+        if (a.getType() == Type.INT_TYPE)
+            return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+        return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+    }
+
+    /**
+     * @return the RecordId that identifies the tuple with the specified
+     *         sequence number in a table
+     */
+    static RecordId recordId(int tableid, long seq) {
+        return new RecordId(new LsmPageId(tableid, LsmPageId.TUPLES, (int) (seq >>> 32)), (int) seq);
+    }
+
+    /**
+     * @return the sequence number a RecordId made by {@link #recordId}
+     *         identifies
+     */
+    static long seqOf(RecordId rid) {
+        return ((long) rid.getPageId().getPageNumber() << 32) | (rid.getTupleNumber() & 0xffffffffL);
+    }
+
+    void write(DataOutputStream dos) throws IOException {
+        dos.writeByte(deleted ? 1 : 0);
+        dos.writeLong(seq);
+        for (int i = 0; i < tuple.getTupleDesc().numFields(); i++)
+            tuple.getField(i).serialize(dos);
+    }
+
+    /**
+     * Read an entry of the specified table at the current position of a
+     * buffer, and advance the position past it.
+     */
+    static LsmEntry read(ByteBuffer buf, TupleDesc td, int tableid) throws ParseException {
+        boolean deleted = buf.get() != 0;
+        long seq = buf.getLong();
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            t.setField(i, td.getFieldType(i).parse(buf));
+        t.setRecordId(recordId(tableid, seq));
+        return new LsmEntry(t, seq, deleted);
+    }
+}
@@ -0,0 +1,1169 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * LsmFile is a DbFile organized as a log-structured merge tree, for tables
+ * that take sustained high insert rates (event tables and the like). A
+ * HeapFile insert reads a page with free space and dirties it, so a busy
+ * ingestion transaction fills the BufferPool with dirty pages; an LsmFile
+ * only ever writes sequentially, and an insert dirties nothing but the
+ * transaction's write batch.
+ * <p>
+ * The tuples are kept sorted on a key field, in:
+ * <ul>
+ * <li> the write batch of each transaction ({@link LsmBatch}), which goes
+ * through the BufferPool like a page, so that it is applied when the
+ * transaction commits and dropped when it aborts;
+ * <li> the memtable, a sorted in-memory map that committed batches are
+ * applied to. Each batch is first appended to a write-ahead log (the name
+ * of the table's file plus ".wal" and a generation number) and forced, so
+ * that a commit costs one sequential write; the log is replayed into the
+ * memtable when the file is opened;
+ * <li> sorted runs (the name of the table's file plus ".run" and a run
+ * number): immutable files of {@link LsmPage}s, followed by the first entry
+ * of each page, the runs the run replaced and a footer. Once the memtable
+ * holds memtablePages pages worth of entries, it is frozen and a
+ * background thread writes it out as a new run, in one pass, and then
+ * deletes its log.
+ * </ul>
+ * A tuple is identified by the sequence number it is given when it is
+ * inserted (see {@link LsmPageId#TUPLES}). A delete adds a tombstone with
+ * the same key and sequence number, which hides the tuple wherever it is;
+ * so the sources never need to be ordered by age.
+ * <p>
+ * Scans merge all sources in key order ({@link #iterator(TransactionId,
+ * List)} also seeks to the range of keys that predicates on the key field
+ * select, using the first key of each page of a run). The pages of the runs
+ * are read through the BufferPool and are never dirty.
+ * <p>
+ * To keep the number of runs a scan merges low, the background thread
+ * also compacts them, size-tiered: whenever FANOUT runs are of about the
+ * same size (the same power of FANOUT times the memtable size), they are
+ * merged into one. Tombstones are dropped, together with the tuples they
+ * delete, when all runs are merged. Runs being scanned are only deleted
+ * once the scans are done with them.
+ * <p>
+ * LsmFiles do not take part in two-phase locking: a scan sees the
+ * committed tuples of the table as it runs, and the changes of its own
+ * transaction. Nothing stops two transactions from deleting the same
+ * tuple, which is harmless.
+ *
+ * @see LsmEntry
+ */
+public class LsmFile implements DbFile, Closeable {
+
+    static final String RUN_SUFFIX = ".run";
+    static final String WAL_SUFFIX = ".wal";
+
+    /**
+     * The default size of the memtable, in pages.
+     */
+    public static final int DEFAULT_MEMTABLE_PAGES = 64;
+
+    /**
+     * The number of runs of about the same size that are merged into one.
+     */
+    static final int FANOUT = 4;
+
+    // the number of pages of a run read ahead at a time by scans
+    private static final int READ_AHEAD = 16;
+
+    // number of bytes at the end of a run: numPages, numEntries, maxSeq, numInputs
+    private static final int FOOTER_SIZE = 4 + 8 + 8 + 4;
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+    private final Comparator<LsmEntry> order;
+    private final int memtableEntries; // the number of entries that freezes the memtable
+    private final AtomicLong nextSeq = new AtomicLong(0);
+
+    // the state below is protected by this
+    private Memtable memtable;
+    private final List<Memtable> frozen = new ArrayList<>(); // oldest first
+    private final List<Run> runs = new ArrayList<>();
+    private final Map<Integer, Run> runsByNumber = new HashMap<>(); // including obsolete runs still scanned
+    private int nextRun = 0;
+    private int nextWal = 0;
+    private ExecutorService background = null; // created on first use
+    private boolean closed = false;
+
+    /**
+     * Opens the log-structured merge tree of a table, with a memtable of
+     * DEFAULT_MEMTABLE_PAGES pages.
+     *
+     * @see #LsmFile(File, TupleDesc, int, int)
+     */
+    public LsmFile(File f, TupleDesc td, int keyField) throws IOException {
+        this(f, td, keyField, DEFAULT_MEMTABLE_PAGES);
+    }
+
+    /**
+     * Opens the log-structured merge tree of a table, from the runs and
+     * write-ahead logs next to the specified file (which itself need not
+     * exist).
+     *
+     * @param f              the file of the table
+     * @param td             the schema of the table
+     * @param keyField       the field the tuples are sorted on
+     * @param memtablePages  the number of pages worth of entries the
+     *                       memtable holds before it is written out
+     * @throws IOException if a run or log cannot be read
+     */
+    public LsmFile(File f, TupleDesc td, int keyField, int memtablePages) throws IOException {
+        this.f = f;
+        this.td = td;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = keyField;
+        this.order = LsmEntry.order(keyField);
+        this.memtableEntries = Math.max(1, memtablePages * LsmPage.entriesPerPage(td));
+        open();
+    }
+
+    /**
+     * @return the runs and logs of the table, by number, sorted
+     */
+    private Map<Integer, File> listFiles(String suffix) {
+        Map<Integer, File> files = new HashMap<>();
+        File dir = f.getAbsoluteFile().getParentFile();
+        String prefix = f.getName() + suffix;
+        String[] names = dir.list();
+        if (names == null)
+            return files;
+        for (String name : names) {
+            if (!name.startsWith(prefix))
+                continue;
+            String number = name.substring(prefix.length());
+            if (number.endsWith(".tmp")) {
+                // a run whose writing was interrupted
+                new File(dir, name).delete();
+                continue;
+            }
+            try {
+                files.put(Integer.parseInt(number), new File(dir, name));
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Load the runs, and replay the logs into the memtable.
+     */
+    private void open() throws IOException {
+        long maxSeq = -1;
+        Set<Integer> replaced = new HashSet<>();
+        for (Map.Entry<Integer, File> e : listFiles(RUN_SUFFIX).entrySet()) {
+            Run run = Run.load(e.getValue(), e.getKey(), td, tableid);
+            runs.add(run);
+            nextRun = Math.max(nextRun, run.number + 1);
+            for (int input : run.inputs)
+                replaced.add(input);
+        }
+        // runs a compaction replaced, but had no time to delete
+        for (Iterator<Run> it = runs.iterator(); it.hasNext(); ) {
+            Run run = it.next();
+            if (replaced.contains(run.number)) {
+                it.remove();
+                run.delete();
+            } else {
+                runsByNumber.put(run.number, run);
+                maxSeq = Math.max(maxSeq, run.maxSeq);
+            }
+        }
+        runs.sort(Comparator.comparingInt(r -> r.number));
+
+        memtable = new Memtable(order);
+        Map<Integer, File> wals = listFiles(WAL_SUFFIX);
+        List<Integer> gens = new ArrayList<>(wals.keySet());
+        Collections.sort(gens);
+        for (int gen : gens) {
+            File wal = wals.get(gen);
+            for (LsmEntry e : replay(wal)) {
+                memtable.map.put(e, e);
+                maxSeq = Math.max(maxSeq, e.seq);
+            }
+            memtable.wals.add(wal);
+            nextWal = gen + 1;
+        }
+        memtable.size = memtable.map.size();
+        nextSeq.set(maxSeq + 1);
+        memtable.openWal(new File(f.getPath() + WAL_SUFFIX + nextWal++));
+    }
+
+    /**
+     * @return the entries of the batches in a log. A record of the log is
+     *         the length and the CRC-32 of the data of a batch, followed by
+     *         the data; a torn record at the end is ignored.
+     */
+    private List<LsmEntry> replay(File wal) throws IOException {
+        List<LsmEntry> entries = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(wal.toPath()));
+        while (buf.remaining() >= 12) {
+            int length = buf.getInt();
+            long crc = buf.getLong();
+            if (length < 4 || length > buf.remaining())
+                break;
+            CRC32 check = new CRC32();
+            check.update(buf.array(), buf.position(), length);
+            if (check.getValue() != crc)
+                break;
+            int end = buf.position() + length;
+            int count = buf.getInt();
+            try {
+                for (int i = 0; i < count; i++)
+                    entries.add(LsmEntry.read(buf, td, tableid));
+            } catch (ParseException | RuntimeException e) {
+                throw new IOException("corrupt log " + wal, e);
+            }
+            buf.position(end);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the File naming this table on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    public int getId() {
+        return tableid;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the field the tuples are sorted on
+     */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the number of sorted runs
+     */
+    public synchronized int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * @return the number of entries in the memtable and the frozen
+     *         memtables that have not been written out yet
+     */
+    public synchronized int memtableSize() {
+        int n = memtable.size;
+        for (Memtable m : frozen)
+            n += m.size;
+        return n;
+    }
+
+    private LsmPageId batchId(TransactionId tid) {
+        return new LsmPageId(tableid, LsmPageId.BATCH, (int) tid.getId());
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        LsmPageId id = (LsmPageId) pid;
+        if (id.getRun() == LsmPageId.BATCH)
+            return new LsmBatch(id, order);
+        Run run;
+        synchronized (this) {
+            run = runsByNumber.get(id.getRun());
+        }
+        if (run == null || id.getPageNumber() >= run.numPages)
+            throw new IllegalArgumentException("no page " + id.getPageNumber() + " in run " + id.getRun());
+        try {
+            Debug.log(1, "LsmFile.readPage: read page %d of run %d", id.getPageNumber(), id.getRun());
+            return new LsmPage(id, td, run.readPageData(id.getPageNumber()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Apply a committed write batch: log it, add its entries to the
+     * memtable, and empty it. The pages of runs are never written.
+     */
+    public void writePage(Page page) throws IOException {
+        if (!(page instanceof LsmBatch))
+            throw new IOException("the pages of sorted runs cannot be written");
+        LsmBatch batch = (LsmBatch) page;
+        if (batch.values().isEmpty())
+            return;
+        byte[] data = batch.getPageData();
+        synchronized (this) {
+            memtable.log(data);
+            for (LsmEntry e : batch.values()) {
+                // a tombstone replaces the tuple if it is still here
+                if (memtable.map.put(e, e) == null)
+                    memtable.size++;
+            }
+            if (memtable.size >= memtableEntries)
+                freeze();
+        }
+        batch.clear();
+    }
+
+    /**
+     * @return false: writing a batch applies it to the memtable, which must
+     *         happen when its transaction commits
+     */
+    public boolean canWriteBehind() {
+        return false;
+    }
+
+    /**
+     * Make the memtable immutable, start a new one, and have it written out
+     * in the background.
+     */
+    private synchronized void freeze() throws IOException {
+        if (memtable.size == 0)
+            return;
+        memtable.closeWal();
+        frozen.add(memtable);
+        memtable = new Memtable(order);
+        memtable.openWal(new File(f.getPath() + WAL_SUFFIX + nextWal++));
+        background().execute(this::flushFrozen);
+    }
+
+    private synchronized ExecutorService background() {
+        if (background == null) {
+            background = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "simpledb-lsm-" + f.getName());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return background;
+    }
+
+    /**
+     * Write the frozen memtables out as runs, oldest first, then compact
+     * the runs. Runs in the background thread.
+     */
+    private void flushFrozen() {
+        try {
+            while (true) {
+                Memtable m;
+                synchronized (this) {
+                    if (frozen.isEmpty() || closed)
+                        break;
+                    m = frozen.get(0);
+                }
+                RunWriter w = newRun();
+                Run run;
+                try {
+                    for (LsmEntry e : m.map.values())
+                        w.add(e);
+                    run = w.finish(new int[0]);
+                } catch (IOException e) {
+                    w.abandon();
+                    throw e;
+                }
+                synchronized (this) {
+                    runs.add(run);
+                    runsByNumber.put(run.number, run);
+                    frozen.remove(0);
+                }
+                for (File wal : m.wals)
+                    wal.delete();
+            }
+            compact();
+        } catch (IOException | DbException e) {
+            // the memtable stays frozen, and its log is still there; the
+            // next flush tries again
+            Debug.log("LsmFile: cannot write a run of %s: %s", f, e);
+        }
+    }
+
+    /**
+     * @return the size tier of a run: the power of FANOUT of its number of
+     *         entries relative to the memtable's
+     */
+    private int tier(Run run) {
+        int tier = 0;
+        for (long cap = memtableEntries; run.numEntries > cap; cap *= FANOUT)
+            tier++;
+        return tier;
+    }
+
+    /**
+     * Merge FANOUT or more runs of the same tier into one, as long as there
+     * are any.
+     */
+    private void compact() throws IOException, DbException {
+        while (true) {
+            List<Run> inputs = null;
+            boolean all;
+            synchronized (this) {
+                if (closed)
+                    return;
+                Map<Integer, List<Run>> tiers = new HashMap<>();
+                for (Run run : runs)
+                    tiers.computeIfAbsent(tier(run), t -> new ArrayList<>()).add(run);
+                int lowest = Integer.MAX_VALUE;
+                for (Map.Entry<Integer, List<Run>> e : tiers.entrySet()) {
+                    if (e.getValue().size() >= FANOUT && e.getKey() < lowest) {
+                        lowest = e.getKey();
+                        inputs = e.getValue();
+                    }
+                }
+                if (inputs == null)
+                    return;
+                all = inputs.size() == runs.size();
+                for (Run run : inputs)
+                    run.refs++;
+            }
+            try {
+                merge(inputs, all);
+            } finally {
+                release(inputs);
+            }
+        }
+    }
+
+    /**
+     * Merge runs into a new run that replaces them.
+     *
+     * @param all true if the runs are all the runs of the table, so that
+     *            tombstones can be dropped
+     */
+    private void merge(List<Run> inputs, boolean all) throws IOException, DbException {
+        PriorityQueue<Source> heads = new PriorityQueue<>((a, b) -> order.compare(a.head, b.head));
+        RunWriter w = newRun();
+        try {
+            for (Run run : inputs) {
+                Source s = new DiskRunSource(run, td, tableid);
+                s.advance();
+                if (s.head != null)
+                    heads.add(s);
+            }
+            LsmEntry e;
+            while ((e = pollMerged(heads, order)) != null) {
+                if (!e.deleted || !all)
+                    w.add(e);
+            }
+        } catch (TransactionAbortedException ex) {
+            w.abandon();
+            throw new DbException("cannot happen: runs are merged outside of transactions");
+        } catch (IOException | DbException ex) {
+            w.abandon();
+            throw ex;
+        }
+        // the inputs, and the runs they replaced whose files are still
+        // there because a scan used them, are left over if we crash before
+        // they are all deleted
+        List<Integer> replaced = new ArrayList<>();
+        for (Run run : inputs) {
+            replaced.add(run.number);
+            for (int input : run.inputs) {
+                if (new File(f.getPath() + RUN_SUFFIX + input).exists())
+                    replaced.add(input);
+            }
+        }
+        int[] numbers = new int[replaced.size()];
+        for (int i = 0; i < numbers.length; i++)
+            numbers[i] = replaced.get(i);
+        Run merged = w.finish(numbers);
+        synchronized (this) {
+            runs.removeAll(inputs);
+            runs.add(merged);
+            runsByNumber.put(merged.number, merged);
+            for (Run run : inputs)
+                run.obsolete = true;
+        }
+        Debug.log(1, "LsmFile: merged runs %s of %s into run %d", Arrays.toString(numbers), f, merged.number);
+    }
+
+    /**
+     * Remove the smallest entry from the sources, together with the entries
+     * equal to it (the same tuple, or its tombstone), and advance them.
+     *
+     * @return the entry, or its tombstone if one of them is one, or null if
+     *         the sources are exhausted
+     */
+    static LsmEntry pollMerged(PriorityQueue<Source> heads, Comparator<LsmEntry> order)
+            throws DbException, TransactionAbortedException {
+        Source s = heads.poll();
+        if (s == null)
+            return null;
+        LsmEntry e = s.head;
+        s.advance();
+        if (s.head != null)
+            heads.add(s);
+        while (!heads.isEmpty() && order.compare(heads.peek().head, e) == 0) {
+            s = heads.poll();
+            if (s.head.deleted)
+                e = s.head;
+            s.advance();
+            if (s.head != null)
+                heads.add(s);
+        }
+        return e;
+    }
+
+    private synchronized RunWriter newRun() throws IOException {
+        int number = nextRun++;
+        return new RunWriter(new File(f.getPath() + RUN_SUFFIX + number), number, td, tableid);
+    }
+
+    /**
+     * Take a consistent snapshot of the memtables and runs a scan merges;
+     * the runs are kept until the scan releases them.
+     */
+    synchronized List<Run> snapshot(List<NavigableMap<LsmEntry, LsmEntry>> memtables) {
+        memtables.add(memtable.map);
+        for (Memtable m : frozen)
+            memtables.add(m.map);
+        for (Run run : runs)
+            run.refs++;
+        return new ArrayList<>(runs);
+    }
+
+    /**
+     * Release runs a snapshot or compaction took, and delete the ones that
+     * were replaced and are no longer used.
+     */
+    synchronized void release(List<Run> snapshot) {
+        for (Run run : snapshot) {
+            if (--run.refs == 0 && run.obsolete) {
+                runsByNumber.remove(run.number);
+                run.delete();
+            }
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in insertTuple");
+        LsmBatch batch = (LsmBatch) Database.getBufferPool().getPage(tid, batchId(tid), Permissions.READ_WRITE);
+        long seq = nextSeq.getAndIncrement();
+        Tuple copy = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            copy.setField(i, t.getField(i));
+        copy.setRecordId(LsmEntry.recordId(tableid, seq));
+        t.setRecordId(copy.getRecordId());
+        batch.put(new LsmEntry(copy, seq, false));
+        return Collections.singletonList(batch);
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof LsmPageId) || rid.getPageId().getTableId() != tableid
+                || ((LsmPageId) rid.getPageId()).getRun() != LsmPageId.TUPLES)
+            throw new DbException("tuple is not in this table");
+        LsmBatch batch = (LsmBatch) Database.getBufferPool().getPage(tid, batchId(tid), Permissions.READ_WRITE);
+        Tuple tombstone = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            tombstone.setField(i, t.getField(i));
+        tombstone.setRecordId(rid);
+        batch.put(new LsmEntry(tombstone, LsmEntry.seqOf(rid), true));
+        return Collections.singletonList(batch);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new LsmFileIterator(this, tid, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples whose key is in the range that
+     * the predicates on the key field select (predicates on other fields
+     * are ignored), in key order. It only reads the pages of the runs that
+     * may hold keys in that range.
+     *
+     * @param tid        the transaction the scan runs as a part of
+     * @param predicates predicates on the fields of the table
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates) {
+        Field lo = null;
+        Field hi = null;
+        for (Predicate p : predicates) {
+            if (p.getField() != keyField)
+                continue;
+            Field v = p.getOperand();
+            switch (p.getOp()) {
+                case EQUALS:
+                    lo = lo == null || LsmEntry.compareKeys(v, lo) > 0 ? v : lo;
+                    hi = hi == null || LsmEntry.compareKeys(v, hi) < 0 ? v : hi;
+                    break;
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQ:
+                    lo = lo == null || LsmEntry.compareKeys(v, lo) > 0 ? v : lo;
+                    break;
+                case LESS_THAN:
+                case LESS_THAN_OR_EQ:
+                    hi = hi == null || LsmEntry.compareKeys(v, hi) < 0 ? v : hi;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new LsmFileIterator(this, tid, lo, hi);
+    }
+
+    /**
+     * Write the memtable out as a run, and wait until it and any frozen
+     * memtables have been written and the runs compacted.
+     */
+    public void flush() throws IOException {
+        Future<?> done;
+        synchronized (this) {
+            freeze();
+            done = background().submit(() -> {
+            });
+        }
+        try {
+            done.get();
+        } catch (Exception e) {
+            throw new IOException("background work of " + f + " failed", e);
+        }
+    }
+
+    /**
+     * Stop the background thread and close the files. The memtable is not
+     * written out: its log is replayed when the table is opened again.
+     */
+    public void close() throws IOException {
+        ExecutorService e;
+        synchronized (this) {
+            closed = true;
+            e = background;
+            background = null;
+        }
+        if (e != null) {
+            e.shutdown();
+            try {
+                e.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            memtable.closeWal();
+            for (Run run : runsByNumber.values())
+                run.close();
+        }
+    }
+
+    /**
+     * A memtable and the logs of the batches applied to it.
+     */
+    private static class Memtable {
+        final ConcurrentSkipListMap<LsmEntry, LsmEntry> map;
+        final List<File> wals = new ArrayList<>();
+        int size = 0;
+        FileChannel wal = null;
+
+        Memtable(Comparator<LsmEntry> order) {
+            this.map = new ConcurrentSkipListMap<>(order);
+        }
+
+        void openWal(File file) throws IOException {
+            wal = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            wals.add(file);
+        }
+
+        /**
+         * Append a batch to the log, and force it to disk.
+         */
+        void log(byte[] data) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            ByteBuffer buf = ByteBuffer.allocate(12 + data.length);
+            buf.putInt(data.length).putLong(crc.getValue()).put(data);
+            buf.flip();
+            while (buf.hasRemaining())
+                wal.write(buf);
+            wal.force(false);
+        }
+
+        void closeWal() throws IOException {
+            if (wal != null) {
+                wal.close();
+                wal = null;
+            }
+        }
+    }
+
+    /**
+     * A sorted run, with the first entry of each of its pages.
+     */
+    static class Run {
+        final File file;
+        final int number;
+        final int numPages;
+        final long numEntries;
+        final long maxSeq;
+        final LsmEntry[] firstEntries;
+        final int[] inputs; // the runs this run replaced
+        private FileChannel channel = null; // opened lazily
+        int refs = 0; // the scans and compactions using the run; protected by the LsmFile
+        boolean obsolete = false; // replaced by a compaction; protected by the LsmFile
+
+        private Run(File file, int number, int numPages, long numEntries, long maxSeq,
+                    LsmEntry[] firstEntries, int[] inputs) {
+            this.file = file;
+            this.number = number;
+            this.numPages = numPages;
+            this.numEntries = numEntries;
+            this.maxSeq = maxSeq;
+            this.firstEntries = firstEntries;
+            this.inputs = inputs;
+        }
+
+        /**
+         * Read the first entries of the pages and the footer of a run.
+         */
+        static Run load(File file, int number, TupleDesc td, int tableid) throws IOException {
+            try (FileChannel c = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long length = c.size();
+                ByteBuffer footer = read(c, length - FOOTER_SIZE, FOOTER_SIZE);
+                int numPages = footer.getInt();
+                long numEntries = footer.getLong();
+                long maxSeq = footer.getLong();
+                int numInputs = footer.getInt();
+                long start = (long) numPages * BufferPool.getPageSize();
+                int trailer = numPages * LsmEntry.size(td) + 4 * numInputs;
+                if (numPages < 0 || numInputs < 0 || start + trailer + FOOTER_SIZE != length)
+                    throw new IOException("corrupt run " + file);
+                ByteBuffer buf = read(c, start, trailer);
+                LsmEntry[] firstEntries = new LsmEntry[numPages];
+                for (int i = 0; i < numPages; i++)
+                    firstEntries[i] = LsmEntry.read(buf, td, tableid);
+                int[] inputs = new int[numInputs];
+                for (int i = 0; i < numInputs; i++)
+                    inputs[i] = buf.getInt();
+                return new Run(file, number, numPages, numEntries, maxSeq, firstEntries, inputs);
+            } catch (ParseException | RuntimeException e) {
+                throw new IOException("corrupt run " + file, e);
+            }
+        }
+
+        private static ByteBuffer read(FileChannel c, long offset, int length) throws IOException {
+            if (offset < 0)
+                throw new IOException("run too short");
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (c.read(buf, offset + buf.position()) < 0)
+                    throw new IOException("run too short");
+            }
+            buf.flip();
+            return buf;
+        }
+
+        synchronized byte[] readPageData(int pgNo) throws IOException {
+            if (channel == null || !channel.isOpen())
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            return read(channel, (long) pgNo * BufferPool.getPageSize(), BufferPool.getPageSize()).array();
+        }
+
+        /**
+         * @return the first page that may hold entries with the specified
+         *         key: the last page whose first key is smaller, or 0
+         */
+        int firstPageFor(Field key, int keyField) {
+            int lo = 0, hi = numPages - 1, page = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (LsmEntry.compareKeys(firstEntries[mid].tuple.getField(keyField), key) < 0) {
+                    page = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return page;
+        }
+
+        /**
+         * @return the last page that may hold entries with the specified
+         *         key: the last page whose first key is not larger, or -1
+         */
+        int lastPageFor(Field key, int keyField) {
+            int lo = 0, hi = numPages - 1, page = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (LsmEntry.compareKeys(firstEntries[mid].tuple.getField(keyField), key) <= 0) {
+                    page = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return page;
+        }
+
+        synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing to lose: runs are only read
+                }
+                channel = null;
+            }
+        }
+
+        void delete() {
+            close();
+            if (!file.delete())
+                Debug.log("LsmFile: cannot delete %s", file);
+        }
+    }
+
+    /**
+     * Writes a new run sequentially, page by page, to a temporary file that
+     * is renamed once the run is complete and on disk.
+     */
+    private static class RunWriter {
+        final File file;
+        final File tmp;
+        final int number;
+        final int tableid;
+        final int perPage;
+        final FileOutputStream fos;
+        final DataOutputStream out;
+        final List<LsmEntry> page = new ArrayList<>();
+        final List<LsmEntry> firstEntries = new ArrayList<>();
+        long numEntries = 0;
+        long maxSeq = -1;
+
+        RunWriter(File file, int number, TupleDesc td, int tableid) throws IOException {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.number = number;
+            this.tableid = tableid;
+            this.perPage = LsmPage.entriesPerPage(td);
+            this.fos = new FileOutputStream(tmp);
+            this.out = new DataOutputStream(new BufferedOutputStream(fos, BufferPool.getPageSize() * READ_AHEAD));
+        }
+
+        void add(LsmEntry e) throws IOException {
+            if (page.size() == perPage)
+                writePage();
+            page.add(e);
+            numEntries++;
+            maxSeq = Math.max(maxSeq, e.seq);
+        }
+
+        private void writePage() throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(page.size());
+            for (LsmEntry e : page)
+                e.write(dos);
+            dos.flush();
+            out.write(baos.toByteArray());
+            for (int i = baos.size(); i < BufferPool.getPageSize(); i++)
+                out.write(0);
+            firstEntries.add(page.get(0));
+            page.clear();
+        }
+
+        /**
+         * Write the trailer and make the run visible under its name.
+         *
+         * @param inputs the numbers of the runs the new run replaces
+         */
+        Run finish(int[] inputs) throws IOException {
+            try {
+                if (!page.isEmpty())
+                    writePage();
+                for (LsmEntry e : firstEntries)
+                    e.write(out);
+                for (int input : inputs)
+                    out.writeInt(input);
+                out.writeInt(firstEntries.size());
+                out.writeLong(numEntries);
+                out.writeLong(maxSeq);
+                out.writeInt(inputs.length);
+                out.flush();
+                fos.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return new Run(file, number, firstEntries.size(), numEntries, maxSeq,
+                    firstEntries.toArray(new LsmEntry[0]), inputs);
+        }
+
+        /**
+         * Give up on the run, and delete what was written of it.
+         */
+        void abandon() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // deleting it is all that is left to do
+            }
+            tmp.delete();
+        }
+    }
+
+    /**
+     * One of the sorted sources a scan or a compaction merges, positioned
+     * at its next entry (head), which is null once it is exhausted.
+     */
+    abstract static class Source {
+        LsmEntry head = null;
+
+        abstract void advance() throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * The entries of a memtable or write batch, from a given entry on.
+     */
+    private static class MapSource extends Source {
+        final Iterator<LsmEntry> it;
+
+        MapSource(NavigableMap<LsmEntry, LsmEntry> map, LsmEntry from) {
+            this.it = (from == null ? map : map.tailMap(from, true)).values().iterator();
+        }
+
+        void advance() {
+            head = it.hasNext() ? it.next() : null;
+        }
+    }
+
+    /**
+     * The entries of a run, read from its file page by page, for merging
+     * runs outside of transactions.
+     */
+    private static class DiskRunSource extends Source {
+        final Run run;
+        final TupleDesc td;
+        final int tableid;
+        int pgNo = -1;
+        LsmEntry[] entries = new LsmEntry[0];
+        int next = 0;
+
+        DiskRunSource(Run run, TupleDesc td, int tableid) {
+            this.run = run;
+            this.td = td;
+            this.tableid = tableid;
+        }
+
+        void advance() throws DbException {
+            while (next == entries.length) {
+                if (++pgNo >= run.numPages) {
+                    head = null;
+                    return;
+                }
+                try {
+                    LsmPageId id = new LsmPageId(tableid, run.number, pgNo);
+                    entries = new LsmPage(id, td, run.readPageData(pgNo)).entries;
+                } catch (IOException e) {
+                    throw new DbException("cannot read page " + pgNo + " of " + run.file + ": " + e);
+                }
+                next = 0;
+            }
+            head = entries[next++];
+        }
+    }
+
+    /**
+     * The entries of a run with keys in a range, read through the
+     * BufferPool.
+     */
+    private static class RunSource extends Source {
+        final LsmFile lf;
+        final TransactionId tid;
+        final Run run;
+        final LsmEntry from;
+        final int lastPage;
+        int pgNo;
+        int readAheadUpTo;
+        LsmEntry[] entries = new LsmEntry[0];
+        int next = 0;
+
+        RunSource(LsmFile lf, TransactionId tid, Run run, LsmEntry from, Field hi) {
+            this.lf = lf;
+            this.tid = tid;
+            this.run = run;
+            this.from = from;
+            this.pgNo = (from == null ? 0 : run.firstPageFor(from.tuple.getField(lf.keyField), lf.keyField)) - 1;
+            this.readAheadUpTo = pgNo;
+            this.lastPage = hi == null ? run.numPages - 1 : run.lastPageFor(hi, lf.keyField);
+        }
+
+        void advance() throws DbException, TransactionAbortedException {
+            while (true) {
+                while (next == entries.length) {
+                    if (++pgNo > lastPage) {
+                        head = null;
+                        return;
+                    }
+                    readAhead();
+                    LsmPage p = (LsmPage) Database.getBufferPool().getPage(tid,
+                            new LsmPageId(lf.tableid, run.number, pgNo), Permissions.READ_ONLY);
+                    entries = p.entries;
+                    // the entries stay valid once the page leaves the pool
+                    Database.getBufferPool().unpinPage(tid, p.getId());
+                    next = 0;
+                }
+                head = entries[next++];
+                if (from == null || lf.order.compare(head, from) >= 0)
+                    return;
+            }
+        }
+
+        /**
+         * Once the scan is into the second half of the pages read ahead,
+         * ask for the next READ_AHEAD pages of the range.
+         */
+        private void readAhead() {
+            if (readAheadUpTo - pgNo > READ_AHEAD / 2)
+                return;
+            int first = Math.max(pgNo + 1, readAheadUpTo + 1);
+            int last = Math.min(lastPage, first + READ_AHEAD - 1);
+            if (first > last)
+                return;
+            List<PageId> pids = new ArrayList<>(last - first + 1);
+            for (int i = first; i <= last; i++)
+                pids.add(new LsmPageId(lf.tableid, run.number, i));
+            readAheadUpTo = first - 1 + Database.getBufferPool().prefetch(pids);
+        }
+    }
+
+    /**
+     * Helper class that merges the write batch of the transaction, the
+     * memtables and the runs of an LsmFile in key order, from a key on and
+     * up to a key.
+     */
+    private static class LsmFileIterator extends AbstractDbFileIterator {
+
+        final LsmFile lf;
+        final TransactionId tid;
+        final Field lo;
+        final Field hi;
+        List<Run> runs = null;
+        PriorityQueue<Source> heads = null;
+
+        LsmFileIterator(LsmFile lf, TransactionId tid, Field lo, Field hi) {
+            this.lf = lf;
+            this.tid = tid;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            LsmEntry from = null;
+            if (lo != null) {
+                Tuple t = new Tuple(lf.td);
+                t.setField(lf.keyField, lo);
+                from = new LsmEntry(t, Long.MIN_VALUE, false);
+            }
+            List<Source> sources = new ArrayList<>();
+            LsmPageId batchId = lf.batchId(tid);
+            if (Database.getBufferPool().holdsLock(tid, batchId)) {
+                LsmBatch batch = (LsmBatch) Database.getBufferPool().getPage(tid, batchId, Permissions.READ_ONLY);
+                sources.add(new MapSource(batch.entries(), from));
+            }
+            List<NavigableMap<LsmEntry, LsmEntry>> memtables = new ArrayList<>();
+            runs = lf.snapshot(memtables);
+            for (NavigableMap<LsmEntry, LsmEntry> m : memtables)
+                sources.add(new MapSource(m, from));
+            for (Run run : runs)
+                sources.add(new RunSource(lf, tid, run, from, hi));
+            heads = new PriorityQueue<>((a, b) -> lf.order.compare(a.head, b.head));
+            for (Source s : sources) {
+                s.advance();
+                if (s.head != null)
+                    heads.add(s);
+            }
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (heads == null)
+                return null;
+            LsmEntry e;
+            while ((e = pollMerged(heads, lf.order)) != null) {
+                if (hi != null && LsmEntry.compareKeys(e.tuple.getField(lf.keyField), hi) > 0)
+                    return null;
+                if (!e.deleted)
+                    return copy(e.tuple);
+            }
+            return null;
+        }
+
+        /**
+         * @return a copy of a tuple of the table, which callers may change
+         *         (e.g., set its RecordId by inserting it into another
+         *         table) without changing the entry
+         */
+        private Tuple copy(Tuple t) {
+            Tuple c = new Tuple(lf.td);
+            for (int i = 0; i < lf.td.numFields(); i++)
+                c.setField(i, t.getField(i));
+            c.setRecordId(t.getRecordId());
+            return c;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            heads = null;
+            if (runs != null) {
+                lf.release(runs);
+                runs = null;
+            }
+        }
+    }
+}
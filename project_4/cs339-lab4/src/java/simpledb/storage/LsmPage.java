@@ -0,0 +1,91 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * Each instance of LsmPage stores consecutive entries of a sorted run of an
+ * LsmFile. The format of a page is:
+ * <pre>
+ *   count (4 bytes) | count entries, in order
+ * </pre>
+ * where each entry is laid out as described in {@link LsmEntry}.
+ * <p>
+ * Runs are written once, sequentially, and never change afterwards, so
+ * their pages are never dirty.
+ *
+ * @see LsmFile
+ */
+public class LsmPage implements Page {
+
+    static final int HEADER_SIZE = 4;
+
+    final LsmPageId pid;
+    private final byte[] data;
+    final LsmEntry[] entries;
+
+    /**
+     * Create an LsmPage from one page worth of bytes read from disk, in the
+     * format described above.
+     *
+     * @param td the schema of the table
+     */
+    LsmPage(LsmPageId id, TupleDesc td, byte[] data) throws IOException {
+        this.pid = id;
+        this.data = data;
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int count = buf.getInt();
+        if (count < 0 || count > entriesPerPage(td))
+            throw new IOException("corrupt page " + id.getPageNumber() + " of run " + id.getRun());
+        entries = new LsmEntry[count];
+        try {
+            for (int i = 0; i < count; i++)
+                entries[i] = LsmEntry.read(buf, td, id.getTableId());
+        } catch (ParseException e) {
+            throw new IOException("corrupt page " + id.getPageNumber() + " of run " + id.getRun(), e);
+        }
+    }
+
+    /**
+     * @return the number of entries of a table with the specified schema
+     *         that fit on a page
+     */
+    static int entriesPerPage(TupleDesc td) {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / LsmEntry.size(td);
+    }
+
+    public LsmPageId getId() {
+        return pid;
+    }
+
+    /**
+     * @return the number of entries on this page
+     */
+    public int getNumEntries() {
+        return entries.length;
+    }
+
+    public TransactionId isDirty() {
+        return null;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty)
+            throw new UnsupportedOperationException("the pages of a sorted run never change");
+    }
+
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    public LsmPage getBeforeImage() {
+        return this;
+    }
+
+    public void setBeforeImage() {
+        // nothing changes
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb.storage;
+
+import java.util.Objects;
+
+/**
+ * Unique identifier for the pages of an LsmFile: a page of one of its
+ * sorted runs ({@link LsmPage}), or the write batch of a transaction
+ * ({@link LsmBatch}).
+ */
+public class LsmPageId implements PageId {
+
+    /**
+     * The run of the ids of write batches; their page number is derived
+     * from the id of the transaction.
+     */
+    public static final int BATCH = -1;
+
+    /**
+     * The run of the ids in the RecordIds of the tuples of an LsmFile; the
+     * page number and tuple number of such a RecordId hold the high and low
+     * halves of the tuple's sequence number.
+     */
+    public static final int TUPLES = -2;
+
+    private final int tableId;
+    private final int run;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific run of a specific table.
+     *
+     * @param tableId The table that is being referenced
+     * @param run     The number of the run, or BATCH or TUPLES
+     * @param pgNo    The page number in that run.
+     */
+    public LsmPageId(int tableId, int run, int pgNo) {
+        this.tableId = tableId;
+        this.run = run;
+        this.pgNo = pgNo;
+    }
+
+    /**
+     * @return the table associated with this PageId
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the number of the run this page belongs to, or BATCH or TUPLES
+     */
+    public int getRun() {
+        return run;
+    }
+
+    /**
+     * @return the page number in the run associated with this PageId
+     */
+    public int getPageNumber() {
+        return pgNo;
+    }
+
+    public int hashCode() {
+        return Objects.hash(tableId, run, pgNo);
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof LsmPageId))
+            return false;
+        LsmPageId p = (LsmPageId) o;
+        return tableId == p.tableId && run == p.run && pgNo == p.pgNo;
+    }
+
+    public int[] serialize() {
+        return new int[]{tableId, run, pgNo};
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb.storage;
+
+import java.util.Arrays;
+
+/**
+ * A pure Java compressor for page images, writing the LZ4 block format: a
+ * sequence of tokens, each a run of literal bytes followed by a match (an
+ * offset back into the output and a length), with the last token holding
+ * literals only. Matches are found through a small hash table of the 4-byte
+ * sequences seen so far, which finds the runs of zeros of mostly empty
+ * pages and repeated field values in a single pass.
+ * <p>
+ * Used by {@link CompressedPageCache}; speed matters more than ratio there,
+ * so there is no search for better matches.
+ */
+final class Lz4Codec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5; // the format ends with literals
+    private static final int MATCH_FIND_LIMIT = 12; // no match starts this close to the end
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+
+    private Lz4Codec() {
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    /**
+     * @return the compressed form of src; decompress it with its length
+     */
+    static byte[] compress(byte[] src) {
+        int n = src.length;
+        byte[] dst = new byte[n + n / 255 + 16];
+        int[] table = new int[1 << HASH_BITS]; // position + 1 of the last sequence with each hash
+        int ip = 0;
+        int anchor = 0; // start of the literals not written yet
+        int op = 0;
+        while (ip < n - MATCH_FIND_LIMIT) {
+            int h = hash(readInt(src, ip));
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != readInt(src, ip)) {
+                ip++;
+                continue;
+            }
+            while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int len = MIN_MATCH;
+            while (ip + len < n - LAST_LITERALS && src[ip + len] == src[ref + len])
+                len++;
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, len);
+            ip += len;
+            anchor = ip;
+        }
+        op = writeSequence(dst, op, src, anchor, n - anchor, 0, 0);
+        return Arrays.copyOf(dst, op);
+    }
+
+    /**
+     * Write a token, its literals and, unless matchLen is 0, its match.
+     *
+     * @return the position after the sequence
+     */
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literalStart, int literalLen,
+                                     int offset, int matchLen) {
+        int tokenPos = op++;
+        int token = Math.min(literalLen, 15) << 4;
+        if (literalLen >= 15)
+            op = writeLength(dst, op, literalLen - 15);
+        System.arraycopy(src, literalStart, dst, op, literalLen);
+        op += literalLen;
+        if (matchLen > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            int extra = matchLen - MIN_MATCH;
+            token |= Math.min(extra, 15);
+            if (extra >= 15)
+                op = writeLength(dst, op, extra - 15);
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int len) {
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    /**
+     * @param length the length of the data that was compressed
+     * @return the data src is the compressed form of
+     * @throws IllegalArgumentException if src is not the compressed form of
+     *                                  length bytes
+     */
+    static byte[] decompress(byte[] src, int length) {
+        byte[] dst = new byte[length];
+        int ip = 0;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xff;
+                int literalLen = token >>> 4;
+                if (literalLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literalLen);
+                ip += literalLen;
+                op += literalLen;
+                if (ip >= src.length)
+                    break;
+                int offset = (src[ip++] & 0xff) | (src[ip++] & 0xff) << 8;
+                int matchLen = token & 15;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < 0)
+                    throw new IllegalArgumentException("bad match offset " + offset);
+                // byte by byte: a match may overlap the bytes it produces
+                for (int i = 0; i < matchLen; i++)
+                    dst[op++] = dst[ref++];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("corrupt compressed data", e);
+        }
+        if (op != length)
+            throw new IllegalArgumentException("compressed data holds " + op + " bytes, not " + length);
+        return dst;
+    }
+}
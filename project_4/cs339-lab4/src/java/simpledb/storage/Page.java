@@ -9,7 +9,7 @@ import simpledb.transaction.TransactionId;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  * <p>
- * For recovery purposes, pages MUST have a single constructor of the form:
+ * For recovery purposes, pages MUST have a constructor of the form:
  * Page(PageId id, byte[] data)
  */
 public interface Page {
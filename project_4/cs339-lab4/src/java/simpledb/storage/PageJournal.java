@@ -0,0 +1,247 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.Debug;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * PageJournal is the redo journal that lets the BufferPool write the pages
+ * of committed transactions after the commit (see {@link
+ * BufferPool#enableWriteBehind}). When a transaction commits, the images
+ * of the pages it dirtied are appended to the journal in one record and
+ * forced, which makes the commit durable with one sequential write; the
+ * pages themselves are written later. Pages are never written before their
+ * transaction commits (NO STEAL), so replaying the images of the committed
+ * records in order is all recovery needs to do.
+ * <p>
+ * The journal is a sequence of segment files (the journal's name plus "."
+ * and a segment number) of records, each the length and CRC-32 of its data
+ * followed by the data: the number of pages, then per page the names of its
+ * Page and PageId classes, the ints of the serialized PageId and the page
+ * data, like {@link LogFile} logs pages. A torn record at the end is
+ * ignored. Once the pages of a segment's records have all been written (or
+ * committed again, in a later segment), the segment is deleted.
+ *
+ * @Threadsafe
+ */
+class PageJournal {
+
+    /**
+     * Size after which records go to a new segment.
+     */
+    static final long SEGMENT_SIZE = 16L << 20;
+
+    private final File file;
+    private FileChannel channel; // of the current segment; protected by this
+    private int segment; // protected by this
+    // segment number -> number of its first record, in order; protected by this
+    private final TreeMap<Integer, Long> segments = new TreeMap<>();
+    private long nextRecord = 0; // protected by this
+
+    /**
+     * Opens the journal named by the specified file. {@link #replay} must
+     * be called before anything is appended.
+     */
+    PageJournal(File file) {
+        this.file = file;
+    }
+
+    private File segmentFile(int n) {
+        return new File(file.getPath() + "." + n);
+    }
+
+    /**
+     * @return the numbers of the existing segments, in order
+     */
+    private List<Integer> existingSegments() {
+        List<Integer> found = new ArrayList<>();
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        String[] names = dir.list();
+        if (names == null)
+            return found;
+        for (String name : names) {
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                found.add(Integer.parseInt(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        found.sort(null);
+        return found;
+    }
+
+    /**
+     * Write the pages of the committed records left in the journal to their
+     * files (the Catalog must know their tables), then start the journal
+     * over.
+     *
+     * @return the pages written
+     * @throws IOException if a page cannot be rebuilt or written; the
+     *                     journal is kept
+     */
+    synchronized Set<PageId> replay() throws IOException {
+        Set<PageId> replayed = new HashSet<>();
+        List<Integer> found = existingSegments();
+        for (int n : found) {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(segmentFile(n).toPath()));
+            while (buf.remaining() >= 12) {
+                int length = buf.getInt();
+                long crc = buf.getLong();
+                if (length < 4 || length > buf.remaining())
+                    break;
+                CRC32 check = new CRC32();
+                check.update(buf.array(), buf.position(), length);
+                if (check.getValue() != crc)
+                    break;
+                ByteBuffer record = buf.slice(buf.position(), length);
+                buf.position(buf.position() + length);
+                int count = record.getInt();
+                for (int i = 0; i < count; i++) {
+                    Page p = readPage(record);
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    replayed.add(p.getId());
+                }
+            }
+        }
+        if (!found.isEmpty())
+            Debug.log("PageJournal: replayed %d pages from %s", replayed.size(), file);
+        for (int n : found)
+            segmentFile(n).delete();
+        segment = 0;
+        segments.clear();
+        segments.put(segment, nextRecord);
+        channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        return replayed;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getShort() & 0xffff];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rebuild a page from its record, like {@link LogFile} rebuilds logged
+     * pages.
+     */
+    private static Page readPage(ByteBuffer buf) throws IOException {
+        try {
+            String pageClassName = readString(buf);
+            String idClassName = readString(buf);
+            Object[] idArgs = new Object[buf.getInt()];
+            for (int i = 0; i < idArgs.length; i++)
+                idArgs[i] = buf.getInt();
+            byte[] data = new byte[buf.getInt()];
+            buf.get(data);
+            PageId pid = null;
+            for (Constructor<?> c : Class.forName(idClassName).getDeclaredConstructors()) {
+                if (c.getParameterCount() == idArgs.length)
+                    pid = (PageId) c.newInstance(idArgs);
+            }
+            if (pid == null)
+                throw new IOException("no constructor of " + idClassName + " takes " + idArgs.length + " ints");
+            return (Page) LogFile.pageDataConstructor(Class.forName(pageClassName)).newInstance(pid, data);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException
+                 | InstantiationException | RuntimeException e) {
+            throw new IOException("corrupt journal record", e);
+        }
+    }
+
+    /**
+     * Append the images of the pages a transaction committed in one record,
+     * and force it to disk.
+     *
+     * @return the number of the record
+     */
+    synchronized long append(List<Page> pages) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(pages.size());
+        for (Page p : pages) {
+            PageId pid = p.getId();
+            dos.writeUTF(p.getClass().getName());
+            dos.writeUTF(pid.getClass().getName());
+            int[] id = pid.serialize();
+            dos.writeInt(id.length);
+            for (int i : id)
+                dos.writeInt(i);
+            byte[] data = p.getPageData();
+            dos.writeInt(data.length);
+            dos.write(data);
+        }
+        dos.flush();
+        byte[] data = baos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (channel.size() >= SEGMENT_SIZE) {
+            channel.close();
+            segment++;
+            segments.put(segment, nextRecord);
+            channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(12 + data.length);
+        buf.putInt(data.length).putLong(crc.getValue()).put(data);
+        buf.flip();
+        while (buf.hasRemaining())
+            channel.write(buf, channel.size());
+        channel.force(false);
+        return nextRecord++;
+    }
+
+    /**
+     * Delete the segments whose records are all older than the specified
+     * record, which no longer hold the latest image of an unwritten page.
+     *
+     * @param oldest the oldest record that holds the latest image of a page
+     *               that has not been written yet, or Long.MAX_VALUE if
+     *               there is none
+     */
+    synchronized void release(long oldest) throws IOException {
+        if (!channel.isOpen())
+            return; // deleted
+        while (segments.size() > 1) {
+            Map.Entry<Integer, Long> first = segments.firstEntry();
+            Map.Entry<Integer, Long> second = segments.higherEntry(first.getKey());
+            if (second.getValue() > oldest)
+                break;
+            segmentFile(first.getKey()).delete();
+            segments.remove(first.getKey());
+        }
+        if (oldest == Long.MAX_VALUE && channel.size() >= SEGMENT_SIZE)
+            channel.truncate(0);
+    }
+
+    /**
+     * Close the journal and delete it; the pages of its records must all
+     * have been written.
+     */
+    synchronized void delete() throws IOException {
+        channel.close();
+        for (int n : segments.keySet())
+            segmentFile(n).delete();
+        segments.clear();
+    }
+}
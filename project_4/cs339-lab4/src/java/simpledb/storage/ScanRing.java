@@ -0,0 +1,49 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small ring of BufferPool frames that a large sequential scan reads its
+ * pages into, instead of taking frames from the whole pool. Once the ring
+ * is full, every page the scan reads replaces the oldest page of the ring,
+ * so a scan of a table much larger than the pool leaves the pages of other
+ * sessions alone. Pages the scan finds resident are used where they are and
+ * do not join the ring.
+ * <p>
+ * Get one from {@link BufferPool#newScanRing} and pass it to getPage and
+ * prefetch; each scan needs its own.
+ *
+ * @Threadsafe, protected by the BufferPool monitor
+ */
+public final class ScanRing {
+
+    private final int capacity;
+    private final ArrayDeque<PageId> pids = new ArrayDeque<>(); // oldest first
+
+    ScanRing(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the number of frames of the ring
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    boolean isFull() {
+        return pids.size() >= capacity;
+    }
+
+    void add(PageId pid) {
+        pids.addLast(pid);
+    }
+
+    /**
+     * @return the oldest page of the ring, which leaves it, or null if the
+     *         ring is empty
+     */
+    PageId poll() {
+        return pids.pollFirst();
+    }
+}
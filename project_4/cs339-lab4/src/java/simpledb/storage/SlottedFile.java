@@ -0,0 +1,115 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * SlottedFile is a HeapFile whose pages are {@link SlottedPage}s, which
+ * store tuples as variable-length records instead of in fixed-size slots.
+ * Tables with string columns holding short values fit many more tuples on a
+ * page this way, so scans read a fraction of the pages.
+ * <p>
+ * All I/O, the free space map and the scan iterator are those of HeapFile;
+ * only the page format differs. The free space of a page is counted in
+ * bytes, so inserts look for a page with room for the record of the tuple
+ * at hand.
+ * <p>
+ * Existing tables can be converted by scanning them and passing the tuples
+ * to {@link #convert}.
+ *
+ * @see SlottedPage
+ */
+public class SlottedFile extends HeapFile {
+
+    /**
+     * Constructs a slotted file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this file
+     */
+    public SlottedFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a slotted file backed by the specified file.
+     *
+     * @param f            the file that stores the on-disk backing store for
+     *                     this file
+     * @param memoryMapped if true, pages are read through a memory mapping
+     *                     of the file rather than with read calls
+     */
+    public SlottedFile(File f, TupleDesc td, boolean memoryMapped) {
+        super(f, td, memoryMapped);
+    }
+
+    /**
+     * Write the specified tuples to a file in the slotted format, filling
+     * one page after another. Any existing contents of the file are lost.
+     *
+     * @param tuples  the tuples to write
+     * @param td      the schema of the tuples
+     * @param outFile the file to write
+     * @throws IOException if the file cannot be written, or a tuple does not
+     *                     fit on a page
+     */
+    public static void convert(Iterator<Tuple> tuples, TupleDesc td, File outFile) throws IOException {
+        try (OutputStream os = new FileOutputStream(outFile)) {
+            int pgNo = 0;
+            SlottedPage page = new SlottedPage(new HeapPageId(0, pgNo),
+                    td, ByteBuffer.wrap(SlottedPage.createEmptyPageData()));
+            boolean empty = true;
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                int needed = SlottedPage.getSpaceNeeded(SlottedPage.getRecordSize(t));
+                if (needed > page.getFreeSpace() && !empty) {
+                    os.write(page.getPageData());
+                    page = new SlottedPage(new HeapPageId(0, ++pgNo),
+                            td, ByteBuffer.wrap(SlottedPage.createEmptyPageData()));
+                    empty = true;
+                }
+                try {
+                    page.insertTuple(t);
+                } catch (DbException e) {
+                    throw new IOException("tuple does not fit on a page: " + t);
+                }
+                empty = false;
+            }
+            // like HeapFileEncoder, write one (empty) page even if there
+            // were no tuples
+            os.write(page.getPageData());
+        }
+    }
+
+    @Override
+    int readFreeSpace(int pgNo) throws IOException {
+        // free space depends on the lengths of all records, so the whole
+        // page has to be read
+        return ((TuplePage) readPage(new HeapPageId(getId(), pgNo))).getFreeSpace();
+    }
+
+    @Override
+    TuplePage createPage(HeapPageId id, ByteBuffer data) {
+        return new SlottedPage(id, data);
+    }
+
+    @Override
+    byte[] createEmptyPageData() {
+        return SlottedPage.createEmptyPageData();
+    }
+
+    @Override
+    int spaceNeeded(Tuple t) {
+        return SlottedPage.getSpaceNeeded(SlottedPage.getRecordSize(t));
+    }
+
+    @Override
+    int minSpaceNeeded() {
+        return SlottedPage.getSpaceNeeded(SlottedPage.getMinRecordSize(getTupleDesc()));
+    }
+}
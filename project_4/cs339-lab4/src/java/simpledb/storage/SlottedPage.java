@@ -0,0 +1,413 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Debug;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Each instance of SlottedPage stores data for one page of a SlottedFile.
+ * Unlike a HeapPage, which gives every tuple a slot of TupleDesc.getSize()
+ * bytes (132 bytes for every string, however short), a SlottedPage stores
+ * tuples as variable-length records and finds them through a slot
+ * directory:
+ * <pre>
+ *   +-----------+-------------+------------------------+------------+---------+
+ *   | numSlots  | recordStart | slot directory         | free space | records |
+ *   | (2 bytes) | (2 bytes)   | (4 bytes per slot)     |            |         |
+ *   +-----------+-------------+------------------------+------------+---------+
+ * </pre>
+ * The directory grows from the front of the page and the records from the
+ * back; recordStart is the offset of the first byte of the record area (0
+ * on an empty page, standing for the page size). Each directory entry holds
+ * the offset and length of its record as unsigned shorts, and an offset of
+ * 0 marks a free slot. All numbers are big-endian, and pages can therefore
+ * be at most 64KB.
+ * <p>
+ * A record holds the fields of a tuple one after the other: ints take 4
+ * bytes, strings a 2-byte length followed by their bytes (at most
+ * Type.STRING_LEN of them, encoded like StringField.serialize does).
+ * <p>
+ * The slot of a tuple, and hence its RecordId, never changes. Deleting a
+ * tuple only frees its directory entry; the space of deleted records is
+ * reclaimed by compacting the record area when an insert needs it.
+ *
+ * @see SlottedFile
+ * @see HeapPage
+ */
+public class SlottedPage implements TuplePage {
+
+    static final int HEADER_SIZE = 4;
+    static final int SLOT_SIZE = 4;
+    static final int MAX_PAGE_SIZE = 1 << 16;
+
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    private final int pageSize;
+    // the page contents; changed in place by inserts and deletes, which
+    // hold an exclusive lock on the page
+    private final byte[] data;
+    private final ByteBuffer buf;
+    // the free bytes on the page, counting the space of deleted records
+    private int freeBytes;
+
+    // the contents of the page as of the last setBeforeImage, or null if the
+    // page has not changed since. Captured on the first change.
+    private byte[] oldData = null;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk, in the
+     * format described above.
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a SlottedPage from one page worth of bytes starting at the
+     * current position of a buffer. The page keeps a copy of the bytes, and
+     * the buffer's position is not changed.
+     */
+    SlottedPage(HeapPageId id, ByteBuffer data) {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /**
+     * Create a SlottedPage of a table with the specified schema, which need
+     * not be in the catalog (yet).
+     */
+    SlottedPage(HeapPageId id, TupleDesc td, ByteBuffer data) {
+        this.pid = id;
+        this.td = td;
+        this.pageSize = BufferPool.getPageSize();
+        if (pageSize > MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("slotted pages can be at most " + MAX_PAGE_SIZE + " bytes");
+        this.data = new byte[pageSize];
+        data.duplicate().get(this.data);
+        this.buf = ByteBuffer.wrap(this.data);
+        this.freeBytes = countFreeBytes();
+    }
+
+    /**
+     * @return the number of bytes the record of the specified tuple takes
+     */
+    static int getRecordSize(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE)
+                size += 2 + Math.min(((StringField) t.getField(j)).getValue().length(), Type.STRING_LEN);
+            else
+                size += td.getFieldType(j).getLen();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes the smallest possible record of a tuple
+     *         with the specified schema takes (all strings empty)
+     */
+    static int getMinRecordSize(TupleDesc td) {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++)
+            size += td.getFieldType(j) == Type.STRING_TYPE ? 2 : td.getFieldType(j).getLen();
+        return size;
+    }
+
+    /**
+     * @return the free bytes a page needs to take a record of the specified
+     *         size (a new directory entry included, in case there is no free
+     *         one)
+     */
+    static int getSpaceNeeded(int recordSize) {
+        return recordSize + SLOT_SIZE;
+    }
+
+    private int getNumSlots() {
+        return buf.getChar(0);
+    }
+
+    private int getRecordStart() {
+        int start = buf.getChar(2);
+        return start == 0 ? pageSize : start;
+    }
+
+    private int getSlotOffset(int slot) {
+        return buf.getChar(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int getSlotLength(int slot) {
+        return buf.getChar(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        buf.putChar(HEADER_SIZE + slot * SLOT_SIZE, (char) offset);
+        buf.putChar(HEADER_SIZE + slot * SLOT_SIZE + 2, (char) length);
+    }
+
+    private int countFreeBytes() {
+        int numSlots = getNumSlots();
+        int used = HEADER_SIZE + numSlots * SLOT_SIZE;
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i))
+                used += getSlotLength(i);
+        }
+        return pageSize - used;
+    }
+
+    /**
+     * Return a view of this page before it was modified
+     * -- used by recovery
+     */
+    public SlottedPage getBeforeImage() {
+        byte[] oldDataRef;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
+        }
+        return new SlottedPage(pid, td, ByteBuffer.wrap(oldDataRef != null ? oldDataRef : data));
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    /**
+     * Called before every change to the page: if this is the first change
+     * since the last setBeforeImage, remember the current contents as the
+     * before image.
+     */
+    private void captureBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = data.clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * SlottedPage.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; //all 0
+    }
+
+    /**
+     * Delete the specified tuple from the page. Its slot becomes free; the
+     * space of its record is reclaimed when the page is next compacted.
+     *
+     * @param t The tuple to delete
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *                     already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tried to delete tuple on invalid page or table");
+        int slot = rid.getTupleNumber();
+        if (!isSlotUsed(slot))
+            throw new DbException("tried to delete null tuple.");
+        captureBeforeImage();
+        freeBytes += getSlotLength(slot);
+        setSlot(slot, 0, 0);
+
+        // drop free entries from the end of the directory
+        int numSlots = getNumSlots();
+        while (numSlots > 0 && !isSlotUsed(numSlots - 1)) {
+            numSlots--;
+            freeBytes += SLOT_SIZE;
+        }
+        buf.putChar(0, (char) numSlots);
+    }
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to reflect
+     * that it is now stored on this page.
+     *
+     * @param t The tuple to add.
+     * @throws DbException if the page does not have room for the tuple or
+     *                     tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in addTuple");
+
+        int size = getRecordSize(t);
+        int numSlots = getNumSlots();
+        int slot = 0;
+        while (slot < numSlots && isSlotUsed(slot))
+            slot++;
+        int needed = size + (slot == numSlots ? SLOT_SIZE : 0);
+        if (needed > freeBytes)
+            throw new DbException("called addTuple on page with no room for the tuple.");
+
+        captureBeforeImage();
+        int directoryEnd = HEADER_SIZE + Math.max(numSlots, slot + 1) * SLOT_SIZE;
+        if (getRecordStart() - directoryEnd < size)
+            compact();
+
+        int offset = getRecordStart() - size;
+        ByteBuffer record = buf.duplicate();
+        record.position(offset);
+        for (int j = 0; j < td.numFields(); j++)
+            writeField(record, t.getField(j));
+
+        if (slot == numSlots)
+            buf.putChar(0, (char) (numSlots + 1));
+        buf.putChar(2, (char) (offset == pageSize ? 0 : offset));
+        setSlot(slot, offset, size);
+        freeBytes -= needed;
+
+        Debug.log(1, "SlottedPage.addTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), slot);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    private static void writeField(ByteBuffer record, Field f) {
+        if (f instanceof IntField) {
+            record.putInt(((IntField) f).getValue());
+            return;
+        }
+        String s = ((StringField) f).getValue();
+        int len = Math.min(s.length(), Type.STRING_LEN);
+        record.putChar((char) len);
+        // one byte per char, as DataOutputStream.writeBytes does
+        for (int i = 0; i < len; i++)
+            record.put((byte) s.charAt(i));
+    }
+
+    /**
+     * Move all records to the end of the page, so that the space of deleted
+     * records becomes part of the free space in the middle.
+     */
+    private void compact() {
+        byte[] records = new byte[pageSize];
+        int end = pageSize;
+        int numSlots = getNumSlots();
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            int len = getSlotLength(i);
+            end -= len;
+            System.arraycopy(data, getSlotOffset(i), records, end, len);
+            setSlot(i, end, len);
+        }
+        System.arraycopy(records, end, data, end, pageSize - end);
+        buf.putChar(2, (char) (end == pageSize ? 0 : end));
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.dirtier = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+
+    /**
+     * @return the number of free bytes on this page, including the space of
+     *         deleted records that has not been reclaimed yet
+     */
+    public int getFreeSpace() {
+        return freeBytes;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < getNumSlots() && getSlotOffset(i) != 0;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            int slot = nextUsed(0);
+
+            private int nextUsed(int from) {
+                int numSlots = getNumSlots();
+                while (from < numSlots && !isSlotUsed(from))
+                    from++;
+                return from;
+            }
+
+            public boolean hasNext() {
+                return slot < getNumSlots();
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = getTuple(slot);
+                slot = nextUsed(slot + 1);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Decode the tuple in the specified slot.
+     *
+     * @return the tuple, or null if the slot is not used
+     */
+    public Tuple getTuple(int slot) {
+        if (!isSlotUsed(slot))
+            return null;
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        int offset = getSlotOffset(slot);
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                int len = buf.getChar(offset);
+                t.setField(j, new StringField(new String(data, offset + 2, len), Type.STRING_LEN));
+                offset += 2 + len;
+            } else {
+                t.setField(j, new IntField(buf.getInt(offset)));
+                offset += td.getFieldType(j).getLen();
+            }
+        }
+        return t;
+    }
+}
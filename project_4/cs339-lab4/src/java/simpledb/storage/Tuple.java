@@ -1,5 +1,7 @@
 package simpledb.storage;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -17,6 +19,12 @@ public class Tuple implements Serializable {
     private final Field[] fields;
     private transient TupleDesc td;
 
+    // for tuples read from a HeapPage: the page and slot that fields are
+    // decoded from the first time they are accessed; null once all fields
+    // have been decoded
+    private transient HeapPage page;
+    private transient int slot;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -28,6 +36,17 @@ public class Tuple implements Serializable {
         this.td = td;
     }
 
+    /**
+     * Create a tuple whose fields are decoded lazily from a slot of a page.
+     *
+     * @see HeapPage#getTuple(int)
+     */
+    Tuple(TupleDesc td, HeapPage page, int slot) {
+        this(td);
+        this.page = page;
+        this.slot = slot;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -70,7 +89,23 @@ public class Tuple implements Serializable {
      * @return the value of the ith field, or null if it has not been set.
      */
     public Field getField(int i) {
-        return fields[i];
+        Field f = fields[i];
+        if (f == null && page != null) {
+            f = page.readField(slot, i);
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    /**
+     * Decode all fields that have not been accessed yet.
+     */
+    private void decodeFields() {
+        if (page == null)
+            return;
+        for (int i = 0; i < fields.length; i++)
+            getField(i);
+        page = null;
     }
 
     /**
@@ -82,6 +117,7 @@ public class Tuple implements Serializable {
      * where \t is any whitespace (except a newline)
      */
     public String toString() {
+        decodeFields();
         StringBuilder out = new StringBuilder();
         for (Field field : fields) {
             if (out.length() > 0)
@@ -95,6 +131,7 @@ public class Tuple implements Serializable {
      * @return An iterator which iterates over all the fields of this tuple
      */
     public Iterator<Field> fields() {
+        decodeFields();
         return Arrays.asList(fields).iterator();
     }
 
@@ -104,4 +141,9 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td) {
         this.td = td;
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeFields();
+        out.defaultWriteObject();
+    }
 }
@@ -0,0 +1,49 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.util.Iterator;
+
+/**
+ * TuplePage is implemented by the page formats a HeapFile can store its
+ * tuples in ({@link HeapPage}, {@link SlottedPage} and {@link
+ * CompressedPage}). It adds to Page what HeapFile needs to insert, delete
+ * and scan tuples without knowing how the page lays them out.
+ */
+interface TuplePage extends Page {
+
+    HeapPageId getId();
+
+    /**
+     * @return an iterator over all tuples on this page
+     */
+    Iterator<Tuple> iterator();
+
+    /**
+     * @return the tuple in the specified slot, or null if the slot is not
+     *         used
+     */
+    Tuple getTuple(int slot);
+
+    /**
+     * Adds the specified tuple to the page and sets its RecordId.
+     *
+     * @throws DbException if the tuple does not fit on the page
+     */
+    void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Deletes the specified tuple from the page.
+     *
+     * @throws DbException if the tuple is not on this page
+     */
+    void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * @return the free space on this page, in the unit the page format
+     *         counts it in (free slots for HeapPage, bytes for SlottedPage
+     *         and CompressedPage)
+     * @see HeapFile#spaceNeeded(Tuple)
+     */
+    int getFreeSpace();
+}
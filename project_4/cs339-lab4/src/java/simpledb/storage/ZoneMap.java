@@ -0,0 +1,259 @@
+package simpledb.storage;
+
+import simpledb.common.Debug;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ZoneMap remembers the smallest and largest value of every int field on
+ * each page of a HeapFile, so that a scan with a predicate on such a field
+ * can skip the pages none of whose tuples can satisfy it without reading
+ * them. This pays off when the values of a field are clustered by page,
+ * e.g. a timestamp or a sequence number of tuples loaded in order.
+ * <p>
+ * Unlike the {@link FreeSpaceMap}, the zone of a page must never be
+ * narrower than its contents, or scans would miss tuples. A zone is
+ * computed exactly from a page only when the page is clean (read from disk
+ * or being written to it); an insert widens the zone of its page, and
+ * deletes leave it as it is, so that it stays wide enough whether the
+ * transaction commits or aborts. Pages with no zone yet (e.g., pages that
+ * were in the BufferPool before the map was loaded) are never skipped.
+ * <p>
+ * The map is persisted in a side file next to the heap file: per page, a
+ * byte that says whether the page has a zone, then the smallest and largest
+ * value of each int field. An entry is written through whenever its page is
+ * written to disk. If the side file is missing or older than the heap file,
+ * the map starts out empty, and zones are computed as pages are read.
+ *
+ * @Threadsafe
+ */
+class ZoneMap {
+
+    /**
+     * Suffix of the side file, appended to the name of the heap file.
+     */
+    static final String SUFFIX = ".zmp";
+
+    private final File file;
+    private FileChannel channel = null; // null if the map cannot be persisted; protected by this
+    private final int[] column; // the position of each field among the int fields, or -1
+    private final int[] intFields; // the int fields
+    private final int entrySize;
+    private int[] min = new int[0]; // numPages x intFields.length; protected by this
+    private int[] max = new int[0]; // protected by this
+    private final BitSet known = new BitSet(); // pages with a zone; protected by this
+    private int numPages = 0; // protected by this
+
+    /**
+     * Opens the zone map of the specified heap file, loading the entries
+     * from its side file if that is up to date.
+     *
+     * @param heapFile the file backing the heap file
+     * @param td       the TupleDesc of the heap file
+     */
+    ZoneMap(File heapFile, TupleDesc td) {
+        this.file = new File(heapFile.getPath() + SUFFIX);
+        this.column = new int[td.numFields()];
+        int n = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            column[i] = td.getFieldType(i) == Type.INT_TYPE ? n++ : -1;
+        this.intFields = new int[n];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (column[i] >= 0)
+                intFields[column[i]] = i;
+        }
+        this.entrySize = 1 + 8 * n;
+        boolean stale = !file.exists() || file.lastModified() < heapFile.lastModified();
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            if (stale)
+                channel.truncate(0);
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, buf.position()) < 0)
+                    break;
+            }
+            buf.flip();
+            for (int pgNo = 0; buf.remaining() >= entrySize; pgNo++) {
+                grow(pgNo);
+                boolean k = buf.get() != 0;
+                for (int c = 0; c < intFields.length; c++) {
+                    min[pgNo * intFields.length + c] = buf.getInt();
+                    max[pgNo * intFields.length + c] = buf.getInt();
+                }
+                known.set(pgNo, k);
+            }
+        } catch (IOException e) {
+            // e.g., a read-only table; keep the map in memory only
+            Debug.log("ZoneMap: cannot persist %s: %s", file, e);
+            close();
+        }
+    }
+
+    /**
+     * @return true if a table with the specified TupleDesc has int fields
+     *         for a zone map to summarize
+     */
+    static boolean covers(TupleDesc td) {
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                return true;
+        }
+        return false;
+    }
+
+    private void grow(int pgNo) {
+        if (pgNo >= numPages) {
+            int size = (pgNo + 1) * intFields.length;
+            if (size > min.length) {
+                min = Arrays.copyOf(min, Math.max(size, min.length * 2));
+                max = Arrays.copyOf(max, Math.max(size, max.length * 2));
+            }
+            numPages = pgNo + 1;
+        }
+    }
+
+    /**
+     * Forget the zones of all pages from the specified page on.
+     */
+    synchronized void truncate(int n) {
+        if (n >= numPages)
+            return;
+        known.clear(n, numPages);
+        numPages = n;
+    }
+
+    /**
+     * @return true if the specified page has a zone
+     */
+    synchronized boolean isKnown(int pgNo) {
+        return known.get(pgNo);
+    }
+
+    /**
+     * Set the zone of the specified page to exactly cover the tuples on it.
+     * The page must be clean.
+     */
+    synchronized void set(int pgNo, TuplePage p) {
+        grow(pgNo);
+        int base = pgNo * intFields.length;
+        // an empty page has an empty zone: min > max
+        Arrays.fill(min, base, base + intFields.length, Integer.MAX_VALUE);
+        Arrays.fill(max, base, base + intFields.length, Integer.MIN_VALUE);
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext())
+            cover(base, it.next());
+        known.set(pgNo);
+    }
+
+    /**
+     * Widen the zone of the specified page (if it has one) to cover a tuple
+     * that is being inserted on it.
+     */
+    synchronized void widen(int pgNo, Tuple t) {
+        if (known.get(pgNo))
+            cover(pgNo * intFields.length, t);
+    }
+
+    private void cover(int base, Tuple t) {
+        for (int c = 0; c < intFields.length; c++) {
+            int v = ((IntField) t.getField(intFields[c])).getValue();
+            min[base + c] = Math.min(min[base + c], v);
+            max[base + c] = Math.max(max[base + c], v);
+        }
+    }
+
+    /**
+     * @return false if no tuple on the specified page can satisfy all of
+     *         the predicates (ones on fields other than int fields, or with
+     *         operators a zone cannot rule out, are ignored)
+     */
+    synchronized boolean mayMatch(int pgNo, List<Predicate> predicates) {
+        if (!known.get(pgNo))
+            return true;
+        int base = pgNo * intFields.length;
+        for (Predicate p : predicates) {
+            int c = p.getField() < column.length ? column[p.getField()] : -1;
+            if (c < 0 || !(p.getOperand() instanceof IntField))
+                continue;
+            int lo = min[base + c];
+            int hi = max[base + c];
+            if (lo > hi)
+                return false;
+            int v = ((IntField) p.getOperand()).getValue();
+            boolean may;
+            switch (p.getOp()) {
+                case EQUALS:
+                    may = lo <= v && v <= hi;
+                    break;
+                case LESS_THAN:
+                    may = lo < v;
+                    break;
+                case LESS_THAN_OR_EQ:
+                    may = lo <= v;
+                    break;
+                case GREATER_THAN:
+                    may = hi > v;
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    may = hi >= v;
+                    break;
+                case NOT_EQUALS:
+                    may = lo != v || hi != v;
+                    break;
+                default:
+                    may = true;
+            }
+            if (!may)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the entry of the specified page to the side file.
+     */
+    synchronized void persist(int pgNo) {
+        if (channel == null || pgNo >= numPages)
+            return;
+        ByteBuffer buf = ByteBuffer.allocate(entrySize);
+        buf.put((byte) (known.get(pgNo) ? 1 : 0));
+        for (int c = 0; c < intFields.length; c++)
+            buf.putInt(min[pgNo * intFields.length + c]).putInt(max[pgNo * intFields.length + c]);
+        buf.flip();
+        try {
+            while (buf.hasRemaining())
+                channel.write(buf, (long) pgNo * entrySize + buf.position());
+        } catch (IOException e) {
+            // without the side file the map is rebuilt as pages are read,
+            // so just stop writing it
+            Debug.log("ZoneMap: cannot write %s: %s", file, e);
+            close();
+        }
+    }
+
+    /**
+     * Close the side file; the map keeps working in memory.
+     */
+    synchronized void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing was lost: every write went straight to the file
+        }
+        channel = null;
+    }
+}
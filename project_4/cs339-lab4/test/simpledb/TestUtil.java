@@ -0,0 +1,101 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.IntField;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Helpers shared by the tests.
+ */
+public class TestUtil {
+
+    /**
+     * Insert rows {k, k} into the specified table of two int columns from
+     * several threads at once, each running the specified number of
+     * transactions. Every key from 0 to threads * transactions *
+     * rowsPerTransaction - 1 is inserted once; transactions that are
+     * aborted (e.g. as deadlock victims) are retried. A thread whose insert
+     * fails otherwise aborts its transaction and stops.
+     *
+     * @return the number of aborted transactions
+     */
+    public static int insertConcurrently(int tableId, int threads, int transactions,
+                                         int rowsPerTransaction) throws Exception {
+        AtomicInteger aborts = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] ts = new Thread[threads];
+        for (int n = 0; n < threads; n++) {
+            int thread = n;
+            ts[n] = new Thread(() -> {
+                try {
+                    for (int x = 0; x < transactions; x++) {
+                        int base = (thread * transactions + x) * rowsPerTransaction;
+                        while (true) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            try {
+                                for (int i = 0; i < rowsPerTransaction; i++)
+                                    Database.getBufferPool().insertTuple(t.getId(), tableId,
+                                            Utility.getHeapTuple(new int[]{base + i, base + i}));
+                                t.commit();
+                                break;
+                            } catch (TransactionAbortedException e) {
+                                aborts.incrementAndGet();
+                                t.abort();
+                            } catch (Throwable e) {
+                                // let the other threads finish
+                                t.abort();
+                                throw e;
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            ts[n].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        if (failure.get() != null)
+            throw new AssertionError("insert failed", failure.get());
+        return aborts.get();
+    }
+
+    /**
+     * @return the values of the first (int) column of every tuple of the
+     *         specified table, sorted
+     */
+    public static List<Integer> scanFirstColumn(int tableId) throws Exception {
+        TransactionId tid = new TransactionId();
+        List<Integer> keys = new ArrayList<>();
+        SeqScan scan = new SeqScan(tid, tableId);
+        scan.open();
+        while (scan.hasNext())
+            keys.add(((IntField) scan.next().getField(0)).getValue());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * @return the list 0, 1, ..., n - 1
+     */
+    public static List<Integer> range(int n) {
+        List<Integer> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            result.add(i);
+        return result;
+    }
+}
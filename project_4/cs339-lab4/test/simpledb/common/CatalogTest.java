@@ -0,0 +1,87 @@
+package simpledb.common;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.index.HashFile;
+import simpledb.index.IndexFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.LsmFile;
+import simpledb.storage.SlottedFile;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the files and indexes loadSchema opens for the annotations and
+ * options of a schema.
+ */
+public class CatalogTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+    }
+
+    private List<IndexFile> load(String table, String schema) throws Exception {
+        File catalog = new File(dir, "catalog.txt");
+        try (Writer w = new FileWriter(catalog)) {
+            w.write(schema + "\n");
+        }
+        new File(dir, table + ".dat").createNewFile();
+        for (File f : new File[]{catalog, new File(dir, table + ".dat")})
+            f.deleteOnExit();
+        Database.getCatalog().loadSchema(catalog.getPath());
+        List<IndexFile> indexes = Database.getCatalog().getIndexes(Database.getCatalog().getTableId(table));
+        for (IndexFile index : indexes)
+            ((HashFile) index).getFile().deleteOnExit();
+        return indexes;
+    }
+
+    @Test
+    public void primaryKeyGetsAHashIndex() throws Exception {
+        List<IndexFile> indexes = load("users", "users (name string, id int pk, age int)");
+        assertEquals(1, indexes.size());
+        assertTrue(indexes.get(0) instanceof HashFile);
+        assertEquals(1, indexes.get(0).getKeyField());
+        assertTrue(new File(dir, "users.id.hash").exists());
+    }
+
+    @Test
+    public void primaryKeyAnnotatedWithHashGetsOneIndex() throws Exception {
+        List<IndexFile> indexes = load("items", "items (id int pk hash, price int)");
+        assertEquals(1, indexes.size());
+        assertEquals(0, indexes.get(0).getKeyField());
+    }
+
+    @Test
+    public void tableWithoutPrimaryKeyGetsNoIndex() throws Exception {
+        assertTrue(load("log", "log (at int, message string)").isEmpty());
+    }
+
+    @Test
+    public void slottedOptionOpensASlottedFile() throws Exception {
+        load("names", "names (id int, name string) slotted");
+        int id = Database.getCatalog().getTableId("names");
+        assertTrue(Database.getCatalog().getDatabaseFile(id) instanceof SlottedFile);
+    }
+
+    @Test
+    public void lsmOptionOpensAnLsmFileOnThePrimaryKey() throws Exception {
+        assertTrue(load("events", "events (at int, id int pk) lsm").isEmpty());
+        DbFile file = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("events"));
+        assertTrue(file instanceof LsmFile);
+        assertEquals(1, ((LsmFile) file).getKeyField());
+        Database.getCatalog().clear();
+        for (File f : dir.listFiles())
+            f.delete();
+    }
+}
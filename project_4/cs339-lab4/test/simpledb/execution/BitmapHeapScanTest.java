@@ -0,0 +1,206 @@
+package simpledb.execution;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BitmapIndex;
+import simpledb.index.PositionIndex;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a BitmapHeapScan over bitmap indexes returns exactly the
+ * tuples a SeqScan and Filters do, as the table changes, and reads only the
+ * pages that hold them.
+ */
+public class BitmapHeapScanTest {
+
+    private static final int ROWS = 20000;
+
+    private File file;
+    private File index0;
+    private File index1;
+    private HeapFile table;
+
+    /**
+     * Create a table of three int columns whose rows are {i % 5, i / 7 % 11,
+     * i}, with bitmap indexes on the first two columns.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("bitmap", ".dat");
+        index0 = new File(file.getPath() + ".0.bmp");
+        index1 = new File(file.getPath() + ".1.bmp");
+        for (File f : new File[]{file, index0, index1})
+            f.deleteOnExit();
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(Arrays.asList(i % 5, i / 7 % 11, i));
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 3);
+        open();
+    }
+
+    private void open() throws Exception {
+        Database.getCatalog().clear();
+        Database.resetBufferPool(200);
+        table = new HeapFile(file, Utility.getTupleDesc(3));
+        Database.getCatalog().addTable(table, "bitmap");
+        TransactionId tid = new TransactionId();
+        Database.getCatalog().addPositionIndex(PositionIndex.isUpToDate(index0, table)
+                ? BitmapIndex.open(index0, table, 0) : BitmapIndex.create(tid, table, 0, index0));
+        Database.getCatalog().addPositionIndex(PositionIndex.isUpToDate(index1, table)
+                ? BitmapIndex.open(index1, table, 1) : BitmapIndex.create(tid, table, 1, index1));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static Predicate p(int field, Predicate.Op op, int value) {
+        return new Predicate(field, op, new IntField(value));
+    }
+
+    private static List<String> run(OpIterator it) throws Exception {
+        List<String> rows = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            rows.add(t.toString());
+        }
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Check that a BitmapHeapScan with the specified predicates returns
+     * what a filtered SeqScan does.
+     *
+     * @return the number of tuples returned
+     */
+    private int compare(TransactionId tid, Predicate... predicates) throws Exception {
+        List<String> fromBitmaps = run(new BitmapHeapScan(tid, table.getId(), "bitmap", Arrays.asList(predicates)));
+        OpIterator scan = new SeqScan(tid, table.getId(), "bitmap");
+        for (Predicate p : predicates)
+            scan = new Filter(p, scan);
+        List<String> expected = run(scan);
+        assertEquals(Arrays.toString(predicates), expected, fromBitmaps);
+        return expected.size();
+    }
+
+    private void compareAll(TransactionId tid) throws Exception {
+        for (int v0 = 0; v0 < 6; v0++) {
+            for (int v1 : new int[]{2, 5, 9, 12})
+                compare(tid, p(0, Predicate.Op.EQUALS, v0), p(1, Predicate.Op.EQUALS, v1));
+        }
+        compare(tid, p(0, Predicate.Op.LESS_THAN, 2), p(1, Predicate.Op.GREATER_THAN, 7));
+        compare(tid, p(0, Predicate.Op.NOT_EQUALS, 1));
+    }
+
+    @Test
+    public void conjunctionsMatchAFilteredScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(ROWS / 5, compare(tid, p(0, Predicate.Op.EQUALS, 3)));
+        compareAll(tid);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * @return the number of pages a BitmapHeapScan in a transaction of its
+     *         own reads from disk
+     */
+    private long misses(int expected, Predicate... predicates) throws Exception {
+        TransactionId tid = new TransactionId();
+        long before = Database.getBufferPool().getMissCount();
+        assertEquals(expected, run(new BitmapHeapScan(tid, table.getId(), "bitmap", Arrays.asList(predicates))).size());
+        Database.getBufferPool().transactionComplete(tid);
+        return Database.getBufferPool().getMissCount() - before;
+    }
+
+    @Test
+    public void conjunctionReadsOnlyThePagesThatMatch() throws Exception {
+        // the table is full, so these go to a new page at its end
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{7, 12, i}));
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(200);
+
+        assertEquals(0, misses(0, p(0, Predicate.Op.EQUALS, 0), p(0, Predicate.Op.EQUALS, 1)));
+        assertEquals(0, misses(0, p(0, Predicate.Op.EQUALS, 7), p(1, Predicate.Op.EQUALS, 11)));
+        assertEquals(1, misses(100, p(0, Predicate.Op.EQUALS, 7), p(1, Predicate.Op.GREATER_THAN, 10)));
+    }
+
+    @Test
+    public void indexesFollowInsertsDeletesAndAborts() throws Exception {
+        Random r = new Random(1);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 3000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                    Utility.getHeapTuple(new int[]{r.nextInt(5), r.nextInt(11), -i}));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        run(new Delete(t.getId(), new Filter(p(0, Predicate.Op.EQUALS, 3),
+                new SeqScan(t.getId(), table.getId(), "bitmap"))));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{4, 2, i}));
+        run(new Delete(t.getId(), new Filter(p(1, Predicate.Op.EQUALS, 5),
+                new SeqScan(t.getId(), table.getId(), "bitmap"))));
+        t.abort();
+
+        // into the slots freed above, with other values
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{1, 9, i}));
+        t.commit();
+
+        TransactionId tid = new TransactionId();
+        assertEquals(0, compare(tid, p(0, Predicate.Op.EQUALS, 3)));
+        compareAll(tid);
+        // again, after the first round removed the stale positions
+        compareAll(tid);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test
+    public void savedIndexesAreReloaded() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{1, 9, -i}));
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        // saves the indexes
+        Database.getCatalog().clear();
+        assertTrue(PositionIndex.isUpToDate(index0, table));
+        open();
+
+        TransactionId tid = new TransactionId();
+        compare(tid, p(0, Predicate.Op.EQUALS, 1), p(1, Predicate.Op.EQUALS, 9));
+        compareAll(tid);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
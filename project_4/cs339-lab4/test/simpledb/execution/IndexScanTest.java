@@ -0,0 +1,165 @@
+package simpledb.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that index scans over a B+ tree return exactly the tuples that
+ * match their predicate while reading only a few pages, and that the index
+ * follows inserts, deletes and aborts of the table.
+ */
+public class IndexScanTest {
+
+    private static final int ROWS = 20000;
+
+    private HeapFile table;
+    private BTreeFile index;
+
+    /**
+     * Create a table of two int columns whose rows are {i * 7 % ROWS, i}, in
+     * order of i, with a B+ tree index on the first column.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        File file = File.createTempFile("indexscan", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + ".fsm").deleteOnExit(); // its free space map
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(Arrays.asList(i * 7 % ROWS, i));
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        Database.resetBufferPool(200);
+        table = Utility.openHeapFile(2, "field", file);
+        File idx = File.createTempFile("indexscan", ".idx");
+        idx.deleteOnExit();
+        TransactionId tid = new TransactionId();
+        index = BTreeFile.create(tid, table, 0, idx);
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getCatalog().addIndex(index);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(200);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.close();
+    }
+
+    /**
+     * @return the keys of the tuples (or, if indexOnly, of the index
+     *         entries) an index scan returns, sorted
+     */
+    private List<Integer> keys(TransactionId tid, Predicate.Op op, int operand, boolean indexOnly)
+            throws Exception {
+        IndexScan scan = new IndexScan(tid, index, "t", op, new IntField(operand), indexOnly);
+        List<Integer> keys = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(indexOnly ? 1 : 2, t.getTupleDesc().numFields());
+            keys.add(((IntField) t.getField(0)).getValue());
+            // the rows the table was created with
+            if (!indexOnly && keys.get(keys.size() - 1) < ROWS)
+                assertEquals(((IntField) t.getField(1)).getValue() * 7 % ROWS, keys.get(keys.size() - 1).intValue());
+        }
+        scan.close();
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> keys = new ArrayList<>();
+        for (int i = from; i < to; i++)
+            keys.add(i);
+        return keys;
+    }
+
+    @Test
+    public void equalityScanReadsAFewPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        long before = Database.getBufferPool().getMissCount();
+        assertEquals(Collections.singletonList(1234), keys(tid, Predicate.Op.EQUALS, 1234, false));
+        // the meta page, the root, a leaf and the page of the tuple
+        assertTrue(Database.getBufferPool().getMissCount() - before <= 4);
+        assertEquals(Collections.emptyList(), keys(tid, Predicate.Op.EQUALS, ROWS, false));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test
+    public void rangeScansReturnExactlyTheMatches() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(range(0, 100), keys(tid, Predicate.Op.LESS_THAN, 100, false));
+        assertEquals(range(0, 101), keys(tid, Predicate.Op.LESS_THAN_OR_EQ, 100, false));
+        assertEquals(range(ROWS - 100, ROWS), keys(tid, Predicate.Op.GREATER_THAN_OR_EQ, ROWS - 100, false));
+        assertEquals(range(ROWS - 99, ROWS), keys(tid, Predicate.Op.GREATER_THAN, ROWS - 100, false));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test
+    public void indexOnlyScanNeverReadsTheTable() throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, index, "t", Predicate.Op.LESS_THAN, new IntField(ROWS), true);
+        assertTrue(scan.isIndexOnly());
+        assertEquals(1, scan.getTupleDesc().numFields());
+        assertEquals("t.field0", scan.getTupleDesc().getFieldName(0));
+        long before = Database.getBufferPool().getMissCount();
+        assertEquals(range(0, ROWS), keys(tid, Predicate.Op.LESS_THAN, ROWS, true));
+        // a full table scan would read the table's pages as well
+        assertTrue(Database.getBufferPool().getMissCount() - before <= index.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test
+    public void indexFollowsInsertsDeletesAndAborts() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{ROWS + i, 0}));
+        t.commit();
+
+        // delete the tuples with keys 0 .. 99, found through the index
+        t = new Transaction();
+        t.start();
+        IndexScan scan = new IndexScan(t.getId(), index, "t", Predicate.Op.LESS_THAN, new IntField(100), false);
+        List<Tuple> doomed = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext())
+            doomed.add(scan.next());
+        scan.close();
+        for (Tuple tuple : doomed)
+            Database.getBufferPool().deleteTuple(t.getId(), tuple);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{-1, 0}));
+        assertEquals(1000, keys(t.getId(), Predicate.Op.EQUALS, -1, true).size());
+        t.abort();
+
+        TransactionId tid = new TransactionId();
+        assertEquals(range(100, ROWS + 1000), keys(tid, Predicate.Op.GREATER_THAN_OR_EQ, -1, true));
+        assertEquals(range(ROWS, ROWS + 1000), keys(tid, Predicate.Op.GREATER_THAN_OR_EQ, ROWS, false));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
@@ -0,0 +1,150 @@
+package simpledb.index;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LockManager;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that concurrent inserters into a table with a B+ tree index, which
+ * all add their keys to the last leaf and split it and its ancestors in
+ * turn, neither deadlock nor lose index entries.
+ */
+public class BTreeFileConcurrentInsertTest {
+
+    private HeapFile table;
+    private BTreeFile index;
+
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        // small pages, so that the tree gets a few levels
+        BufferPool.setPageSize(256);
+        Database.resetBufferPool(1000);
+        File f = File.createTempFile("btreeinsert", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit(); // its free space map
+        table = Utility.createEmptyHeapFile(f.getPath(), 2);
+        File idx = File.createTempFile("btreeinsert", ".idx");
+        idx.deleteOnExit();
+        TransactionId tid = new TransactionId();
+        index = BTreeFile.create(tid, table, 0, idx);
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getCatalog().addIndex(index);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.close();
+        BufferPool.resetPageSize();
+    }
+
+    @Test
+    public void singleRowTransactionsNeverDeadlock() throws Exception {
+        int aborts = TestUtil.insertConcurrently(table.getId(), 4, 200, 1);
+        assertEquals(0, aborts);
+        assertTrue(index.numPages() > 20);
+        assertEquals(TestUtil.range(800), indexKeys(null));
+    }
+
+    @Test
+    public void splitWhileAnotherInserterWaitsForTheLeaf() throws Exception {
+        // the second inserter waits for the leaf the first one has locked,
+        // and the first one then splits it, which changes the meta page
+        LockManager locks = Database.getBufferPool().getLockManager();
+        Transaction first = new Transaction();
+        first.start();
+        insertEntry(first.getId(), 0);
+        long waits = locks.getLockWaitCount();
+        Transaction second = new Transaction();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                second.start();
+                insertEntry(second.getId(), 1000);
+                second.commit();
+            } catch (Throwable e) {
+                failure.set(e);
+                try {
+                    second.abort();
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        t.start();
+        while (locks.getLockWaitCount() == waits && t.isAlive())
+            Thread.sleep(1);
+        for (int k = 1; k < 100; k++)
+            insertEntry(first.getId(), k);
+        first.commit();
+        t.join();
+        assertNull(failure.get());
+        assertEquals(0, locks.getDeadlockCount());
+        List<Integer> expected = TestUtil.range(100);
+        expected.add(1000);
+        assertEquals(expected, indexKeys(null));
+    }
+
+    @Test
+    public void multiRowTransactionsKeepEveryEntry() throws Exception {
+        // transactions that keep their leaves while inserting more rows can
+        // deadlock on them; the retried ones must leave no trace
+        TestUtil.insertConcurrently(table.getId(), 4, 25, 20);
+        assertEquals(TestUtil.range(2000), indexKeys(null));
+        assertEquals(TestUtil.range(2000), TestUtil.scanFirstColumn(table.getId()));
+    }
+
+    @Test
+    public void lookupsFindEveryKey() throws Exception {
+        TestUtil.insertConcurrently(table.getId(), 4, 100, 1);
+        for (int k = 0; k < 400; k += 37)
+            assertEquals(Collections.singletonList(k), indexKeys(new IntField(k)));
+    }
+
+    /**
+     * Add an entry for key to the index, pointing at a made-up tuple.
+     */
+    private void insertEntry(TransactionId tid, int key) throws Exception {
+        Tuple t = Utility.getHeapTuple(new int[]{key, key});
+        t.setRecordId(new RecordId(new HeapPageId(table.getId(), key), 0));
+        index.insertTuple(tid, t);
+    }
+
+    /**
+     * @return the keys of the index entries equal to key (or of all
+     *         entries, if key is null), in index order
+     */
+    private List<Integer> indexKeys(IntField key) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = key == null ? index.iterator(tid)
+                : index.indexIterator(tid, Predicate.Op.EQUALS, key);
+        List<Integer> keys = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return keys;
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb.index;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests Bitmap against a sorted set of positions, for both sparse pages
+ * (array containers) and dense ones (bit containers).
+ */
+public class BitmapTest {
+
+    private static long position(int page, int slot) {
+        return ((long) page << 16) | slot;
+    }
+
+    private static TreeSet<Long> positions(Bitmap b) {
+        TreeSet<Long> s = new TreeSet<>();
+        int last = -1;
+        for (int i = 0; i < b.numPages(); i++) {
+            assertTrue(b.getPage(i) > last);
+            last = b.getPage(i);
+            int[] slots = b.getSlots(i);
+            assertTrue(slots.length > 0);
+            for (int j = 0; j < slots.length; j++) {
+                assertTrue(j == 0 || slots[j] > slots[j - 1]);
+                s.add(position(b.getPage(i), slots[j]));
+            }
+        }
+        return s;
+    }
+
+    /**
+     * @return a bitmap of random positions, dense on some pages, and the
+     *         same positions as a set
+     */
+    private static Bitmap random(Random r, TreeSet<Long> expected) {
+        Bitmap b = new Bitmap();
+        for (int page = 0; page < 50; page += 1 + r.nextInt(3)) {
+            int n = r.nextBoolean() ? 1 + r.nextInt(5) : 300 + r.nextInt(200);
+            for (int k = 0; k < n; k++) {
+                int slot = r.nextInt(500);
+                assertEquals(expected.add(position(page, slot)), b.add(page, slot));
+            }
+        }
+        return b;
+    }
+
+    @Test
+    public void addRemoveAndContains() {
+        Random r = new Random(1);
+        TreeSet<Long> expected = new TreeSet<>();
+        Bitmap b = random(r, expected);
+        assertEquals(expected, positions(b));
+        assertEquals(expected.size(), b.cardinality());
+
+        List<Long> all = new ArrayList<>(expected);
+        for (int i = 0; i < all.size(); i += 2) {
+            long p = all.get(i);
+            assertTrue(b.remove((int) (p >> 16), (int) (p & 0xffff)));
+            expected.remove(p);
+        }
+        assertFalse(b.remove(1000, 1));
+        assertEquals(expected, positions(b));
+        for (long p : all)
+            assertEquals(expected.contains(p), b.contains((int) (p >> 16), (int) (p & 0xffff)));
+    }
+
+    @Test
+    public void andAndOr() {
+        Random r = new Random(2);
+        TreeSet<Long> sa = new TreeSet<>(), sb = new TreeSet<>();
+        Bitmap a = random(r, sa), b = random(r, sb);
+
+        TreeSet<Long> both = new TreeSet<>(sa);
+        both.retainAll(sb);
+        TreeSet<Long> either = new TreeSet<>(sa);
+        either.addAll(sb);
+        assertEquals(both, positions(Bitmap.and(a, b)));
+        assertEquals(either, positions(Bitmap.or(a, b)));
+        // the inputs are left as they were
+        assertEquals(sa, positions(a));
+        assertEquals(sb, positions(b));
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        Bitmap a = new Bitmap();
+        a.add(3, 7);
+        Bitmap b = a.copy();
+        b.add(3, 8);
+        a.remove(3, 7);
+        assertEquals(0, a.cardinality());
+        assertTrue(b.contains(3, 7));
+        assertTrue(b.contains(3, 8));
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        TreeSet<Long> expected = new TreeSet<>();
+        Bitmap b = random(new Random(3), expected);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        b.write(new DataOutputStream(bytes));
+        Bitmap c = Bitmap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(expected, positions(c));
+    }
+}
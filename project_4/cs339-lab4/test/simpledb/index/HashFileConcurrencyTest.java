@@ -0,0 +1,204 @@
+package simpledb.index;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.LockManager;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that concurrent inserters and deleters keep a HashFile complete
+ * without deadlocking, and that readers do not keep its buckets from
+ * being split.
+ */
+public class HashFileConcurrencyTest {
+
+    private HeapFile table;
+    private HashFile index;
+
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        // small pages, so that buckets overflow and split often
+        BufferPool.setPageSize(256);
+        Database.resetBufferPool(1000);
+        File f = File.createTempFile("hashindex", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit(); // its free space map
+        table = Utility.createEmptyHeapFile(f.getPath(), 2);
+        File idx = File.createTempFile("hashindex", ".hash");
+        idx.deleteOnExit();
+        index = new HashFile(idx, table, 0);
+        Database.getCatalog().addIndex(index);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.close();
+        BufferPool.resetPageSize();
+    }
+
+    @Test
+    public void concurrentInsertsSplitWithoutDeadlocks() throws Exception {
+        int aborts = TestUtil.insertConcurrently(table.getId(), 4, 200, 1);
+        assertEquals(0, aborts);
+        assertEquals(0, Database.getBufferPool().getLockManager().getDeadlockCount());
+        assertTrue(numBuckets() > 20);
+        List<Integer> keys = indexKeys(null);
+        Collections.sort(keys);
+        assertEquals(TestUtil.range(800), keys);
+        for (int k = 0; k < 800; k += 53)
+            assertEquals(Collections.singletonList(k), indexKeys(new IntField(k)));
+    }
+
+    @Test
+    public void readersDoNotStopSplits() throws Exception {
+        TestUtil.insertConcurrently(table.getId(), 1, 100, 1);
+        int before = numBuckets();
+        // a reader that keeps the last bucket locked until it completes;
+        // the other buckets are split before it
+        int lastBucket = before - 1;
+        int key = 0;
+        while (HashFile.bucket(HashFile.hash(new IntField(key)), before) != lastBucket)
+            key++;
+        Transaction reader = new Transaction();
+        reader.start();
+        DbFileIterator it = index.indexIterator(reader.getId(), Predicate.Op.EQUALS, new IntField(key));
+        it.open();
+        assertTrue(it.hasNext());
+
+        // inserts of keys in the other buckets
+        List<Integer> inserted = new ArrayList<>();
+        Thread inserter = new Thread(() -> {
+            try {
+                for (int k = 100; k < 300; k++) {
+                    if (HashFile.bucket(HashFile.hash(new IntField(k)), numBuckets()) == lastBucket)
+                        continue;
+                    Transaction t = new Transaction();
+                    t.start();
+                    Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                            Utility.getHeapTuple(new int[]{k, k}));
+                    t.commit();
+                    inserted.add(k);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        inserter.start();
+        inserter.join(60000);
+        boolean blocked = inserter.isAlive();
+        it.close();
+        reader.commit();
+        inserter.join();
+        assertFalse("inserts into other buckets waited for the reader", blocked);
+        assertTrue(numBuckets() > before);
+        assertEquals(100 + inserted.size(), indexKeys(null).size());
+        for (int k : inserted)
+            assertEquals(Collections.singletonList(k), indexKeys(new IntField(k)));
+    }
+
+    @Test
+    public void deleteAfterALookupInTheSameBucket() throws Exception {
+        // one bucket, so that both keys are in it
+        TestUtil.insertConcurrently(table.getId(), 1, 2, 1);
+        List<Tuple> rows = rows();
+        LockManager locks = Database.getBufferPool().getLockManager();
+
+        Transaction reader = new Transaction();
+        reader.start();
+        DbFileIterator it = index.indexIterator(reader.getId(), Predicate.Op.EQUALS, new IntField(0));
+        it.open();
+        assertTrue(it.hasNext());
+        it.close();
+
+        long waits = locks.getLockWaitCount();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread deleter = new Thread(() -> {
+            Transaction t = new Transaction();
+            try {
+                t.start();
+                Database.getBufferPool().deleteTuple(t.getId(), rows.get(1));
+                t.commit();
+            } catch (Throwable e) {
+                failure.set(e);
+                try {
+                    t.abort();
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        deleter.start();
+        while (locks.getLockWaitCount() == waits && deleter.isAlive())
+            Thread.sleep(1);
+        // the reader deletes from the bucket the deleter waits for
+        Database.getBufferPool().deleteTuple(reader.getId(), rows.get(0));
+        reader.commit();
+        deleter.join();
+        assertNull(failure.get());
+        assertEquals(0, locks.getDeadlockCount());
+        assertEquals(Collections.emptyList(), indexKeys(null));
+    }
+
+    private int numBuckets() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashPage meta = (HashPage) Database.getBufferPool().getPage(tid,
+                new HashPageId(index.getId(), HashFile.META_PAGE), Permissions.READ_ONLY);
+        int n = meta.getNumBuckets();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * @return the rows of the table, in the order of their keys
+     */
+    private List<Tuple> rows() throws Exception {
+        TransactionId tid = new TransactionId();
+        List<Tuple> rows = new ArrayList<>();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        rows.sort((a, b) -> Integer.compare(((IntField) a.getField(0)).getValue(),
+                ((IntField) b.getField(0)).getValue()));
+        return rows;
+    }
+
+    /**
+     * @return the keys of the index entries equal to key (or of all
+     *         entries, if key is null), in index order
+     */
+    private List<Integer> indexKeys(IntField key) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = key == null ? index.iterator(tid)
+                : index.indexIterator(tid, Predicate.Op.EQUALS, key);
+        List<Integer> keys = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return keys;
+    }
+}
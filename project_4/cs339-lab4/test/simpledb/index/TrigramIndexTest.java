@@ -0,0 +1,185 @@
+package simpledb.index;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.BitmapHeapScan;
+import simpledb.execution.Delete;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that LIKE predicates answered through a TrigramIndex return exactly
+ * the tuples a filtered SeqScan does, as the table changes.
+ */
+public class TrigramIndexTest {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"id", "descr"});
+    private static final String[] WORDS = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot",
+            "golf", "hotel", "india", "juliet", "kilo", "lima"};
+    private static final String[] PATTERNS = {"zebra", "ebr", "crossing", "lima kilo",
+            "hotel india juliet", "oxtrot gol", "xyz", "a zeb", "ima"};
+
+    private File file;
+    private File indexFile;
+    private HeapFile table;
+    private TrigramIndex index;
+
+    private static Tuple row(int id, String descr) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(descr, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * @return a few random words, and now and then "zebra"
+     */
+    private static String descr(Random r) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 2 + r.nextInt(6); n > 0; n--)
+            sb.append(WORDS[r.nextInt(WORDS.length)]).append(' ');
+        if (r.nextInt(500) == 0)
+            sb.append("zebra");
+        return sb.toString().trim();
+    }
+
+    /**
+     * Create a table of 5000 random descriptions, indexed by trigram.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("trigram", ".dat");
+        indexFile = new File(file.getPath() + ".tri");
+        file.deleteOnExit();
+        indexFile.deleteOnExit();
+        new FileOutputStream(file).close();
+        open();
+        Random r = new Random(5);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 5000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), row(i, descr(r)));
+        t.commit();
+    }
+
+    private void open() throws Exception {
+        Database.getCatalog().clear();
+        Database.resetBufferPool(1000);
+        table = new HeapFile(file, TD);
+        Database.getCatalog().addTable(table, "t");
+        TransactionId tid = new TransactionId();
+        index = PositionIndex.isUpToDate(indexFile, table)
+                ? TrigramIndex.open(indexFile, table, 1) : TrigramIndex.create(tid, table, 1, indexFile);
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getCatalog().addPositionIndex(index);
+    }
+
+    private static Predicate like(String s) {
+        return new Predicate(1, Predicate.Op.LIKE, new StringField(s, Type.STRING_LEN));
+    }
+
+    private static List<String> run(OpIterator it) throws Exception {
+        List<String> rows = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Check that a LIKE through the index returns what a filtered scan does.
+     *
+     * @return the number of tuples returned
+     */
+    private int compare(TransactionId tid, String s) throws Exception {
+        Predicate p = like(s);
+        List<String> expected = run(new Filter(p, new SeqScan(tid, table.getId(), "t")));
+        assertEquals(s, expected, run(new BitmapHeapScan(tid, table.getId(), "t", Collections.singletonList(p))));
+        assertTrue(index.lookup(p.getOp(), p.getOperand()).cardinality() >= expected.size());
+        return expected.size();
+    }
+
+    @Test
+    public void likeMatchesAFilteredScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (String s : PATTERNS)
+            compare(tid, s);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test
+    public void rareSubstringHasFewCandidates() throws Exception {
+        TransactionId tid = new TransactionId();
+        int n = compare(tid, "zebra");
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(n > 0);
+        assertEquals(n, index.lookup(Predicate.Op.LIKE, like("zebra").getOperand()).cardinality());
+        assertEquals(0, index.lookup(Predicate.Op.LIKE, like("xyz").getOperand()).cardinality());
+    }
+
+    @Test
+    public void shortOperandsAreNotSupported() {
+        assertFalse(index.supports(Predicate.Op.LIKE, new StringField("ab", Type.STRING_LEN)));
+        assertFalse(index.supports(Predicate.Op.EQUALS, new StringField("abc", Type.STRING_LEN)));
+        assertTrue(index.supports(Predicate.Op.LIKE, new StringField("abc", Type.STRING_LEN)));
+    }
+
+    @Test
+    public void indexFollowsInsertsDeletesAbortsAndRestarts() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        run(new Delete(t.getId(), new Filter(like("zebra"), new SeqScan(t.getId(), table.getId(), "t"))));
+        t.commit();
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), row(-i, "zebra crossing"));
+        t.abort();
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 7; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), row(-i, "a zebra here"));
+        t.commit();
+
+        TransactionId tid = new TransactionId();
+        assertEquals(7, compare(tid, "zebra"));
+        assertEquals(0, compare(tid, "crossing"));
+        for (String s : PATTERNS)
+            compare(tid, s);
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.getBufferPool().flushAllPages();
+        // saves the index
+        Database.getCatalog().clear();
+        assertTrue(PositionIndex.isUpToDate(indexFile, table));
+        open();
+        tid = new TransactionId();
+        assertEquals(7, compare(tid, "zebra"));
+        compare(tid, "delta echo");
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
@@ -0,0 +1,209 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that equality lookups and join probes on a field with Bloom filters
+ * skip the pages that do not hold the key, without ever missing one that
+ * does.
+ */
+public class BloomFilterTest {
+
+    private static final int ROWS = 40000;
+
+    private File file;
+    private File probeFile;
+    private HeapFile table;
+    private HeapFile probes;
+    private List<Integer> keys;
+
+    /**
+     * Create a table whose rows are {k, i} for random even keys k (so that
+     * zone maps cannot rule pages out), and a table of 20 rows whose second
+     * field is a key of the first table in every other row and an absent
+     * (odd) key in the others.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("bloom", ".dat");
+        probeFile = File.createTempFile("bloomprobes", ".dat");
+        for (File f : new File[]{file, probeFile}) {
+            f.deleteOnExit();
+            for (String suffix : new String[]{BloomMap.SUFFIX, ZoneMap.SUFFIX, FreeSpaceMap.SUFFIX})
+                new File(f.getPath() + suffix).deleteOnExit();
+        }
+        Random r = new Random(3);
+        keys = new ArrayList<>();
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            keys.add(r.nextInt(1000000) * 2);
+            tuples.add(Arrays.asList(keys.get(i), i));
+        }
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        List<List<Integer>> probeTuples = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            probeTuples.add(Arrays.asList(i, i % 2 == 0 ? keys.get(i * 1000) : 2 * i + 1));
+        HeapFileEncoder.convert(probeTuples, probeFile, BufferPool.getPageSize(), 2);
+        open(true);
+        // a first lookup computes the filters of all pages
+        Predicate absent = new Predicate(0, Predicate.Op.EQUALS, new IntField(-1));
+        TransactionId tid = new TransactionId();
+        run(new SeqScan(tid, table.getId(), "t", Collections.singletonList(absent)));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(1000);
+    }
+
+    private void open(boolean bloom) {
+        Database.getCatalog().clear();
+        Database.resetBufferPool(1000);
+        table = new HeapFile(file, Utility.getTupleDesc(2));
+        if (bloom)
+            table.setBloomFields(0);
+        Database.getCatalog().addTable(table, "t");
+        probes = new HeapFile(probeFile, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(probes, "u");
+    }
+
+    private static List<String> run(OpIterator it) throws Exception {
+        List<String> rows = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * @return the number of pages read from disk (or read ahead) so far
+     */
+    private static long reads() {
+        return Database.getBufferPool().getMissCount() + Database.getBufferPool().getPrefetchCount();
+    }
+
+    /**
+     * Look up a key with a pushed-down predicate, in a transaction of its
+     * own and with an empty pool, and check the result against a plain
+     * filtered scan.
+     *
+     * @return the number of pages the lookup read
+     */
+    private long lookup(int key, int expected) throws Exception {
+        Database.resetBufferPool(1000);
+        Predicate p = new Predicate(0, Predicate.Op.EQUALS, new IntField(key));
+        TransactionId tid = new TransactionId();
+        long before = reads();
+        List<String> found = run(new Filter(p, new SeqScan(tid, table.getId(), "t", Collections.singletonList(p))));
+        long reads = reads() - before;
+        assertEquals(run(new Filter(p, new SeqScan(tid, table.getId(), "t"))), found);
+        assertEquals(expected, found.size());
+        Database.getBufferPool().transactionComplete(tid);
+        return reads;
+    }
+
+    private int occurrences(int key) {
+        return Collections.frequency(keys, key);
+    }
+
+    @Test
+    public void lookupsSkipPagesWithoutTheKey() throws Exception {
+        int pages = table.numPages();
+        assertTrue(lookup(1001, 0) < pages / 5);
+        assertTrue(lookup(keys.get(10), occurrences(keys.get(10))) < pages / 5);
+        assertTrue(lookup(keys.get(ROWS - 1), occurrences(keys.get(ROWS - 1))) < pages / 5);
+    }
+
+    @Test
+    public void filtersFollowInsertsAndSurviveARestart() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{1001 + 2 * i, -i}));
+        t.commit();
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{5, -i}));
+        t.abort();
+        lookup(1001, 1);
+        lookup(1999, 1);
+        lookup(5, 0);
+
+        Database.getBufferPool().flushAllPages();
+        open(true);
+        int pages = table.numPages();
+        assertTrue(lookup(1001, 1) < pages / 5);
+        assertTrue(lookup(1999, 1) < pages / 5);
+        assertTrue(lookup(5, 0) < pages / 5);
+    }
+
+    @Test
+    public void filtersOfOtherFieldsAreNotUsed() throws Exception {
+        open(false);
+        table.setBloomFields(1);
+        // the side file has filters of field 0; values of field 1 are all
+        // absent from them
+        Predicate p = new Predicate(1, Predicate.Op.EQUALS, new IntField(17));
+        TransactionId tid = new TransactionId();
+        assertEquals(1, run(new Filter(p, new SeqScan(tid, table.getId(), "t", Collections.singletonList(p)))).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test
+    public void joinsProbeOnlyThePagesWithTheKeys() throws Exception {
+        JoinPredicate jp = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        TransactionId tid = new TransactionId();
+        long before = reads();
+        List<String> hashed = run(new HashEquiJoin(jp, new SeqScan(tid, probes.getId(), "u"),
+                new SeqScan(tid, table.getId(), "t")));
+        long hashReads = reads() - before;
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(1000);
+        tid = new TransactionId();
+        before = reads();
+        List<String> nested = run(new Join(jp, new SeqScan(tid, probes.getId(), "u"),
+                new SeqScan(tid, table.getId(), "t")));
+        long nestedReads = reads() - before;
+        Database.getBufferPool().transactionComplete(tid);
+
+        open(false);
+        tid = new TransactionId();
+        List<String> expected = run(new HashEquiJoin(jp, new SeqScan(tid, probes.getId(), "u"),
+                new SeqScan(tid, table.getId(), "t")));
+        Database.getBufferPool().transactionComplete(tid);
+
+        int matches = 0;
+        for (int i = 0; i < 20; i += 2)
+            matches += occurrences(keys.get(i * 1000));
+        assertEquals(matches, expected.size());
+        assertEquals(expected, hashed);
+        assertEquals(expected, nested);
+        int pages = table.numPages();
+        assertTrue(hashReads + " reads", hashReads < pages / 2);
+        assertTrue(nestedReads + " reads", nestedReads < pages / 2);
+    }
+}
@@ -0,0 +1,184 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that misses for the same page share one read, that reads in flight
+ * hold a frame, and that eviction never takes the frame of a pinned page.
+ */
+public class BufferPoolConcurrencyTest {
+
+    /**
+     * A HeapFile that counts its page reads and makes them slow, so that
+     * concurrent misses overlap.
+     */
+    private static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+        volatile CountDownLatch reading = new CountDownLatch(1);
+
+        SlowHeapFile(File f) {
+            super(f, Utility.getTupleDesc(2));
+        }
+
+        /**
+         * Insert into a page that is not in the pool, like files that build
+         * new pages without reading them.
+         */
+        @Override
+        public List<Page> insertTuple(TransactionId tid, Tuple t) {
+            try {
+                HeapPage p = new HeapPage(new HeapPageId(getId(), 3), HeapPage.createEmptyPageData());
+                p.insertTuple(t);
+                return Collections.singletonList(p);
+            } catch (IOException | DbException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            reading.countDown();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile file;
+
+    /**
+     * Create a table of 4 empty pages.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Database.reset();
+        File f = File.createTempFile("bufferpool", ".dat");
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            for (int i = 0; i < 4; i++)
+                out.write(HeapPage.createEmptyPageData());
+        }
+        file = new SlowHeapFile(f);
+        Database.getCatalog().addTable(file, "bufferpool");
+    }
+
+    private PageId page(int n) {
+        return new HeapPageId(file.getId(), n);
+    }
+
+    @Test
+    public void concurrentMissesShareOneRead() throws Exception {
+        BufferPool pool = Database.resetBufferPool(4);
+        int threads = 8;
+        Page[] got = new Page[threads];
+        Throwable[] failed = new Throwable[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int n = i;
+            ts[i] = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    start.await();
+                    got[n] = pool.getPage(tid, page(0), Permissions.READ_ONLY);
+                    pool.transactionComplete(tid);
+                } catch (Throwable t) {
+                    failed[n] = t;
+                }
+            });
+            ts[i].start();
+        }
+        start.countDown();
+        for (Thread t : ts)
+            t.join();
+
+        for (int i = 0; i < threads; i++) {
+            assertNull(failed[i]);
+            assertSame(got[0], got[i]);
+        }
+        assertEquals(1, file.reads.get());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    @Test
+    public void evictionSkipsPinnedFrames() throws Exception {
+        BufferPool pool = Database.resetBufferPool(2);
+        TransactionId pinner = new TransactionId();
+        Page pinned = pool.getPage(pinner, page(0), Permissions.READ_ONLY);
+
+        TransactionId scanner = new TransactionId();
+        for (int i = 1; i < 4; i++) {
+            pool.getPage(scanner, page(i), Permissions.READ_ONLY);
+            pool.unpinPage(scanner, page(i));
+        }
+
+        // every miss had to evict, and only the unpinned frame could go
+        assertEquals(1, pool.getPinCount(page(0)));
+        assertSame(pinned, pool.getPage(pinner, page(0), Permissions.READ_ONLY));
+        assertEquals(4, file.reads.get());
+        pool.transactionComplete(scanner);
+        pool.transactionComplete(pinner);
+    }
+
+    @Test
+    public void dirtyPagesCountReadsInFlight() throws Exception {
+        BufferPool pool = Database.resetBufferPool(2);
+        TransactionId reader = new TransactionId();
+        pool.getPage(reader, page(0), Permissions.READ_ONLY);
+        pool.transactionComplete(reader);
+        file.reading = new CountDownLatch(1);
+
+        TransactionId slow = new TransactionId();
+        Thread t = new Thread(() -> {
+            try {
+                pool.getPage(slow, page(1), Permissions.READ_ONLY);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        file.reading.await();
+        // one frame holds page 0, the other the read of page 1
+        TransactionId writer = new TransactionId();
+        pool.insertTuple(writer, file.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+        t.join();
+
+        assertTrue(pool.pages.size() <= 2);
+        assertNull(pool.pages.get(page(0)));
+        pool.transactionComplete(writer);
+        pool.transactionComplete(slow);
+    }
+
+    @Test(expected = DbException.class)
+    public void allFramesPinned() throws Exception {
+        BufferPool pool = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        try {
+            pool.getPage(tid, page(0), Permissions.READ_ONLY);
+            pool.getPage(tid, page(1), Permissions.READ_ONLY);
+            pool.getPage(tid, page(2), Permissions.READ_ONLY);
+        } finally {
+            pool.transactionComplete(tid);
+        }
+    }
+}
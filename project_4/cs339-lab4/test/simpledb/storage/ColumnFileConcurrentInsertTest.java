@@ -0,0 +1,100 @@
+package simpledb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that concurrent inserters append every row to all columns of a
+ * ColumnFile exactly once, while pages fill up and new ones are appended.
+ */
+public class ColumnFileConcurrentInsertTest {
+
+    private File file;
+    private ColumnFile table;
+
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        // small pages, so that the columns get many pages
+        BufferPool.setPageSize(256);
+        Database.resetBufferPool(500);
+        file = File.createTempFile("columns", ".dat");
+        table = new ColumnFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "columns");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        table.close();
+        for (int c = 0; c < 2; c++)
+            ColumnFile.getColumnFile(file, c).delete();
+        file.delete();
+        BufferPool.resetPageSize();
+    }
+
+    @Test
+    public void concurrentInsertsKeepTheColumnsAligned() throws Exception {
+        TestUtil.insertConcurrently(table.getId(), 4, 300, 1);
+        assertEquals(table.numPages(0), table.numPages(1));
+        assertTrue(table.numPages(0) > 5);
+        assertEquals(TestUtil.range(1200), TestUtil.scanFirstColumn(table.getId()));
+    }
+
+    @Test
+    public void inserterWaitingForAPageThatStopsBeingLast() throws Exception {
+        // the second inserter waits for the last page of column 0 while
+        // the first fills it and appends the next one
+        Transaction first = new Transaction();
+        first.start();
+        int key = 0;
+        insert(first, key++);
+        int pages = table.numPages(0);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int waiterKey = 1_000_000;
+        Thread waiter = new Thread(() -> {
+            try {
+                Transaction second = new Transaction();
+                second.start();
+                insert(second, waiterKey);
+                second.commit();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING && waiter.isAlive())
+            Thread.sleep(5);
+        while (table.numPages(0) == pages)
+            insert(first, key++);
+        first.commit();
+        waiter.join();
+
+        assertNull(failure.get());
+        List<Integer> expected = TestUtil.range(key);
+        expected.add(waiterKey);
+        assertEquals(expected, TestUtil.scanFirstColumn(table.getId()));
+    }
+
+    private void insert(Transaction t, int key) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                Utility.getHeapTuple(new int[]{key, key}));
+    }
+
+    @Test
+    public void concurrentMultiRowInserts() throws Exception {
+        TestUtil.insertConcurrently(table.getId(), 4, 30, 10);
+        assertEquals(TestUtil.range(1200), TestUtil.scanFirstColumn(table.getId()));
+    }
+}
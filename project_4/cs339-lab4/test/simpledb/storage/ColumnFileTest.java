@@ -0,0 +1,149 @@
+package simpledb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.ColumnScan;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a ColumnScan returns the columns it asks for from every row,
+ * reading only the pages of those columns, and that whole tuples survive
+ * inserts, aborts and restarts.
+ */
+public class ColumnFileTest {
+
+    private static final int ROWS = 20000;
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.STRING_TYPE},
+            new String[]{"id", "k", "cat", "name"});
+
+    private File file;
+    private ColumnFile table;
+
+    private static Tuple row(int id) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new IntField(-id));
+        t.setField(2, new StringField("cat" + Math.floorMod(id, 5), Type.STRING_LEN));
+        t.setField(3, new StringField("name-" + id, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * Create a columnar table of the rows row(0) .. row(ROWS - 1).
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++)
+            rows.add(row(i));
+        file = File.createTempFile("columnar", ".dat");
+        ColumnFile.convert(rows.iterator(), TD, file);
+        open();
+    }
+
+    private void open() {
+        Database.getCatalog().clear();
+        Database.resetBufferPool(50);
+        table = new ColumnFile(file, TD);
+        Database.getCatalog().addTable(table, "columnar");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getCatalog().clear();
+        for (int c = 0; c < TD.numFields(); c++)
+            ColumnFile.getColumnFile(file, c).delete();
+        file.delete();
+    }
+
+    /**
+     * Check that a ColumnScan of the cat and id columns returns them for
+     * the rows 0 .. rows - 1, in order.
+     */
+    private void checkColumnScan(TransactionId tid, int rows) throws Exception {
+        ColumnScan scan = new ColumnScan(tid, table.getId(), "c", new int[]{2, 0});
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("c.cat", scan.getTupleDesc().getFieldName(0));
+        assertEquals("c.id", scan.getTupleDesc().getFieldName(1));
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(row(n).getField(2), t.getField(0));
+            assertEquals(new IntField(n), t.getField(1));
+            n++;
+        }
+        scan.close();
+        assertEquals(rows, n);
+    }
+
+    @Test
+    public void columnScanReadsOnlyItsColumns() throws Exception {
+        TransactionId tid = new TransactionId();
+        long before = Database.getBufferPool().getMissCount() + Database.getBufferPool().getPrefetchCount();
+        checkColumnScan(tid, ROWS);
+        long reads = Database.getBufferPool().getMissCount() + Database.getBufferPool().getPrefetchCount() - before;
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(table.numPages(0) + table.numPages(2), reads);
+        // the skipped name column alone is bigger than the two scanned ones
+        assertTrue(table.numPages(3) > reads);
+    }
+
+    @Test
+    public void seqScanReturnsWholeTuples() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            for (int c = 0; c < TD.numFields(); c++)
+                assertEquals(row(n).getField(c), t.getField(c));
+            n++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(ROWS, n);
+    }
+
+    @Test
+    public void insertsSurviveAbortsAndRestarts() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = ROWS; i < ROWS + 3000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), row(i));
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        open();
+
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 3000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), row(-1));
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        for (int i = ROWS + 3000; i < ROWS + 3010; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), row(i));
+        // the transaction's own inserts are visible to it
+        checkColumnScan(t.getId(), ROWS + 3010);
+        t.commit();
+        TransactionId tid = new TransactionId();
+        checkColumnScan(tid, ROWS + 3010);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
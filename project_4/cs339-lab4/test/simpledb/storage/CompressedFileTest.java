@@ -0,0 +1,171 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a CompressedFile stores small ints and repetitive strings in a
+ * fraction of the pages a HeapFile needs, and keeps its tuples across
+ * deletes, inserts of values that compress worse, aborts and restarts.
+ */
+public class CompressedFileTest {
+
+    private static final int ROWS = 5000;
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"id", "category"});
+
+    private CompressedFile table;
+
+    private static Tuple row(int id, String category) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(category, Type.STRING_LEN));
+        return t;
+    }
+
+    private static String category(int id) {
+        return "category" + (id % 7);
+    }
+
+    /**
+     * Create a compressed table with rows {i, "category" + i % 7}.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++)
+            rows.add(row(i, category(i)));
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        CompressedFile.convert(rows.iterator(), TD, f);
+        table = new CompressedFile(f, TD);
+        Database.getCatalog().addTable(table, "compressed");
+    }
+
+    /**
+     * @return the category of every tuple of the table, by id
+     */
+    private TreeMap<Integer, String> scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        TreeMap<Integer, String> rows = new TreeMap<>();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertNull(rows.put(((IntField) t.getField(0)).getValue(),
+                    ((StringField) t.getField(1)).getValue()));
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return rows;
+    }
+
+    private void deleteEvenIdsBelow(Transaction t, int limit) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), table.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple x = scan.next();
+            int id = ((IntField) x.getField(0)).getValue();
+            if (id < limit && id % 2 == 0)
+                Database.getBufferPool().deleteTuple(t.getId(), x);
+        }
+        scan.close();
+    }
+
+    @Test
+    public void repetitiveValuesTakeFewerPages() throws Exception {
+        int heapPages = (ROWS + HeapPage.getNumTuples(TD) - 1) / HeapPage.getNumTuples(TD);
+        assertTrue(table.numPages() + " pages", table.numPages() * 10 < heapPages);
+
+        TreeMap<Integer, String> rows = scan();
+        assertEquals(ROWS, rows.size());
+        for (int i = 0; i < ROWS; i++)
+            assertEquals(category(i), rows.get(i));
+    }
+
+    @Test
+    public void deletesAndDistinctInsertsSurviveARestart() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteEvenIdsBelow(t, 1000);
+        // a distinct string and a far-off int each, which grow the
+        // dictionaries and widen the int columns of the pages they go to
+        for (int i = 0; i < 300; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                    row(1000000 * (i + 1), "a-much-longer-name-" + i));
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(20);
+
+        TreeMap<Integer, String> rows = scan();
+        assertEquals(ROWS - 500 + 300, rows.size());
+        assertFalse(rows.containsKey(998));
+        assertEquals(category(999), rows.get(999));
+        assertEquals(category(4999), rows.get(4999));
+        assertEquals("a-much-longer-name-299", rows.get(300000000));
+    }
+
+    @Test
+    public void abortRestoresThePages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteEvenIdsBelow(t, 200);
+        for (int i = 0; i < 200; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), row(-i, "zz" + i));
+        t.abort();
+
+        TreeMap<Integer, String> rows = scan();
+        assertEquals(ROWS, rows.size());
+        assertEquals(category(0), rows.get(0));
+    }
+
+    @Test
+    public void pageKeepsSlotsAndValuesWhenWritten() throws Exception {
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        CompressedPage p = new CompressedPage(pid, CompressedPage.createEmptyPageData());
+        List<Tuple> added = new ArrayList<>();
+        try {
+            for (int i = 0; ; i++) {
+                Tuple t = row(i, category(i));
+                p.insertTuple(t);
+                added.add(t);
+            }
+        } catch (DbException e) {
+            // full
+        }
+        assertTrue(added.size() > 10 * HeapPage.getNumTuples(TD));
+        assertEquals(BufferPool.getPageSize(), p.getPageData().length);
+
+        for (int i = 1; i <= 10; i++)
+            p.deleteTuple(added.get(i));
+        Tuple other = row(-5, "other");
+        p.insertTuple(other);
+        assertEquals(1, other.getRecordId().getTupleNumber());
+
+        CompressedPage q = new CompressedPage(pid, p.getPageData());
+        assertEquals(added.size() - 10 + 1, q.getNumTuples());
+        assertEquals(other.getField(1), q.getTuple(1).getField(1));
+        assertEquals(other.getField(0), q.getTuple(1).getField(0));
+        assertNull(q.getTuple(2));
+        Tuple last = added.get(added.size() - 1);
+        Tuple read = q.getTuple(last.getRecordId().getTupleNumber());
+        assertEquals(last.getField(0), read.getField(0));
+        assertEquals(last.getField(1), read.getField(1));
+        assertArrayEquals(q.getPageData(), new CompressedPage(pid, q.getPageData()).getPageData());
+    }
+}
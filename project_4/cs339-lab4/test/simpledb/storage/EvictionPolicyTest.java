@@ -0,0 +1,71 @@
+package simpledb.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the replacement policies evict pages that were touched once
+ * before pages that are hit again, and respect the buffer pool's filter.
+ */
+public class EvictionPolicyTest {
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    private static void addPages(EvictionPolicy policy, int n) {
+        for (int i = 0; i < n; i++)
+            policy.pageAdded(page(i));
+    }
+
+    @Test
+    public void clockGivesHitPagesASecondChance() {
+        EvictionPolicy clock = new ClockEvictionPolicy(4);
+        addPages(clock, 4);
+        clock.pageAccessed(page(0));
+        assertEquals(page(1), clock.chooseVictim(pid -> true));
+        // the sweep cleared the bit of page 0, so it goes once the rest are gone
+        clock.pageRemoved(page(1));
+        assertEquals(page(2), clock.chooseVictim(pid -> true));
+        assertEquals(page(3), clock.chooseVictim(pid -> !pid.equals(page(2))));
+    }
+
+    @Test
+    public void clockReturnsNullIfNothingMayBeEvicted() {
+        EvictionPolicy clock = new ClockEvictionPolicy(2);
+        addPages(clock, 2);
+        assertNull(clock.chooseVictim(pid -> false));
+    }
+
+    @Test
+    public void clockGrowsBeyondItsInitialSize() {
+        EvictionPolicy clock = new ClockEvictionPolicy(2);
+        addPages(clock, 5);
+        clock.pageRemoved(page(0));
+        clock.pageRemoved(page(1));
+        clock.pageRemoved(page(2));
+        clock.pageRemoved(page(3));
+        assertEquals(page(4), clock.chooseVictim(pid -> true));
+    }
+
+    @Test
+    public void lruKEvictsPagesWithFewerThanKAccessesFirst() {
+        EvictionPolicy lru2 = new LruKEvictionPolicy(2);
+        addPages(lru2, 3);
+        // page 0 is referenced repeatedly, pages 1 and 2 are read once
+        lru2.pageAccessed(page(0));
+        assertEquals(page(1), lru2.chooseVictim(pid -> true));
+        lru2.pageAccessed(page(1));
+        assertEquals(page(2), lru2.chooseVictim(pid -> true));
+        lru2.pageRemoved(page(2));
+        // both have two accesses now; page 0's second to last is older
+        assertEquals(page(0), lru2.chooseVictim(pid -> true));
+        assertEquals(page(1), lru2.chooseVictim(pid -> !pid.equals(page(0))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lruKNeedsPositiveK() {
+        new LruKEvictionPolicy(0);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that inserts go straight to a page with room, found through the
+ * free space map, and that the map survives a restart of the table.
+ */
+public class FreeSpaceMapTest {
+
+    private static final int PAGES = 20;
+
+    private File file;
+    private HeapFile table;
+
+    /**
+     * Create a table of two int columns with 20 full pages, and delete a
+     * tuple on page 13.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        int perPage = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < PAGES * perPage; i++)
+            tuples.add(Arrays.asList(i, -i));
+        file = File.createTempFile("freespace", ".dat");
+        file.deleteOnExit();
+        mapFile().deleteOnExit();
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        table = Utility.openHeapFile(2, file);
+
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(table.getId(), 13), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(t.getId(), p.iterator().next());
+        t.commit();
+    }
+
+    private File mapFile() {
+        return new File(file.getPath() + FreeSpaceMap.SUFFIX);
+    }
+
+    /**
+     * Insert a row in a transaction of its own.
+     *
+     * @return the page the row went to
+     */
+    private int insert() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Tuple row = Utility.getHeapTuple(new int[]{-1, -1});
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), row);
+        t.commit();
+        return row.getRecordId().getPageId().getPageNumber();
+    }
+
+    @Test
+    public void insertGoesToThePageWithRoom() throws Exception {
+        BufferPool pool = Database.resetBufferPool(50);
+        assertEquals(13, insert());
+        assertEquals(PAGES, table.numPages());
+        // the page itself, not the pages before it
+        assertEquals(1, pool.getMissCount());
+        // now full
+        assertEquals(PAGES, insert());
+        assertEquals(PAGES + 1, table.numPages());
+    }
+
+    @Test
+    public void mapIsReloadedFromItsSideFile() throws Exception {
+        insert();
+        // page 13 is full again; free a slot on page 5
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(table.getId(), 5), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(t.getId(), p.iterator().next());
+        t.commit();
+        assertEquals(2L * PAGES, mapFile().length());
+
+        Database.getCatalog().clear();
+        table = Utility.openHeapFile(2, file);
+        BufferPool pool = Database.resetBufferPool(50);
+        assertEquals(5, insert());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    @Test
+    public void staleSideFileIsRebuilt() throws Exception {
+        insert();
+        // as if the heap file had been rewritten after the map
+        assertTrue(mapFile().setLastModified(file.lastModified() - 10000));
+        Database.getCatalog().clear();
+        table = Utility.openHeapFile(2, file);
+        Database.resetBufferPool(50);
+        // no page has room any more
+        assertEquals(PAGES, insert());
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the pages of a HeapFile are read from and written to their own
+ * offsets of its one FileChannel, also by concurrent readers and after the
+ * channel was closed.
+ */
+public class HeapFileChannelTest {
+
+    private static final int PAGES = 8;
+
+    private File file;
+    private HeapFile table;
+    private int perPage;
+
+    /**
+     * Create a table of two int columns with 8 full pages, whose rows are
+     * {i, -i}.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        perPage = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < PAGES * perPage; i++)
+            tuples.add(Arrays.asList(i, -i));
+        file = File.createTempFile("channel", ".dat");
+        file.deleteOnExit();
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        table = Utility.openHeapFile(2, file);
+    }
+
+    private HeapPage page(int n) {
+        return (HeapPage) table.readPage(new HeapPageId(table.getId(), n));
+    }
+
+    /**
+     * @return the first field of the first tuple of a page
+     */
+    private int firstKey(HeapPage p) {
+        return ((IntField) p.iterator().next().getField(0)).getValue();
+    }
+
+    @Test
+    public void pagesAreReadFromTheirOffsets() {
+        for (int n = PAGES - 1; n >= 0; n--)
+            assertEquals(n * perPage, firstKey(page(n)));
+    }
+
+    @Test
+    public void readPastTheEndFails() {
+        try {
+            page(PAGES);
+            fail("read a page past the end of the file");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void concurrentReadersGetTheirOwnPages() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            int stride = 2 * r + 1; // coprime with PAGES: every page, in a different order
+            readers[r] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        int n = (i * stride) % PAGES;
+                        assertEquals(n * perPage, firstKey(page(n)));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            readers[r].start();
+        }
+        for (Thread t : readers)
+            t.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void writePageOnlyChangesItsPage() throws Exception {
+        long length = file.length();
+        HeapPage p = page(3);
+        Tuple first = p.iterator().next();
+        p.deleteTuple(first);
+        table.writePage(p);
+        assertEquals(length, file.length());
+        assertEquals(3 * perPage + 1, firstKey(page(3)));
+        assertEquals(2 * perPage, firstKey(page(2)));
+        assertEquals(4 * perPage, firstKey(page(4)));
+    }
+
+    @Test
+    public void closedFileIsReopenedByTheNextIo() throws Exception {
+        table.close();
+        assertEquals(5 * perPage, firstKey(page(5)));
+        HeapPage p = page(6);
+        p.deleteTuple(p.iterator().next());
+        table.close();
+        table.writePage(p);
+        table.close();
+        assertEquals(6 * perPage + 1, firstKey(page(6)));
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that concurrent inserters, which the free space map sends to the
+ * same page, neither lose rows nor deadlock.
+ */
+public class HeapFileConcurrentInsertTest {
+
+    private HeapFile table;
+
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        Database.resetBufferPool(50);
+        File f = File.createTempFile("heapinsert", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        table = Utility.createEmptyHeapFile(f.getPath(), 2);
+    }
+
+    @Test
+    public void singleRowTransactionsNeverDeadlock() throws Exception {
+        int aborts = TestUtil.insertConcurrently(table.getId(), 4, 200, 1);
+        assertEquals(0, aborts);
+        assertEquals(0, Database.getBufferPool().getLockManager().getDeadlockCount());
+        assertEquals(TestUtil.range(800), TestUtil.scanFirstColumn(table.getId()));
+    }
+
+    @Test
+    public void appendedPageFilledBeforeItsAppenderGetsIt() throws Exception {
+        // fill the first page, so that the next insert appends one
+        Transaction fill = new Transaction();
+        fill.start();
+        HeapPageId first = new HeapPageId(table.getId(), 0);
+        int key = 0;
+        while (((HeapPage) Database.getBufferPool().getPage(fill.getId(), first,
+                Permissions.READ_ONLY)).getFreeSpace() > 0) {
+            Database.getBufferPool().insertTuple(fill.getId(), table.getId(),
+                    Utility.getHeapTuple(new int[]{key, key}));
+            key++;
+        }
+        fill.commit();
+
+        // another transaction locks the page the insert is about to append,
+        // and fills it once the map offers it
+        Transaction other = new Transaction();
+        other.start();
+        LockManager locks = Database.getBufferPool().getLockManager();
+        locks.acquire(other.getId(), new HeapPageId(table.getId(), 1), Permissions.READ_WRITE);
+        long waits = locks.getLockWaitCount();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread appender = new Thread(() -> {
+            Transaction t = new Transaction();
+            try {
+                t.start();
+                Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                        Utility.getHeapTuple(new int[]{-1, -1}));
+                t.commit();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        appender.start();
+        while (locks.getLockWaitCount() == waits && appender.isAlive())
+            Thread.sleep(1);
+        while (table.numPages() < 3) {
+            Database.getBufferPool().insertTuple(other.getId(), table.getId(),
+                    Utility.getHeapTuple(new int[]{key, key}));
+            key++;
+        }
+        other.commit();
+        appender.join();
+        assertNull(failure.get());
+        List<Integer> expected = new ArrayList<>();
+        expected.add(-1);
+        expected.addAll(TestUtil.range(key));
+        assertEquals(expected, TestUtil.scanFirstColumn(table.getId()));
+    }
+
+    @Test
+    public void multiRowTransactionsNeverDeadlock() throws Exception {
+        int aborts = TestUtil.insertConcurrently(table.getId(), 4, 50, 20);
+        assertEquals(0, aborts);
+        assertEquals(TestUtil.range(4000), TestUtil.scanFirstColumn(table.getId()));
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that HeapFile.readPages and writePages, which read and write runs
+ * of adjacent pages with one I/O each, return and write the same pages as
+ * readPage and writePage do, in any order and across gaps.
+ */
+public class HeapFileRunIOTest {
+
+    // longer than a run, so that runs are split
+    private static final int PAGES = HeapFile.MAX_RUN_PAGES * 2 + 10;
+
+    private HeapFile table;
+    private int perPage;
+
+    /**
+     * Create a table of two int columns with PAGES full pages, whose rows
+     * are {i, i}.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        perPage = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < PAGES * perPage; i++)
+            tuples.add(Arrays.asList(i, i));
+        File f = File.createTempFile("runio", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        table = Utility.openHeapFile(2, f);
+    }
+
+    private HeapPageId pid(int n) {
+        return new HeapPageId(table.getId(), n);
+    }
+
+    /**
+     * @return the ids of most pages, with gaps, in random order
+     */
+    private List<PageId> shuffledIds() {
+        List<PageId> ids = new ArrayList<>();
+        for (int i = 0; i < PAGES; i += (i % 7 == 0 ? 3 : 1))
+            ids.add(pid(i));
+        Collections.shuffle(ids, new Random(1));
+        return ids;
+    }
+
+    @Test
+    public void readPagesReturnsThePagesInTheOrderAsked() {
+        List<PageId> ids = shuffledIds();
+        List<Page> pages = table.readPages(ids);
+        assertEquals(ids.size(), pages.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i), pages.get(i).getId());
+            assertArrayEquals(table.readPage(ids.get(i)).getPageData(), pages.get(i).getPageData());
+        }
+    }
+
+    @Test
+    public void readPagesPastTheEndFails() {
+        try {
+            table.readPages(Arrays.asList(pid(PAGES - 1), pid(PAGES)));
+            fail("read a page past the end of the file");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void writePagesWritesEachPageToItsOwnOffset() throws Exception {
+        List<PageId> ids = shuffledIds();
+        List<Page> pages = new ArrayList<>();
+        for (PageId id : ids) {
+            // a page holding only the tuple {-n, -n}, n its page number
+            HeapPage p = new HeapPage((HeapPageId) id, HeapPage.createEmptyPageData());
+            p.insertTuple(Utility.getHeapTuple(new int[]{-id.getPageNumber(), -id.getPageNumber()}));
+            pages.add(p);
+        }
+        table.writePages(pages);
+
+        for (int n = 0; n < PAGES; n++) {
+            HeapPage p = (HeapPage) table.readPage(pid(n));
+            Tuple first = p.iterator().next();
+            if (ids.contains(pid(n))) {
+                assertEquals(1, perPage - p.getNumUnusedSlots());
+                assertEquals(new IntField(-n), first.getField(0));
+            } else {
+                assertEquals(0, p.getNumUnusedSlots());
+                assertEquals(new IntField(n * perPage), first.getField(0));
+            }
+        }
+        assertEquals(PAGES, table.numPages());
+    }
+
+    @Test
+    public void commitAndScanGoThroughRuns() throws Exception {
+        // the scan reads ahead with readPages; the commit writes with writePages
+        Database.resetBufferPool(500);
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId());
+        scan.open();
+        int deleted = 0;
+        while (scan.hasNext()) {
+            Tuple tuple = scan.next();
+            if (((IntField) tuple.getField(0)).getValue() % 100 == 0) {
+                Database.getBufferPool().deleteTuple(t.getId(), tuple);
+                deleted++;
+            }
+        }
+        scan.close();
+        t.commit();
+        assertTrue(Database.getBufferPool().getPrefetchCount() > 0);
+
+        Database.resetBufferPool(50);
+        List<Integer> expected = new ArrayList<>();
+        for (int i : TestUtil.range(PAGES * perPage)) {
+            if (i % 100 != 0)
+                expected.add(i);
+        }
+        assertEquals(PAGES * perPage - deleted, expected.size());
+        assertEquals(expected, TestUtil.scanFirstColumn(table.getId()));
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a HeapPage's before image is the page as of its last
+ * setBeforeImage, captured when the page first changes after it.
+ */
+public class HeapPageBeforeImageTest {
+
+    private HeapFile table;
+    private int perPage;
+
+    /**
+     * Create a table of two int columns with 2 full pages, whose rows are
+     * {i, -i}.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        perPage = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < 2 * perPage; i++)
+            tuples.add(Arrays.asList(i, -i));
+        File f = File.createTempFile("beforeimage", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        table = Utility.openHeapFile(2, f);
+    }
+
+    private HeapPage page(int n) {
+        return (HeapPage) table.readPage(new HeapPageId(table.getId(), n));
+    }
+
+    private static List<Integer> keys(HeapPage p) {
+        List<Integer> keys = new ArrayList<>();
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext())
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        return keys;
+    }
+
+    @Test
+    public void unchangedPageIsItsOwnBeforeImage() {
+        HeapPage p = page(0);
+        assertArrayEquals(p.getPageData(), p.getBeforeImage().getPageData());
+    }
+
+    @Test
+    public void beforeImageIsTakenAtTheFirstChange() throws Exception {
+        HeapPage p = page(0);
+        List<Integer> original = keys(p);
+        Iterator<Tuple> it = p.iterator();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        p.deleteTuple(first);
+        p.deleteTuple(second);
+        assertEquals(original, keys(p.getBeforeImage()));
+        assertEquals(original.size() - 2, keys(p).size());
+    }
+
+    @Test
+    public void setBeforeImageStartsFromTheCurrentContents() throws Exception {
+        HeapPage p = page(0);
+        p.deleteTuple(p.iterator().next());
+        p.setBeforeImage();
+        List<Integer> committed = keys(p);
+        assertEquals(committed, keys(p.getBeforeImage()));
+        p.deleteTuple(p.iterator().next());
+        assertEquals(committed, keys(p.getBeforeImage()));
+    }
+
+    @Test
+    public void beforeImageIsNotChangedByLaterChanges() throws Exception {
+        HeapPage p = page(1);
+        p.deleteTuple(p.iterator().next());
+        HeapPage image = p.getBeforeImage();
+        List<Integer> keys = keys(image);
+        p.insertTuple(Utility.getHeapTuple(new int[]{-1, 1}));
+        p.deleteTuple(p.iterator().next());
+        assertEquals(keys, keys(image));
+    }
+
+    @Test
+    public void abortRestoresTheBeforeImage() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(t.getId(), p.iterator().next());
+        t.abort();
+        assertEquals(TestUtil.range(2 * perPage), TestUtil.scanFirstColumn(table.getId()));
+    }
+}
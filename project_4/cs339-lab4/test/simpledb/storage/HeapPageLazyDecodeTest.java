@@ -0,0 +1,84 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that tuples decoded lazily from a HeapPage keep the values they had
+ * when they were read, and that pages read in runs do not share their
+ * bytes.
+ */
+public class HeapPageLazyDecodeTest {
+
+    private HeapFile table;
+
+    /**
+     * Create a table of two int columns with 8 full pages, whose rows are
+     * {i, -i}.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        int rows = 8 * HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Arrays.asList(i, -i));
+        File f = File.createTempFile("lazy", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        table = Utility.openHeapFile(2, f);
+    }
+
+    private HeapPage page(int n) {
+        return (HeapPage) table.readPage(new HeapPageId(table.getId(), n));
+    }
+
+    @Test
+    public void fieldsAreDecodedFromThePage() {
+        HeapPage p = page(1);
+        int first = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        Tuple t = p.getTuple(3);
+        assertEquals(new IntField(-(first + 3)), t.getField(1));
+        assertEquals(new IntField(first + 3), t.getField(0));
+        assertEquals(new RecordId(p.getId(), 3), t.getRecordId());
+        assertEquals(new IntField(first + 4), p.getField(4, 0));
+    }
+
+    @Test
+    public void tuplesKeepTheirValuesWhenTheirSlotIsReused() throws Exception {
+        HeapPage p = page(0);
+        Tuple old = p.getTuple(5);
+        p.deleteTuple(old);
+        p.insertTuple(Utility.getHeapTuple(new int[]{100, 200}));
+        assertEquals(new IntField(100), p.getTuple(5).getField(0));
+        assertEquals(new IntField(5), old.getField(0));
+        assertEquals(new IntField(-5), old.getField(1));
+    }
+
+    @Test
+    public void pagesOfARunHaveTheirOwnBytes() throws Exception {
+        List<PageId> ids = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            ids.add(new HeapPageId(table.getId(), i));
+        List<Page> pages = table.readPages(ids);
+        Field data = HeapPage.class.getDeclaredField("data");
+        data.setAccessible(true);
+        for (int i = 0; i < 8; i++) {
+            assertArrayEquals(page(i).getPageData(), pages.get(i).getPageData());
+            // a tuple that outlives its page keeps only that page's bytes
+            ByteBuffer bytes = (ByteBuffer) data.get(pages.get(i));
+            assertEquals(BufferPool.getPageSize(), bytes.array().length);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.DeadlockException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionId;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the striped lock table grants, wakes up and breaks deadlocks
+ * the same whether the pages involved share a stripe or not.
+ */
+public class LockManagerStripingTest {
+
+    private LockManager lm;
+
+    @Before
+    public void setUp() {
+        lm = new LockManager();
+    }
+
+    /**
+     * @return a page of table 1 other than pid in the same stripe as pid
+     *         if same is true, and in another stripe otherwise
+     */
+    private static PageId neighbour(PageId pid, boolean same) {
+        for (int n = 0; ; n++) {
+            PageId other = new HeapPageId(1, n);
+            if (!other.equals(pid)
+                    && (LockManager.stripeOf(other) == LockManager.stripeOf(pid)) == same)
+                return other;
+        }
+    }
+
+    /**
+     * Start a thread that requests an exclusive lock and records how the
+     * request ended, and wait until it blocks.
+     */
+    private Thread request(TransactionId tid, PageId pid, AtomicReference<Object> outcome)
+            throws InterruptedException {
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(tid, pid, Permissions.READ_WRITE);
+                outcome.set("granted");
+            } catch (Exception e) {
+                outcome.set(e);
+            }
+        });
+        t.start();
+        while (t.getState() != Thread.State.WAITING && t.isAlive())
+            Thread.sleep(5);
+        return t;
+    }
+
+    @Test
+    public void releaseInSameStripeOnlyGrantsTheReleasedPage() throws Exception {
+        PageId a = new HeapPageId(1, 0);
+        PageId b = neighbour(a, true);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t1, a, Permissions.READ_WRITE);
+        lm.acquire(t2, b, Permissions.READ_WRITE);
+
+        AtomicReference<Object> outcome = new AtomicReference<>();
+        Thread t = request(t3, a, outcome);
+        // wakes the waiter on a up, which must go back to waiting
+        lm.releaseAll(t2);
+        Thread.sleep(50);
+        assertNull(outcome.get());
+        assertTrue(t.isAlive());
+
+        lm.releaseAll(t1);
+        t.join(5000);
+        assertEquals("granted", outcome.get());
+        assertTrue(lm.holdsLock(t3, a));
+    }
+
+    private void deadlock(boolean sameStripe) throws Exception {
+        PageId a = new HeapPageId(1, 0);
+        PageId b = neighbour(a, sameStripe);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, a, Permissions.READ_WRITE);
+        lm.acquire(younger, b, Permissions.READ_WRITE);
+
+        // the victim waits in the stripe of a, the request that closes the
+        // cycle is made in the stripe of b
+        AtomicReference<Object> victim = new AtomicReference<>();
+        Thread v = request(younger, a, victim);
+        AtomicReference<Object> survivor = new AtomicReference<>();
+        Thread s = new Thread(() -> {
+            try {
+                lm.acquire(older, b, Permissions.READ_WRITE);
+                survivor.set("granted");
+            } catch (Exception e) {
+                survivor.set(e);
+            }
+        });
+        s.start();
+        v.join(5000);
+        assertTrue(victim.get() instanceof DeadlockException);
+
+        lm.releaseAll(younger);
+        s.join(5000);
+        assertEquals("granted", survivor.get());
+        assertEquals(1, lm.getDeadlockCount());
+    }
+
+    @Test
+    public void deadlockWithinOneStripe() throws Exception {
+        deadlock(true);
+    }
+
+    @Test
+    public void deadlockAcrossStripes() throws Exception {
+        deadlock(false);
+    }
+
+    @Test
+    public void locksStayExclusiveUnderContention() throws Exception {
+        // more pages than stripes, so that stripes are shared
+        int pages = LockManager.STRIPES * 2;
+        AtomicInteger[] writers = new AtomicInteger[pages];
+        AtomicInteger[] readers = new AtomicInteger[pages];
+        for (int i = 0; i < pages; i++) {
+            writers[i] = new AtomicInteger();
+            readers[i] = new AtomicInteger();
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] ts = new Thread[8];
+        for (int n = 0; n < ts.length; n++) {
+            long seed = n;
+            ts[n] = new Thread(() -> {
+                Random r = new Random(seed);
+                try {
+                    for (int x = 0; x < 2000; x++) {
+                        // one lock per transaction, so no deadlocks
+                        int i = r.nextInt(pages);
+                        TransactionId tid = new TransactionId();
+                        if (r.nextBoolean()) {
+                            lm.acquire(tid, new HeapPageId(1, i), Permissions.READ_WRITE);
+                            assertEquals(1, writers[i].incrementAndGet());
+                            assertEquals(0, readers[i].get());
+                            writers[i].decrementAndGet();
+                        } else {
+                            lm.acquire(tid, new HeapPageId(1, i), Permissions.READ_ONLY);
+                            readers[i].incrementAndGet();
+                            assertEquals(0, writers[i].get());
+                            readers[i].decrementAndGet();
+                        }
+                        lm.releaseAll(tid);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            ts[n].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertNull(failure.get());
+        assertEquals(0, lm.getDeadlockCount());
+    }
+}
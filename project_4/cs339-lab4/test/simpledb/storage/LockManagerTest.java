@@ -0,0 +1,102 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.DeadlockException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the LockManager breaks a deadlock by failing the lock request
+ * of the youngest transaction on the cycle, whether it is the requester or
+ * a waiter.
+ */
+public class LockManagerTest {
+
+    private LockManager lm;
+    private final PageId p0 = new HeapPageId(1, 0);
+    private final PageId p1 = new HeapPageId(1, 1);
+
+    @Before
+    public void setUp() {
+        lm = new LockManager();
+    }
+
+    /**
+     * Start a thread that requests the specified lock and records how the
+     * request ended, and wait until it blocks.
+     */
+    private Thread waitFor(TransactionId tid, PageId pid, AtomicReference<Object> outcome)
+            throws InterruptedException {
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(tid, pid, Permissions.READ_WRITE);
+                outcome.set("granted");
+            } catch (Exception e) {
+                outcome.set(e);
+            }
+        });
+        t.start();
+        while (t.getState() != Thread.State.WAITING && t.isAlive())
+            Thread.sleep(5);
+        return t;
+    }
+
+    @Test
+    public void requesterIsVictim() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_WRITE);
+        lm.acquire(younger, p1, Permissions.READ_WRITE);
+
+        AtomicReference<Object> outcome = new AtomicReference<>();
+        Thread t = waitFor(older, p1, outcome);
+        try {
+            lm.acquire(younger, p0, Permissions.READ_WRITE);
+            fail("the younger requester should have been the victim");
+        } catch (DeadlockException expected) {
+        }
+        assertFalse(lm.holdsLock(younger, p0));
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseAll(younger);
+        t.join(5000);
+        assertEquals("granted", outcome.get());
+        assertTrue(lm.holdsLock(older, p1));
+    }
+
+    @Test
+    public void waiterIsVictim() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_WRITE);
+        lm.acquire(younger, p1, Permissions.READ_WRITE);
+
+        AtomicReference<Object> outcome = new AtomicReference<>();
+        Thread t = waitFor(younger, p0, outcome);
+        // closes the cycle, but the waiting younger transaction gives up
+        AtomicReference<Object> olderOutcome = new AtomicReference<>();
+        Thread o = new Thread(() -> {
+            try {
+                lm.acquire(older, p1, Permissions.READ_WRITE);
+                olderOutcome.set("granted");
+            } catch (Exception e) {
+                olderOutcome.set(e);
+            }
+        });
+        o.start();
+        t.join(5000);
+        assertTrue(outcome.get() instanceof DeadlockException);
+        assertFalse(lm.holdsLock(younger, p0));
+
+        lm.releaseAll(younger);
+        o.join(5000);
+        assertEquals("granted", olderOutcome.get());
+        assertTrue(lm.holdsLock(older, p1));
+        assertEquals(1, lm.getDeadlockCount());
+    }
+}
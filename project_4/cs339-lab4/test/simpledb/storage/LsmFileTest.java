@@ -0,0 +1,281 @@
+package simpledb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Delete;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that an LsmFile returns the committed tuples in key order wherever
+ * they are (write batches, memtable, runs), that deletes hide tuples
+ * through tombstones which compaction drops, and that the table survives
+ * a restart.
+ */
+public class LsmFileTest {
+
+    private File dir;
+    private File file;
+    private LsmFile table;
+    // the rows the table should hold, in insertion order
+    private final List<int[]> model = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        dir = Files.createTempDirectory("lsm").toFile();
+        file = new File(dir, "events.dat");
+        open();
+    }
+
+    @After
+    public void tearDown() {
+        Database.getCatalog().clear();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private void open() throws Exception {
+        Database.getCatalog().clear();
+        Database.resetBufferPool(50);
+        table = new LsmFile(file, Utility.getTupleDesc(2), 0, 2);
+        Database.getCatalog().addTable(table, "events", "field0");
+    }
+
+    private void insert(Transaction t, int key, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{key, value}));
+    }
+
+    /**
+     * Insert rows with random keys below 20000 in a transaction of its own.
+     */
+    private void insertCommitted(Random r, int rows, int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < rows; i++) {
+            int key = r.nextInt(20000);
+            insert(t, key, value);
+            model.add(new int[]{key, value});
+        }
+        t.commit();
+    }
+
+    private static List<String> run(OpIterator it) throws Exception {
+        List<String> rows = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        return rows;
+    }
+
+    /**
+     * @return the rows of the model with keys in [lo, hi], by key and then
+     *         in insertion order, as scans return them
+     */
+    private List<String> expected(int lo, int hi) {
+        List<int[]> rows = new ArrayList<>();
+        for (int[] row : model) {
+            if (row[0] >= lo && row[0] <= hi)
+                rows.add(row);
+        }
+        // a stable sort keeps the insertion order of equal keys
+        rows.sort((a, b) -> Integer.compare(a[0], b[0]));
+        List<String> result = new ArrayList<>();
+        for (int[] row : rows)
+            result.add(row[0] + "\t" + row[1]);
+        return result;
+    }
+
+    private void checkScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(expected(Integer.MIN_VALUE, Integer.MAX_VALUE), run(new SeqScan(tid, table.getId(), "e")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void deleteKeysDivisibleBy(int divisor) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        List<Tuple> deleted = new ArrayList<>();
+        DbFileIterator it = table.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tuple = it.next();
+            if (((IntField) tuple.getField(0)).getValue() % divisor == 0)
+                deleted.add(tuple);
+        }
+        it.close();
+        for (Tuple tuple : deleted)
+            Database.getBufferPool().deleteTuple(t.getId(), tuple);
+        t.commit();
+        model.removeIf(row -> row[0] % divisor == 0);
+    }
+
+    @Test
+    public void scansMergeMemtableAndRunsInKeyOrder() throws Exception {
+        Random r = new Random(5);
+        insertCommitted(r, 20000, 0);
+        for (int j = 1; j <= 10; j++)
+            insertCommitted(r, 500, j);
+        checkScan();
+        table.flush();
+        assertEquals(0, table.memtableSize());
+        assertTrue(table.numRuns() > 0);
+        checkScan();
+    }
+
+    @Test
+    public void uncommittedChangesAreOnlySeenByTheirTransaction() throws Exception {
+        Random r = new Random(6);
+        insertCommitted(r, 2000, 0);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 100; i++)
+            insert(t, 5, 999999);
+        int own = 0;
+        for (String row : run(new SeqScan(t.getId(), table.getId(), "e")))
+            own += row.equals("5\t999999") ? 1 : 0;
+        assertEquals(100, own);
+        checkScan();
+        t.abort();
+        checkScan();
+
+        t = new Transaction();
+        t.start();
+        run(new Delete(t.getId(), new SeqScan(t.getId(), table.getId(), "e")));
+        assertTrue(run(new SeqScan(t.getId(), table.getId(), "e")).isEmpty());
+        t.abort();
+        checkScan();
+    }
+
+    @Test
+    public void deletesHideTuplesInEverySource() throws Exception {
+        Random r = new Random(7);
+        insertCommitted(r, 10000, 0);
+        table.flush();
+        insertCommitted(r, 1000, 1);
+        deleteKeysDivisibleBy(7);
+        checkScan();
+        table.flush();
+        checkScan();
+    }
+
+    @Test
+    public void rangeScansSeekToTheirKeys() throws Exception {
+        Random r = new Random(8);
+        insertCommitted(r, 50000, 0);
+        table.flush();
+        int pages = 50000 / LsmPage.entriesPerPage(table.getTupleDesc());
+        TransactionId tid = new TransactionId();
+        for (int[] range : new int[][]{{700, 700}, {1000, 1200}, {19990, 30000}, {-5, 3}}) {
+            List<Predicate> ps = Arrays.asList(
+                    new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(range[0])),
+                    new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(range[1])));
+            Database.resetBufferPool(50);
+            long before = Database.getBufferPool().getMissCount() + Database.getBufferPool().getPrefetchCount();
+            List<String> rows = run(new Filter(ps.get(1), new Filter(ps.get(0),
+                    new SeqScan(tid, table.getId(), "e", ps))));
+            long reads = Database.getBufferPool().getMissCount() + Database.getBufferPool().getPrefetchCount() - before;
+            assertEquals(expected(range[0], range[1]), rows);
+            assertTrue(reads + " reads", reads < pages / 10);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test
+    public void compactionMergesRunsAndDropsTombstones() throws Exception {
+        int perRun = LsmPage.entriesPerPage(table.getTupleDesc());
+        // FANOUT runs of the lowest tier; the second one holds only
+        // tombstones for the tuples of the first
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < perRun; i++) {
+            insert(t, i, 0);
+            model.add(new int[]{i, 0});
+        }
+        t.commit();
+        table.flush();
+        assertEquals(1, table.numRuns());
+        long runSize = runFiles().get(0).length();
+
+        deleteKeysDivisibleBy(1);
+        table.flush();
+        for (int n = 2; n < LsmFile.FANOUT; n++) {
+            t = new Transaction();
+            t.start();
+            for (int i = 0; i < perRun; i++) {
+                insert(t, n * perRun + i, n);
+                model.add(new int[]{n * perRun + i, n});
+            }
+            t.commit();
+            table.flush();
+        }
+        assertEquals(1, table.numRuns());
+        List<File> runs = runFiles();
+        assertEquals(1, runs.size());
+        // the merged run holds neither the deleted tuples nor their tombstones
+        assertTrue(runs.get(0).length() < (LsmFile.FANOUT - 1) * runSize);
+        checkScan();
+    }
+
+    @Test
+    public void manyRunsAreCompactedIntoFew() throws Exception {
+        Random r = new Random(9);
+        int perRun = 2 * LsmPage.entriesPerPage(table.getTupleDesc());
+        for (int j = 0; j < 40; j++) {
+            insertCommitted(r, perRun, j);
+            table.flush();
+        }
+        // 40 runs of the lowest tier merge into tiers of 4, 16, ...
+        assertTrue(table.numRuns() + " runs", table.numRuns() < 10);
+        checkScan();
+    }
+
+    @Test
+    public void restartReplaysTheLogAndLoadsTheRuns() throws Exception {
+        Random r = new Random(10);
+        insertCommitted(r, 10000, 0);
+        table.flush();
+        deleteKeysDivisibleBy(3);
+        insertCommitted(r, 100, 1);
+        assertTrue(table.memtableSize() > 0);
+        int runs = table.numRuns();
+
+        open();
+        assertEquals(runs, table.numRuns());
+        assertTrue(table.memtableSize() > 0);
+        checkScan();
+        // new tuples do not reuse the numbers of the old ones
+        insertCommitted(r, 1000, 2);
+        deleteKeysDivisibleBy(5);
+        checkScan();
+    }
+
+    private List<File> runFiles() {
+        List<File> runs = new ArrayList<>();
+        for (File f : dir.listFiles()) {
+            if (f.getName().startsWith(file.getName() + LsmFile.RUN_SUFFIX))
+                runs.add(f);
+        }
+        Collections.sort(runs);
+        return runs;
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the memory-mapped read mode of HeapFile.
+ */
+public class MappedHeapFileTest {
+
+    private File file;
+    private HeapFile mapped;
+    private int rows;
+
+    /**
+     * Create a memory-mapped table of two int columns with 3 full pages,
+     * whose rows are {i, -i}.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        rows = 3 * HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Arrays.asList(i, -i));
+        file = File.createTempFile("mapped", ".dat");
+        file.deleteOnExit();
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        mapped = new HeapFile(file, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(mapped, "mapped");
+    }
+
+    @Test
+    public void mappedPagesMatchPagesReadThroughTheChannel() throws Exception {
+        HeapFile read = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(read, "read");
+        for (int i = 0; i < mapped.numPages(); i++) {
+            assertArrayEquals(read.readPage(new HeapPageId(read.getId(), i)).getPageData(),
+                    mapped.readPage(new HeapPageId(mapped.getId(), i)).getPageData());
+        }
+        assertEquals(TestUtil.range(rows), TestUtil.scanFirstColumn(mapped.getId()));
+    }
+
+    @Test
+    public void insertsGrowTheMapping() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), mapped.getId(),
+                Utility.getHeapTuple(new int[]{rows, -rows}));
+        t.commit();
+        assertEquals(4, mapped.numPages());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(TestUtil.range(rows + 1), TestUtil.scanFirstColumn(mapped.getId()));
+    }
+
+    @Test
+    public void retainedTuplesKeepTheirValues() throws Exception {
+        // e.g. the build side of a hash join
+        TransactionId reader = new TransactionId();
+        List<Tuple> kept = new ArrayList<>();
+        SeqScan scan = new SeqScan(reader, mapped.getId());
+        scan.open();
+        while (scan.hasNext())
+            kept.add(scan.next());
+        scan.close();
+        Database.getBufferPool().transactionComplete(reader);
+
+        // the pages leave the pool, and a newer version of page 0 that
+        // reuses all of its slots is written
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction writer = new Transaction();
+        writer.start();
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(writer.getId(), pid, Permissions.READ_ONLY);
+        List<Tuple> onPage = new ArrayList<>();
+        p.iterator().forEachRemaining(onPage::add);
+        for (Tuple t : onPage)
+            Database.getBufferPool().deleteTuple(writer.getId(), t);
+        for (int i = 0; i < onPage.size(); i++)
+            Database.getBufferPool().insertTuple(writer.getId(), mapped.getId(),
+                    Utility.getHeapTuple(new int[]{-1, -1}));
+        writer.commit();
+
+        for (int i = 0; i < rows; i++) {
+            assertEquals(new IntField(i), kept.get(i).getField(0));
+            assertEquals(new IntField(-i), kept.get(i).getField(1));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that replaying the write-behind journal writes the pages of every
+ * complete record and ignores a record torn by a crash.
+ */
+public class PageJournalTest {
+
+    private HeapFile table;
+    private File journalFile;
+
+    /**
+     * Create a table of 2 empty pages.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Database.reset();
+        File f = File.createTempFile("journal", ".dat");
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            for (int i = 0; i < 2; i++)
+                out.write(HeapPage.createEmptyPageData());
+        }
+        table = Utility.openHeapFile(2, f);
+        journalFile = File.createTempFile("journal", ".log");
+        journalFile.delete();
+    }
+
+    /**
+     * @return the image of the specified page with one tuple inserted
+     */
+    private HeapPage withTuple(int n) throws Exception {
+        HeapPageId pid = new HeapPageId(table.getId(), n);
+        HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
+        p.insertTuple(Utility.getHeapTuple(new int[]{n, n}));
+        return p;
+    }
+
+    private int tuplesOn(int n) {
+        int count = 0;
+        Iterator<Tuple> it = ((HeapPage) table.readPage(new HeapPageId(table.getId(), n))).iterator();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void replayIgnoresTornLastRecord() throws Exception {
+        PageJournal journal = new PageJournal(journalFile);
+        assertTrue(journal.replay().isEmpty());
+        journal.append(Collections.singletonList(withTuple(0)));
+        journal.append(Collections.singletonList(withTuple(1)));
+
+        // a crash in the middle of writing the second record
+        File segment = new File(journalFile.getPath() + ".0");
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        PageJournal reopened = new PageJournal(journalFile);
+        Set<PageId> replayed = reopened.replay();
+        assertEquals(Collections.singleton(new HeapPageId(table.getId(), 0)), replayed);
+        assertEquals(1, tuplesOn(0));
+        assertEquals(0, tuplesOn(1));
+        reopened.delete();
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that getPage pins pages, that pins are released by unpinPage and
+ * when their transaction completes, and that pinned pages are never
+ * evicted.
+ */
+public class PinCountTest {
+
+    private static final int PAGES = 40;
+
+    private HeapFile table;
+    private int rows;
+
+    /**
+     * Create a table of two int columns with PAGES full pages, whose rows
+     * are {i, i}.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        rows = PAGES * HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Arrays.asList(i, i));
+        File f = File.createTempFile("pins", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        table = Utility.openHeapFile(2, f);
+    }
+
+    private HeapPageId pid(int n) {
+        return new HeapPageId(table.getId(), n);
+    }
+
+    @Test
+    public void pinsAreCountedAndReleased() throws Exception {
+        BufferPool pool = Database.resetBufferPool(10);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        assertEquals(0, pool.getPinCount(pid(0)));
+        pool.getPage(t1, pid(0), Permissions.READ_ONLY);
+        pool.getPage(t1, pid(0), Permissions.READ_ONLY);
+        pool.getPage(t2, pid(0), Permissions.READ_ONLY);
+        assertEquals(3, pool.getPinCount(pid(0)));
+
+        pool.unpinPage(t1, pid(0));
+        assertEquals(2, pool.getPinCount(pid(0)));
+        // a pin t2 does not hold
+        pool.unpinPage(t2, pid(1));
+        assertEquals(2, pool.getPinCount(pid(0)));
+
+        pool.transactionComplete(t1);
+        assertEquals(1, pool.getPinCount(pid(0)));
+        pool.transactionComplete(t2);
+        assertEquals(0, pool.getPinCount(pid(0)));
+    }
+
+    @Test
+    public void scansUnpinAsTheyMoveOn() throws Exception {
+        BufferPool pool = Database.resetBufferPool(50);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        for (int i = 0; i < rows / 2; i++)
+            scan.next();
+        int pinned = 0;
+        for (int n = 0; n < PAGES; n++)
+            pinned += pool.getPinCount(pid(n));
+        assertEquals(1, pinned);
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+        for (int n = 0; n < PAGES; n++)
+            assertEquals(0, pool.getPinCount(pid(n)));
+        pool.transactionComplete(tid);
+    }
+
+    @Test
+    public void pinnedPagesAreNotEvicted() throws Exception {
+        BufferPool pool = Database.resetBufferPool(12);
+        Transaction holder = new Transaction();
+        holder.start();
+        Page first = pool.getPage(holder.getId(), pid(0), Permissions.READ_ONLY);
+
+        // scans of the whole table from several threads churn the pool
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        List<Future<Long>> sums = new ArrayList<>();
+        for (int k = 0; k < 4; k++) {
+            sums.add(threads.submit(() -> {
+                long sum = 0;
+                for (int r = 0; r < 3; r++) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    SeqScan scan = new SeqScan(t.getId(), table.getId());
+                    scan.open();
+                    while (scan.hasNext())
+                        sum += ((IntField) scan.next().getField(0)).getValue();
+                    scan.close();
+                    t.commit();
+                }
+                return sum;
+            }));
+        }
+        for (Future<Long> sum : sums)
+            assertEquals(3L * (rows - 1) * rows / 2, (long) sum.get());
+        threads.shutdown();
+
+        assertTrue(pool.getEvictionCount() > 0);
+        assertEquals(1, pool.getPinCount(pid(0)));
+        assertSame(first, pool.getPage(holder.getId(), pid(0), Permissions.READ_ONLY));
+        holder.commit();
+        assertEquals(0, pool.getPinCount(pid(0)));
+    }
+
+    @Test
+    public void poolOfPinnedPagesRefusesMore() throws Exception {
+        BufferPool pool = Database.resetBufferPool(3);
+        TransactionId tid = new TransactionId();
+        for (int n = 0; n < 3; n++)
+            pool.getPage(tid, pid(n), Permissions.READ_ONLY);
+        try {
+            pool.getPage(tid, pid(3), Permissions.READ_ONLY);
+            fail("evicted a pinned page");
+        } catch (DbException e) {
+            // expected
+        }
+        pool.unpinPage(tid, pid(1));
+        pool.getPage(tid, pid(3), Permissions.READ_ONLY);
+        assertEquals(1, pool.getPinCount(pid(0)));
+        assertEquals(1, pool.getPinCount(pid(3)));
+        pool.transactionComplete(tid);
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that sequential scans read pages ahead of themselves, and that
+ * read-ahead stays within its share of the pool and never evicts dirty
+ * pages.
+ */
+public class ReadAheadTest {
+
+    private static final int PAGES = 40;
+
+    private HeapFile table;
+    private int perPage;
+
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        perPage = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < PAGES * perPage; i++)
+            tuples.add(Arrays.asList(i, -i));
+        File f = File.createTempFile("readahead", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        table = Utility.openHeapFile(2, f);
+    }
+
+    private List<PageId> pageIds(int from, int to) {
+        List<PageId> pids = new ArrayList<>();
+        for (int n = from; n < to; n++)
+            pids.add(new HeapPageId(table.getId(), n));
+        return pids;
+    }
+
+    @Test
+    public void scanUsesThePagesReadAhead() throws Exception {
+        BufferPool pool = Database.resetBufferPool(200);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int expected = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(expected), it.next().getField(0));
+            expected++;
+        }
+        it.close();
+        pool.transactionComplete(tid);
+        assertEquals(PAGES * perPage, expected);
+        assertTrue(pool.getPrefetchCount() > PAGES / 2);
+        assertTrue(pool.getPrefetchHitCount() > PAGES / 2);
+    }
+
+    @Test
+    public void readAheadIsLimitedToAQuarterOfThePool() {
+        BufferPool pool = Database.resetBufferPool(20);
+        assertEquals(5, pool.prefetch(pageIds(0, 12)));
+        // the pages already read ahead count as accepted
+        assertEquals(5, pool.prefetch(pageIds(0, 5)));
+    }
+
+    @Test
+    public void readAheadNeverEvictsDirtyPages() throws Exception {
+        BufferPool pool = Database.resetBufferPool(8);
+        TransactionId tid = new TransactionId();
+        List<Page> dirty = new ArrayList<>();
+        for (PageId pid : pageIds(0, 8)) {
+            Page p = pool.getPage(tid, pid, Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+            dirty.add(p);
+        }
+        assertEquals(0, pool.prefetch(pageIds(8, 10)));
+        for (Page p : dirty)
+            assertSame(p, pool.getPage(tid, p.getId(), Permissions.READ_WRITE));
+        pool.transactionComplete(tid, false);
+    }
+}
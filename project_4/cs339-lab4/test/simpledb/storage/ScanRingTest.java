@@ -0,0 +1,106 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that scans of tables large compared to the pool reuse a small ring
+ * of frames, and leave the pages of other tables in the pool.
+ */
+public class ScanRingTest {
+
+    private HeapFile big;
+    private HeapFile hot;
+
+    private static HeapFile create(String name, int rows) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Arrays.asList(i, i));
+        File f = File.createTempFile(name, ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        return Utility.openHeapFile(2, f);
+    }
+
+    /**
+     * Create a table of about 100 pages and one of 4 pages.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        int perPage = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        big = create("ringbig", 100 * perPage);
+        hot = create("ringhot", 4 * perPage);
+    }
+
+    /**
+     * @return the sum of the first field of the table, scanned in a
+     *         transaction of its own
+     */
+    private static long scan(HeapFile table) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId());
+        scan.open();
+        long sum = 0;
+        while (scan.hasNext())
+            sum += ((IntField) scan.next().getField(0)).getValue();
+        scan.close();
+        t.commit();
+        return sum;
+    }
+
+    private static long sum(HeapFile table) {
+        long n = (long) table.numPages() * HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        return (n - 1) * n / 2;
+    }
+
+    @Test
+    public void largeScanLeavesOtherPagesResident() throws Exception {
+        BufferPool pool = Database.resetBufferPool(40);
+        assertEquals(sum(hot), scan(hot));
+        assertEquals(sum(big), scan(big));
+        assertTrue(pool.getRingReuseCount() > 0);
+
+        long misses = pool.getMissCount();
+        assertEquals(sum(hot), scan(hot));
+        assertEquals(misses, pool.getMissCount());
+        // a second scan of the big table still works
+        assertEquals(sum(big), scan(big));
+    }
+
+    @Test
+    public void ringsCanBeTurnedOff() throws Exception {
+        BufferPool pool = Database.resetBufferPool(40);
+        pool.setScanRingThreshold(Double.POSITIVE_INFINITY);
+        assertNull(pool.newScanRing(1000));
+        assertEquals(sum(hot), scan(hot));
+        assertEquals(sum(big), scan(big));
+        assertEquals(0, pool.getRingReuseCount());
+
+        long misses = pool.getMissCount();
+        scan(hot);
+        assertTrue(pool.getMissCount() > misses);
+    }
+
+    @Test
+    public void ringSizeFollowsThePool() {
+        BufferPool pool = Database.resetBufferPool(40);
+        // at most a quarter of the pool is scanned without a ring
+        assertNull(pool.newScanRing(10));
+        assertEquals(10, pool.newScanRing(11).getCapacity());
+        assertEquals(BufferPool.MAX_SCAN_RING_PAGES, Database.resetBufferPool(1000).newScanRing(1000).getCapacity());
+        assertEquals(2, Database.resetBufferPool(4).newScanRing(100).getCapacity());
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Delete;
+import simpledb.execution.Filter;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the compressed second tier of the BufferPool: that it serves misses
+ * on pages evicted from the pool, stays within its size, and never serves a
+ * page older than its latest committed version.
+ */
+public class SecondaryCacheTest {
+
+    private static final int ROWS = 30000;
+
+    private HeapFile table;
+
+    /**
+     * Create a table of two int columns whose rows are {i % 10, i}.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(Arrays.asList(i % 10, i));
+        File f = File.createTempFile("secondary", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        table = Utility.openHeapFile(2, f);
+    }
+
+    /**
+     * @return the sum of the first field of the table, scanned in a
+     *         transaction of its own
+     */
+    private long scan() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId());
+        scan.open();
+        long sum = 0;
+        while (scan.hasNext())
+            sum += ((IntField) scan.next().getField(0)).getValue();
+        scan.close();
+        t.commit();
+        return sum;
+    }
+
+    /**
+     * Delete the tuples {value, i} with i < 1000.
+     */
+    private void delete(int value, boolean commit) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Delete d = new Delete(t.getId(), new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(value)),
+                new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1000)),
+                        new SeqScan(t.getId(), table.getId()))));
+        d.open();
+        d.next();
+        d.close();
+        t.transactionComplete(!commit);
+    }
+
+    private BufferPool poolWithSecondaryCache(long bytes) {
+        BufferPool pool = Database.resetBufferPool(10);
+        pool.setScanRingThreshold(Double.POSITIVE_INFINITY);
+        pool.enableSecondaryCache(bytes);
+        return pool;
+    }
+
+    @Test
+    public void evictedPagesAreServedFromTheSecondTier() throws Exception {
+        BufferPool pool = poolWithSecondaryCache(1 << 20);
+        long sum = ROWS / 10 * 45L;
+        assertEquals(sum, scan());
+        int pages = table.numPages();
+        assertTrue(pool.getSecondaryPageCount() >= pages - 10);
+        // each page takes less than a frame
+        assertTrue(pool.getSecondaryCacheBytes() < (long) pool.getSecondaryPageCount() * BufferPool.getPageSize());
+
+        pool.resetStatistics();
+        assertEquals(sum, scan());
+        assertTrue(pool.getSecondaryHitCount() >= pages - 10);
+    }
+
+    @Test
+    public void secondTierStaysWithinItsSize() throws Exception {
+        BufferPool pool = poolWithSecondaryCache(4096);
+        scan();
+        assertTrue(pool.getSecondaryPageCount() > 0);
+        assertTrue(pool.getSecondaryCacheBytes() <= 4096);
+        scan();
+        assertTrue(pool.getSecondaryCacheBytes() <= 4096);
+    }
+
+    @Test
+    public void committedChangesAreNotLost() throws Exception {
+        BufferPool pool = poolWithSecondaryCache(1 << 20);
+        long sum = scan();
+        delete(3, true);
+        assertEquals(sum - 3 * 100, scan());
+        assertEquals(sum - 3 * 100, scan());
+        delete(4, false);
+        assertEquals(sum - 3 * 100, scan());
+        assertTrue(pool.getSecondaryHitCount() > 0);
+    }
+
+    @Test
+    public void ringScansDoNotFillTheSecondTier() throws Exception {
+        BufferPool pool = Database.resetBufferPool(10);
+        pool.enableSecondaryCache(1 << 20);
+        scan();
+        assertTrue(pool.getRingReuseCount() > 0);
+        assertTrue(pool.getSecondaryPageCount() <= 10);
+    }
+
+    @Test
+    public void cacheRebuildsThePagesItStashed() throws Exception {
+        CompressedPageCache cache = new CompressedPageCache(1 << 20);
+        HeapPage p = (HeapPage) table.readPage(new HeapPageId(table.getId(), 3));
+        cache.stash(p);
+        assertEquals(1, cache.size());
+        Page q = cache.take(p.getId());
+        assertNotNull(q);
+        assertArrayEquals(p.getPageData(), q.getPageData());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+        assertNull(cache.take(p.getId()));
+    }
+
+    @Test
+    public void lz4RoundTrips() {
+        Random r = new Random(1);
+        byte[] random = new byte[4096];
+        r.nextBytes(random);
+        byte[] repetitive = new byte[4096];
+        for (int i = 0; i < repetitive.length; i++)
+            repetitive[i] = (byte) (i % 13 < 4 ? i / 13 : 0);
+        for (byte[] data : new byte[][]{new byte[0], new byte[4096], random, repetitive, {1, 2, 3}}) {
+            byte[] compressed = Lz4Codec.compress(data);
+            assertArrayEquals(data, Lz4Codec.decompress(compressed, data.length));
+        }
+        assertTrue(Lz4Codec.compress(new byte[4096]).length < 100);
+    }
+}
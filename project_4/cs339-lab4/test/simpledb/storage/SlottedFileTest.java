@@ -0,0 +1,167 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a SlottedFile stores short strings in a fraction of the pages
+ * a HeapFile needs, and keeps its tuples across deletes, inserts of longer
+ * records, aborts and restarts.
+ */
+public class SlottedFileTest {
+
+    private static final int ROWS = 5000;
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"id", "name"});
+
+    private File file;
+    private SlottedFile table;
+
+    private static Tuple row(int id, String name) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * Create a slotted table with rows {i, "n" + i}.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++)
+            rows.add(row(i, "n" + i));
+        file = File.createTempFile("slotted", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        SlottedFile.convert(rows.iterator(), TD, file);
+        table = new SlottedFile(file, TD);
+        Database.getCatalog().addTable(table, "slotted");
+    }
+
+    /**
+     * @return the name of every tuple of the table, by id
+     */
+    private TreeMap<Integer, String> scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        TreeMap<Integer, String> rows = new TreeMap<>();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertNull(rows.put(((IntField) t.getField(0)).getValue(),
+                    ((StringField) t.getField(1)).getValue()));
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return rows;
+    }
+
+    private void deleteEvenIdsBelow(Transaction t, int limit) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), table.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple x = scan.next();
+            int id = ((IntField) x.getField(0)).getValue();
+            if (id < limit && id % 2 == 0)
+                Database.getBufferPool().deleteTuple(t.getId(), x);
+        }
+        scan.close();
+    }
+
+    @Test
+    public void shortStringsTakeFewerPages() throws Exception {
+        int heapPages = (ROWS + HeapPage.getNumTuples(TD) - 1) / HeapPage.getNumTuples(TD);
+        assertTrue(table.numPages() + " pages", table.numPages() * 5 < heapPages);
+
+        TreeMap<Integer, String> rows = scan();
+        assertEquals(ROWS, rows.size());
+        for (int i = 0; i < ROWS; i++)
+            assertEquals("n" + i, rows.get(i));
+    }
+
+    @Test
+    public void deletesAndLongerInsertsSurviveARestart() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteEvenIdsBelow(t, 1000);
+        for (int i = 0; i < 300; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                    row(ROWS + i, "a-much-longer-name-" + i));
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(20);
+
+        TreeMap<Integer, String> rows = scan();
+        assertEquals(ROWS - 500 + 300, rows.size());
+        assertFalse(rows.containsKey(998));
+        assertEquals("n999", rows.get(999));
+        assertEquals("n4999", rows.get(4999));
+        assertEquals("a-much-longer-name-299", rows.get(ROWS + 299));
+    }
+
+    @Test
+    public void abortRestoresThePages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteEvenIdsBelow(t, 200);
+        for (int i = 0; i < 200; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), row(-1, "zz"));
+        t.abort();
+
+        TreeMap<Integer, String> rows = scan();
+        assertEquals(ROWS, rows.size());
+        assertEquals("n0", rows.get(0));
+    }
+
+    @Test
+    public void freedSpaceIsReusedAndRecordIdsStayPut() throws Exception {
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        SlottedPage p = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        List<Tuple> added = new ArrayList<>();
+        try {
+            for (int i = 0; ; i++) {
+                Tuple t = row(i, "name" + i);
+                p.insertTuple(t);
+                added.add(t);
+            }
+        } catch (DbException e) {
+            // full
+        }
+        assertTrue(added.size() > 5 * HeapPage.getNumTuples(TD));
+
+        // a longer record fits once enough short ones are gone
+        Tuple longer = row(-1, "x".repeat(60));
+        for (int i = 1; i <= 10; i++)
+            p.deleteTuple(added.get(i));
+        p.insertTuple(longer);
+        assertEquals(1, longer.getRecordId().getTupleNumber());
+
+        SlottedPage q = new SlottedPage(pid, p.getPageData());
+        assertArrayEquals(p.getPageData(), q.getPageData());
+        Tuple last = added.get(added.size() - 1);
+        assertEquals(last.getField(1), q.getTuple(last.getRecordId().getTupleNumber()).getField(1));
+        assertEquals(longer.getField(1), q.getTuple(1).getField(1));
+        assertNull(q.getTuple(2));
+        int n = 0;
+        for (Iterator<Tuple> it = q.iterator(); it.hasNext(); it.next())
+            n++;
+        assertEquals(added.size() - 10 + 1, n);
+    }
+}
@@ -0,0 +1,150 @@
+package simpledb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that with write-behind enabled, commits leave their pages to the
+ * background writer, the pages are never lost before they are written, and
+ * the journal brings the files up to date after a crash.
+ */
+public class WriteBehindTest {
+
+    private File file;
+    private File journal;
+    private HeapFile table;
+    private int perPage;
+
+    /**
+     * Create an empty table of two int columns.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        perPage = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        file = File.createTempFile("writebehind", ".dat");
+        file.deleteOnExit();
+        new FileOutputStream(file).close();
+        journal = File.createTempFile("writebehind", ".journal");
+        journal.delete();
+        table = Utility.openHeapFile(2, file);
+        Database.resetBufferPool(40);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().disableWriteBehind();
+        File[] segments = journal.getParentFile().listFiles((d, name) -> name.startsWith(journal.getName()));
+        if (segments != null) {
+            for (File f : segments)
+                f.delete();
+        }
+    }
+
+    /**
+     * Insert rows {first, first} .. {first + n - 1, ...} in a transaction of
+     * its own.
+     */
+    private void insertCommitted(int first, int n) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = first; i < first + n; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{i, i}));
+        t.commit();
+    }
+
+    /**
+     * @return the number of tuples in the table's file, read past the pool
+     */
+    private int tuplesOnDisk() {
+        int n = 0;
+        for (int pgNo = 0; pgNo < table.numPages(); pgNo++) {
+            Iterator<Tuple> it = ((HeapPage) table.readPage(new HeapPageId(table.getId(), pgNo))).iterator();
+            while (it.hasNext()) {
+                it.next();
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void commitLeavesItsPagesUnwritten() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        // the writer never gets going
+        pool.enableWriteBehind(journal, 1000, 1.0, 1.0);
+        insertCommitted(0, 3 * perPage);
+        assertEquals(3, pool.getUnwrittenCount());
+        assertEquals(0, tuplesOnDisk());
+        assertEquals(TestUtil.range(3 * perPage), TestUtil.scanFirstColumn(table.getId()));
+
+        pool.disableWriteBehind();
+        assertEquals(0, pool.getUnwrittenCount());
+        assertEquals(3 * perPage, tuplesOnDisk());
+    }
+
+    @Test
+    public void backgroundWriterCatchesUp() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        pool.enableWriteBehind(journal, 1000, 0.0, 0.5);
+        for (int b = 0; b < 10; b++)
+            insertCommitted(b * perPage, perPage);
+        for (int i = 0; i < 500 && pool.getUnwrittenCount() > 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, pool.getUnwrittenCount());
+        assertTrue(pool.getBackgroundWriteCount() >= 10);
+        assertEquals(10 * perPage, tuplesOnDisk());
+    }
+
+    @Test
+    public void abortKeepsTheCommittedVersion() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        pool.enableWriteBehind(journal, 1000, 1.0, 1.0);
+        insertCommitted(0, perPage / 2);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < perPage; i++)
+            pool.insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{-1, -1}));
+        t.abort();
+        assertEquals(TestUtil.range(perPage / 2), TestUtil.scanFirstColumn(table.getId()));
+        pool.disableWriteBehind();
+        assertEquals(perPage / 2, tuplesOnDisk());
+    }
+
+    @Test
+    public void evictionWritesUnwrittenPages() throws Exception {
+        BufferPool pool = Database.resetBufferPool(10);
+        pool.enableWriteBehind(journal, 1000, 1.0, 1.0);
+        for (int b = 0; b < 30; b++)
+            insertCommitted(b * perPage, perPage);
+        assertTrue(pool.getForegroundWriteCount() >= 20);
+        assertEquals(TestUtil.range(30 * perPage), TestUtil.scanFirstColumn(table.getId()));
+    }
+
+    @Test
+    public void journalIsReplayedAfterACrash() throws Exception {
+        Database.getBufferPool().enableWriteBehind(journal, 1000, 1.0, 1.0);
+        insertCommitted(0, 2 * perPage);
+        insertCommitted(2 * perPage, 10);
+        assertEquals(0, tuplesOnDisk());
+
+        // a crash: the pool is lost without being written
+        Database.reset();
+        table = Utility.openHeapFile(2, file);
+        assertEquals(0, tuplesOnDisk());
+        Database.getBufferPool().enableWriteBehind(journal, 1000, 1.0, 1.0);
+        assertEquals(2 * perPage + 10, tuplesOnDisk());
+        assertEquals(TestUtil.range(2 * perPage + 10), TestUtil.scanFirstColumn(table.getId()));
+    }
+}
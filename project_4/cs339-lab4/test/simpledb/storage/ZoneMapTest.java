@@ -0,0 +1,162 @@
+package simpledb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Delete;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that scans with range predicates skip the pages the zone map rules
+ * out, without ever missing a tuple that matches.
+ */
+public class ZoneMapTest {
+
+    private static final int ROWS = 20000;
+
+    private File file;
+    private HeapFile table;
+    private int perPage;
+
+    /**
+     * Create a table of two int columns whose rows are {i, i % 1000}, in
+     * order of i.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Database.reset();
+        perPage = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        file = File.createTempFile("zonemap", ".dat");
+        file.deleteOnExit();
+        for (String suffix : new String[]{ZoneMap.SUFFIX, FreeSpaceMap.SUFFIX, BloomMap.SUFFIX})
+            new File(file.getPath() + suffix).deleteOnExit();
+        write(false);
+        open();
+    }
+
+    private void write(boolean descending) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            int key = descending ? ROWS - 1 - i : i;
+            tuples.add(Arrays.asList(key, key % 1000));
+        }
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+    }
+
+    private void open() {
+        Database.getCatalog().clear();
+        Database.resetBufferPool(20);
+        table = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "zones");
+    }
+
+    private static Predicate key(Predicate.Op op, int value) {
+        return new Predicate(0, op, new IntField(value));
+    }
+
+    /**
+     * @return the number of tuples that satisfy all the predicates
+     */
+    private int count(TransactionId tid, Predicate... predicates) throws Exception {
+        OpIterator it = new SeqScan(tid, table.getId(), "zones", Arrays.asList(predicates));
+        for (Predicate p : predicates)
+            it = new Filter(p, it);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * @return the number of pages a count in a transaction of its own reads
+     *         from disk
+     */
+    private long misses(int expected, Predicate... predicates) throws Exception {
+        TransactionId tid = new TransactionId();
+        long before = Database.getBufferPool().getMissCount();
+        assertEquals(expected, count(tid, predicates));
+        Database.getBufferPool().transactionComplete(tid);
+        return Database.getBufferPool().getMissCount() - before;
+    }
+
+    @Test
+    public void rangeScanReadsOnlyThePagesInRange() throws Exception {
+        // the first scan computes the zones
+        misses(500, key(Predicate.Op.GREATER_THAN_OR_EQ, 19000), key(Predicate.Op.LESS_THAN, 19500));
+        Database.resetBufferPool(20);
+        long misses = misses(500, key(Predicate.Op.GREATER_THAN_OR_EQ, 19000), key(Predicate.Op.LESS_THAN, 19500));
+        assertTrue(misses + " misses", misses <= 500 / perPage + 2);
+        assertTrue(misses(1, key(Predicate.Op.EQUALS, 12345)) <= 1);
+        assertEquals(0, misses(0, key(Predicate.Op.GREATER_THAN, ROWS)));
+    }
+
+    @Test
+    public void insertWidensTheZoneOfItsPage() throws Exception {
+        misses(0, key(Predicate.Op.LESS_THAN, 0));
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{-5, 1}));
+        assertEquals(1, count(t.getId(), key(Predicate.Op.EQUALS, -5)));
+        t.commit();
+        misses(1, key(Predicate.Op.LESS_THAN, 0));
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(20);
+        assertTrue(misses(1, key(Predicate.Op.EQUALS, -5)) <= 1);
+    }
+
+    @Test
+    public void abortedDeleteKeepsItsTuplesVisible() throws Exception {
+        misses(1, key(Predicate.Op.EQUALS, 10005));
+        Transaction t = new Transaction();
+        t.start();
+        OpIterator delete = new Delete(t.getId(), new Filter(key(Predicate.Op.LESS_THAN, 10010),
+                new Filter(key(Predicate.Op.GREATER_THAN_OR_EQ, 10000), new SeqScan(t.getId(), table.getId(), "zones"))));
+        delete.open();
+        delete.next();
+        delete.close();
+        assertEquals(0, count(t.getId(), key(Predicate.Op.EQUALS, 10005)));
+        t.abort();
+        misses(1, key(Predicate.Op.EQUALS, 10005));
+    }
+
+    @Test
+    public void zonesAreReloadedFromTheSideFile() throws Exception {
+        misses(ROWS, key(Predicate.Op.GREATER_THAN_OR_EQ, 0));
+        Database.getBufferPool().flushAllPages();
+        assertTrue(new File(file.getPath() + ZoneMap.SUFFIX).length() > 0);
+        open();
+        long misses = misses(500, key(Predicate.Op.GREATER_THAN_OR_EQ, 19000), key(Predicate.Op.LESS_THAN, 19500));
+        assertTrue(misses + " misses", misses <= 500 / perPage + 2);
+    }
+
+    @Test
+    public void staleSideFileIsIgnored() throws Exception {
+        misses(ROWS, key(Predicate.Op.GREATER_THAN_OR_EQ, 0));
+        Database.getBufferPool().flushAllPages();
+        // rewrite the table with the keys in the opposite order
+        write(true);
+        File zones = new File(file.getPath() + ZoneMap.SUFFIX);
+        assertTrue(zones.setLastModified(file.lastModified() - 10000));
+        open();
+        misses(500, key(Predicate.Op.GREATER_THAN_OR_EQ, 19000), key(Predicate.Op.LESS_THAN, 19500));
+        misses(500, key(Predicate.Op.GREATER_THAN_OR_EQ, 19000), key(Predicate.Op.LESS_THAN, 19500));
+        misses(500, key(Predicate.Op.LESS_THAN, 500));
+    }
+}